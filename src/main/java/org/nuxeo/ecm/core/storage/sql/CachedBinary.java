@@ -0,0 +1,60 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.nuxeo.common.file.FileCache;
+import org.nuxeo.ecm.core.storage.sql.cloud.CloudFileCache;
+import org.nuxeo.ecm.core.storage.sql.cloud.FileRangeInputStream;
+
+/**
+ * A binary present in the file cache, whose file is pinned in the cache while
+ * its streams are open, so that it's not evicted while being read. Ranges
+ * are read with positional reads of the file.
+ */
+public class CachedBinary extends Binary implements RangedBinary {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Not available after deserialization, the file is then not pinned. */
+    protected final transient FileCache fileCache;
+
+    public CachedBinary(File file, String digest, String repoName,
+            FileCache fileCache) {
+        super(file, digest, repoName);
+        this.fileCache = fileCache;
+    }
+
+    @Override
+    public InputStream getStream() throws IOException {
+        if (fileCache == null) {
+            return super.getStream();
+        }
+        return CloudFileCache.getStream(fileCache, digest, file);
+    }
+
+    @Override
+    public InputStream getStream(long offset, long length) throws IOException {
+        if (fileCache == null) {
+            return new FileRangeInputStream(file, offset, length);
+        }
+        return CloudFileCache.getStream(fileCache, digest, file, offset,
+                length);
+    }
+
+}
@@ -17,13 +17,33 @@
  */
 package org.nuxeo.ecm.core.storage.sql;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.common.file.FileCache;
+import org.nuxeo.ecm.core.storage.sql.cloud.CacheConfigurationBean;
+import org.nuxeo.ecm.core.storage.sql.cloud.ChunkCache;
+import org.nuxeo.ecm.core.storage.sql.cloud.ClockFileCache;
+import org.nuxeo.ecm.core.storage.sql.cloud.CloudFileCache;
+import org.nuxeo.ecm.core.storage.sql.cloud.MemoryTier;
+import org.nuxeo.ecm.core.storage.sql.cloud.Prefetcher;
+import org.nuxeo.ecm.core.storage.sql.cloud.RemoteInventory;
+import org.nuxeo.ecm.core.storage.sql.cloud.ShardedFileCache;
+import org.nuxeo.ecm.core.storage.sql.cloud.SingleFlight;
+import org.nuxeo.ecm.core.storage.sql.cloud.TinyLfuFileCache;
+import org.nuxeo.ecm.core.storage.sql.cloud.WriteBehindUploader;
+import org.nuxeo.runtime.RuntimeServiceEvent;
+import org.nuxeo.runtime.RuntimeServiceListener;
+import org.nuxeo.runtime.api.Framework;
 
 /**
  */
@@ -35,6 +55,8 @@ public abstract class CloudBinaryManager extends DefaultBinaryManager {
 
     private static final Pattern MD5_RE = Pattern.compile("[0-9a-f]{32}");
 
+    public static final String INVENTORY_FILE = ".inventory";
+
     public abstract void initialize(RepositoryDescriptor repositoryDescriptor)
             throws IOException;
 
@@ -44,13 +66,540 @@ public abstract class CloudBinaryManager extends DefaultBinaryManager {
 
     public abstract Binary getBinary(String digest);
 
+    /**
+     * Creates a lazy binary, fetched from the remote storage when read.
+     */
+    protected abstract CloudLazyBinary newLazyBinary(String digest);
+
     protected abstract void removeBinary(String digest);
 
+    /**
+     * Uploads a binary present in the cache, if not already stored. Used by
+     * the write-behind uploads.
+     */
+    protected abstract void upload(String digest, File file)
+            throws IOException;
+
     public static boolean isMD5(String digest) {
         return MD5_RE.matcher(digest).matches();
     }
 
     protected FileCache fileCache;
 
+    /** Whether the file cache keeps its content across restarts. */
+    protected boolean fileCachePersistent;
+
+    /** Uploads binaries in the background, or {@code null} if disabled. */
+    protected WriteBehindUploader writeBehindUploader;
+
+    /** The objects known to be stored remotely, or {@code null} if disabled. */
+    protected RemoteInventory inventory;
+
+    /** The small binaries kept in memory, or {@code null} if disabled. */
+    protected MemoryTier memoryTier;
+
+    /** The big binaries cached as chunks, or {@code null} if disabled. */
+    protected ChunkCache chunkCache;
+
+    protected final AtomicLong fileCacheHits = new AtomicLong();
+
+    protected final AtomicLong fileCacheMisses = new AtomicLong();
+
+    /** Downloads binaries before they're read, or {@code null} if closed. */
+    protected volatile Prefetcher prefetcher;
+
+    /** The fetches of missing binaries currently in progress, by digest. */
+    protected final SingleFlight<File> fetches = new SingleFlight<File>() {
+        @Override
+        protected void finished(String key) {
+            fetchFinished();
+        }
+    };
+
+    /** Closes this binary manager when the runtime stops, or {@code null}. */
+    protected RuntimeServiceListener shutdownListener;
+
+    /**
+     * Creates the file cache, in the configured persistent directory and
+     * shards if possible, otherwise in a new temporary directory.
+     */
+    protected FileCache createFileCache(CacheConfigurationBean conf,
+            long maxSize) throws IOException {
+        String dirName = conf.getDir();
+        if (dirName != null) {
+            File dir = new File(dirName);
+            try {
+                CloudFileCache cache = newShardedFileCache(conf, dir, maxSize);
+                cache.rebuild(conf.getRebuildThreads(),
+                        conf.getRebuildTimeout());
+                log.info("Using persistent binary cache directory: " + dir
+                        + " size: " + maxSize);
+                fileCachePersistent = true;
+                return cache;
+            } catch (IOException e) {
+                log.warn("Cannot use persistent binary cache directory: "
+                        + dir + ", using a temporary one, the cached "
+                        + "binaries will be lost on restart", e);
+            }
+        }
+        File dir = File.createTempFile("nxbincache.", "", null);
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        log.info("Using binary cache directory: " + dir.getPath() + " size: "
+                + maxSize);
+        fileCachePersistent = false;
+        return newFileCache(conf, dir, maxSize, false);
+    }
+
+    /**
+     * Creates a file cache spread over the configured shards, each one with
+     * an equal part of the size, or in the directory alone if there are none.
+     */
+    protected static CloudFileCache newShardedFileCache(
+            CacheConfigurationBean conf, File dir, long maxSize)
+            throws IOException {
+        List<String> names = conf.getShards();
+        if (names.isEmpty()) {
+            return newFileCache(conf, dir, maxSize, false);
+        }
+        List<CloudFileCache> shards = new ArrayList<CloudFileCache>(
+                names.size());
+        try {
+            for (String name : names) {
+                shards.add(newFileCache(conf, new File(name), maxSize
+                        / names.size(), true));
+            }
+            CloudFileCache cache = new ShardedFileCache(dir, shards);
+            log.info("Using binary cache shards: " + names);
+            return cache;
+        } catch (IOException e) {
+            for (CloudFileCache shard : shards) {
+                shard.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @param fanOut whether the files are stored in nested directories
+     */
+    protected static CloudFileCache newFileCache(CacheConfigurationBean conf,
+            File dir, long maxSize, boolean fanOut) throws IOException {
+        CloudFileCache cache;
+        if (CacheConfigurationBean.INDEX_OFFHEAP.equals(conf.getIndex())) {
+            if (CacheConfigurationBean.ADMISSION_TINYLFU.equals(conf.getAdmission())) {
+                log.warn("TinyLFU admission is not available with the "
+                        + "off-heap cache index, using CLOCK eviction");
+            }
+            cache = new ClockFileCache(dir, maxSize, fanOut);
+        } else if (CacheConfigurationBean.ADMISSION_TINYLFU.equals(conf.getAdmission())) {
+            cache = new TinyLfuFileCache(dir, maxSize,
+                    TinyLfuFileCache.DEFAULT_WINDOW_PERCENT, fanOut);
+        } else {
+            cache = new CloudFileCache(dir, maxSize, fanOut);
+        }
+        if (conf.isEvictBackground()) {
+            cache.startJanitor(maxSize / 100 * conf.getEvictHighWatermark(),
+                    maxSize / 100 * conf.getEvictLowWatermark());
+            log.info("Evicting binary cache entries in the background from "
+                    + conf.getEvictHighWatermark() + "% to "
+                    + conf.getEvictLowWatermark() + "% of the size");
+        }
+        return cache;
+    }
+
+    /**
+     * Creates the memory tier in front of the file cache, if configured.
+     */
+    protected void initializeMemoryTier(CacheConfigurationBean conf) {
+        if (conf.getMemorySize() <= 0) {
+            return;
+        }
+        memoryTier = new MemoryTier(conf.getMemorySize(),
+                conf.getMemoryMaxEntrySize());
+        log.info("Using binary memory cache size: " + memoryTier.getMaxSize()
+                + " for binaries up to: " + memoryTier.getMaxEntrySize());
+    }
+
+    /**
+     * Creates the cache of the big binaries read by chunks, if configured.
+     */
+    protected void initializeChunkCache(CacheConfigurationBean conf) {
+        if (conf.getChunkThreshold() < 0) {
+            return;
+        }
+        chunkCache = new ChunkCache(fileCache, conf.getChunkSize(),
+                conf.getChunkThreshold()) {
+            @Override
+            protected void fetchFinished(String chunkKey) {
+                CloudBinaryManager.this.fetchFinished();
+            }
+        };
+        log.info("Caching binaries from " + conf.getChunkThreshold()
+                + " as chunks of: " + conf.getChunkSize());
+    }
+
+    /**
+     * Number of chunks of big binaries fetched.
+     */
+    public long getChunkFetchCount() {
+        return chunkCache == null ? 0 : chunkCache.getFetchCount();
+    }
+
+    /**
+     * Number of chunks of big binaries found in the file cache.
+     */
+    public long getChunkHitCount() {
+        return chunkCache == null ? 0 : chunkCache.getHitCount();
+    }
+
+    /**
+     * Number of chunks of big binaries missing from the file cache.
+     */
+    public long getChunkMissCount() {
+        return chunkCache == null ? 0 : chunkCache.getMissCount();
+    }
+
+    /**
+     * Gets a binary present in the file cache, served from the memory tier
+     * if there's one.
+     *
+     * @return the binary, or {@code null} if it's not in the cache
+     */
+    protected Binary getCachedBinary(String digest) {
+        File file = fileCache.getFile(digest);
+        if (file == null) {
+            fileCacheMisses.incrementAndGet();
+            return null;
+        }
+        fileCacheHits.incrementAndGet();
+        if (memoryTier != null) {
+            return new MemoryTierBinary(file, digest, repositoryName,
+                    fileCache, memoryTier);
+        }
+        return new CachedBinary(file, digest, repositoryName, fileCache);
+    }
+
+    /**
+     * Number of binaries found in the file cache.
+     */
+    public long getFileCacheHitCount() {
+        return fileCacheHits.get();
+    }
+
+    /**
+     * Number of binaries missing from the file cache.
+     */
+    public long getFileCacheMissCount() {
+        return fileCacheMisses.get();
+    }
+
+    /**
+     * Size of the cached binaries that cannot be evicted, because they're
+     * being read or not yet uploaded.
+     */
+    public long getPinnedSize() {
+        if (fileCache instanceof CloudFileCache) {
+            return ((CloudFileCache) fileCache).getPinnedSize();
+        }
+        return 0;
+    }
+
+    /**
+     * Number of streams of cached binaries served from memory.
+     */
+    public long getMemoryHitCount() {
+        return memoryTier == null ? 0 : memoryTier.getHitCount();
+    }
+
+    /**
+     * Number of streams of cached binaries read from their file.
+     */
+    public long getMemoryMissCount() {
+        return memoryTier == null ? 0 : memoryTier.getMissCount();
+    }
+
+    protected static String hitRate(long hits, long misses) {
+        long total = hits + misses;
+        return String.format("%d/%d (%.1f%%)", Long.valueOf(hits),
+                Long.valueOf(total), Double.valueOf(total == 0 ? 0 : 100.0
+                        * hits / total));
+    }
+
+    /**
+     * Gets a binary file from the cache, downloading it if it's missing. If
+     * the same binary is already being downloaded by another thread, waits
+     * for it instead of downloading it again.
+     *
+     * @param download returns a temporary file of the cache with the
+     *            content, or {@code null} if the binary doesn't exist
+     * @return the cached file, or {@code null} if the binary doesn't exist
+     */
+    protected File getCachedFile(String digest, Callable<File> download)
+            throws IOException {
+        return getCachedFile(fileCache, fetches, digest, download);
+    }
+
+    /**
+     * @param fetches the fetches in progress, or {@code null} to always
+     *            download
+     * @see #getCachedFile(String, Callable)
+     */
+    public static File getCachedFile(final FileCache fileCache,
+            SingleFlight<File> fetches, final String digest,
+            final Callable<File> download) throws IOException {
+        File file = fileCache.getFile(digest);
+        if (file != null) {
+            return file;
+        }
+        Callable<File> fetch = new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                // may have been put by a fetch that just finished
+                File file = fileCache.getFile(digest);
+                if (file != null) {
+                    return file;
+                }
+                File tmp = download.call();
+                if (tmp == null) {
+                    return null;
+                }
+                return fileCache.putFile(digest, tmp);
+            }
+        };
+        if (fetches != null) {
+            return fetches.execute(digest, fetch);
+        }
+        try {
+            return fetch.call();
+        } catch (IOException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Number of binaries actually downloaded to the cache.
+     */
+    public long getFetchCount() {
+        return fetches.getExecutedCount();
+    }
+
+    /**
+     * Number of downloads saved by waiting for the same binary already being
+     * downloaded by another thread.
+     */
+    public long getCoalescedFetchCount() {
+        return fetches.getCoalescedCount();
+    }
+
+    /**
+     * Starts the threads used to prefetch binaries.
+     *
+     * @param name the name used for the threads
+     * @param threads the number of concurrent downloads
+     */
+    protected void initializePrefetch(String name, int threads) {
+        prefetcher = new Prefetcher(name, threads) {
+            @Override
+            protected boolean isCached(String key) {
+                return fileCache.getFile(key) != null;
+            }
+
+            @Override
+            protected boolean fetch(String key) throws IOException {
+                // not through getBinary, which counts the cache hits of reads
+                return newLazyBinary(key).fetch() != null;
+            }
+
+            @Override
+            protected int getInFlightCount() {
+                int count = fetches.getInFlightCount();
+                if (chunkCache != null) {
+                    count += chunkCache.getInFlightCount();
+                }
+                return count;
+            }
+        };
+    }
+
+    /**
+     * Called when a fetch of a binary or of a chunk is done, so that the
+     * prefetches waiting for the interactive fetches go on.
+     */
+    protected void fetchFinished() {
+        Prefetcher p = prefetcher;
+        if (p != null) {
+            p.wakeUp();
+        }
+    }
+
+    /**
+     * Downloads into the cache, in the background, the binaries missing from
+     * it, for instance before a batch reads them. The downloads have a lower
+     * priority than the reads.
+     *
+     * @param digests the binaries to download
+     * @return a handle on the progress of the downloads
+     */
+    public Prefetcher.Prefetch prefetch(Collection<String> digests) {
+        if (prefetcher == null) {
+            throw new IllegalStateException("Binary manager not initialized");
+        }
+        return prefetcher.prefetch(digests);
+    }
+
+    protected void closePrefetch() {
+        if (prefetcher != null) {
+            prefetcher.shutdown();
+            prefetcher = null;
+        }
+    }
+
+    /**
+     * Starts the write-behind uploads, and those left pending by the previous
+     * run. The journal of pending uploads is kept in the cache directory, so
+     * this needs a persistent cache.
+     *
+     * @param name the name used for the upload threads
+     * @param threads the number of concurrent uploads
+     */
+    protected void initializeWriteBehind(String name, int threads)
+            throws IOException {
+        if (!fileCachePersistent) {
+            log.warn("Write-behind uploads need a persistent cache directory, "
+                    + "uploading synchronously");
+            return;
+        }
+        writeBehindUploader = new WriteBehindUploader(name,
+                (CloudFileCache) fileCache, threads, descriptor.digest) {
+            @Override
+            protected void upload(String key, File file) throws IOException {
+                CloudBinaryManager.this.upload(key, file);
+            }
+        };
+        writeBehindUploader.replay();
+        log.info("Using write-behind uploads, threads: " + threads);
+    }
+
+    /**
+     * Opens the index of the objects known to be stored remotely, kept in the
+     * cache directory, so this needs a persistent cache.
+     */
+    protected void initializeInventory() throws IOException {
+        if (!fileCachePersistent) {
+            log.warn("The remote inventory needs a persistent cache directory, "
+                    + "not using it");
+            return;
+        }
+        inventory = new RemoteInventory(new File(
+                ((CloudFileCache) fileCache).getDir(), INVENTORY_FILE));
+    }
+
+    protected void closeInventory() {
+        if (inventory != null) {
+            inventory.close();
+            inventory = null;
+        }
+    }
+
+    /**
+     * Records an object known to be stored, for instance from a listing.
+     */
+    protected void remember(String digest, long length) {
+        if (inventory != null) {
+            inventory.put(digest, length);
+        }
+    }
+
+    /**
+     * Forgets an object before it's deleted.
+     *
+     * @return {@code false} if it could not be forgotten, in which case it
+     *         must not be deleted
+     */
+    protected boolean forget(String digest) {
+        if (memoryTier != null) {
+            memoryTier.remove(digest);
+        }
+        if (inventory == null) {
+            return true;
+        }
+        try {
+            inventory.remove(digest);
+            return true;
+        } catch (IOException e) {
+            log.error("Cannot remove from remote inventory: " + digest, e);
+            return false;
+        }
+    }
+
+    /**
+     * Stops the write-behind uploads, the pending ones are done on next
+     * startup.
+     */
+    protected void closeWriteBehind() {
+        if (writeBehindUploader != null) {
+            writeBehindUploader.shutdown();
+            writeBehindUploader = null;
+        }
+    }
+
+    /**
+     * Releases the file cache directory, keeping its content.
+     */
+    protected void closeFileCache() {
+        String stats = "Binary cache hits: file "
+                + hitRate(getFileCacheHitCount(), getFileCacheMissCount());
+        if (memoryTier != null) {
+            stats += ", memory "
+                    + hitRate(getMemoryHitCount(), getMemoryMissCount());
+            memoryTier.clear();
+        }
+        if (chunkCache != null) {
+            stats += ", chunks "
+                    + hitRate(getChunkHitCount(), getChunkMissCount());
+        }
+        if (fileCache instanceof CloudFileCache) {
+            stats += ", pinned size " + getPinnedSize();
+        }
+        log.info(stats);
+        if (fileCache instanceof CloudFileCache) {
+            ((CloudFileCache) fileCache).close();
+        }
+    }
+
+    /**
+     * Stops the threads, releases the connections and the file cache.
+     */
+    public abstract void close();
+
+    /**
+     * Closes this binary manager when the runtime stops, as the repository
+     * never closes its binary manager. Without this its threads and
+     * connections would outlive the repository.
+     */
+    protected void registerShutdownListener() {
+        shutdownListener = new RuntimeServiceListener() {
+            @Override
+            public void handleEvent(RuntimeServiceEvent event) {
+                if (event.id == RuntimeServiceEvent.RUNTIME_ABOUT_TO_STOP) {
+                    close();
+                }
+            }
+        };
+        Framework.addListener(shutdownListener);
+    }
+
+    protected void unregisterShutdownListener() {
+        if (shutdownListener != null) {
+            Framework.removeListener(shutdownListener);
+            shutdownListener = null;
+        }
+    }
 
 }
@@ -0,0 +1,35 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Status of a cloud binary manager garbage collection, also reporting the
+ * unused binaries that could not be deleted.
+ * <p>
+ * {@link #numBinariesGC} and {@link #sizeBinariesGC} count all the unused
+ * binaries, including the ones that could not be deleted.
+ */
+public class CloudBinaryManagerStatus extends BinaryManagerStatus {
+
+    /** Number of unused binaries that could not be deleted. */
+    public long numBinariesGCFailed;
+
+    /** The first deletion failures, as "digest: reason". */
+    public List<String> failures = new ArrayList<String>();
+
+}
@@ -0,0 +1,277 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+
+import org.nuxeo.common.file.FileCache;
+import org.nuxeo.ecm.core.storage.sql.cloud.ChunkCache;
+import org.nuxeo.ecm.core.storage.sql.cloud.CloudFileCache;
+import org.nuxeo.ecm.core.storage.sql.cloud.FileRangeInputStream;
+import org.nuxeo.ecm.core.storage.sql.cloud.RemoteInventory;
+import org.nuxeo.ecm.core.storage.sql.cloud.SingleFlight;
+import org.nuxeo.ecm.core.storage.sql.cloud.TeeDownloader;
+
+/**
+ * A lazy binary whose concurrent fetches of the same digest are coalesced, so
+ * that a binary missing from the cache is fetched only once even if many
+ * threads read it at the same time.
+ * <p>
+ * With a {@link TeeDownloader}, the stream of a missing binary returns the
+ * bytes as they are downloaded, instead of waiting for the full download.
+ * With a {@link ChunkCache}, the stream of a big missing binary only fetches
+ * the chunks actually read.
+ * <p>
+ * A range is read from the cached file if there's one, otherwise from the
+ * chunks or with a ranged request, without downloading the whole binary.
+ */
+public abstract class CloudLazyBinary extends LazyBinary implements
+        RangedBinary {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Not available after deserialization, fetches are then independent. */
+    protected final transient SingleFlight<File> fetches;
+
+    /** Not available after deserialization, fetches are then complete. */
+    protected final transient TeeDownloader teeDownloader;
+
+    /** Not available after deserialization, lengths are then fetched. */
+    protected final transient RemoteInventory inventory;
+
+    /** Not available after deserialization, binaries are then fetched whole. */
+    protected final transient ChunkCache chunkCache;
+
+    public CloudLazyBinary(String digest, FileCache fileCache,
+            SingleFlight<File> fetches) {
+        this(digest, fileCache, fetches, null, null);
+    }
+
+    public CloudLazyBinary(String digest, FileCache fileCache,
+            SingleFlight<File> fetches, TeeDownloader teeDownloader) {
+        this(digest, fileCache, fetches, teeDownloader, null);
+    }
+
+    /**
+     * @param teeDownloader the downloader used to stream missing binaries
+     *            while they are downloaded, or {@code null}
+     * @param inventory the objects known to be stored, or {@code null}
+     */
+    public CloudLazyBinary(String digest, FileCache fileCache,
+            SingleFlight<File> fetches, TeeDownloader teeDownloader,
+            RemoteInventory inventory) {
+        this(digest, fileCache, fetches, teeDownloader, inventory, null);
+    }
+
+    /**
+     * @param chunkCache the cache of the big binaries read by chunks, or
+     *            {@code null}
+     * @see #CloudLazyBinary(String, FileCache, SingleFlight, TeeDownloader,
+     *      RemoteInventory)
+     */
+    public CloudLazyBinary(String digest, FileCache fileCache,
+            SingleFlight<File> fetches, TeeDownloader teeDownloader,
+            RemoteInventory inventory, ChunkCache chunkCache) {
+        super(digest, fileCache);
+        this.fetches = fetches;
+        this.teeDownloader = teeDownloader;
+        this.inventory = inventory;
+        this.chunkCache = chunkCache;
+    }
+
+    /**
+     * Gets the length from the remote inventory.
+     *
+     * @return the length, or {@code null} if unknown
+     */
+    protected Long getKnownLength() {
+        return inventory == null ? null : inventory.getLength(digest);
+    }
+
+    /**
+     * Gets the length from the cached file if there's one, otherwise from the
+     * remote inventory or the remote object. The length is remembered, so
+     * that the streams of a big binary don't ask for it each time.
+     */
+    @Override
+    public long getLength() {
+        if (!hasLength) {
+            if (file == null) {
+                file = fileCache.getFile(digest);
+            }
+            if (file != null) {
+                length = file.length();
+                hasLength = true;
+            } else {
+                Long knownLength = getKnownLength();
+                if (knownLength == null) {
+                    knownLength = fetchLength();
+                }
+                length = knownLength == null ? 0 : knownLength.longValue();
+                hasLength = true;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Records in the remote inventory that the binary is stored.
+     */
+    protected void setKnownLength(long length) {
+        if (inventory != null) {
+            inventory.put(digest, length);
+        }
+    }
+
+    /**
+     * Opens the remote content, used when streaming while downloading.
+     *
+     * @return the stream, or {@code null} if the binary doesn't exist
+     */
+    protected abstract InputStream openRemoteStream() throws IOException;
+
+    /**
+     * Opens a range of the remote content, used when reading by chunks.
+     *
+     * @param start the first byte
+     * @param end the last byte, inclusive, may be after the end of the content
+     * @return the stream, empty if the range starts after the end of the
+     *         content like for a cached file, or {@code null} if the binary
+     *         doesn't exist
+     */
+    protected abstract InputStream openRemoteRange(long start, long end)
+            throws IOException;
+
+    /**
+     * Gets the remote content read by the chunk cache.
+     */
+    protected ChunkCache.Source getChunkSource() {
+        return new ChunkCache.Source() {
+            @Override
+            public InputStream open(long start, long end) throws IOException {
+                return openRemoteRange(start, end);
+            }
+        };
+    }
+
+    /**
+     * Checks if {@link #openRemoteRange} can be used outside of the chunks,
+     * otherwise ranges are read from the downloaded binary.
+     */
+    protected boolean canOpenRemoteRange() {
+        return false;
+    }
+
+    /**
+     * Gets the algorithm of the digest, checked when streaming while
+     * downloading.
+     */
+    protected String getDigestAlgorithm() {
+        return "MD5";
+    }
+
+    @Override
+    public InputStream getStream() throws IOException {
+        if (file == null && chunkCache != null) {
+            file = fileCache.getFile(digest);
+            if (file == null && chunkCache.isChunked(getLength())) {
+                return chunkCache.getStream(digest, getLength(),
+                        getChunkSource());
+            }
+        }
+        if (file == null && teeDownloader != null) {
+            file = fileCache.getFile(digest);
+            if (file == null) {
+                return teeDownloader.getStream(digest, getDigestAlgorithm(),
+                        new TeeDownloader.Source() {
+                            @Override
+                            public InputStream open() throws IOException {
+                                return openRemoteStream();
+                            }
+                        });
+            }
+        }
+        if (fetch() == null) {
+            return null;
+        }
+        return CloudFileCache.getStream(fileCache, digest, file);
+    }
+
+    @Override
+    public InputStream getStream(long offset, long length) throws IOException {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid range: " + offset
+                    + ", " + length);
+        }
+        if (file == null) {
+            file = fileCache.getFile(digest);
+        }
+        if (file == null) {
+            if (chunkCache != null && chunkCache.isChunked(getLength())) {
+                return chunkCache.getStream(digest, getLength(),
+                        getChunkSource(), offset, length);
+            }
+            if (canOpenRemoteRange()) {
+                if (length == 0) {
+                    return new ByteArrayInputStream(new byte[0]);
+                }
+                return openRemoteRange(offset,
+                        FileRangeInputStream.getEnd(offset, length) - 1);
+            }
+            if (fetch() == null) {
+                return null;
+            }
+        }
+        return CloudFileCache.getStream(fileCache, digest, file, offset,
+                length);
+    }
+
+    /**
+     * Downloads the binary into the cache if it's missing.
+     *
+     * @return the cached file, or {@code null} if the binary doesn't exist
+     */
+    public File fetch() throws IOException {
+        if (file == null) {
+            file = CloudBinaryManager.getCachedFile(fileCache, fetches,
+                    digest, new Callable<File>() {
+                        @Override
+                        public File call() throws IOException {
+                            File tmp = CloudFileCache.getTempFile(fileCache,
+                                    digest);
+                            boolean ok = false;
+                            try {
+                                ok = fetchFile(tmp);
+                                return ok ? tmp : null;
+                            } finally {
+                                if (!ok) {
+                                    tmp.delete();
+                                }
+                            }
+                        }
+                    });
+            if (file != null && chunkCache != null) {
+                // now read from the file
+                chunkCache.removeChunks(digest, file.length());
+            }
+        }
+        return file;
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.nuxeo.common.file.FileCache;
+import org.nuxeo.ecm.core.storage.sql.cloud.MemoryTier;
+
+/**
+ * A binary present in the file cache, whose stream is served from the
+ * {@link MemoryTier} if it's small enough.
+ */
+public class MemoryTierBinary extends CachedBinary {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Not available after deserialization, the file is then read. */
+    protected final transient MemoryTier memoryTier;
+
+    public MemoryTierBinary(File file, String digest, String repoName,
+            FileCache fileCache, MemoryTier memoryTier) {
+        super(file, digest, repoName, fileCache);
+        this.memoryTier = memoryTier;
+    }
+
+    /**
+     * Serves the memory copy first, without any file access, as the file may
+     * have been evicted since this binary was created. Its length is the one
+     * recorded at creation.
+     */
+    @Override
+    public InputStream getStream() throws IOException {
+        if (memoryTier == null || getLength() > memoryTier.getMaxEntrySize()) {
+            return super.getStream();
+        }
+        InputStream in = memoryTier.getMemoryStream(digest);
+        if (in != null) {
+            return in;
+        }
+        // read from the pinned file
+        return memoryTier.load(digest, getLength(), super.getStream());
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A binary whose bytes can be read from any position, without reading or
+ * downloading the ones before, for instance to answer an HTTP range request.
+ */
+public interface RangedBinary {
+
+    /**
+     * Gets a stream on the bytes [offset, offset + length) of the binary.
+     *
+     * @param offset the first byte, the stream being empty if it's after the
+     *            end of the binary
+     * @param length the number of bytes, truncated at the end of the binary,
+     *            so {@link Long#MAX_VALUE} reads up to the end
+     * @return the stream, or {@code null} if the binary doesn't exist
+     */
+    InputStream getStream(long offset, long length) throws IOException;
+
+}
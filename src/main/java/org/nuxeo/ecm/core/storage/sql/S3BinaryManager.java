@@ -20,26 +20,52 @@ package org.nuxeo.ecm.core.storage.sql;
 import static org.apache.commons.lang.StringUtils.isBlank;
 import static org.apache.commons.lang.StringUtils.isNotBlank;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.KeyPair;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.cert.Certificate;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.common.file.FileCache;
-import org.nuxeo.common.file.LRUFileCache;
+import org.nuxeo.common.utils.Base64;
 import org.nuxeo.common.utils.SizeUtils;
+import org.nuxeo.ecm.core.storage.sql.cloud.BatchDeleter;
+import org.nuxeo.ecm.core.storage.sql.cloud.CacheConfigurationBean;
+import org.nuxeo.ecm.core.storage.sql.cloud.ChunkCache;
+import org.nuxeo.ecm.core.storage.sql.cloud.DigestGenerator;
+import org.nuxeo.ecm.core.storage.sql.cloud.Md5DigestSet;
+import org.nuxeo.ecm.core.storage.sql.cloud.NamedThreadFactory;
+import org.nuxeo.ecm.core.storage.sql.cloud.RangedDownloader;
+import org.nuxeo.ecm.core.storage.sql.cloud.RemoteInventory;
+import org.nuxeo.ecm.core.storage.sql.cloud.SingleFlight;
+import org.nuxeo.ecm.core.storage.sql.cloud.StreamingDownloader;
+import org.nuxeo.ecm.core.storage.sql.cloud.TaskGroup;
+import org.nuxeo.ecm.core.storage.sql.cloud.TeeDownloader;
 import org.nuxeo.runtime.api.Framework;
 
 import com.amazonaws.AmazonClientException;
@@ -49,14 +75,26 @@ import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.AmazonS3EncryptionClient;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
 import com.amazonaws.services.s3.model.CryptoConfiguration;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
 import com.amazonaws.services.s3.model.EncryptionMaterials;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
 
 /**
  * A Binary Manager that stores binaries as S3 BLOBs
@@ -74,6 +112,9 @@ public class S3BinaryManager extends CloudBinaryManager {
 
     public static final String BUCKET_REGION_KEY = "nuxeo.s3storage.region";
 
+    /** Alternate S3 endpoint, for instance a local S3-compatible server. */
+    public static final String ENDPOINT_KEY = "nuxeo.s3storage.endpoint";
+
     public static final String DEFAULT_BUCKET_REGION = null; // US East
 
     public static final String AWS_ID_KEY = "nuxeo.s3storage.awsid";
@@ -84,6 +125,63 @@ public class S3BinaryManager extends CloudBinaryManager {
 
     public static final String DEFAULT_CACHE_SIZE = "100 MB";
 
+    /** Prefix of the other cache properties, see {@link CacheConfigurationBean}. */
+    public static final String CACHE_PREFIX = "nuxeo.s3storage.cache.";
+
+    public static final String GC_MAPPED_KEY = "nuxeo.s3storage.gc.mapped";
+
+    public static final String GC_DELETE_BATCH_SIZE_KEY = "nuxeo.s3storage.gc.delete.batchsize";
+
+    public static final String GC_DELETE_THREADS_KEY = "nuxeo.s3storage.gc.delete.threads";
+
+    /** Maximum number of keys in a multi-object delete request. */
+    public static final int MAX_DELETE_BATCH_SIZE = 1000;
+
+    public static final int DEFAULT_GC_DELETE_THREADS = 4;
+
+    public static final String MULTIPART_THRESHOLD_KEY = "nuxeo.s3storage.multipart.threshold";
+
+    public static final String DEFAULT_MULTIPART_THRESHOLD = "100 MB";
+
+    public static final String MULTIPART_PART_SIZE_KEY = "nuxeo.s3storage.multipart.partsize";
+
+    public static final String DEFAULT_MULTIPART_PART_SIZE = "16 MB";
+
+    /** Minimum size of all the parts but the last one. */
+    public static final long MIN_MULTIPART_PART_SIZE = 5 * 1024 * 1024;
+
+    public static final String MULTIPART_THREADS_KEY = "nuxeo.s3storage.multipart.threads";
+
+    public static final int DEFAULT_MULTIPART_THREADS = 4;
+
+    public static final String MULTIPART_RETRIES_KEY = "nuxeo.s3storage.multipart.retries";
+
+    public static final int DEFAULT_MULTIPART_RETRIES = 3;
+
+    public static final String RANGED_DOWNLOAD_THRESHOLD_KEY = "nuxeo.s3storage.download.ranged.threshold";
+
+    public static final String RANGED_DOWNLOAD_THREADS_KEY = "nuxeo.s3storage.download.ranged.threads";
+
+    public static final int DEFAULT_RANGED_DOWNLOAD_THREADS = 8;
+
+    /** Whether missing binaries are streamed while they are downloaded. */
+    public static final String STREAMING_DOWNLOAD_KEY = "nuxeo.s3storage.download.streaming";
+
+    /** Whether binaries are uploaded in the background after a save. */
+    public static final String WRITE_BEHIND_KEY = "nuxeo.s3storage.writebehind";
+
+    public static final String WRITE_BEHIND_THREADS_KEY = "nuxeo.s3storage.writebehind.threads";
+
+    public static final int DEFAULT_WRITE_BEHIND_THREADS = 4;
+
+    /** Whether a local index of the stored objects avoids HEAD requests. */
+    public static final String INVENTORY_KEY = "nuxeo.s3storage.inventory";
+
+    /** Number of concurrent downloads of the prefetched binaries. */
+    public static final String PREFETCH_THREADS_KEY = "nuxeo.s3storage.prefetch.threads";
+
+    public static final int DEFAULT_PREFETCH_THREADS = 4;
+
     public static final String KEYSTORE_FILE_KEY = "nuxeo.s3storage.crypt.keystore.file";
 
     public static final String KEYSTORE_PASS_KEY = "nuxeo.s3storage.crypt.keystore.password";
@@ -105,6 +203,8 @@ public class S3BinaryManager extends CloudBinaryManager {
 
     private static final Pattern MD5_RE = Pattern.compile("[0-9a-f]{32}");
 
+    private static final Pattern MULTIPART_ETAG_RE = Pattern.compile("[0-9a-f]{32}-[0-9]+");
+
     protected String bucketName;
 
     protected BasicAWSCredentials awsCredentials;
@@ -117,6 +217,25 @@ public class S3BinaryManager extends CloudBinaryManager {
 
     protected AmazonS3 amazonS3;
 
+    /** Whether the GC marks are memory-mapped to a temporary file. */
+    protected boolean gcMapped;
+
+    protected int gcDeleteBatchSize;
+
+    protected int gcDeleteThreads;
+
+    /** Size above which uploads are multipart, or -1 if disabled. */
+    protected long multipartThreshold;
+
+    protected S3MultipartUploader multipartUploader;
+
+    /** Size above which downloads are ranged, or -1 if disabled. */
+    protected long rangedDownloadThreshold = -1;
+
+    protected RangedDownloader rangedDownloader;
+
+    protected TeeDownloader teeDownloader;
+
     @Override
     public void initialize(RepositoryDescriptor repositoryDescriptor)
             throws IOException {
@@ -132,6 +251,7 @@ public class S3BinaryManager extends CloudBinaryManager {
         if (isBlank(bucketRegion)) {
             bucketRegion = DEFAULT_BUCKET_REGION;
         }
+        String endpoint = Framework.getProperty(ENDPOINT_KEY);
         String awsID = Framework.getProperty(AWS_ID_KEY);
         String awsSecret = Framework.getProperty(AWS_SECRET_KEY);
 
@@ -145,6 +265,38 @@ public class S3BinaryManager extends CloudBinaryManager {
             cacheSizeStr = DEFAULT_CACHE_SIZE;
         }
 
+        gcMapped = Boolean.parseBoolean(Framework.getProperty(GC_MAPPED_KEY));
+        String gcDeleteBatchSizeStr = Framework.getProperty(GC_DELETE_BATCH_SIZE_KEY);
+        gcDeleteBatchSize = MAX_DELETE_BATCH_SIZE;
+        if (isNotBlank(gcDeleteBatchSizeStr)) {
+            gcDeleteBatchSize = Math.min(
+                    Integer.parseInt(gcDeleteBatchSizeStr.trim()),
+                    MAX_DELETE_BATCH_SIZE);
+        }
+        String gcDeleteThreadsStr = Framework.getProperty(GC_DELETE_THREADS_KEY);
+        gcDeleteThreads = DEFAULT_GC_DELETE_THREADS;
+        if (isNotBlank(gcDeleteThreadsStr)) {
+            gcDeleteThreads = Integer.parseInt(gcDeleteThreadsStr.trim());
+        }
+
+        String multipartThresholdStr = Framework.getProperty(MULTIPART_THRESHOLD_KEY);
+        if (isBlank(multipartThresholdStr)) {
+            multipartThresholdStr = DEFAULT_MULTIPART_THRESHOLD;
+        }
+        String multipartPartSizeStr = Framework.getProperty(MULTIPART_PART_SIZE_KEY);
+        if (isBlank(multipartPartSizeStr)) {
+            multipartPartSizeStr = DEFAULT_MULTIPART_PART_SIZE;
+        }
+        String multipartThreadsStr = Framework.getProperty(MULTIPART_THREADS_KEY);
+        String multipartRetriesStr = Framework.getProperty(MULTIPART_RETRIES_KEY);
+        String rangedDownloadThresholdStr = Framework.getProperty(RANGED_DOWNLOAD_THRESHOLD_KEY);
+        String rangedDownloadThreadsStr = Framework.getProperty(RANGED_DOWNLOAD_THREADS_KEY);
+        boolean streamingDownload = Boolean.parseBoolean(Framework.getProperty(STREAMING_DOWNLOAD_KEY));
+        boolean writeBehind = Boolean.parseBoolean(Framework.getProperty(WRITE_BEHIND_KEY));
+        String writeBehindThreadsStr = Framework.getProperty(WRITE_BEHIND_THREADS_KEY);
+        boolean useInventory = Boolean.parseBoolean(Framework.getProperty(INVENTORY_KEY));
+        String prefetchThreadsStr = Framework.getProperty(PREFETCH_THREADS_KEY);
+
         String keystoreFile = Framework.getProperty(KEYSTORE_FILE_KEY);
         String keystorePass = Framework.getProperty(KEYSTORE_PASS_KEY);
         String privkeyAlias = Framework.getProperty(PRIVKEY_ALIAS_KEY);
@@ -231,6 +383,10 @@ public class S3BinaryManager extends CloudBinaryManager {
                     encryptionMaterials, clientConfiguration,
                     cryptoConfiguration);
         }
+        if (isNotBlank(endpoint)) {
+            // with an IP address, requests use path-style bucket access
+            amazonS3.setEndpoint(endpoint);
+        }
         try {
             if (!amazonS3.doesBucketExist(bucketName)) {
                 amazonS3.createBucket(bucketName, bucketRegion);
@@ -243,28 +399,80 @@ public class S3BinaryManager extends CloudBinaryManager {
             throw new IOException(e);
         }
 
+        // Set up multipart uploads, not supported by the encryption client
+        if (encryptionMaterials == null) {
+            multipartThreshold = SizeUtils.parseSizeInBytes(multipartThresholdStr);
+            long partSize = Math.max(
+                    SizeUtils.parseSizeInBytes(multipartPartSizeStr),
+                    MIN_MULTIPART_PART_SIZE);
+            int threads = DEFAULT_MULTIPART_THREADS;
+            if (isNotBlank(multipartThreadsStr)) {
+                threads = Integer.parseInt(multipartThreadsStr.trim());
+            }
+            int retries = DEFAULT_MULTIPART_RETRIES;
+            if (isNotBlank(multipartRetriesStr)) {
+                retries = Integer.parseInt(multipartRetriesStr.trim());
+            }
+            multipartUploader = new S3MultipartUploader(amazonS3, bucketName,
+                    partSize, threads, retries);
+            log.info("Using multipart uploads above " + multipartThresholdStr
+                    + ", part size: " + partSize + ", threads: " + threads);
+        } else {
+            multipartThreshold = -1;
+        }
+
+        // Set up ranged downloads, not possible with client-side encryption
+        if (encryptionMaterials == null
+                && isNotBlank(rangedDownloadThresholdStr)) {
+            rangedDownloadThreshold = SizeUtils.parseSizeInBytes(rangedDownloadThresholdStr);
+            int threads = DEFAULT_RANGED_DOWNLOAD_THREADS;
+            if (isNotBlank(rangedDownloadThreadsStr)) {
+                threads = Integer.parseInt(rangedDownloadThreadsStr.trim());
+            }
+            rangedDownloader = new S3RangedDownloader(amazonS3, bucketName,
+                    new StreamingDownloader(), threads);
+            log.info("Using ranged downloads above "
+                    + rangedDownloadThresholdStr + ", threads: " + threads);
+        }
+
         // Create file cache
-        File dir = File.createTempFile("nxbincache.", "", null);
-        boolean dirDeleted=dir.delete();
-        if(dirDeleted){
-            log.debug("Deleted directory: "+dir);
-        }else{
-            log.debug("Problem deleting: "+dir);
-        }
-        boolean dirCreated=dir.mkdir();
-        if(dirCreated){
-            log.debug("Created directory: "+dir);
-        }else{
-            log.debug("Problem creating: "+dir);
-        }
-        dir.deleteOnExit();
-
-        dir.deleteOnExit();
         long cacheSize = SizeUtils.parseSizeInBytes(cacheSizeStr);
-        fileCache = new LRUFileCache(dir, cacheSize);
-        log.info("Using binary cache directory: " + dir.getPath() + " size: "
-                + cacheSizeStr);
+        CacheConfigurationBean cacheConf = CacheConfigurationBean.fromProperties(CACHE_PREFIX);
+        fileCache = createFileCache(cacheConf, cacheSize);
+        initializeMemoryTier(cacheConf);
+        if (encryptionMaterials == null) {
+            // ranges are not possible with client-side encryption
+            initializeChunkCache(cacheConf);
+        }
+
+        // Set up streaming downloads, which don't use ranges
+        if (streamingDownload) {
+            teeDownloader = new TeeDownloader("Nuxeo-S3-Streaming", fileCache,
+                    TeeDownloader.DEFAULT_MAX_THREADS, fetches);
+            log.info("Streaming binaries while they are downloaded");
+        }
+
+        if (useInventory) {
+            initializeInventory();
+        }
+
+        // Set up write-behind uploads, needs the S3 client and the cache
+        if (writeBehind) {
+            int threads = DEFAULT_WRITE_BEHIND_THREADS;
+            if (isNotBlank(writeBehindThreadsStr)) {
+                threads = Integer.parseInt(writeBehindThreadsStr.trim());
+            }
+            initializeWriteBehind("Nuxeo-S3-WriteBehind", threads);
+        }
+
+        int prefetchThreads = DEFAULT_PREFETCH_THREADS;
+        if (isNotBlank(prefetchThreadsStr)) {
+            prefetchThreads = Integer.parseInt(prefetchThreadsStr.trim());
+        }
+        initializePrefetch("Nuxeo-S3-Prefetch", prefetchThreads);
+
         createGarbageCollector();
+        registerShutdownListener();
     }
 
     @Override
@@ -272,6 +480,36 @@ public class S3BinaryManager extends CloudBinaryManager {
         garbageCollector = new S3BinaryGarbageCollector(this);
     }
 
+    /**
+     * Stops the threads used for write-behind and multipart uploads and
+     * ranged, streaming or prefetch downloads, and releases the file cache.
+     */
+    @Override
+    public void close() {
+        unregisterShutdownListener();
+        closePrefetch();
+        closeWriteBehind();
+        closeInventory();
+        closeFileCache();
+        if (teeDownloader != null) {
+            teeDownloader.shutdown();
+            teeDownloader = null;
+        }
+        if (rangedDownloader != null) {
+            rangedDownloader.shutdown();
+            rangedDownloader = null;
+        }
+        if (multipartUploader != null) {
+            multipartUploader.shutdown();
+            multipartUploader = null;
+        }
+    }
+
+    protected BatchDeleter newBatchDeleter() {
+        return new S3BatchDeleter(amazonS3, bucketName, gcDeleteBatchSize,
+                gcDeleteThreads);
+    }
+
     @Override
     public Binary getBinary(InputStream in) throws IOException {
         // Write the input stream to a temporary file, while computing a digest
@@ -285,8 +523,33 @@ public class S3BinaryManager extends CloudBinaryManager {
             out.close();
         }
 
-        // Store the blob in the S3 bucket if not already there
-        String etag;
+        if (writeBehindUploader != null) {
+            // Register the file in the file cache, uploaded later
+            File file = writeBehindUploader.put(digest, tmp);
+            return new CachedBinary(file, digest, repositoryName, fileCache);
+        }
+
+        upload(digest, tmp);
+
+        // Register the file in the file cache if all went well
+        File file = fileCache.putFile(digest, tmp);
+
+        return new CachedBinary(file, digest, repositoryName, fileCache);
+    }
+
+    /**
+     * Stores a binary in the S3 bucket, if not already there.
+     * <p>
+     * An existing object whose ETag is a multipart one is only trusted if it
+     * matches the ETag of the local file uploaded in parts of the current
+     * size, otherwise its content cannot be checked and it is stored again.
+     */
+    @Override
+    protected void upload(String digest, File tmp) throws IOException {
+        if (inventory != null && inventory.contains(digest)) {
+            return;
+        }
+        String etag = null;
         try {
             ObjectMetadata metadata = amazonS3.getObjectMetadata(bucketName,
                     digest);
@@ -295,40 +558,116 @@ public class S3BinaryManager extends CloudBinaryManager {
             if (!isMissingKey(e)) {
                 throw new IOException(e);
             }
-            // no data, store the blob
-            try {
-                PutObjectResult result = amazonS3.putObject(bucketName, digest,
-                        tmp);
-                etag = result.getETag();
-            } catch (AmazonClientException ee) {
-                throw new IOException(ee);
-            }
         }
-        // check transfer went ok
-        if (!etag.equals(digest)) {
+        if (etag != null && isMultipartETag(etag)
+                && !etag.equals(getMultipartETag(tmp))) {
+            log.warn("Cannot check the content of S3 object " + digest
+                    + ", storing it again, ETag=" + etag);
+            etag = null;
+        } else if (etag != null && !etag.equals(digest)
+                && !isMultipartETag(etag)) {
             throw new IOException("Invalid ETag in S3, ETag=" + etag
                     + " digest=" + digest);
         }
+        if (etag == null) {
+            // no data, store the blob
+            if (multipartThreshold >= 0 && tmp.length() > multipartThreshold) {
+                // checks the MD5 of each part and the ETag of the upload
+                multipartUploader.upload(digest, tmp);
+            } else {
+                try {
+                    PutObjectResult result = amazonS3.putObject(bucketName,
+                            digest, tmp);
+                    etag = result.getETag();
+                } catch (AmazonClientException ee) {
+                    throw new IOException(ee);
+                }
+                // check transfer went ok
+                if (!etag.equals(digest)) {
+                    throw new IOException("Invalid ETag in S3, ETag=" + etag
+                            + " digest=" + digest);
+                }
+            }
+        }
+        if (inventory != null) {
+            inventory.put(digest, tmp.length());
+        }
+    }
 
-        // Register the file in the file cache if all went well
-        File file = fileCache.putFile(digest, tmp);
-
-        return new Binary(file, digest, repositoryName);
+    /**
+     * Computes the ETag the local file would get from a multipart upload, or
+     * {@code null} if multipart uploads are disabled.
+     */
+    protected String getMultipartETag(File file) throws IOException {
+        if (multipartUploader == null) {
+            return null;
+        }
+        return multipartUploader.getMultipartETag(file);
     }
 
     @Override
     public Binary getBinary(String digest) {
         // Check in the cache
-        File file = fileCache.getFile(digest);
-        if (file == null) {
-            return new S3LazyBinary(digest, fileCache, amazonS3, bucketName);
+        Binary binary = getCachedBinary(digest);
+        if (binary == null) {
+            return newLazyBinary(digest);
         } else {
-            return new Binary(file, digest, repositoryName);
+            return binary;
         }
     }
 
+    @Override
+    protected CloudLazyBinary newLazyBinary(String digest) {
+        return new S3LazyBinary(digest, fileCache, fetches, teeDownloader,
+                inventory, amazonS3, bucketName, rangedDownloader,
+                rangedDownloadThreshold, chunkCache);
+    }
+
     protected void removeBinary(String digest) {
-        amazonS3.deleteObject(bucketName, digest);
+        if (forget(digest)) {
+            amazonS3.deleteObject(bucketName, digest);
+        }
+    }
+
+    /**
+     * Deletes binaries using multi-object delete requests.
+     */
+    public static class S3BatchDeleter extends BatchDeleter {
+
+        protected final AmazonS3 amazonS3;
+
+        protected final String bucketName;
+
+        public S3BatchDeleter(AmazonS3 amazonS3, String bucketName,
+                int batchSize, int maxConcurrentBatches) {
+            super("Nuxeo-S3-GC-Delete", batchSize, maxConcurrentBatches);
+            this.amazonS3 = amazonS3;
+            this.bucketName = bucketName;
+        }
+
+        @Override
+        protected Map<String, String> deleteBatch(List<String> keys) {
+            List<KeyVersion> keyVersions = new ArrayList<KeyVersion>(
+                    keys.size());
+            for (String key : keys) {
+                keyVersions.add(new KeyVersion(key));
+            }
+            DeleteObjectsRequest request = new DeleteObjectsRequest(bucketName);
+            request.setKeys(keyVersions);
+            // only errors are returned
+            request.setQuiet(true);
+            try {
+                amazonS3.deleteObjects(request);
+                return Collections.emptyMap();
+            } catch (MultiObjectDeleteException e) {
+                Map<String, String> errors = new HashMap<String, String>();
+                for (DeleteError error : e.getErrors()) {
+                    errors.put(error.getKey(), error.getCode() + " "
+                            + error.getMessage());
+                }
+                return errors;
+            }
+        }
     }
 
     protected static boolean isMissingKey(AmazonClientException e) {
@@ -340,11 +679,310 @@ public class S3BinaryManager extends CloudBinaryManager {
         return false;
     }
 
+    /**
+     * Checks if a range request failed because the range starts after the end
+     * of the object.
+     */
+    protected static boolean isInvalidRange(AmazonClientException e) {
+        return e instanceof AmazonServiceException
+                && ((AmazonServiceException) e).getStatusCode() == 416;
+    }
+
     public static boolean isMD5(String digest) {
         return MD5_RE.matcher(digest).matches();
     }
 
-    public static class S3LazyBinary extends LazyBinary {
+    /**
+     * Checks if an ETag is the one of a multipart upload, which is not the
+     * MD5 of the content but the MD5 of the MD5s of the parts, followed by
+     * the number of parts.
+     */
+    public static boolean isMultipartETag(String etag) {
+        return MULTIPART_ETAG_RE.matcher(etag).matches();
+    }
+
+    /**
+     * Fetches object ranges with ranged GET requests.
+     */
+    public static class S3RangedDownloader extends RangedDownloader {
+
+        protected final AmazonS3 amazonS3;
+
+        protected final String bucketName;
+
+        public S3RangedDownloader(AmazonS3 amazonS3, String bucketName,
+                StreamingDownloader downloader, int maxConcurrency) {
+            super("Nuxeo-S3-Download", downloader, maxConcurrency);
+            this.amazonS3 = amazonS3;
+            this.bucketName = bucketName;
+        }
+
+        @Override
+        protected long fetchRange(String key, long start, long end,
+                FileChannel channel) throws IOException {
+            S3Object object;
+            try {
+                object = amazonS3.getObject(new GetObjectRequest(bucketName,
+                        key).withRange(start, end));
+            } catch (AmazonClientException e) {
+                throw new IOException(e);
+            }
+            InputStream in = object.getObjectContent();
+            try {
+                return downloader.transfer(in, channel, start);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Uploads files in several parts sent in parallel, see
+     * http://docs.amazonwebservices.com/AmazonS3/latest/dev/uploadobjusingmpu.html
+     * <p>
+     * S3 checks the Content-MD5 of each part, and the ETag of the completed
+     * upload is checked against the MD5s of the local parts, so the stored
+     * object is known to be identical to the local file. A part that fails
+     * is retried, and the whole upload is aborted if it still fails, so that
+     * no orphan parts are left (and billed) in the bucket.
+     */
+    public static class S3MultipartUploader {
+
+        protected static final int BUFFER_SIZE = 64 * 1024;
+
+        protected static final long RETRY_DELAY = 500; // ms
+
+        /** The maximum number of parts of an S3 multipart upload. */
+        public static final int MAX_PARTS = 10000;
+
+        protected final AmazonS3 amazonS3;
+
+        protected final String bucketName;
+
+        protected final long partSize;
+
+        protected final int retries;
+
+        protected final ExecutorService executor;
+
+        public S3MultipartUploader(AmazonS3 amazonS3, String bucketName,
+                long partSize, int threads, int retries) {
+            this.amazonS3 = amazonS3;
+            this.bucketName = bucketName;
+            this.partSize = partSize;
+            this.retries = Math.max(retries, 1);
+            executor = Executors.newFixedThreadPool(threads,
+                    new NamedThreadFactory("Nuxeo-S3-Upload"));
+        }
+
+        public void shutdown() {
+            executor.shutdownNow();
+        }
+
+        /**
+         * Gets the size of the parts of a file, the configured part size grown
+         * so that the file fits in {@link #MAX_PARTS} parts.
+         */
+        public long getPartSize(long length) {
+            return Math.max(partSize, (length + MAX_PARTS - 1) / MAX_PARTS);
+        }
+
+        /**
+         * Uploads a file.
+         *
+         * @return the ETag of the object
+         */
+        public String upload(final String key, final File file)
+                throws IOException {
+            long length = file.length();
+            final long partSize = getPartSize(length);
+            int numParts = (int) ((length + partSize - 1) / partSize);
+            final String uploadId;
+            try {
+                uploadId = amazonS3.initiateMultipartUpload(
+                        new InitiateMultipartUploadRequest(bucketName, key)).getUploadId();
+            } catch (AmazonClientException e) {
+                throw new IOException(e);
+            }
+            final byte[][] md5s = new byte[numParts][];
+            List<Future<PartETag>> futures = new ArrayList<Future<PartETag>>(
+                    numParts);
+            TaskGroup parts = new TaskGroup();
+            boolean completed = false;
+            try {
+                for (int i = 0; i < numParts; i++) {
+                    final int partNumber = i + 1;
+                    final long offset = i * partSize;
+                    final long size = Math.min(partSize, length - offset);
+                    futures.add(parts.submit(executor, new Callable<PartETag>() {
+                        @Override
+                        public PartETag call() throws Exception {
+                            return uploadPart(key, uploadId, file, partNumber,
+                                    offset, size, md5s);
+                        }
+                    }));
+                }
+                List<PartETag> partETags = new ArrayList<PartETag>(numParts);
+                for (Future<PartETag> future : futures) {
+                    partETags.add(get(future));
+                }
+                CompleteMultipartUploadResult result = amazonS3.completeMultipartUpload(new CompleteMultipartUploadRequest(
+                        bucketName, key, uploadId, partETags));
+                completed = true;
+                String etag = result.getETag();
+                String expected = getMultipartETag(md5s);
+                if (!expected.equals(etag)) {
+                    amazonS3.deleteObject(bucketName, key);
+                    throw new IOException("Invalid ETag in S3, ETag=" + etag
+                            + " expected=" + expected);
+                }
+                return etag;
+            } catch (AmazonClientException e) {
+                throw new IOException(e);
+            } finally {
+                if (!completed) {
+                    // parts still uploading would be kept after the abort
+                    parts.cancelAndAwait();
+                    abort(key, uploadId);
+                }
+            }
+        }
+
+        protected PartETag get(Future<PartETag> future) throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                IOException ioe = new IOException(cause.toString());
+                ioe.initCause(cause);
+                throw ioe;
+            }
+        }
+
+        protected void abort(String key, String uploadId) {
+            try {
+                amazonS3.abortMultipartUpload(new AbortMultipartUploadRequest(
+                        bucketName, key, uploadId));
+            } catch (AmazonClientException e) {
+                log.error("Cannot abort multipart upload of " + key
+                        + ", uploadId=" + uploadId, e);
+            }
+        }
+
+        /**
+         * Uploads a part, retrying on failure.
+         */
+        protected PartETag uploadPart(String key, String uploadId, File file,
+                int partNumber, long offset, long size, byte[][] md5s)
+                throws IOException, InterruptedException {
+            byte[] md5 = digestPart(file, offset, size);
+            md5s[partNumber - 1] = md5;
+            String md5Hex = DigestGenerator.toHexString(md5);
+            String md5Base64 = Base64.encodeBytes(md5);
+            for (int attempt = 1;; attempt++) {
+                try {
+                    UploadPartRequest request = new UploadPartRequest().withBucketName(
+                            bucketName).withKey(key).withUploadId(uploadId).withPartNumber(
+                            partNumber).withFile(file).withFileOffset(offset).withPartSize(
+                            size).withMD5Digest(md5Base64);
+                    UploadPartResult result = amazonS3.uploadPart(request);
+                    PartETag partETag = result.getPartETag();
+                    if (md5Hex.equals(partETag.getETag())) {
+                        return partETag;
+                    }
+                    log.warn("Invalid ETag for part " + partNumber + " of "
+                            + key + ", ETag=" + partETag.getETag() + " MD5="
+                            + md5Hex);
+                    if (attempt >= retries) {
+                        throw new IOException("Invalid ETag for part "
+                                + partNumber + " of " + key);
+                    }
+                } catch (AmazonClientException e) {
+                    if (attempt >= retries) {
+                        throw new IOException(e);
+                    }
+                    log.warn("Retrying part " + partNumber + " of " + key
+                            + ": " + e.getMessage());
+                }
+                Thread.sleep(RETRY_DELAY << (attempt - 1));
+            }
+        }
+
+        protected static byte[] digestPart(File file, long offset, long size)
+                throws IOException {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance(MD5);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+            ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                long pos = offset;
+                long end = offset + size;
+                while (pos < end) {
+                    buf.clear();
+                    if (end - pos < buf.capacity()) {
+                        buf.limit((int) (end - pos));
+                    }
+                    int n = channel.read(buf, pos);
+                    if (n < 0) {
+                        throw new IOException("Unexpected end of file: "
+                                + file);
+                    }
+                    digest.update(buf.array(), 0, n);
+                    pos += n;
+                }
+            } finally {
+                raf.close();
+            }
+            return digest.digest();
+        }
+
+        /**
+         * Computes the ETag of a multipart upload of a file, from the MD5s of
+         * its parts.
+         */
+        public String getMultipartETag(File file) throws IOException {
+            long length = file.length();
+            long partSize = getPartSize(length);
+            int numParts = (int) ((length + partSize - 1) / partSize);
+            byte[][] md5s = new byte[numParts][];
+            for (int i = 0; i < numParts; i++) {
+                long offset = i * partSize;
+                md5s[i] = digestPart(file, offset,
+                        Math.min(partSize, length - offset));
+            }
+            return getMultipartETag(md5s);
+        }
+
+        /**
+         * Computes the ETag of a multipart upload from the MD5s of its parts.
+         */
+        public static String getMultipartETag(byte[][] md5s) {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance(MD5);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+            for (byte[] md5 : md5s) {
+                digest.update(md5);
+            }
+            return DigestGenerator.toHexString(digest.digest()) + "-"
+                    + md5s.length;
+        }
+    }
+
+    public static class S3LazyBinary extends CloudLazyBinary {
 
         private static final long serialVersionUID = 1L;
 
@@ -352,25 +990,119 @@ public class S3BinaryManager extends CloudBinaryManager {
 
         protected final String bucketName;
 
+        protected final transient RangedDownloader rangedDownloader;
+
+        protected final long rangedDownloadThreshold;
+
         public S3LazyBinary(String digest, FileCache fileCache,
                 AmazonS3 amazonS3, String bucketName) {
-            super(digest, fileCache);
+            this(digest, fileCache, null, null, null, amazonS3, bucketName,
+                    null, -1);
+        }
+
+        /**
+         * @param fetches the fetches in progress shared by the binaries of
+         *            the manager, or {@code null}
+         * @param teeDownloader the downloader streaming missing binaries, or
+         *            {@code null} to download them completely first
+         * @param inventory the objects known to be stored, or {@code null}
+         * @param rangedDownloader the downloader used for big binaries, or
+         *            {@code null}
+         * @param rangedDownloadThreshold the size above which the ranged
+         *            downloader is used
+         */
+        public S3LazyBinary(String digest, FileCache fileCache,
+                SingleFlight<File> fetches, TeeDownloader teeDownloader,
+                RemoteInventory inventory, AmazonS3 amazonS3,
+                String bucketName, RangedDownloader rangedDownloader,
+                long rangedDownloadThreshold) {
+            this(digest, fileCache, fetches, teeDownloader, inventory,
+                    amazonS3, bucketName, rangedDownloader,
+                    rangedDownloadThreshold, null);
+        }
+
+        /**
+         * @param chunkCache the cache of the big binaries read by chunks, or
+         *            {@code null}
+         */
+        public S3LazyBinary(String digest, FileCache fileCache,
+                SingleFlight<File> fetches, TeeDownloader teeDownloader,
+                RemoteInventory inventory, AmazonS3 amazonS3,
+                String bucketName, RangedDownloader rangedDownloader,
+                long rangedDownloadThreshold, ChunkCache chunkCache) {
+            super(digest, fileCache, fetches, teeDownloader, inventory,
+                    chunkCache);
             this.amazonS3 = amazonS3;
             this.bucketName = bucketName;
+            this.rangedDownloader = rangedDownloader;
+            this.rangedDownloadThreshold = rangedDownloadThreshold;
+        }
+
+        @Override
+        protected InputStream openRemoteStream() throws IOException {
+            try {
+                S3Object object = amazonS3.getObject(bucketName, digest);
+                return object.getObjectContent();
+            } catch (AmazonClientException e) {
+                if (isMissingKey(e)) {
+                    return null;
+                }
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        protected InputStream openRemoteRange(long start, long end)
+                throws IOException {
+            try {
+                S3Object object = amazonS3.getObject(new GetObjectRequest(
+                        bucketName, digest).withRange(start, end));
+                return object.getObjectContent();
+            } catch (AmazonClientException e) {
+                if (isMissingKey(e)) {
+                    return null;
+                }
+                if (isInvalidRange(e)) {
+                    // starts after the end
+                    return new ByteArrayInputStream(new byte[0]);
+                }
+                throw new IOException(e);
+            }
+        }
+
+        /**
+         * Ranges are not possible with client-side encryption.
+         */
+        @Override
+        protected boolean canOpenRemoteRange() {
+            return !(amazonS3 instanceof AmazonS3EncryptionClient);
         }
 
         @Override
         protected boolean fetchFile(File tmp) {
             try {
+                if (rangedDownloader != null) {
+                    ObjectMetadata metadata = amazonS3.getObjectMetadata(
+                            bucketName, digest);
+                    long length = metadata.getContentLength();
+                    if (length > rangedDownloadThreshold) {
+                        return fetchRanges(tmp, length);
+                    }
+                }
                 ObjectMetadata metadata = amazonS3.getObject(
                         new GetObjectRequest(bucketName, digest), tmp);
                 // check ETag
                 String etag = metadata.getETag();
+                if (isMultipartETag(etag)) {
+                    // not the MD5 of the content, check the content itself
+                    etag = DigestGenerator.getMD5Checksum(tmp);
+                }
                 if (!etag.equals(digest)) {
                     log.error("Invalid ETag in S3, ETag=" + etag + " digest="
                             + digest);
                     return false;
                 }
+                setKnownLength(tmp.length());
                 return true;
             } catch (AmazonClientException e) {
                 if (!isMissingKey(e)) {
@@ -380,18 +1112,42 @@ public class S3BinaryManager extends CloudBinaryManager {
             }
         }
 
+        /**
+         * Downloads a big binary as several ranges fetched concurrently, and
+         * checks its digest.
+         */
+        protected boolean fetchRanges(File tmp, long length) {
+            try {
+                rangedDownloader.download(digest, length, tmp);
+                if (!RangedDownloader.checkDigest(tmp, MD5, digest)) {
+                    log.error("Invalid MD5 for downloaded binary: " + digest);
+                    return false;
+                }
+                setKnownLength(length);
+                return true;
+            } catch (IOException e) {
+                log.error("Cannot download binary: " + digest, e);
+                return false;
+            }
+        }
+
         @Override
         protected Long fetchLength() {
+            Long known = getKnownLength();
+            if (known != null) {
+                return known;
+            }
             try {
                 ObjectMetadata metadata = amazonS3.getObjectMetadata(
                         bucketName, digest);
-                // check ETag
+                // check ETag, multipart ETags were checked on upload
                 String etag = metadata.getETag();
-                if (!etag.equals(digest)) {
+                if (!etag.equals(digest) && !isMultipartETag(etag)) {
                     log.error("Invalid ETag in S3, ETag=" + etag + " digest="
                             + digest);
                     return null;
                 }
+                setKnownLength(metadata.getContentLength());
                 return Long.valueOf(metadata.getContentLength());
             } catch (AmazonClientException e) {
                 if (!isMissingKey(e)) {
@@ -404,7 +1160,8 @@ public class S3BinaryManager extends CloudBinaryManager {
 
     /**
      * Garbage collector for S3 binaries that stores the marked (in use)
-     * binaries in memory.
+     * binaries in a compact {@link Md5DigestSet}, off-heap or memory-mapped
+     * when large.
      */
     public static class S3BinaryGarbageCollector implements
             BinaryGarbageCollector {
@@ -413,9 +1170,9 @@ public class S3BinaryManager extends CloudBinaryManager {
 
         protected volatile long startTime;
 
-        protected BinaryManagerStatus status;
+        protected CloudBinaryManagerStatus status;
 
-        protected Set<String> marked;
+        protected Md5DigestSet marked;
 
         public S3BinaryGarbageCollector(S3BinaryManager binaryManager) {
             this.binaryManager = binaryManager;
@@ -443,12 +1200,18 @@ public class S3BinaryManager extends CloudBinaryManager {
                 throw new RuntimeException("Alread started");
             }
             startTime = System.currentTimeMillis();
-            status = new BinaryManagerStatus();
-            marked = new HashSet<String>();
+            status = new CloudBinaryManagerStatus();
+            marked = new Md5DigestSet(Md5DigestSet.DEFAULT_OFF_HEAP_THRESHOLD,
+                    binaryManager.gcMapped, null);
         }
 
         @Override
         public void mark(String digest) {
+            if (!isMD5(digest)) {
+                // cannot be the key of a collectable object
+                log.debug("Not marking non-MD5 digest: " + digest);
+                return;
+            }
             marked.add(digest);
         }
 
@@ -458,10 +1221,17 @@ public class S3BinaryManager extends CloudBinaryManager {
                 throw new RuntimeException("Not started");
             }
 
+            BatchDeleter deleter = null;
+            if (delete) {
+                deleter = binaryManager.newBatchDeleter();
+            }
             try {
+                log.debug("Marked " + marked.size() + " binaries using "
+                        + marked.getMemorySize() + " bytes");
                 // list S3 objects in the bucket
-                // record those not marked
-                Set<String> unmarked = new HashSet<String>();
+                // delete those not marked in the background as they are
+                // listed, this doesn't affect the next listing batches which
+                // start after the last key
                 ObjectListing list = null;
                 do {
                     if (list == null) {
@@ -480,30 +1250,38 @@ public class S3BinaryManager extends CloudBinaryManager {
                         if (marked.contains(digest)) {
                             status.numBinaries++;
                             status.sizeBinaries += length;
+                            binaryManager.remember(digest, length);
                         } else {
                             status.numBinariesGC++;
                             status.sizeBinariesGC += length;
-                            // record file to delete
-                            unmarked.add(digest);
-                            marked.remove(digest); // optimize memory
+                            if (!delete) {
+                                binaryManager.remember(digest, length);
+                            } else if (binaryManager.forget(digest)) {
+                                deleter.delete(digest);
+                            }
                         }
                     }
                 } while (list.isTruncated());
-                marked = null; // help GC
-
-                // delete unmarked objects
-                if (delete) {
-                    for (String digest : unmarked) {
-                        binaryManager.removeBinary(digest);
-                    }
-                }
-
             } catch (AmazonClientException e) {
                 throw new RuntimeException(e);
+            } finally {
+                if (deleter != null) {
+                    // wait for the pending deletions even after an error
+                    deleter.finish();
+                    status.numBinariesGCFailed = deleter.getNumFailed();
+                    status.failures.addAll(deleter.getFailures());
+                    if (status.numBinariesGCFailed > 0) {
+                        log.warn("Could not delete "
+                                + status.numBinariesGCFailed
+                                + " unused binaries, first failures: "
+                                + status.failures);
+                    }
+                }
+                marked.free();
+                marked = null;
+                status.gcDuration = System.currentTimeMillis() - startTime;
+                startTime = 0;
             }
-
-            status.gcDuration = System.currentTimeMillis() - startTime;
-            startTime = 0;
         }
     }
 
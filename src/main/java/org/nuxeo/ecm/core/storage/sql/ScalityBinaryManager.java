@@ -14,45 +14,61 @@
  */
 package org.nuxeo.ecm.core.storage.sql;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.SignatureException;
-import java.util.Date;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.NameValuePair;
 import org.apache.commons.httpclient.methods.DeleteMethod;
 import org.apache.commons.httpclient.methods.FileRequestEntity;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.HeadMethod;
 import org.apache.commons.httpclient.methods.PutMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.common.file.FileCache;
-import org.nuxeo.common.file.LRUFileCache;
-import org.nuxeo.ecm.core.storage.sql.scality.DigestGenerator;
+import org.nuxeo.ecm.core.storage.sql.cloud.CacheConfigurationBean;
+import org.nuxeo.ecm.core.storage.sql.cloud.CloudFileCache;
+import org.nuxeo.ecm.core.storage.sql.cloud.DigestGenerator;
+import org.nuxeo.ecm.core.storage.sql.cloud.Md5DigestSet;
+import org.nuxeo.ecm.core.storage.sql.cloud.RangedDownloader;
+import org.nuxeo.ecm.core.storage.sql.cloud.SingleFlight;
+import org.nuxeo.ecm.core.storage.sql.cloud.StreamingDownloader;
+import org.nuxeo.ecm.core.storage.sql.cloud.TeeDownloader;
 import org.nuxeo.ecm.core.storage.sql.scality.HTTPMethod;
+import org.nuxeo.ecm.core.storage.sql.scality.RequestSigner;
 import org.nuxeo.ecm.core.storage.sql.scality.ScalityConfigurationBean;
 import org.nuxeo.ecm.core.storage.sql.scality.StringGenerator;
 import org.nuxeo.ecm.core.storage.sql.scality.s3.Contents;
 import org.nuxeo.ecm.core.storage.sql.scality.s3.ListBucketResult;
+import org.nuxeo.ecm.core.storage.sql.scality.s3.ListBucketResultParser;
 import org.nuxeo.runtime.api.Framework;
 
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
-
-import com.amazonaws.AmazonClientException;
-import com.thoughtworks.xstream.XStream;
-import com.thoughtworks.xstream.io.xml.StaxDriver;
-
 /**
  * An implementation of Nuxeo's Binary Manager storing binaries as Amazon S3
  * BLOBs in the Scality system
@@ -72,14 +88,110 @@ public class ScalityBinaryManager extends CloudBinaryManager {
 
     protected String cacheSizeStr;
 
+    protected CacheConfigurationBean cacheConfiguration;
+
+    protected int maxConnectionsPerHost;
+
+    protected int maxTotalConnections;
+
+    protected long idleConnectionTimeout;
+
+    protected String rangedDownloadThresholdStr;
+
+    protected int rangedDownloadThreads;
+
+    /** Size above which downloads are ranged, or -1 if disabled. */
+    protected long rangedDownloadThreshold = -1;
+
+    protected RangedDownloader rangedDownloader;
+
+    /** Whether missing binaries are streamed while they are downloaded. */
+    protected boolean streamingDownload;
+
+    protected TeeDownloader teeDownloader;
+
+    /** Whether binaries are uploaded in the background after a save. */
+    protected boolean writeBehind;
+
+    protected int writeBehindThreads;
+
+    /** Whether a local index of the stored objects avoids HEAD requests. */
+    protected boolean useInventory;
+
+    protected int prefetchThreads;
+
+    /** Whether the binaries marked by the garbage collector can be mapped. */
+    protected boolean gcMapped;
+
+    /** Maximum number of object lengths remembered. */
+    public static final int MAX_CACHED_LENGTHS = 10000;
+
+    /**
+     * Lengths of the recently seen objects, so that asking for the length of
+     * a binary doesn't need a HEAD request each time. Objects are immutable,
+     * so the lengths never change.
+     */
+    protected final Map<String, Long> lengths = Collections.synchronizedMap(new LinkedHashMap<String, Long>(
+            16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_CACHED_LENGTHS;
+        }
+    });
+
+    /**
+     * Connection pool shared by all the requests done by this binary manager,
+     * so that connections to the Scality host are kept alive and reused.
+     */
+    protected MultiThreadedHttpConnectionManager connectionManager;
+
+    protected HttpClient httpClient;
+
+    protected IdleConnectionTimeoutThread idleConnectionTimeoutThread;
+
+    protected final StreamingDownloader downloader = new StreamingDownloader();
+
+    protected RequestSigner signer;
+
     public static final String AWS_ID_KEY = "nuxeo.scality.awsid";
     public static final String AWS_SECRET_KEY = "nuxeo.scality.awssecret";
     public static final String BUCKET_REGION_KEY = "nuxeo.scality.region";
     public static final String BUCKET_NAME_KEY = "nuxeo.scality.bucket";
     public static final String CACHE_SIZE = "nuxeo.scality.cache.size";
+    public static final String CACHE_PREFIX = "nuxeo.scality.cache.";
     public static final String SCALITY_HOST_NAME = "nuxeo.scality.host.name";
+    public static final String MAX_CONNECTIONS_PER_HOST = "nuxeo.scality.connection.max.per.host";
+    public static final String MAX_TOTAL_CONNECTIONS = "nuxeo.scality.connection.max.total";
+    public static final String IDLE_CONNECTION_TIMEOUT = "nuxeo.scality.connection.idle.timeout";
+    public static final String RANGED_DOWNLOAD_THRESHOLD = "nuxeo.scality.download.ranged.threshold";
+    public static final String RANGED_DOWNLOAD_THREADS = "nuxeo.scality.download.ranged.threads";
+    public static final String STREAMING_DOWNLOAD = "nuxeo.scality.download.streaming";
+    public static final String WRITE_BEHIND = "nuxeo.scality.writebehind";
+    public static final String WRITE_BEHIND_THREADS = "nuxeo.scality.writebehind.threads";
+    public static final String INVENTORY = "nuxeo.scality.inventory";
+    public static final String PREFETCH_THREADS = "nuxeo.scality.prefetch.threads";
+    public static final String GC_MAPPED = "nuxeo.scality.gc.mapped";
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+
+    public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 50;
+
+    // milliseconds
+    public static final long DEFAULT_IDLE_CONNECTION_TIMEOUT = 60 * 1000;
+
+    public static final int DEFAULT_RANGED_DOWNLOAD_THREADS = 8;
+
+    public static final int DEFAULT_WRITE_BEHIND_THREADS = 4;
+
+    public static final int DEFAULT_PREFETCH_THREADS = 4;
 
     public static final String PROTOCOL_PREFIX = "http://";
+
+    /** Number of keys requested for each bucket listing page. */
+    public static final int LIST_MAX_KEYS = 1000;
+
     public static final String DEFAULT_CONTENT_TYPE = "";
 
     /**
@@ -90,7 +202,31 @@ public class ScalityBinaryManager extends CloudBinaryManager {
         this.awsID = Framework.getProperty(AWS_ID_KEY);
         this.awsSecret = Framework.getProperty(AWS_SECRET_KEY);
         this.cacheSizeStr = Framework.getProperty(CACHE_SIZE);
+        this.cacheConfiguration = CacheConfigurationBean.fromProperties(CACHE_PREFIX);
         this.hostBase = Framework.getProperty(SCALITY_HOST_NAME);
+        this.maxConnectionsPerHost = parseInt(
+                Framework.getProperty(MAX_CONNECTIONS_PER_HOST),
+                DEFAULT_MAX_CONNECTIONS_PER_HOST);
+        this.maxTotalConnections = parseInt(
+                Framework.getProperty(MAX_TOTAL_CONNECTIONS),
+                DEFAULT_MAX_TOTAL_CONNECTIONS);
+        this.idleConnectionTimeout = parseLong(
+                Framework.getProperty(IDLE_CONNECTION_TIMEOUT),
+                DEFAULT_IDLE_CONNECTION_TIMEOUT);
+        this.rangedDownloadThresholdStr = Framework.getProperty(RANGED_DOWNLOAD_THRESHOLD);
+        this.rangedDownloadThreads = parseInt(
+                Framework.getProperty(RANGED_DOWNLOAD_THREADS),
+                DEFAULT_RANGED_DOWNLOAD_THREADS);
+        this.streamingDownload = Boolean.parseBoolean(Framework.getProperty(STREAMING_DOWNLOAD));
+        this.writeBehind = Boolean.parseBoolean(Framework.getProperty(WRITE_BEHIND));
+        this.writeBehindThreads = parseInt(
+                Framework.getProperty(WRITE_BEHIND_THREADS),
+                DEFAULT_WRITE_BEHIND_THREADS);
+        this.useInventory = Boolean.parseBoolean(Framework.getProperty(INVENTORY));
+        this.prefetchThreads = parseInt(
+                Framework.getProperty(PREFETCH_THREADS),
+                DEFAULT_PREFETCH_THREADS);
+        this.gcMapped = Boolean.parseBoolean(Framework.getProperty(GC_MAPPED));
     }
 
     /**
@@ -102,7 +238,68 @@ public class ScalityBinaryManager extends CloudBinaryManager {
         this.awsSecret = conf.getAwsSecret();
         this.bucketName = conf.getBucketName();
         this.cacheSizeStr = conf.getCacheSizeStr();
+        this.cacheConfiguration = new CacheConfigurationBean();
+        this.cacheConfiguration.setDir(conf.getCacheDir());
+        if (conf.getCacheShards() != null) {
+            this.cacheConfiguration.setShards(CacheConfigurationBean.parseList(conf.getCacheShards()));
+        }
+        if (conf.getCacheAdmission() != null) {
+            this.cacheConfiguration.setAdmission(conf.getCacheAdmission());
+        }
+        if (conf.getCacheIndex() != null) {
+            this.cacheConfiguration.setIndex(conf.getCacheIndex());
+        }
+        if (conf.getCacheMemorySizeStr() != null) {
+            this.cacheConfiguration.setMemorySize(StringGenerator.parseSizeInBytes(conf.getCacheMemorySizeStr()));
+        }
+        if (conf.getCacheMemoryMaxEntrySizeStr() != null) {
+            this.cacheConfiguration.setMemoryMaxEntrySize(StringGenerator.parseSizeInBytes(conf.getCacheMemoryMaxEntrySizeStr()));
+        }
+        if (conf.getCacheChunkThresholdStr() != null) {
+            this.cacheConfiguration.setChunkThreshold(StringGenerator.parseSizeInBytes(conf.getCacheChunkThresholdStr()));
+        }
+        if (conf.getCacheChunkSizeStr() != null) {
+            this.cacheConfiguration.setChunkSize(StringGenerator.parseSizeInBytes(conf.getCacheChunkSizeStr()));
+        }
+        this.cacheConfiguration.setEvictBackground(conf.isCacheEvictBackground());
+        if (conf.getCacheEvictHighWatermark() > 0) {
+            this.cacheConfiguration.setEvictHighWatermark(conf.getCacheEvictHighWatermark());
+        }
+        if (conf.getCacheEvictLowWatermark() > 0) {
+            this.cacheConfiguration.setEvictLowWatermark(conf.getCacheEvictLowWatermark());
+        }
         this.hostBase = conf.getHostBase();
+        this.maxConnectionsPerHost = conf.getMaxConnectionsPerHost() > 0 ? conf.getMaxConnectionsPerHost()
+                : DEFAULT_MAX_CONNECTIONS_PER_HOST;
+        this.maxTotalConnections = conf.getMaxTotalConnections() > 0 ? conf.getMaxTotalConnections()
+                : DEFAULT_MAX_TOTAL_CONNECTIONS;
+        this.idleConnectionTimeout = conf.getIdleConnectionTimeout() > 0 ? conf.getIdleConnectionTimeout()
+                : DEFAULT_IDLE_CONNECTION_TIMEOUT;
+        this.rangedDownloadThresholdStr = conf.getRangedDownloadThresholdStr();
+        this.rangedDownloadThreads = conf.getRangedDownloadThreads() > 0 ? conf.getRangedDownloadThreads()
+                : DEFAULT_RANGED_DOWNLOAD_THREADS;
+        this.streamingDownload = conf.isStreamingDownload();
+        this.writeBehind = conf.isWriteBehind();
+        this.writeBehindThreads = conf.getWriteBehindThreads() > 0 ? conf.getWriteBehindThreads()
+                : DEFAULT_WRITE_BEHIND_THREADS;
+        this.useInventory = conf.isInventory();
+        this.prefetchThreads = conf.getPrefetchThreads() > 0 ? conf.getPrefetchThreads()
+                : DEFAULT_PREFETCH_THREADS;
+        this.gcMapped = conf.isGcMapped();
+    }
+
+    protected static int parseInt(String value, int defaultValue) {
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.trim());
+    }
+
+    protected static long parseLong(String value, long defaultValue) {
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        return Long.parseLong(value.trim());
     }
 
     @Override
@@ -115,32 +312,143 @@ public class ScalityBinaryManager extends CloudBinaryManager {
                 + this.getClass().getSimpleName());
 
         // Create file cache
-        File dir = File.createTempFile("nxbincache.", "", null);
-        boolean dirDeleted = dir.delete();
-        if (dirDeleted) {
-            log.debug("Deleted directory: " + dir);
-        } else {
-            log.debug("Problem deleting: " + dir);
+        long cacheSize = StringGenerator.parseSizeInBytes(cacheSizeStr);
+        fileCache = createFileCache(cacheConfiguration, cacheSize);
+        initializeMemoryTier(cacheConfiguration);
+        initializeChunkCache(cacheConfiguration);
+
+        signer = new RequestSigner(awsID, awsSecret);
+        initializeConnectionPool();
+        if (rangedDownloadThresholdStr != null
+                && rangedDownloadThresholdStr.trim().length() > 0) {
+            rangedDownloadThreshold = StringGenerator.parseSizeInBytes(rangedDownloadThresholdStr.trim());
+            rangedDownloader = new ScalityRangedDownloader();
+            log.info("Using ranged downloads above "
+                    + rangedDownloadThresholdStr + ", threads: "
+                    + rangedDownloadThreads);
         }
-        boolean dirCreated = dir.mkdir();
-        if (dirCreated) {
-            log.debug("Created directory: " + dir);
-        } else {
-            log.debug("Problem creating: " + dir);
+        if (streamingDownload) {
+            // streamed downloads don't use ranges
+            teeDownloader = new TeeDownloader("Nuxeo-Scality-Streaming",
+                    fileCache, TeeDownloader.DEFAULT_MAX_THREADS, fetches);
+            log.info("Streaming binaries while they are downloaded");
         }
-        dir.deleteOnExit();
-        long cacheSize = StringGenerator.parseSizeInBytes(cacheSizeStr);
-        fileCache = new LRUFileCache(dir, cacheSize);
-        log.info("Using binary cache directory: " + dir.getPath() + " size: "
-                + cacheSizeStr);
 
         // create a bucket if it doesn't exist
         if (!bucketExists(this.bucketName)) {
             createBucket(this.bucketName);
         }
 
-        // TODO not implemented yet
-        // createGarbageCollector();
+        if (useInventory) {
+            initializeInventory();
+        }
+        if (writeBehind) {
+            initializeWriteBehind("Nuxeo-Scality-WriteBehind",
+                    writeBehindThreads);
+        }
+        initializePrefetch("Nuxeo-Scality-Prefetch", prefetchThreads);
+
+        createGarbageCollector();
+        registerShutdownListener();
+    }
+
+    /**
+     * Creates the HTTP connection pool shared by all the requests, and the
+     * thread closing the connections that stayed idle for too long.
+     */
+    protected void initializeConnectionPool() {
+        connectionManager = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams params = connectionManager.getParams();
+        params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+        params.setMaxTotalConnections(maxTotalConnections);
+        params.setStaleCheckingEnabled(true);
+        httpClient = new HttpClient(connectionManager);
+        idleConnectionTimeoutThread = new IdleConnectionTimeoutThread();
+        idleConnectionTimeoutThread.setName("Nuxeo-Scality-IdleConnectionTimeout");
+        // never keeps the JVM alive if the binary manager isn't closed
+        idleConnectionTimeoutThread.setDaemon(true);
+        idleConnectionTimeoutThread.addConnectionManager(connectionManager);
+        idleConnectionTimeoutThread.setConnectionTimeout(idleConnectionTimeout);
+        idleConnectionTimeoutThread.setTimeoutInterval(Math.max(1000,
+                idleConnectionTimeout / 2));
+        idleConnectionTimeoutThread.start();
+        log.info("Using Scality connection pool: max per host: "
+                + maxConnectionsPerHost + " max total: " + maxTotalConnections
+                + " idle timeout: " + idleConnectionTimeout + "ms");
+    }
+
+    /**
+     * Releases the HTTP connection pool and the file cache.
+     */
+    @Override
+    public void close() {
+        unregisterShutdownListener();
+        closePrefetch();
+        closeWriteBehind();
+        closeInventory();
+        closeFileCache();
+        if (teeDownloader != null) {
+            teeDownloader.shutdown();
+            teeDownloader = null;
+        }
+        if (rangedDownloader != null) {
+            rangedDownloader.shutdown();
+            rangedDownloader = null;
+        }
+        if (idleConnectionTimeoutThread != null) {
+            idleConnectionTimeoutThread.shutdown();
+            idleConnectionTimeoutThread = null;
+        }
+        if (connectionManager != null) {
+            connectionManager.shutdown();
+            connectionManager = null;
+        }
+        httpClient = null;
+    }
+
+    /**
+     * Executes a method using the pooled connections. The caller must always
+     * call {@link HttpMethod#releaseConnection} once done with the response,
+     * so that the connection goes back to the pool.
+     */
+    protected int executeMethod(HttpMethod method) throws IOException {
+        if (httpClient == null) {
+            throw new IllegalStateException("Binary manager not initialized");
+        }
+        return httpClient.executeMethod(method);
+    }
+
+    /**
+     * Adds the date and authorization headers to a request.
+     */
+    protected void signRequest(HttpMethod method, HTTPMethod httpMethod,
+            String contentMD5, String bucketName, String objectID) {
+        String date = signer.getDateString(System.currentTimeMillis());
+        String authorization = signer.getAuthorizationString(httpMethod,
+                contentMD5, DEFAULT_CONTENT_TYPE, bucketName, objectID, date);
+        method.addRequestHeader("Authorization", authorization);
+        method.addRequestHeader("x-amz-date", date);
+        if (log.isDebugEnabled()) {
+            log.debug("Signed " + httpMethod + " /" + bucketName + "/"
+                    + objectID);
+        }
+    }
+
+    /**
+     * Gets the number of connections currently held by the pool (in use or
+     * idle).
+     */
+    public int getConnectionsInPool() {
+        return connectionManager == null ? 0
+                : connectionManager.getConnectionsInPool();
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    public int getMaxTotalConnections() {
+        return maxTotalConnections;
     }
 
     /**
@@ -150,47 +458,177 @@ public class ScalityBinaryManager extends CloudBinaryManager {
         return DEFAULT_DIGEST;
     }
 
+    /**
+     * Stores a binary under its digest, which is also the key of its object.
+     * The MD5 is still computed for the Content-MD5 header.
+     *
+     * @see #migrateMD5Keys
+     */
     @Override
     public Binary getBinary(InputStream in) throws IOException {
-        // Write the input stream to a temporary file, while computing a digest
+        // Write the input stream to a temporary file, while computing both
+        // the digest and the MD5 needed for the upload, so that the file
+        // doesn't have to be read again before being sent
         File tmp = fileCache.getTempFile();
         OutputStream out = new FileOutputStream(tmp);
         String digest;
+        byte[] md5;
         try {
-            digest = storeAndDigest(in, out);
+            if (DigestGenerator.MD5.equals(descriptor.digest)) {
+                md5 = DigestGenerator.storeAndDigest(in, out,
+                        DigestGenerator.MD5)[0];
+                digest = DigestGenerator.toHexString(md5);
+            } else {
+                byte[][] digests = DigestGenerator.storeAndDigest(in, out,
+                        descriptor.digest, DigestGenerator.MD5);
+                digest = DigestGenerator.toHexString(digests[0]);
+                md5 = digests[1];
+            }
         } finally {
             in.close();
             out.close();
         }
+        if (writeBehindUploader != null) {
+            // Register the file in the file cache, uploaded later
+            File file = writeBehindUploader.put(digest, tmp);
+            lengths.put(digest, Long.valueOf(file.length()));
+            return new CachedBinary(file, digest, repositoryName, fileCache);
+        }
+
         // Register the file in the file cache
         File file = fileCache.putFile(digest, tmp);
+        lengths.put(digest, Long.valueOf(file.length()));
 
         // check if the object exists in the remote server
-        boolean objectExists = objectExists(digest);
+        boolean objectExists = isStored(digest);
 
         // upload the object if not present on the remote server
         if (!objectExists) {
-            String remoteStorageID = uploadFile(file);
+            String remoteStorageID = uploadFile(file, digest,
+                    DigestGenerator.toBase64(md5));
+            remember(digest, file.length());
             log.debug("File " + file.getName() + " was stored as "
                     + remoteStorageID);
         }
-        return new Binary(file, digest, repositoryName);
+        return new CachedBinary(file, digest, repositoryName, fileCache);
     }
 
     @Override
-    public Binary getBinary(String digest) {
-        // Check in the cache
-        File file = fileCache.getFile(digest);
-        if (file == null) {
-            // Fetch from Scality and store it in the cache
+    protected void upload(String digest, File file) {
+        if (!isStored(digest)) {
+            byte[] md5 = DigestGenerator.getMD5(file);
+            uploadFile(file, digest, DigestGenerator.toBase64(md5));
+            remember(digest, file.length());
+        }
+    }
+
+    /**
+     * Checks if an object is stored, from the remote inventory if possible.
+     */
+    protected boolean isStored(String digest) {
+        if (inventory != null && inventory.contains(digest)) {
+            return true;
+        }
+        return objectExists(digest);
+    }
+
+    /**
+     * Gets the length of the object keys, the hexadecimal digests.
+     */
+    protected int getDigestKeyLength() {
+        try {
+            MessageDigest md = MessageDigest.getInstance(descriptor.digest);
+            return md.getDigestLength() * 2;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Copies the objects stored under the MD5 of their content to the digest
+     * of this binary manager, when it's not MD5.
+     * <p>
+     * The objects are stored under the digest referencing them, but were
+     * formerly always uploaded under their MD5, so with another digest they
+     * could not be read back from Scality. The MD5 of an object cannot be
+     * found from its digest, so they cannot be looked up on read, and must be
+     * copied once. The objects under an MD5 are kept, as they may still be
+     * referenced by their MD5, and are never deleted by the garbage
+     * collector.
+     *
+     * @return the number of objects copied
+     */
+    public int migrateMD5Keys() throws IOException {
+        if (DigestGenerator.MD5.equals(descriptor.digest)) {
+            return 0;
+        }
+        int count = 0;
+        Iterator<Contents> it = iterateObjects(bucketName);
+        while (it.hasNext()) {
+            String key = it.next().key;
+            if (isMD5(key) && migrateMD5Key(key)) {
+                count++;
+            }
+        }
+        log.info("Copied " + count + " objects from their MD5 to their "
+                + descriptor.digest + " digest");
+        return count;
+    }
+
+    /**
+     * Copies an object stored under its MD5 to its digest, if missing.
+     *
+     * @return {@code true} if the object was copied
+     */
+    protected boolean migrateMD5Key(String md5) throws IOException {
+        InputStream in = openStream(md5);
+        if (in == null) {
+            // deleted meanwhile
+            return false;
+        }
+        File tmp = fileCache.getTempFile();
+        try {
+            OutputStream out = new FileOutputStream(tmp);
+            byte[][] digests;
             try {
-                file = downloadFile(digest);
-                file = fileCache.putFile(digest, file);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+                digests = DigestGenerator.storeAndDigest(in, out,
+                        descriptor.digest, DigestGenerator.MD5);
+            } finally {
+                in.close();
+                out.close();
+            }
+            if (!md5.equals(DigestGenerator.toHexString(digests[1]))) {
+                log.error("Not copying object with invalid MD5: " + md5);
+                return false;
             }
+            String digest = DigestGenerator.toHexString(digests[0]);
+            if (isStored(digest)) {
+                return false;
+            }
+            uploadFile(tmp, digest, DigestGenerator.toBase64(digests[1]));
+            remember(digest, tmp.length());
+            return true;
+        } finally {
+            tmp.delete();
         }
-        return new Binary(file, digest, repositoryName);
+    }
+
+    @Override
+    public Binary getBinary(String digest) {
+        // Check in the cache
+        Binary binary = getCachedBinary(digest);
+        if (binary == null) {
+            // fetched from Scality on first access to the stream
+            return newLazyBinary(digest);
+        } else {
+            return binary;
+        }
+    }
+
+    @Override
+    protected CloudLazyBinary newLazyBinary(String digest) {
+        return new ScalityLazyBinary(digest, fileCache, fetches,
+                teeDownloader, this);
     }
 
     /**
@@ -198,59 +636,165 @@ public class ScalityBinaryManager extends CloudBinaryManager {
      * identified by its id (a digest id is used)
      *
      * @param remoteFileID
-     * @return
+     * @return a temporary file from the file cache, or {@code null} if the
+     *         object does not exist
      */
     public File downloadFile(String remoteFileID) {
+        File tmp;
+        try {
+            tmp = CloudFileCache.getTempFile(fileCache, remoteFileID);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        boolean ok = false;
+        try {
+            if (!downloadFile(remoteFileID, tmp)) {
+                return null;
+            }
+            ok = true;
+            return tmp;
+        } finally {
+            if (!ok) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Downloads a file from the scality system into the given file.
+     *
+     * @param remoteFileID
+     * @param tmp the file to write, deleted by the caller on failure
+     * @return {@code false} if the object does not exist
+     */
+    protected boolean downloadFile(String remoteFileID, File tmp) {
+        if (rangedDownloader != null) {
+            // -1 if the object doesn't exist
+            long length = getLength(remoteFileID);
+            if (length > rangedDownloadThreshold) {
+                downloadRanges(remoteFileID, length, tmp);
+                return true;
+            }
+        }
         String remoteFileName = remoteFileID;
 
         String url = PROTOCOL_PREFIX + this.bucketName + "." + this.hostBase;
         log.debug(url);
         GetMethod getMethod = new GetMethod(url);
         String contentMD5 = "";
-        String contentType = "";
-        String stringToSign = StringGenerator.getStringToSign(HTTPMethod.GET,
-                contentMD5, contentType, bucketName, remoteFileName, new Date());
-        File tmp = null;
         try {
-            getMethod.addRequestHeader("Authorization",
-                    StringGenerator.getAuthorizationString(stringToSign, awsID,
-                            awsSecret));
-            getMethod.addRequestHeader("x-amz-date",
-                    StringGenerator.getCurrentDateString());
+            signRequest(getMethod, HTTPMethod.GET, contentMD5,
+                    bucketName, remoteFileName);
 
             getMethod.setPath("/" + remoteFileID);// needs to be properly
             // encoded
 
-            HttpClient client = new HttpClient();
-            int returnCode = client.executeMethod(getMethod);
-            log.debug(getMethod.getResponseBodyAsString());
-            if (returnCode != -1) {
-
-                BufferedInputStream bis = new BufferedInputStream(
-                        getMethod.getResponseBodyAsStream());
-                tmp = fileCache.getTempFile();
-                FileOutputStream fos = new FileOutputStream(tmp);
-                byte[] bytes = new byte[4];
-                int count = bis.read(bytes);
-                while (count != -1 && count <= 4) {
-                    fos.write(bytes, 0, count);
-                    count = bis.read(bytes);
-                }
-                if (count != -1) {
-                    fos.write(bytes, 0, count);
+            int returnCode = executeMethod(getMethod);
+            if (returnCode == HttpStatus.SC_OK) {
+                // stream the body to the cache, never loading it in memory
+                InputStream in = getMethod.getResponseBodyAsStream();
+                try {
+                    long length = downloader.download(in, tmp);
+                    if (log.isDebugEnabled()) {
+                        log.debug("Downloaded " + remoteFileID + " ("
+                                + length + " bytes)");
+                    }
+                    lengths.put(remoteFileID, Long.valueOf(length));
+                    remember(remoteFileID, length);
+                } finally {
+                    in.close();
                 }
-                fos.close();
-                bis.close();
+                return true;
+            } else if (returnCode == HttpStatus.SC_NOT_FOUND) {
+                log.debug("Object " + remoteFileID + " does not exist");
+                return false;
+            } else {
+                String connectionMsg = "Scality connection problem. Object could not be downloaded";
+                log.debug(connectionMsg + ": " + returnCode);
+                throw new RuntimeException(connectionMsg);
             }
-            getMethod.releaseConnection();
-        } catch (SignatureException e) {
-            throw new RuntimeException(e);
         } catch (FileNotFoundException e) {
             throw new RuntimeException(e);
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            getMethod.releaseConnection();
+        }
+    }
+
+    /**
+     * Opens the content of a remote object. The connection is released when
+     * the stream is closed.
+     *
+     * @return the stream, or {@code null} if the object does not exist
+     */
+    public InputStream openStream(String objectID) {
+        return openStream(objectID, null);
+    }
+
+    /**
+     * Opens a range of a remote object. The connection is released when the
+     * stream is closed.
+     *
+     * @param start the first byte
+     * @param end the last byte, inclusive, may be after the end of the object
+     * @return the stream, empty if the range starts after the end of the
+     *         object, or {@code null} if the object does not exist
+     */
+    public InputStream openRange(String objectID, long start, long end) {
+        return openStream(objectID, "bytes=" + start + "-" + end);
+    }
+
+    /**
+     * @param range the value of the Range header, or {@code null} for the
+     *            whole object
+     */
+    protected InputStream openStream(String objectID, String range) {
+        String url = PROTOCOL_PREFIX + this.bucketName + "." + this.hostBase;
+        final GetMethod getMethod = new GetMethod(url);
+        boolean ok = false;
+        try {
+            signRequest(getMethod, HTTPMethod.GET, "", bucketName, objectID);
+            getMethod.setPath("/" + objectID);
+            if (range != null) {
+                getMethod.setRequestHeader("Range", range);
+            }
+            int returnCode = executeMethod(getMethod);
+            if (returnCode == HttpStatus.SC_NOT_FOUND) {
+                log.debug("Object " + objectID + " does not exist");
+                return null;
+            }
+            if (range != null
+                    && returnCode == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                // starts after the end
+                return new ByteArrayInputStream(new byte[0]);
+            }
+            if (returnCode != (range == null ? HttpStatus.SC_OK
+                    : HttpStatus.SC_PARTIAL_CONTENT)) {
+                String connectionMsg = "Scality connection problem. Object could not be downloaded";
+                log.debug(connectionMsg + ": " + returnCode);
+                throw new RuntimeException(connectionMsg);
+            }
+            InputStream in = new FilterInputStream(
+                    getMethod.getResponseBodyAsStream()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        getMethod.releaseConnection();
+                    }
+                }
+            };
+            ok = true;
+            return in;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (!ok) {
+                getMethod.releaseConnection();
+            }
         }
-        return tmp;
     }
 
     /**
@@ -261,40 +805,49 @@ public class ScalityBinaryManager extends CloudBinaryManager {
      *         stored in the scality system
      */
     protected String uploadFile(File file) {
+        byte[] md5 = DigestGenerator.getMD5(file);
+        return uploadFile(file, DigestGenerator.toHexString(md5),
+                DigestGenerator.toBase64(md5));
+    }
+
+    /**
+     * Upload a file to the Scality system, using an already computed MD5.
+     * <p>
+     * The MD5 is sent as the Content-MD5 header, so that the server checks
+     * the integrity of the received content.
+     *
+     * @param file
+     * @param objectID the identifier under which the file is stored
+     * @param contentMD5 the base64-encoded MD5 of the file content
+     * @return The file identifier under which the file is stored in the
+     *         scality system
+     */
+    protected String uploadFile(File file, String objectID, String contentMD5) {
         String url = PROTOCOL_PREFIX + this.bucketName + "." + this.hostBase;
         log.debug(url);
         PutMethod putMethod = new PutMethod(url);
         try {
-            String contentMD5 = DigestGenerator.getMD5Checksum(file);
-            String stringToSign = StringGenerator.getStringToSign(
-                    HTTPMethod.PUT, "", DEFAULT_CONTENT_TYPE, bucketName,
-                    contentMD5, new Date());
-            String authorizationString = StringGenerator.getAuthorizationString(
-                    stringToSign, awsID, awsSecret);
-            putMethod.addRequestHeader("Authorization", authorizationString);
-            putMethod.addRequestHeader("x-amz-date",
-                    StringGenerator.getCurrentDateString());
-            putMethod.setPath("/" + contentMD5);
+            signRequest(putMethod, HTTPMethod.PUT, contentMD5, bucketName,
+                    objectID);
+            putMethod.addRequestHeader("Content-MD5", contentMD5);
+            putMethod.setPath("/" + objectID);
             putMethod.setRequestEntity(new FileRequestEntity(file,
                     DEFAULT_CONTENT_TYPE));
-            log.debug(">>>" + authorizationString + "<<<");
-            log.debug(">>" + stringToSign + "<<");
-            HttpClient client = new HttpClient();
-            int returnCode = client.executeMethod(putMethod);
+            int returnCode = executeMethod(putMethod);
             if (returnCode != HttpStatus.SC_OK) {
                 String failedUploadMsg = "File upload failed for "
                         + file.getName() + " Error:" + returnCode;
                 log.debug(failedUploadMsg);
                 throw new RuntimeException(failedUploadMsg);
             }
-            log.debug(returnCode + putMethod.getResponseBodyAsString());
-            putMethod.releaseConnection();
-            log.debug(returnCode + putMethod.getResponseBodyAsString());
-            return contentMD5;
-        } catch (SignatureException e) {
-            throw new RuntimeException(e);
+            if (log.isDebugEnabled()) {
+                log.debug(returnCode + putMethod.getResponseBodyAsString());
+            }
+            return objectID;
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            putMethod.releaseConnection();
         }
     }
 
@@ -309,18 +862,11 @@ public class ScalityBinaryManager extends CloudBinaryManager {
         log.debug(url);
         HeadMethod headMethod = new HeadMethod(url);
         String contentMD5 = "";
-        String stringToSign = StringGenerator.getStringToSign(HTTPMethod.HEAD,
-                contentMD5, DEFAULT_CONTENT_TYPE, this.bucketName, objectID,
-                new Date());
         try {
-            headMethod.addRequestHeader("Authorization",
-                    StringGenerator.getAuthorizationString(stringToSign, awsID,
-                            awsSecret));
-            headMethod.addRequestHeader("x-amz-date",
-                    StringGenerator.getCurrentDateString());
+            signRequest(headMethod, HTTPMethod.HEAD, contentMD5,
+                    this.bucketName, objectID);
             headMethod.setPath("/" + objectID);
-            HttpClient client = new HttpClient();
-            int returnCode = client.executeMethod(headMethod);
+            int returnCode = executeMethod(headMethod);
             log.debug(headMethod.getResponseBodyAsString());
             // only for logging
             if (returnCode == HttpStatus.SC_OK) {
@@ -333,60 +879,88 @@ public class ScalityBinaryManager extends CloudBinaryManager {
                 log.debug(connectionMsg);
                 throw new RuntimeException(connectionMsg);
             }
-            headMethod.releaseConnection();
-        } catch (SignatureException e) {
-            throw new RuntimeException(e);
         } catch (FileNotFoundException e) {
             throw new RuntimeException(e);
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            headMethod.releaseConnection();
         }
         return objectExists;
     }
 
     /**
      * Lists ids of objects in the provided bucket
+     * <p>
+     * All the listing pages are read, so for big buckets
+     * {@link #iterateObjects} should be used instead.
      *
-     * @param objectID
+     * @param bucketName
      */
     public List<Contents> listObjects(String bucketName) {
-        List<Contents> objects = null;
+        List<Contents> objects = new ArrayList<Contents>();
+        Iterator<Contents> it = iterateObjects(bucketName);
+        while (it.hasNext()) {
+            objects.add(it.next());
+        }
+        return objects;
+    }
+
+    /**
+     * Iterates over the objects of the provided bucket.
+     * <p>
+     * The listing pages are fetched lazily one after the other while
+     * iterating, so only one page is held in memory at a time.
+     *
+     * @param bucketName
+     */
+    public Iterator<Contents> iterateObjects(String bucketName) {
+        return new BucketIterator(this, bucketName);
+    }
+
+    /**
+     * Fetches one page of the bucket listing.
+     *
+     * @param bucketName
+     * @param marker the key after which the listing starts, or {@code null}
+     *            for the first page
+     */
+    public ListBucketResult listObjectsPage(String bucketName, String marker) {
         String url = PROTOCOL_PREFIX + bucketName + "." + this.hostBase;
         log.debug(url);
         GetMethod getMethod = new GetMethod(url);
         String contentMD5 = "";
         String fileName = "";
-        String stringToSign = StringGenerator.getStringToSign(HTTPMethod.GET,
-                contentMD5, DEFAULT_CONTENT_TYPE, this.bucketName, fileName,
-                new Date());
         try {
-            getMethod.addRequestHeader("Authorization",
-                    StringGenerator.getAuthorizationString(stringToSign, awsID,
-                            awsSecret));
-            getMethod.addRequestHeader("x-amz-date",
-                    StringGenerator.getCurrentDateString());
+            // query parameters are not part of the signed resource
+            signRequest(getMethod, HTTPMethod.GET, contentMD5,
+                    bucketName, fileName);
             getMethod.setPath("/");
-            HttpClient client = new HttpClient();
-            int returnCode = client.executeMethod(getMethod);
-            String xmlResponse = getMethod.getResponseBodyAsString();
-            log.debug("RETURN CODE:\t" + returnCode + "\tRESPONSE:\t"
-                    + xmlResponse);
-
-            // extract content objects
-            XStream xstream = new XStream(new StaxDriver());
-            xstream.processAnnotations(ListBucketResult.class);
-            xstream.processAnnotations(Contents.class);
-            ListBucketResult bucketResult = (ListBucketResult) xstream.fromXML(xmlResponse);
-            objects = bucketResult.contents;
-            getMethod.releaseConnection();
-        } catch (SignatureException e) {
-            throw new RuntimeException(e);
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException(e);
+            NameValuePair maxKeys = new NameValuePair("max-keys",
+                    String.valueOf(LIST_MAX_KEYS));
+            if (marker == null) {
+                getMethod.setQueryString(new NameValuePair[] { maxKeys });
+            } else {
+                getMethod.setQueryString(new NameValuePair[] {
+                        new NameValuePair("marker", marker), maxKeys });
+            }
+            int returnCode = executeMethod(getMethod);
+            if (returnCode != HttpStatus.SC_OK) {
+                String connectionMsg = "Scality connection problem. Bucket could not be listed";
+                log.debug(connectionMsg + ": " + returnCode);
+                throw new RuntimeException(connectionMsg);
+            }
+            InputStream in = getMethod.getResponseBodyAsStream();
+            try {
+                return ListBucketResultParser.parse(in);
+            } finally {
+                in.close();
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            getMethod.releaseConnection();
         }
-        return objects;
     }
 
     /**
@@ -401,28 +975,107 @@ public class ScalityBinaryManager extends CloudBinaryManager {
     }
 
     /**
-     * Retrieves the content-length of the remote object
+     * Downloads a big object as several ranges fetched concurrently, and
+     * checks its digest.
+     */
+    protected void downloadRanges(String objectID, long length, File tmp) {
+        try {
+            rangedDownloader.download(objectID, length, tmp);
+            if (!RangedDownloader.checkDigest(tmp, descriptor.digest, objectID)) {
+                throw new RuntimeException("Invalid digest for downloaded object: "
+                        + objectID);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Fetches object ranges with pooled connections.
+     */
+    protected class ScalityRangedDownloader extends RangedDownloader {
+
+        public ScalityRangedDownloader() {
+            super("Nuxeo-Scality-Download", ScalityBinaryManager.this.downloader,
+                    rangedDownloadThreads);
+        }
+
+        @Override
+        protected long fetchRange(String objectID, long start, long end,
+                FileChannel channel) throws IOException {
+            String url = PROTOCOL_PREFIX + bucketName + "." + hostBase;
+            GetMethod getMethod = new GetMethod(url);
+            try {
+                signRequest(getMethod, HTTPMethod.GET, "", bucketName,
+                        objectID);
+                getMethod.setPath("/" + objectID);
+                getMethod.setRequestHeader("Range", "bytes=" + start + "-"
+                        + end);
+                int returnCode = executeMethod(getMethod);
+                if (returnCode != HttpStatus.SC_PARTIAL_CONTENT) {
+                    throw new IOException(
+                            "Scality connection problem. Range could not be downloaded: "
+                                    + returnCode);
+                }
+                InputStream in = getMethod.getResponseBodyAsStream();
+                try {
+                    return downloader.transfer(in, channel, start);
+                } finally {
+                    in.close();
+                }
+            } finally {
+                getMethod.releaseConnection();
+            }
+        }
+    }
+
+    /**
+     * Retrieves the content-length of the remote object.
      *
-     * @param objectID
+     * @return the length, or 0 if the object does not exist
      */
     public long getContentLength(String objectID) {
+        return Math.max(getLength(objectID), 0);
+    }
+
+    /**
+     * Gets the length of the remote object, remembered from previous uploads,
+     * downloads or HEAD requests, or from the remote inventory, if possible.
+     *
+     * @return the length, or -1 if the object does not exist
+     */
+    public long getLength(String objectID) {
+        Long length = lengths.get(objectID);
+        if (length == null && inventory != null) {
+            length = inventory.getLength(objectID);
+        }
+        if (length != null) {
+            return length.longValue();
+        }
+        long contentLength = headContentLength(objectID);
+        if (contentLength >= 0) {
+            lengths.put(objectID, Long.valueOf(contentLength));
+            remember(objectID, contentLength);
+        }
+        return contentLength;
+    }
+
+    /**
+     * Retrieves the content-length of the remote object with a HEAD request.
+     *
+     * @return the length, or -1 if the object does not exist
+     */
+    protected long headContentLength(String objectID) {
         String url = PROTOCOL_PREFIX + this.bucketName + "." + this.hostBase;
         log.debug(url);
         HeadMethod headMethod = new HeadMethod(url);
         String contentMD5 = "";
-        String stringToSign = StringGenerator.getStringToSign(HTTPMethod.HEAD,
-                contentMD5, DEFAULT_CONTENT_TYPE, this.bucketName, objectID,
-                new Date());
-        long contentLength = 0;
+        long contentLength = -1;
         try {
-            headMethod.addRequestHeader("Authorization",
-                    StringGenerator.getAuthorizationString(stringToSign, awsID,
-                            awsSecret));
-            headMethod.addRequestHeader("x-amz-date",
-                    StringGenerator.getCurrentDateString());
+            signRequest(headMethod, HTTPMethod.HEAD, contentMD5,
+                    this.bucketName, objectID);
             headMethod.setPath("/" + objectID);
-            HttpClient client = new HttpClient();
-            int returnCode = client.executeMethod(headMethod);
+            int returnCode = executeMethod(headMethod);
             // specific header
             if (returnCode == HttpStatus.SC_OK) {
                 Header contentLengthHeader = headMethod.getResponseHeader("Content-Length");
@@ -435,15 +1088,14 @@ public class ScalityBinaryManager extends CloudBinaryManager {
                 log.debug(connectionMsg);
                 throw new RuntimeException(connectionMsg);
             }
-            headMethod.releaseConnection();
         } catch (NumberFormatException e) {
             throw new RuntimeException(e);
-        } catch (SignatureException e) {
-            throw new RuntimeException(e);
         } catch (FileNotFoundException e) {
             throw new RuntimeException(e);
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            headMethod.releaseConnection();
         }
         return contentLength;
     }
@@ -454,28 +1106,20 @@ public class ScalityBinaryManager extends CloudBinaryManager {
      * @param objectID
      */
     protected void removeBinary(String objectID) {
+        lengths.remove(objectID);
+        if (!forget(objectID)) {
+            return;
+        }
         String url = PROTOCOL_PREFIX + this.bucketName + "." + this.hostBase;
         log.debug(url);
         DeleteMethod deleteMethod = new DeleteMethod(url);
         String contentMD5 = "";
-
-        // date to be provided to the cloud server
-        Date currentDate = new Date();
-
-        String cloudDateString = StringGenerator.getCloudFormattedDateString(currentDate);
-
-        String stringToSign = StringGenerator.getStringToSign(
-                HTTPMethod.DELETE, contentMD5, DEFAULT_CONTENT_TYPE,
-                this.bucketName, objectID, currentDate);
         try {
-            deleteMethod.addRequestHeader("Authorization",
-                    StringGenerator.getAuthorizationString(stringToSign, awsID,
-                            awsSecret));
-            deleteMethod.addRequestHeader("x-amz-date", cloudDateString);
+            signRequest(deleteMethod, HTTPMethod.DELETE, contentMD5,
+                    this.bucketName, objectID);
             deleteMethod.setPath("/" + objectID);
 
-            HttpClient client = new HttpClient();
-            int returnCode = client.executeMethod(deleteMethod);
+            int returnCode = executeMethod(deleteMethod);
             log.debug(deleteMethod.getResponseBodyAsString());
             // only for logging
             if (returnCode == HttpStatus.SC_NO_CONTENT) {
@@ -487,13 +1131,12 @@ public class ScalityBinaryManager extends CloudBinaryManager {
                 log.debug(connectionMsg);
                 throw new RuntimeException(connectionMsg);
             }
-            deleteMethod.releaseConnection();
-        } catch (SignatureException e) {
-            throw new RuntimeException(e);
         } catch (FileNotFoundException e) {
             throw new RuntimeException(e);
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            deleteMethod.releaseConnection();
         }
     }
 
@@ -509,18 +1152,11 @@ public class ScalityBinaryManager extends CloudBinaryManager {
         log.debug(url);
         GetMethod getMethod = new GetMethod(url);
         String contentMD5 = "";
-        String stringToSign = StringGenerator.getStringToSign(HTTPMethod.GET,
-                contentMD5, DEFAULT_CONTENT_TYPE, bucketName, remoteFileName,
-                new Date());
         try {
-            getMethod.addRequestHeader("Authorization",
-                    StringGenerator.getAuthorizationString(stringToSign, awsID,
-                            awsSecret));
-            getMethod.addRequestHeader("x-amz-date",
-                    StringGenerator.getCurrentDateString());
+            signRequest(getMethod, HTTPMethod.GET, contentMD5,
+                    bucketName, remoteFileName);
 
-            HttpClient client = new HttpClient();
-            int returnCode = client.executeMethod(getMethod);
+            int returnCode = executeMethod(getMethod);
 
             if (returnCode == HttpStatus.SC_OK) {
                 bucketExists = true;
@@ -531,13 +1167,12 @@ public class ScalityBinaryManager extends CloudBinaryManager {
                 log.debug(getMethod.getResponseBodyAsString());
                 log.debug("Connection problem");
             }
-            getMethod.releaseConnection();
-        } catch (SignatureException e) {
-            throw new RuntimeException(e);
         } catch (FileNotFoundException e) {
             throw new RuntimeException(e);
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            getMethod.releaseConnection();
         }
         return bucketExists;
     }
@@ -556,9 +1191,6 @@ public class ScalityBinaryManager extends CloudBinaryManager {
         log.debug(url);
         PutMethod putMethod = new PutMethod(url);
         String contentMD5 = "";
-        String stringToSign = StringGenerator.getStringToSign(HTTPMethod.PUT,
-                contentMD5, DEFAULT_CONTENT_TYPE, bucketName, remoteFileName,
-                new Date());
 
         // check if the bucket exists before trying to create it
         if (bucketExists(bucketName)) {
@@ -566,29 +1198,21 @@ public class ScalityBinaryManager extends CloudBinaryManager {
         }
 
         try {
-            putMethod.addRequestHeader("Authorization",
-                    StringGenerator.getAuthorizationString(stringToSign, awsID,
-                            awsSecret));
-
-            log.debug("Using this stringToSign:" + stringToSign
-                    + " to create a bucket");
-            putMethod.addRequestHeader("x-amz-date",
-                    StringGenerator.getCurrentDateString());
-            HttpClient client = new HttpClient();
-            int returnCode = client.executeMethod(putMethod);
+            signRequest(putMethod, HTTPMethod.PUT, contentMD5, bucketName,
+                    remoteFileName);
+            int returnCode = executeMethod(putMethod);
             log.debug(putMethod.getResponseBodyAsString());
             if (returnCode != -1) {
                 if (returnCode == HttpStatus.SC_OK) {
                     bucketExists = true;
                 }
             }
-            putMethod.releaseConnection();
-        } catch (SignatureException e) {
-            throw new RuntimeException(e);
         } catch (FileNotFoundException e) {
             throw new RuntimeException(e);
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            putMethod.releaseConnection();
         }
         return bucketExists;
     }
@@ -597,36 +1221,148 @@ public class ScalityBinaryManager extends CloudBinaryManager {
         return fileCache;
     }
 
-    public static class ScalityLazyBinary extends LazyBinary {
+    /**
+     * Iterator over the contents of a bucket, following the listing markers
+     * page by page.
+     */
+    public static class BucketIterator implements Iterator<Contents> {
+
+        protected final ScalityBinaryManager binaryManager;
+
+        protected final String bucketName;
+
+        protected Iterator<Contents> page;
+
+        protected String marker;
+
+        protected boolean truncated = true;
+
+        public BucketIterator(ScalityBinaryManager binaryManager,
+                String bucketName) {
+            this.binaryManager = binaryManager;
+            this.bucketName = bucketName;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (page == null || !page.hasNext()) {
+                if (!truncated) {
+                    return false;
+                }
+                fetchNextPage();
+            }
+            return true;
+        }
+
+        protected void fetchNextPage() {
+            ListBucketResult result = binaryManager.listObjectsPage(
+                    bucketName, marker);
+            List<Contents> contents = result.contents;
+            page = contents.iterator();
+            truncated = result.isTruncated;
+            if (result.nextMarker != null && result.nextMarker.length() > 0) {
+                marker = result.nextMarker;
+            } else if (!contents.isEmpty()) {
+                marker = contents.get(contents.size() - 1).key;
+            } else {
+                // no way to continue
+                truncated = false;
+            }
+        }
+
+        @Override
+        public Contents next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * A Scality binary downloaded to the cache only when its stream is first
+     * read. Its length is obtained without downloading it.
+     */
+    public static class ScalityLazyBinary extends CloudLazyBinary {
 
         private static final long serialVersionUID = 1L;
 
         protected final ScalityBinaryManager sbm;
 
-        protected final String bucketName;
-
         public ScalityLazyBinary(String digest, FileCache fileCache,
-                ScalityBinaryManager sbm, String bucketName) {
-            super(digest, fileCache);
-            this.bucketName = bucketName;
+                SingleFlight<File> fetches, TeeDownloader teeDownloader,
+                ScalityBinaryManager sbm) {
+            super(digest, fileCache, fetches, teeDownloader, null,
+                    sbm.chunkCache);
             this.sbm = sbm;
         }
 
         @Override
-        protected boolean fetchFile(File targetFile) {
-            Binary b = sbm.getBinary(this.digest);
-            return b.getDigest() == this.digest;
+        protected InputStream openRemoteStream() {
+            return sbm.openStream(digest);
+        }
+
+        @Override
+        protected InputStream openRemoteRange(long start, long end) {
+            return sbm.openRange(digest, start, end);
         }
 
+        @Override
+        protected boolean canOpenRemoteRange() {
+            return true;
+        }
+
+        @Override
+        protected String getDigestAlgorithm() {
+            return sbm.descriptor.digest;
+        }
+
+        /**
+         * Only a missing object is reported as such, the other failures are
+         * propagated so that they're not taken for a missing binary.
+         */
+        @Override
+        protected boolean fetchFile(File tmp) {
+            return sbm.downloadFile(digest, tmp);
+        }
+
+        /**
+         * @see #fetchFile
+         */
         @Override
         protected Long fetchLength() {
-            return sbm.getContentLength(digest);
+            long length = sbm.getLength(digest);
+            return length < 0 ? null : Long.valueOf(length);
         }
     }
 
     /**
-     * Garbage collector for S3 binaries that stores the marked (in use)
-     * binaries in memory.
+     * Garbage collector for Scality binaries that stores the marked (in use)
+     * binaries in a compact {@link Md5DigestSet}, and sweeps the bucket page
+     * by page.
+     * <p>
+     * Only objects whose key is a digest of the binary manager are
+     * considered, other objects are never deleted. Digests longer than MD5
+     * are marked by their first 128 bits, a collision only keeping an unused
+     * object. With a digest other than MD5, the objects still stored under
+     * their MD5 (see {@link ScalityBinaryManager#migrateMD5Keys}) are never
+     * deleted either, as they may be referenced by a digest that cannot be
+     * known.
+     * <p>
+     * The set takes 16 bytes per slot and is grown by 1.5 when 80% full, so
+     * between 20 and 30 bytes per marked binary: 50 million binaries need
+     * about 1 to 1.5GB, and the old table is still allocated while the set
+     * grows. Tables above {@link Md5DigestSet#DEFAULT_OFF_HEAP_THRESHOLD} are
+     * off-heap, and only reclaimed once their buffers are garbage collected.
+     * To avoid growing, the set is sized from the number of binaries found by
+     * the previous collection, or known by the inventory. With
+     * {@link ScalityBinaryManager#GC_MAPPED}, large sets are memory-mapped to
+     * temporary files instead of held in memory.
      */
     public static class ScalityBinaryGarbageCollector implements
             BinaryGarbageCollector {
@@ -637,14 +1373,16 @@ public class ScalityBinaryManager extends CloudBinaryManager {
 
         protected BinaryManagerStatus status;
 
-        protected Set<String> marked;
+        protected Md5DigestSet marked;
+
+        /** Matches the keys of the digest of the binary manager. */
+        protected Pattern digestKey;
+
+        /** The number of binaries kept by the last collection. */
+        protected long lastNumBinaries;
 
         public ScalityBinaryGarbageCollector(ScalityBinaryManager binaryManager) {
             this.binaryManager = binaryManager;
-
-            // TODO unfinished
-            log.error("The garbage collector is not implemented yet");
-            throw new NotImplementedException();
         }
 
         @Override
@@ -670,12 +1408,32 @@ public class ScalityBinaryManager extends CloudBinaryManager {
             }
             startTime = System.currentTimeMillis();
             status = new BinaryManagerStatus();
-            marked = new HashSet<String>();
+            marked = new Md5DigestSet(Md5DigestSet.DEFAULT_OFF_HEAP_THRESHOLD,
+                    binaryManager.gcMapped, null, getExpectedMarks());
+            digestKey = Pattern.compile("[0-9a-f]{"
+                    + binaryManager.getDigestKeyLength() + "}");
+        }
+
+        /**
+         * Gets the number of binaries expected to be marked, used to size the
+         * set of marked binaries.
+         */
+        protected long getExpectedMarks() {
+            long expected = lastNumBinaries;
+            if (binaryManager.inventory != null) {
+                expected = Math.max(expected, binaryManager.inventory.size());
+            }
+            return expected;
         }
 
         @Override
         public void mark(String digest) {
-            marked.add(digest);
+            if (!digestKey.matcher(digest).matches()) {
+                // cannot be the key of a collectable object
+                log.debug("Not marking digest: " + digest);
+                return;
+            }
+            marked.add(digest.substring(0, 32));
         }
 
         @Override
@@ -684,42 +1442,51 @@ public class ScalityBinaryManager extends CloudBinaryManager {
                 throw new RuntimeException("Not started");
             }
             try {
-                // list Scality objects in the bucket
-                // record those not marked
-                Set<String> unmarked = new HashSet<String>();
-                List<Contents> objectListing = null;
-                do {
-                    if (objectListing == null) {
-                        objectListing = binaryManager.listObjects(binaryManager.bucketName);
-                    }
-                    for (Contents contents : objectListing) {
-                        String digest = contents.eTag;
-                        long length = contents.size;
-                        if (marked.contains(digest)) {
+                log.debug("Marked " + marked.size() + " binaries using "
+                        + marked.getMemorySize() + " bytes");
+                long legacy = 0;
+                // list Scality objects in the bucket, a page at a time;
+                // deleting an already listed key doesn't affect the next pages
+                Iterator<Contents> it = binaryManager.iterateObjects(binaryManager.bucketName);
+                while (it.hasNext()) {
+                    Contents contents = it.next();
+                    String digest = contents.key;
+                    long length = contents.size;
+                    if (!digestKey.matcher(digest).matches()) {
+                        if (isMD5(digest)) {
+                            // stored under its MD5 before, never deleted
+                            legacy++;
                             status.numBinaries++;
                             status.sizeBinaries += length;
-                        } else {
-                            status.numBinariesGC++;
-                            status.sizeBinariesGC += length;
-                            // record file to delete
-                            unmarked.add(digest);
-                            marked.remove(digest); // optimize memory
                         }
+                        // ignore files that cannot be digests for safety
+                        continue;
                     }
-                } while (objectListing.isEmpty());
-                marked = null; // help GC
-
-                // delete unmarked objects
-                if (delete) {
-                    for (String digest : unmarked) {
-                        binaryManager.removeBinary(digest);
+                    if (marked.contains(digest.substring(0, 32))) {
+                        status.numBinaries++;
+                        status.sizeBinaries += length;
+                        binaryManager.remember(digest, length);
+                    } else {
+                        status.numBinariesGC++;
+                        status.sizeBinariesGC += length;
+                        if (delete) {
+                            binaryManager.removeBinary(digest);
+                        } else {
+                            binaryManager.remember(digest, length);
+                        }
                     }
                 }
-            } catch (AmazonClientException e) {
-                throw new RuntimeException(e);
+                if (legacy > 0) {
+                    log.warn(legacy + " objects still stored under their MD5"
+                            + " were not collected, see migrateMD5Keys");
+                }
+                lastNumBinaries = status.numBinaries;
+            } finally {
+                marked.free();
+                marked = null;
+                status.gcDuration = System.currentTimeMillis() - startTime;
+                startTime = 0;
             }
-            status.gcDuration = System.currentTimeMillis() - startTime;
-            startTime = 0;
         }
     }
 
@@ -0,0 +1,191 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql.cloud;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Groups the keys to delete in batches, and deletes several batches
+ * concurrently in background threads.
+ * <p>
+ * Keys are given one at a time by a single producer thread with
+ * {@link #delete}, which blocks when the maximum number of batches are already
+ * being deleted. {@link #finish} must be called at the end to delete the last
+ * batch and wait for all the deletions.
+ * <p>
+ * Implementations delete a batch in {@link #deleteBatch}, and return the keys
+ * that could not be deleted.
+ */
+public abstract class BatchDeleter {
+
+    /** Maximum number of failure messages kept. */
+    public static final int MAX_FAILURES = 100;
+
+    protected final int batchSize;
+
+    protected final int maxConcurrentBatches;
+
+    protected final ExecutorService executor;
+
+    protected final Semaphore permits;
+
+    protected List<String> batch;
+
+    protected final AtomicLong numDeleted = new AtomicLong();
+
+    protected final AtomicLong numFailed = new AtomicLong();
+
+    protected final List<String> failures = new ArrayList<String>();
+
+    /**
+     * @param name the name used for the deletion threads
+     * @param batchSize the maximum number of keys in a batch
+     * @param maxConcurrentBatches the maximum number of batches deleted at
+     *            the same time
+     */
+    public BatchDeleter(String name, int batchSize,
+            int maxConcurrentBatches) {
+        if (batchSize < 1 || maxConcurrentBatches < 1) {
+            throw new IllegalArgumentException("Invalid batch size "
+                    + batchSize + " or concurrency " + maxConcurrentBatches);
+        }
+        this.batchSize = batchSize;
+        this.maxConcurrentBatches = maxConcurrentBatches;
+        permits = new Semaphore(maxConcurrentBatches);
+        executor = Executors.newFixedThreadPool(maxConcurrentBatches,
+                new NamedThreadFactory(name));
+        batch = new ArrayList<String>(batchSize);
+    }
+
+    /**
+     * Deletes a batch of keys. Called concurrently from several threads.
+     * <p>
+     * If a {@link RuntimeException} is thrown, all the keys of the batch are
+     * counted as failed.
+     *
+     * @return the keys that could not be deleted, mapped to the reason
+     */
+    protected abstract Map<String, String> deleteBatch(List<String> keys);
+
+    /**
+     * Schedules the deletion of a key.
+     */
+    public void delete(String key) {
+        batch.add(key);
+        if (batch.size() >= batchSize) {
+            submitBatch();
+        }
+    }
+
+    /**
+     * Deletes the last batch and waits for all the deletions to be done.
+     */
+    public void finish() {
+        try {
+            if (!batch.isEmpty()) {
+                submitBatch();
+            }
+            acquire(maxConcurrentBatches);
+            permits.release(maxConcurrentBatches);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    protected void submitBatch() {
+        final List<String> keys = batch;
+        batch = new ArrayList<String>(batchSize);
+        acquire(1);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runBatch(keys);
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    protected void runBatch(List<String> keys) {
+        Map<String, String> errors;
+        try {
+            errors = deleteBatch(keys);
+        } catch (RuntimeException e) {
+            for (String key : keys) {
+                failed(key, e.toString());
+            }
+            return;
+        }
+        for (Entry<String, String> es : errors.entrySet()) {
+            failed(es.getKey(), es.getValue());
+        }
+        numDeleted.addAndGet(keys.size() - errors.size());
+    }
+
+    protected void acquire(int n) {
+        try {
+            permits.acquire(n);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+            throw new RuntimeException("Interrupted", e);
+        }
+    }
+
+    /**
+     * Reports a key that could not be deleted.
+     */
+    protected void failed(String key, String reason) {
+        numFailed.incrementAndGet();
+        synchronized (failures) {
+            if (failures.size() < MAX_FAILURES) {
+                failures.add(key + ": " + reason);
+            }
+        }
+    }
+
+    public long getNumDeleted() {
+        return numDeleted.get();
+    }
+
+    public long getNumFailed() {
+        return numFailed.get();
+    }
+
+    /**
+     * Gets the first {@link #MAX_FAILURES} failures, as "key: reason".
+     */
+    public List<String> getFailures() {
+        synchronized (failures) {
+            return new ArrayList<String>(failures);
+        }
+    }
+
+}
@@ -0,0 +1,339 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql.cloud;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.nuxeo.common.utils.SizeUtils;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Configuration of the local file cache of a cloud binary manager.
+ * <p>
+ * The properties are read with a prefix specific to each binary manager, for
+ * instance {@code nuxeo.s3storage.cache.dir}.
+ */
+public class CacheConfigurationBean {
+
+    public static final String DIR = "dir";
+
+    public static final String SHARDS = "shards";
+
+    public static final String REBUILD_THREADS = "rebuild.threads";
+
+    public static final String REBUILD_TIMEOUT = "rebuild.timeout";
+
+    public static final String ADMISSION = "admission";
+
+    /** Plain LRU, every file put is cached. */
+    public static final String ADMISSION_LRU = "lru";
+
+    /** Only cache files accessed more often than the ones they evict. */
+    public static final String ADMISSION_TINYLFU = "tinylfu";
+
+    public static final String INDEX = "index";
+
+    /** Index in the heap, exact LRU. */
+    public static final String INDEX_HEAP = "heap";
+
+    /** Index outside of the heap, approximate LRU. */
+    public static final String INDEX_OFFHEAP = "offheap";
+
+    public static final String MEMORY_SIZE = "memory.size";
+
+    public static final String MEMORY_MAX_ENTRY_SIZE = "memory.maxentrysize";
+
+    public static final long DEFAULT_MEMORY_MAX_ENTRY_SIZE = 128 * 1024;
+
+    public static final String CHUNK_THRESHOLD = "chunk.threshold";
+
+    public static final String CHUNK_SIZE = "chunk.size";
+
+    public static final String EVICT_BACKGROUND = "evict.background";
+
+    public static final String EVICT_HIGH_WATERMARK = "evict.highwatermark";
+
+    public static final String EVICT_LOW_WATERMARK = "evict.lowwatermark";
+
+    /** Percentage of the cache size. */
+    public static final int DEFAULT_EVICT_HIGH_WATERMARK = 90;
+
+    /** Percentage of the cache size. */
+    public static final int DEFAULT_EVICT_LOW_WATERMARK = 80;
+
+    public static final int DEFAULT_REBUILD_THREADS = 4;
+
+    // milliseconds
+    public static final long DEFAULT_REBUILD_TIMEOUT = 10 * 1000;
+
+    private String dir;
+
+    private List<String> shards = Collections.emptyList();
+
+    private int rebuildThreads = DEFAULT_REBUILD_THREADS;
+
+    private long rebuildTimeout = DEFAULT_REBUILD_TIMEOUT;
+
+    private String admission = ADMISSION_LRU;
+
+    private String index = INDEX_HEAP;
+
+    private long memorySize;
+
+    private long memoryMaxEntrySize = DEFAULT_MEMORY_MAX_ENTRY_SIZE;
+
+    private long chunkThreshold = -1;
+
+    private long chunkSize = ChunkCache.DEFAULT_CHUNK_SIZE;
+
+    private boolean evictBackground;
+
+    private int evictHighWatermark = DEFAULT_EVICT_HIGH_WATERMARK;
+
+    private int evictLowWatermark = DEFAULT_EVICT_LOW_WATERMARK;
+
+    /**
+     * Reads the configuration from the Framework properties.
+     *
+     * @param prefix the properties prefix, for instance
+     *            {@code nuxeo.s3storage.cache.}
+     */
+    public static CacheConfigurationBean fromProperties(String prefix) {
+        CacheConfigurationBean conf = new CacheConfigurationBean();
+        String dir = Framework.getProperty(prefix + DIR);
+        if (dir != null && dir.trim().length() > 0) {
+            conf.setDir(dir.trim());
+        }
+        String shards = Framework.getProperty(prefix + SHARDS);
+        if (shards != null && shards.trim().length() > 0) {
+            conf.setShards(parseList(shards));
+        }
+        String threads = Framework.getProperty(prefix + REBUILD_THREADS);
+        if (threads != null && threads.trim().length() > 0) {
+            conf.setRebuildThreads(Integer.parseInt(threads.trim()));
+        }
+        String timeout = Framework.getProperty(prefix + REBUILD_TIMEOUT);
+        if (timeout != null && timeout.trim().length() > 0) {
+            conf.setRebuildTimeout(Long.parseLong(timeout.trim()));
+        }
+        String admission = Framework.getProperty(prefix + ADMISSION);
+        if (admission != null && admission.trim().length() > 0) {
+            conf.setAdmission(admission.trim());
+        }
+        String index = Framework.getProperty(prefix + INDEX);
+        if (index != null && index.trim().length() > 0) {
+            conf.setIndex(index.trim());
+        }
+        String memorySize = Framework.getProperty(prefix + MEMORY_SIZE);
+        if (memorySize != null && memorySize.trim().length() > 0) {
+            conf.setMemorySize(SizeUtils.parseSizeInBytes(memorySize.trim()));
+        }
+        String maxEntrySize = Framework.getProperty(prefix
+                + MEMORY_MAX_ENTRY_SIZE);
+        if (maxEntrySize != null && maxEntrySize.trim().length() > 0) {
+            conf.setMemoryMaxEntrySize(SizeUtils.parseSizeInBytes(maxEntrySize.trim()));
+        }
+        String chunkThreshold = Framework.getProperty(prefix + CHUNK_THRESHOLD);
+        if (chunkThreshold != null && chunkThreshold.trim().length() > 0) {
+            conf.setChunkThreshold(SizeUtils.parseSizeInBytes(chunkThreshold.trim()));
+        }
+        String chunkSize = Framework.getProperty(prefix + CHUNK_SIZE);
+        if (chunkSize != null && chunkSize.trim().length() > 0) {
+            conf.setChunkSize(SizeUtils.parseSizeInBytes(chunkSize.trim()));
+        }
+        conf.setEvictBackground(Boolean.parseBoolean(Framework.getProperty(prefix
+                + EVICT_BACKGROUND)));
+        String high = Framework.getProperty(prefix + EVICT_HIGH_WATERMARK);
+        if (high != null && high.trim().length() > 0) {
+            conf.setEvictHighWatermark(Integer.parseInt(high.trim()));
+        }
+        String low = Framework.getProperty(prefix + EVICT_LOW_WATERMARK);
+        if (low != null && low.trim().length() > 0) {
+            conf.setEvictLowWatermark(Integer.parseInt(low.trim()));
+        }
+        return conf;
+    }
+
+    /**
+     * Parses a comma-separated list, ignoring the empty items.
+     */
+    public static List<String> parseList(String value) {
+        List<String> list = new ArrayList<String>();
+        for (String item : value.split(",")) {
+            if (item.trim().length() > 0) {
+                list.add(item.trim());
+            }
+        }
+        return list;
+    }
+
+    /**
+     * The persistent cache directory, or {@code null} for a temporary
+     * directory emptied at each restart.
+     */
+    public String getDir() {
+        return dir;
+    }
+
+    public void setDir(String dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * The directories, typically on different disks, over which the files of
+     * the persistent cache are spread, or an empty list to keep them in the
+     * cache directory.
+     */
+    public List<String> getShards() {
+        return shards;
+    }
+
+    public void setShards(List<String> shards) {
+        this.shards = shards;
+    }
+
+    public int getRebuildThreads() {
+        return rebuildThreads;
+    }
+
+    public void setRebuildThreads(int rebuildThreads) {
+        this.rebuildThreads = rebuildThreads;
+    }
+
+    public long getRebuildTimeout() {
+        return rebuildTimeout;
+    }
+
+    public void setRebuildTimeout(long rebuildTimeout) {
+        this.rebuildTimeout = rebuildTimeout;
+    }
+
+    /**
+     * The admission policy, {@link #ADMISSION_LRU} or
+     * {@link #ADMISSION_TINYLFU}.
+     */
+    public String getAdmission() {
+        return admission;
+    }
+
+    public void setAdmission(String admission) {
+        if (!ADMISSION_LRU.equals(admission)
+                && !ADMISSION_TINYLFU.equals(admission)) {
+            throw new IllegalArgumentException("Invalid cache admission: "
+                    + admission);
+        }
+        this.admission = admission;
+    }
+
+    /**
+     * Where the index of the cached files is held, {@link #INDEX_HEAP} or
+     * {@link #INDEX_OFFHEAP}.
+     */
+    public String getIndex() {
+        return index;
+    }
+
+    public void setIndex(String index) {
+        if (!INDEX_HEAP.equals(index) && !INDEX_OFFHEAP.equals(index)) {
+            throw new IllegalArgumentException("Invalid cache index: " + index);
+        }
+        this.index = index;
+    }
+
+    /**
+     * The size of the memory tier in front of the file cache, or 0 if
+     * there's none.
+     */
+    public long getMemorySize() {
+        return memorySize;
+    }
+
+    public void setMemorySize(long memorySize) {
+        this.memorySize = memorySize;
+    }
+
+    /**
+     * The size of the biggest binary kept in the memory tier.
+     */
+    public long getMemoryMaxEntrySize() {
+        return memoryMaxEntrySize;
+    }
+
+    public void setMemoryMaxEntrySize(long memoryMaxEntrySize) {
+        this.memoryMaxEntrySize = memoryMaxEntrySize;
+    }
+
+    /**
+     * The size from which binaries are cached as chunks fetched on demand,
+     * or -1 if they're always cached whole.
+     */
+    public long getChunkThreshold() {
+        return chunkThreshold;
+    }
+
+    public void setChunkThreshold(long chunkThreshold) {
+        this.chunkThreshold = chunkThreshold;
+    }
+
+    /**
+     * The size of the chunks of the binaries cached as chunks.
+     */
+    public long getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(long chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Whether entries are evicted by a background thread between two
+     * watermarks, instead of by the threads putting files.
+     */
+    public boolean isEvictBackground() {
+        return evictBackground;
+    }
+
+    public void setEvictBackground(boolean evictBackground) {
+        this.evictBackground = evictBackground;
+    }
+
+    /**
+     * The size, in percent of the cache size, above which the background
+     * eviction starts.
+     */
+    public int getEvictHighWatermark() {
+        return evictHighWatermark;
+    }
+
+    public void setEvictHighWatermark(int evictHighWatermark) {
+        this.evictHighWatermark = evictHighWatermark;
+    }
+
+    /**
+     * The size, in percent of the cache size, down to which the background
+     * eviction removes entries.
+     */
+    public int getEvictLowWatermark() {
+        return evictLowWatermark;
+    }
+
+    public void setEvictLowWatermark(int evictLowWatermark) {
+        this.evictLowWatermark = evictLowWatermark;
+    }
+
+}
@@ -0,0 +1,384 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql.cloud;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nuxeo.common.file.FileCache;
+
+/**
+ * Caches big objects as fixed-size chunks, each one a separate entry of the
+ * file cache fetched with a ranged request when first read, so that reading
+ * a part of an object only downloads the chunks holding it.
+ * <p>
+ * The key of a chunk is the key of the object followed by the index of the
+ * chunk as 8 hexadecimal digits; chunks are evicted independently like any
+ * other file. The concurrent fetches of the same chunk are coalesced.
+ * <p>
+ * As a chunk is only a part of the object, its content cannot be checked
+ * against the digest of the object, and is trusted as received. This class
+ * is thread-safe.
+ */
+public class ChunkCache {
+
+    public static final long DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    protected final FileCache fileCache;
+
+    protected final long chunkSize;
+
+    protected final long minLength;
+
+    protected final StreamingDownloader downloader = new StreamingDownloader();
+
+    protected final SingleFlight<File> fetches = new SingleFlight<File>() {
+        @Override
+        protected void finished(String key) {
+            fetchFinished(key);
+        }
+    };
+
+    protected final AtomicLong fetchedBytes = new AtomicLong();
+
+    protected final AtomicLong hits = new AtomicLong();
+
+    protected final AtomicLong misses = new AtomicLong();
+
+    /**
+     * The remote content of an object.
+     */
+    public interface Source {
+
+        /**
+         * Opens the range [start, end] (inclusive) of the object.
+         *
+         * @return the stream, or {@code null} if the object doesn't exist
+         */
+        InputStream open(long start, long end) throws IOException;
+    }
+
+    /**
+     * @param fileCache the cache holding the chunks
+     * @param chunkSize the size of a chunk
+     * @param minLength the length from which objects are read by chunks
+     */
+    public ChunkCache(FileCache fileCache, long chunkSize, long minLength) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size: "
+                    + chunkSize);
+        }
+        this.fileCache = fileCache;
+        this.chunkSize = chunkSize;
+        this.minLength = minLength;
+    }
+
+    public long getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Checks if an object is big enough to be read by chunks.
+     */
+    public boolean isChunked(long length) {
+        return length > 0 && length >= minLength;
+    }
+
+    /**
+     * Number of chunks fetched.
+     */
+    public long getFetchCount() {
+        return fetches.getExecutedCount();
+    }
+
+    /**
+     * Number of chunks currently being fetched.
+     */
+    public int getInFlightCount() {
+        return fetches.getInFlightCount();
+    }
+
+    /**
+     * Called when the fetch of a chunk is done, successful or not.
+     */
+    protected void fetchFinished(String chunkKey) {
+    }
+
+    /**
+     * Number of bytes fetched as chunks.
+     */
+    public long getFetchedBytes() {
+        return fetchedBytes.get();
+    }
+
+    /**
+     * Number of chunks read found in the cache.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Number of chunks read missing from the cache, fetched or waited for.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public static String getChunkKey(String key, long index) {
+        return key + String.format("%08x", Long.valueOf(index));
+    }
+
+    /**
+     * Gets a chunk from the cache, fetching it if it's missing.
+     *
+     * @param length the length of the object
+     * @param index the index of the chunk
+     * @return the chunk file, or {@code null} if the object doesn't exist
+     */
+    public File getChunk(String key, long length, long index,
+            final Source source) throws IOException {
+        final long start = index * chunkSize;
+        if (start < 0 || start >= length) {
+            throw new IllegalArgumentException("Invalid chunk: " + index
+                    + " for length: " + length);
+        }
+        final long end = Math.min(start + chunkSize, length) - 1;
+        final String chunkKey = getChunkKey(key, index);
+        File file = fileCache.getFile(chunkKey);
+        if (file != null) {
+            hits.incrementAndGet();
+            return file;
+        }
+        misses.incrementAndGet();
+        return fetches.execute(chunkKey, new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                // may have been put by a fetch that just finished
+                File file = fileCache.getFile(chunkKey);
+                if (file != null) {
+                    return file;
+                }
+                InputStream in = source.open(start, end);
+                if (in == null) {
+                    return null;
+                }
+                File tmp = null;
+                boolean ok = false;
+                try {
+                    tmp = CloudFileCache.getTempFile(fileCache, chunkKey);
+                    long n = downloader.download(in, tmp);
+                    if (n != end - start + 1) {
+                        throw new IOException("Incomplete chunk " + chunkKey
+                                + ": " + n + " bytes instead of "
+                                + (end - start + 1));
+                    }
+                    fetchedBytes.addAndGet(n);
+                    ok = true;
+                } finally {
+                    in.close();
+                    if (!ok && tmp != null) {
+                        tmp.delete();
+                    }
+                }
+                return fileCache.putFile(chunkKey, tmp);
+            }
+        });
+    }
+
+    /**
+     * Removes the chunks of an object, for instance once the whole object is
+     * cached and read from its file. The chunks being read are kept, to be
+     * evicted later like any other file. Only possible with a
+     * {@link CloudFileCache}.
+     *
+     * @param length the length of the object
+     */
+    public void removeChunks(String key, long length) {
+        if (!isChunked(length) || !(fileCache instanceof CloudFileCache)) {
+            return;
+        }
+        CloudFileCache cache = (CloudFileCache) fileCache;
+        long count = (length + chunkSize - 1) / chunkSize;
+        for (long index = 0; index < count; index++) {
+            String chunkKey = getChunkKey(key, index);
+            if (!cache.isPinned(chunkKey)) {
+                cache.remove(chunkKey);
+            }
+        }
+    }
+
+    /**
+     * Gets a stream on an object read by chunks. Skipping bytes doesn't read
+     * them, so only the chunks actually read are fetched.
+     *
+     * @param length the length of the object
+     */
+    public InputStream getStream(String key, long length, Source source) {
+        return new ChunkedInputStream(key, length, source, 0, length);
+    }
+
+    /**
+     * Gets a stream on a range of an object read by chunks, only fetching
+     * the chunks holding the range.
+     *
+     * @param length the length of the object
+     * @param offset the first byte of the range
+     * @param count the number of bytes, truncated at the end of the object
+     */
+    public InputStream getStream(String key, long length, Source source,
+            long offset, long count) {
+        if (offset < 0 || count < 0) {
+            throw new IllegalArgumentException("Invalid range: " + offset
+                    + ", " + count);
+        }
+        return new ChunkedInputStream(key, length, source, offset, count);
+    }
+
+    /**
+     * Reads the chunks one after the other, each one pinned while read.
+     */
+    protected class ChunkedInputStream extends InputStream {
+
+        protected final String key;
+
+        protected final long length;
+
+        protected final Source source;
+
+        protected long pos;
+
+        /** The end of the bytes read, exclusive. */
+        protected final long end;
+
+        /** The stream on the chunk holding pos, or {@code null}. */
+        protected InputStream in;
+
+        /** The end of the chunk of the stream, exclusive. */
+        protected long inEnd;
+
+        protected ChunkedInputStream(String key, long length, Source source,
+                long offset, long count) {
+            this.key = key;
+            this.length = length;
+            this.source = source;
+            pos = offset;
+            end = Math.min(FileRangeInputStream.getEnd(offset, count), length);
+        }
+
+        /**
+         * Opens the chunk holding the current position, at that position.
+         */
+        protected void open() throws IOException {
+            long index = pos / chunkSize;
+            String chunkKey = getChunkKey(key, index);
+            File file = getChunk(key, length, index, source);
+            if (file == null) {
+                throw new IOException("Missing object: " + key);
+            }
+            InputStream chunk = CloudFileCache.getStream(fileCache, chunkKey,
+                    file);
+            long offset = pos - index * chunkSize;
+            while (offset > 0) {
+                long n = chunk.skip(offset);
+                if (n <= 0) {
+                    chunk.close();
+                    throw new IOException("Truncated chunk: " + chunkKey);
+                }
+                offset -= n;
+            }
+            in = chunk;
+            inEnd = Math.min((index + 1) * chunkSize, length);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos >= end) {
+                return -1;
+            }
+            if (in == null) {
+                open();
+            }
+            int n = in.read(b, off,
+                    (int) Math.min(len, Math.min(inEnd, end) - pos));
+            if (n == -1) {
+                throw new IOException("Truncated chunk of: " + key);
+            }
+            pos += n;
+            if (pos == inEnd) {
+                closeChunk();
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            long skipped = Math.min(n, end - pos);
+            if (skipped <= 0) {
+                return 0;
+            }
+            if (in != null) {
+                if (pos + skipped < inEnd) {
+                    long s = in.skip(skipped);
+                    pos += s;
+                    return s;
+                }
+                closeChunk();
+            }
+            pos += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            if (in == null) {
+                return 0;
+            }
+            return (int) Math.min(Math.min(inEnd, end) - pos,
+                    Integer.MAX_VALUE);
+        }
+
+        protected void closeChunk() throws IOException {
+            if (in != null) {
+                InputStream chunk = in;
+                in = null;
+                chunk.close();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeChunk();
+            pos = Math.max(pos, end);
+        }
+    }
+
+}
@@ -0,0 +1,299 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql.cloud;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A file cache whose index is held outside of the Java heap, in a
+ * {@link ClockIndex}, for caches of millions of files, with an approximate
+ * LRU eviction (CLOCK).
+ * <p>
+ * Each entry has a reference bit, set when it's accessed. To evict, the hand
+ * of the clock goes over the entries, clearing the bits set and evicting the
+ * entries whose bit is clear, so an entry accessed since the last pass gets a
+ * second chance. The files found on disk by {@link #rebuild} start with a
+ * clear bit.
+ * <p>
+ * Keys must be digests in lowercase hexadecimal, or short ASCII names (see
+ * {@link ClockIndex}).
+ */
+public class ClockFileCache extends CloudFileCache {
+
+    /** Guarded by this. */
+    protected final ClockIndex index = new ClockIndex();
+
+    /** Number of files indexed, not counting keys only pinned. Guarded by this. */
+    protected int items;
+
+    /** Size of the indexed files pinned. Guarded by this. */
+    protected long pinnedSize;
+
+    public ClockFileCache(File dir, long maxSize) throws IOException {
+        this(dir, maxSize, false);
+    }
+
+    /**
+     * @param fanOut whether the files are stored in nested directories
+     * @see #ClockFileCache(File, long)
+     */
+    public ClockFileCache(File dir, long maxSize, boolean fanOut)
+            throws IOException {
+        super(dir, maxSize, fanOut);
+    }
+
+    /**
+     * Memory used by the index outside of the heap, in bytes.
+     */
+    public synchronized long getIndexMemorySize() {
+        return index.getMemorySize();
+    }
+
+    @Override
+    public synchronized int getNumberOfItems() {
+        return items;
+    }
+
+    @Override
+    public synchronized long getPinnedSize() {
+        return pinnedSize;
+    }
+
+    @Override
+    protected void merge(List<FileInfo> infos) {
+        List<File> evicted;
+        synchronized (this) {
+            for (FileInfo info : infos) {
+                int slot = index.insert(info.key);
+                if (index.getSize(slot) >= 0) {
+                    // added since the start
+                    continue;
+                }
+                index.setSize(slot, info.size);
+                index.setLastAccess(slot, info.lastModified);
+                size += info.size;
+                items++;
+                if (index.getPinCount(slot) > 0) {
+                    pinnedSize += info.size;
+                }
+            }
+            evicted = evictIfNeeded(null);
+        }
+        delete(evicted);
+    }
+
+    @Override
+    protected List<String> listKeys() {
+        List<String> keys = super.listKeys();
+        List<String> storable = new ArrayList<String>(keys.size());
+        for (String key : keys) {
+            if (ClockIndex.isStorable(key)) {
+                storable.add(key);
+            }
+        }
+        return storable;
+    }
+
+    @Override
+    public synchronized void pin(String key) {
+        int slot = index.insert(key);
+        int pinCount = index.getPinCount(slot);
+        index.setPinCount(slot, pinCount + 1);
+        if (pinCount == 0 && index.getSize(slot) >= 0) {
+            pinnedSize += index.getSize(slot);
+        }
+    }
+
+    @Override
+    public void unpin(String key) {
+        List<File> evicted;
+        synchronized (this) {
+            int slot = index.find(key);
+            if (slot < 0 || index.getPinCount(slot) == 0) {
+                return;
+            }
+            int pinCount = index.getPinCount(slot) - 1;
+            index.setPinCount(slot, pinCount);
+            if (pinCount > 0) {
+                return;
+            }
+            if (index.getSize(slot) < 0) {
+                index.remove(slot);
+            } else {
+                pinnedSize -= index.getSize(slot);
+            }
+            evicted = evictIfNeeded(null);
+        }
+        delete(evicted);
+    }
+
+    @Override
+    public synchronized boolean isPinned(String key) {
+        int slot = index.find(key);
+        return slot >= 0 && index.getPinCount(slot) > 0;
+    }
+
+    @Override
+    public File putFile(String key, File tmp) throws IOException {
+        if (!ClockIndex.isStorable(key)) {
+            throw new IllegalArgumentException("Invalid key: " + key);
+        }
+        return super.putFile(key, tmp);
+    }
+
+    @Override
+    protected boolean contains(String key) {
+        int slot = index.find(key);
+        return slot >= 0 && index.getSize(slot) >= 0;
+    }
+
+    @Override
+    protected boolean unindex(String key) {
+        int slot = index.find(key);
+        if (slot < 0 || index.getSize(slot) < 0) {
+            return false;
+        }
+        long length = index.getSize(slot);
+        size -= length;
+        items--;
+        if (index.getPinCount(slot) > 0) {
+            pinnedSize -= length;
+            index.setSize(slot, -1);
+        } else {
+            index.remove(slot);
+        }
+        return true;
+    }
+
+    @Override
+    protected void add(String key, File file) {
+        List<File> evicted;
+        synchronized (this) {
+            int slot = index.insert(key);
+            if (index.getSize(slot) >= 0) {
+                return;
+            }
+            long length = file.length();
+            index.setSize(slot, length);
+            index.setLastAccess(slot, file.lastModified());
+            index.setReferenced(slot, true);
+            size += length;
+            items++;
+            if (index.getPinCount(slot) > 0) {
+                pinnedSize += length;
+            }
+            evicted = evictIfNeeded(key);
+        }
+        delete(evicted);
+    }
+
+    @Override
+    public File getFile(String key) {
+        File file = file(key);
+        boolean touch = false;
+        long now = System.currentTimeMillis();
+        boolean indexed;
+        synchronized (this) {
+            int slot = index.find(key);
+            indexed = slot >= 0 && index.getSize(slot) >= 0;
+            if (!indexed && !rebuilding) {
+                return null;
+            }
+            if (indexed) {
+                index.setReferenced(slot, true);
+                if (now - index.getLastAccess(slot) > TOUCH_INTERVAL) {
+                    index.setLastAccess(slot, now);
+                    touch = true;
+                }
+            }
+        }
+        if (indexed) {
+            if (touch) {
+                file.setLastModified(now);
+            }
+            return file;
+        }
+        // rebuilding and not yet indexed, look on disk
+        if (!isValidKey(key) || !ClockIndex.isStorable(key) || !file.isFile()) {
+            return null;
+        }
+        add(key, file);
+        return file;
+    }
+
+    /**
+     * Moves the hand of the clock until the size fits in the limit, or all
+     * the entries were seen twice. Called while synchronized.
+     */
+    @Override
+    protected List<File> evict(String keep, long limit) {
+        if (size <= limit) {
+            return Collections.emptyList();
+        }
+        List<File> evicted = new ArrayList<File>();
+        // the first pass may only clear the reference bits
+        long ticks = 2L * index.getCapacity();
+        for (long n = 0; n < ticks && size > limit; n++) {
+            int slot = index.tick();
+            if (!index.isUsed(slot) || index.getPinCount(slot) > 0) {
+                continue;
+            }
+            if (index.isReferenced(slot)) {
+                index.setReferenced(slot, false);
+                continue;
+            }
+            String key = index.getKey(slot);
+            if (key.equals(keep)) {
+                continue;
+            }
+            size -= index.getSize(slot);
+            items--;
+            index.remove(slot);
+            evicted.add(file(key));
+        }
+        return evicted;
+    }
+
+    @Override
+    public void clear() {
+        Set<String> keep = new HashSet<String>();
+        synchronized (this) {
+            for (int slot = 0; slot < index.getCapacity(); slot++) {
+                if (!index.isUsed(slot)) {
+                    continue;
+                }
+                if (index.getPinCount(slot) > 0) {
+                    keep.add(index.getKey(slot));
+                    continue;
+                }
+                size -= index.getSize(slot);
+                items--;
+                index.remove(slot);
+            }
+        }
+        for (String key : listKeys()) {
+            if (!keep.contains(key)) {
+                file(key).delete();
+            }
+        }
+    }
+
+}
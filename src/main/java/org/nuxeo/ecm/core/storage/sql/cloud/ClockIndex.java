@@ -0,0 +1,397 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql.cloud;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A hash table of cache entries held in fixed-width slots of direct buffers,
+ * outside of the Java heap, so that the heap used doesn't depend on the
+ * number of entries. It also keeps the hand of a CLOCK eviction.
+ * <p>
+ * A slot holds the key, the size (-1 for a key only pinned), the last access
+ * time, the pin count and the reference bit of an entry. Keys in lowercase
+ * hexadecimal, like digests, are stored decoded, up to 72 characters (a
+ * SHA-256 digest followed by a chunk index, see {@link ChunkCache}); other
+ * keys are stored as is, up to 36 ASCII characters. Slots are found by linear
+ * probing; removed slots are marked deleted until the table is rehashed.
+ * <p>
+ * Slot numbers are only valid until the next insertion. The memory of the
+ * buffers is released when they're garbage collected, after a growth. This
+ * class is not thread-safe.
+ */
+public class ClockIndex {
+
+    public static final int MAX_KEY_BYTES = 36;
+
+    protected static final int SLOT_SIZE = 64;
+
+    /** Slots per buffer, 16MB buffers. */
+    protected static final int SEGMENT_SHIFT = 18;
+
+    protected static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+    protected static final int MIN_CAPACITY = 1024;
+
+    protected static final byte FREE = 0;
+
+    protected static final byte USED = 1;
+
+    protected static final byte DELETED = 2;
+
+    protected static final int FLAG_REFERENCED = 1;
+
+    protected static final int FLAG_HEX = 2;
+
+    // slot layout
+    protected static final int STATE = 0;
+
+    protected static final int FLAGS = 1;
+
+    protected static final int KEY_LENGTH = 2;
+
+    protected static final int PIN_COUNT = 4;
+
+    protected static final int SIZE = 8;
+
+    protected static final int LAST_ACCESS = 16;
+
+    protected static final int HASH = 24;
+
+    protected static final int KEY = 28;
+
+    protected ByteBuffer[] segments;
+
+    protected int capacity;
+
+    /** Number of used slots. */
+    protected int count;
+
+    /** Number of deleted slots. */
+    protected int deleted;
+
+    protected int hand;
+
+    public ClockIndex() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param capacity the initial number of slots, grown when needed
+     */
+    public ClockIndex(int capacity) {
+        allocate(capacity);
+    }
+
+    protected void allocate(int minCapacity) {
+        int n = MIN_CAPACITY;
+        while (n < minCapacity && n < (1 << 30)) {
+            n <<= 1;
+        }
+        capacity = n;
+        int segmentSlots = Math.min(n, 1 << SEGMENT_SHIFT);
+        segments = new ByteBuffer[n / segmentSlots];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = ByteBuffer.allocateDirect(segmentSlots * SLOT_SIZE);
+        }
+        count = 0;
+        deleted = 0;
+        hand = 0;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Memory used outside of the heap, in bytes.
+     */
+    public long getMemorySize() {
+        return (long) capacity * SLOT_SIZE;
+    }
+
+    protected ByteBuffer segment(int slot) {
+        return segments[slot >>> SEGMENT_SHIFT];
+    }
+
+    protected static int offset(int slot) {
+        return (slot & SEGMENT_MASK) * SLOT_SIZE;
+    }
+
+    /**
+     * Checks if a key can be stored.
+     */
+    public static boolean isStorable(String key) {
+        return encode(key) != null;
+    }
+
+    /**
+     * Encodes a key, returning {@code null} if it cannot be stored. The
+     * first byte is the flags.
+     */
+    protected static byte[] encode(String key) {
+        int length = key.length();
+        if (length == 0) {
+            return null;
+        }
+        boolean hex = length % 2 == 0 && length <= 2 * MAX_KEY_BYTES;
+        for (int i = 0; hex && i < length; i++) {
+            char c = key.charAt(i);
+            hex = (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+        }
+        if (hex) {
+            byte[] bytes = new byte[1 + length / 2];
+            bytes[0] = FLAG_HEX;
+            for (int i = 0; i < length; i += 2) {
+                bytes[1 + i / 2] = (byte) ((Character.digit(key.charAt(i), 16) << 4) | Character.digit(
+                        key.charAt(i + 1), 16));
+            }
+            return bytes;
+        }
+        if (length > MAX_KEY_BYTES) {
+            return null;
+        }
+        byte[] bytes = new byte[1 + length];
+        for (int i = 0; i < length; i++) {
+            char c = key.charAt(i);
+            if (c > 127) {
+                return null;
+            }
+            bytes[1 + i] = (byte) c;
+        }
+        return bytes;
+    }
+
+    protected static int hash(byte[] encoded) {
+        int h = 0;
+        for (byte b : encoded) {
+            h = 31 * h + b;
+        }
+        return FrequencySketch.spread(h);
+    }
+
+    protected boolean matches(int slot, byte[] encoded, int hash) {
+        ByteBuffer buf = segment(slot);
+        int off = offset(slot);
+        if (buf.getInt(off + HASH) != hash
+                || buf.get(off + KEY_LENGTH) != encoded.length - 1
+                || (buf.get(off + FLAGS) & FLAG_HEX) != encoded[0]) {
+            return false;
+        }
+        for (int i = 1; i < encoded.length; i++) {
+            if (buf.get(off + KEY + i - 1) != encoded[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the slot of a key.
+     *
+     * @return the slot, or -1 if the key is absent
+     */
+    public int find(String key) {
+        byte[] encoded = encode(key);
+        if (encoded == null) {
+            return -1;
+        }
+        return find(encoded, hash(encoded));
+    }
+
+    protected int find(byte[] encoded, int hash) {
+        int mask = capacity - 1;
+        for (int slot = hash & mask, n = 0; n < capacity; slot = (slot + 1)
+                & mask, n++) {
+            byte state = segment(slot).get(offset(slot) + STATE);
+            if (state == FREE) {
+                return -1;
+            }
+            if (state == USED && matches(slot, encoded, hash)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the slot of a key, adding it if absent with a size of -1, no pin
+     * and no reference.
+     *
+     * @return the slot
+     * @throws IllegalArgumentException if the key cannot be stored
+     */
+    public int insert(String key) {
+        byte[] encoded = encode(key);
+        if (encoded == null) {
+            throw new IllegalArgumentException("Invalid key: " + key);
+        }
+        int hash = hash(encoded);
+        int slot = find(encoded, hash);
+        if (slot >= 0) {
+            return slot;
+        }
+        if ((count + deleted + 1) * 4L > capacity * 3L) {
+            rehash(count + 1 > capacity / 2 ? capacity * 2 : capacity);
+        }
+        int mask = capacity - 1;
+        slot = hash & mask;
+        for (;;) {
+            byte state = segment(slot).get(offset(slot) + STATE);
+            if (state != USED) {
+                if (state == DELETED) {
+                    deleted--;
+                }
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        ByteBuffer buf = segment(slot);
+        int off = offset(slot);
+        buf.put(off + STATE, USED);
+        buf.put(off + FLAGS, encoded[0]);
+        buf.put(off + KEY_LENGTH, (byte) (encoded.length - 1));
+        buf.putInt(off + PIN_COUNT, 0);
+        buf.putLong(off + SIZE, -1);
+        buf.putLong(off + LAST_ACCESS, 0);
+        buf.putInt(off + HASH, hash);
+        for (int i = 1; i < encoded.length; i++) {
+            buf.put(off + KEY + i - 1, encoded[i]);
+        }
+        count++;
+        return slot;
+    }
+
+    /**
+     * Copies the used slots into new buffers, dropping the deleted ones.
+     */
+    protected void rehash(int newCapacity) {
+        ByteBuffer[] oldSegments = segments;
+        int oldCapacity = capacity;
+        int oldCount = count;
+        allocate(newCapacity);
+        int mask = capacity - 1;
+        byte[] tmp = new byte[SLOT_SIZE];
+        for (int old = 0; old < oldCapacity; old++) {
+            ByteBuffer src = oldSegments[old >>> SEGMENT_SHIFT];
+            int srcOff = offset(old);
+            if (src.get(srcOff + STATE) != USED) {
+                continue;
+            }
+            int slot = src.getInt(srcOff + HASH) & mask;
+            while (segment(slot).get(offset(slot) + STATE) == USED) {
+                slot = (slot + 1) & mask;
+            }
+            src.position(srcOff);
+            src.get(tmp);
+            ByteBuffer dst = segment(slot);
+            dst.position(offset(slot));
+            dst.put(tmp);
+        }
+        count = oldCount;
+    }
+
+    /**
+     * Removes the key of a slot.
+     */
+    public void remove(int slot) {
+        segment(slot).put(offset(slot) + STATE, DELETED);
+        count--;
+        deleted++;
+    }
+
+    /**
+     * Checks if a slot holds a key.
+     */
+    public boolean isUsed(int slot) {
+        return segment(slot).get(offset(slot) + STATE) == USED;
+    }
+
+    public String getKey(int slot) {
+        ByteBuffer buf = segment(slot);
+        int off = offset(slot);
+        int length = buf.get(off + KEY_LENGTH);
+        boolean hex = (buf.get(off + FLAGS) & FLAG_HEX) != 0;
+        StringBuilder sb = new StringBuilder(hex ? 2 * length : length);
+        for (int i = 0; i < length; i++) {
+            int b = buf.get(off + KEY + i);
+            if (hex) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            } else {
+                sb.append((char) b);
+            }
+        }
+        return sb.toString();
+    }
+
+    public long getSize(int slot) {
+        return segment(slot).getLong(offset(slot) + SIZE);
+    }
+
+    public void setSize(int slot, long size) {
+        segment(slot).putLong(offset(slot) + SIZE, size);
+    }
+
+    public long getLastAccess(int slot) {
+        return segment(slot).getLong(offset(slot) + LAST_ACCESS);
+    }
+
+    public void setLastAccess(int slot, long lastAccess) {
+        segment(slot).putLong(offset(slot) + LAST_ACCESS, lastAccess);
+    }
+
+    public int getPinCount(int slot) {
+        return segment(slot).getInt(offset(slot) + PIN_COUNT);
+    }
+
+    public void setPinCount(int slot, int pinCount) {
+        segment(slot).putInt(offset(slot) + PIN_COUNT, pinCount);
+    }
+
+    public boolean isReferenced(int slot) {
+        return (segment(slot).get(offset(slot) + FLAGS) & FLAG_REFERENCED) != 0;
+    }
+
+    public void setReferenced(int slot, boolean referenced) {
+        ByteBuffer buf = segment(slot);
+        int off = offset(slot) + FLAGS;
+        int flags = buf.get(off);
+        buf.put(off, (byte) (referenced ? flags | FLAG_REFERENCED : flags
+                & ~FLAG_REFERENCED));
+    }
+
+    /**
+     * Gets the slot under the hand of the clock, and moves the hand to the
+     * next one.
+     */
+    public int tick() {
+        int slot = hand;
+        hand = (hand + 1) & (capacity - 1);
+        return slot;
+    }
+
+    /**
+     * Removes all the keys.
+     */
+    public void clear() {
+        allocate(MIN_CAPACITY);
+    }
+
+}
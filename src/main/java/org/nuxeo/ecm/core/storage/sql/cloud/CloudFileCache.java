@@ -0,0 +1,991 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql.cloud;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.common.file.FileCache;
+
+/**
+ * A LRU cache of files whose content survives restarts.
+ * <p>
+ * Each cached file is stored in the cache directory under its key, and is only
+ * put there by an atomic rename once complete: temporary files are created in
+ * a {@code tmp} subdirectory, which is purged on startup to drop the partial
+ * files of a previous run. The in-memory LRU index is rebuilt from the files
+ * found on disk by {@link #rebuild}, using the last modification time as
+ * recency, which is updated at most once per {@link #TOUCH_INTERVAL} on
+ * access.
+ * <p>
+ * While the index is being rebuilt, a key not yet indexed is looked up on
+ * disk, so the files of the previous run are served right away.
+ * <p>
+ * With fan-out, a file is stored two directory levels down, named after the
+ * first two pairs of characters of its key, as in {@code ab/cd/abcdef...}, so
+ * that no directory holds too many files. Keys shorter than four characters
+ * are stored directly in the cache directory.
+ * <p>
+ * A lock file prevents two caches, of this process or another one, from
+ * using the same directory: the second one fails as long as the first one is
+ * not closed.
+ * <p>
+ * Pinned keys, for instance binaries not yet uploaded or files being read
+ * through {@link #getStream(String)}, are never evicted nor cleared. Pins are
+ * counted: a key pinned twice must be unpinned twice.
+ * <p>
+ * By default the eldest entries are evicted by the thread putting a file
+ * when the cache is full. With {@link #startJanitor}, they're evicted instead
+ * by a background thread, from a high watermark down to a low one, and the
+ * files are deleted in batches outside of the puts. The maximum size is then
+ * a ceiling: above it, the threads getting a temporary file wait a little for
+ * the janitor, and the thread putting a file evicts entries itself.
+ * <p>
+ * The files of evicted entries are moved to the temporary directory while
+ * the index is locked, and deleted once it's unlocked, so that a file put
+ * again meanwhile under the same key is never deleted.
+ */
+public class CloudFileCache implements FileCache {
+
+    private static final Log log = LogFactory.getLog(CloudFileCache.class);
+
+    public static final String TMP_DIR = "tmp";
+
+    public static final String LOCK_FILE = ".lock";
+
+    /** Prefix of the evicted files moved to the temporary directory. */
+    protected static final String TRASH_PREFIX = "evicted_";
+
+    /** Minimum delay between two updates of the modification time of a file. */
+    public static final long TOUCH_INTERVAL = 60 * 60 * 1000;
+
+    /** Maximum time a writer waits for the janitor above the maximum size. */
+    public static final long THROTTLE_TIMEOUT = 2000;
+
+    /** Delay before the janitor retries when only pinned entries are left. */
+    protected static final long JANITOR_RETRY_DELAY = 1000;
+
+    protected final File dir;
+
+    protected final File tmpDir;
+
+    protected final long maxSize;
+
+    protected final boolean fanOut;
+
+    protected final RandomAccessFile lockFile;
+
+    protected final FileLock lock;
+
+    /** Access-ordered, eldest first. Guarded by this. */
+    protected final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(
+            16, 0.75f, true);
+
+    /** Guarded by this. */
+    protected long size;
+
+    /** Pin counts of the keys never evicted. Guarded by this. */
+    protected final Map<String, Integer> pinned = new HashMap<String, Integer>();
+
+    protected volatile boolean rebuilding;
+
+    /** Background eviction thread, or {@code null}. Guarded by this. */
+    protected Thread janitor;
+
+    /** Guarded by this. */
+    protected long highWatermark;
+
+    /** Guarded by this. */
+    protected long lowWatermark;
+
+    /** Number of writers that waited for the janitor. Guarded by this. */
+    protected long throttled;
+
+    /** Number of evicted files moved to the trash. Guarded by this. */
+    protected long trashed;
+
+    protected static class CacheEntry {
+
+        protected final long size;
+
+        protected long lastModified;
+
+        protected CacheEntry(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Opens a cache directory, creating it if needed. The index is empty until
+     * {@link #rebuild} is called.
+     *
+     * @throws IOException if the directory cannot be created or is used by
+     *             another cache
+     */
+    public CloudFileCache(File dir, long maxSize) throws IOException {
+        this(dir, maxSize, false);
+    }
+
+    /**
+     * @param fanOut whether the files are stored in nested directories
+     * @see #CloudFileCache(File, long)
+     */
+    public CloudFileCache(File dir, long maxSize, boolean fanOut)
+            throws IOException {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        this.fanOut = fanOut;
+        tmpDir = new File(dir, TMP_DIR);
+        tmpDir.mkdirs();
+        if (!tmpDir.isDirectory()) {
+            throw new IOException("Cannot create cache directory: " + tmpDir);
+        }
+        lockFile = new RandomAccessFile(new File(dir, LOCK_FILE), "rw");
+        FileLock fileLock;
+        try {
+            fileLock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by another cache of this JVM
+            fileLock = null;
+        }
+        if (fileLock == null) {
+            lockFile.close();
+            throw new IOException("Cache directory already in use: " + dir);
+        }
+        lock = fileLock;
+        // drop partial files of a previous run
+        File[] tmpFiles = tmpDir.listFiles();
+        if (tmpFiles != null) {
+            for (File file : tmpFiles) {
+                file.delete();
+            }
+        }
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public boolean isFanOut() {
+        return fanOut;
+    }
+
+    public boolean isRebuilding() {
+        return rebuilding;
+    }
+
+    /**
+     * Gets the path of the file of a key, whether it exists or not.
+     */
+    protected File file(String key) {
+        if (!fanOut || key.length() < 4) {
+            return new File(dir, key);
+        }
+        File parent = new File(new File(dir, key.substring(0, 2)),
+                key.substring(2, 4));
+        return new File(parent, key);
+    }
+
+    /**
+     * Lists the keys of the files present in the cache directory.
+     */
+    protected List<String> listKeys() {
+        String[] names = dir.list();
+        if (names == null) {
+            return Collections.emptyList();
+        }
+        List<String> keys = new ArrayList<String>(names.length);
+        for (String name : names) {
+            if (!isKey(name)) {
+                continue;
+            }
+            File file = new File(dir, name);
+            if (fanOut && name.length() == 2 && file.isDirectory()) {
+                String[] subnames = file.list();
+                if (subnames == null) {
+                    continue;
+                }
+                for (String subname : subnames) {
+                    String[] keyNames = new File(file, subname).list();
+                    if (keyNames == null) {
+                        continue;
+                    }
+                    for (String key : keyNames) {
+                        if (isKey(key)) {
+                            keys.add(key);
+                        }
+                    }
+                }
+            } else {
+                keys.add(name);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Rebuilds the index from the files present in the cache directory, with
+     * several threads, waiting at most the given time. If the timeout
+     * expires, the rebuild continues in the background.
+     *
+     * @param threads the number of threads reading the files metadata
+     * @param timeout the maximum time to wait, in milliseconds, or 0 to not
+     *            wait
+     */
+    public void rebuild(int threads, long timeout) {
+        final List<String> keys = listKeys();
+        if (keys.isEmpty()) {
+            return;
+        }
+        rebuilding = true;
+        final long t0 = System.currentTimeMillis();
+        final int nthreads = Math.max(1, Math.min(threads, keys.size()));
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                nthreads, new NamedThreadFactory("Nuxeo-FileCache-Rebuild"));
+        final List<Future<List<FileInfo>>> futures = new ArrayList<Future<List<FileInfo>>>(
+                nthreads);
+        int chunk = (keys.size() + nthreads - 1) / nthreads;
+        for (int i = 0; i < keys.size(); i += chunk) {
+            final List<String> sublist = keys.subList(i,
+                    Math.min(i + chunk, keys.size()));
+            futures.add(executor.submit(new Callable<List<FileInfo>>() {
+                @Override
+                public List<FileInfo> call() {
+                    return stat(sublist);
+                }
+            }));
+        }
+        Thread merger = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    List<FileInfo> infos = new ArrayList<FileInfo>(keys.size());
+                    for (Future<List<FileInfo>> future : futures) {
+                        infos.addAll(future.get());
+                    }
+                    merge(infos);
+                    log.info("Rebuilt file cache index of " + dir + ": "
+                            + getNumberOfItems() + " files, " + getSize()
+                            + " bytes in "
+                            + (System.currentTimeMillis() - t0) + "ms");
+                } catch (Exception e) {
+                    log.error("Cannot rebuild file cache index of " + dir, e);
+                } finally {
+                    rebuilding = false;
+                    executor.shutdown();
+                }
+            }
+        }, "Nuxeo-FileCache-Rebuild-Merge");
+        merger.setDaemon(true);
+        merger.start();
+        if (timeout <= 0) {
+            return;
+        }
+        try {
+            merger.join(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (merger.isAlive()) {
+            log.info("File cache index of " + dir + " still rebuilding after "
+                    + timeout + "ms, continuing in the background");
+        }
+    }
+
+    protected static class FileInfo {
+
+        protected final String key;
+
+        protected final long size;
+
+        protected final long lastModified;
+
+        protected FileInfo(String key, long size, long lastModified) {
+            this.key = key;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    protected List<FileInfo> stat(List<String> keys) {
+        List<FileInfo> infos = new ArrayList<FileInfo>(keys.size());
+        for (String key : keys) {
+            File file = file(key);
+            // a file removed meanwhile has a last modification time of 0
+            long lastModified = file.lastModified();
+            if (lastModified != 0 && file.isFile()) {
+                infos.add(new FileInfo(key, file.length(), lastModified));
+            }
+        }
+        return infos;
+    }
+
+    /**
+     * Merges the rebuilt entries, older than all the ones added since the
+     * start, into the index.
+     */
+    protected void merge(List<FileInfo> infos) {
+        Collections.sort(infos, new Comparator<FileInfo>() {
+            @Override
+            public int compare(FileInfo a, FileInfo b) {
+                return a.lastModified < b.lastModified ? -1
+                        : a.lastModified == b.lastModified ? 0 : 1;
+            }
+        });
+        List<File> evicted;
+        synchronized (this) {
+            Map<String, CacheEntry> recent = new LinkedHashMap<String, CacheEntry>(
+                    entries);
+            entries.clear();
+            size = 0;
+            for (FileInfo info : infos) {
+                if (!recent.containsKey(info.key)) {
+                    entries.put(info.key, new CacheEntry(info.size,
+                            info.lastModified));
+                    size += info.size;
+                }
+            }
+            for (Entry<String, CacheEntry> es : recent.entrySet()) {
+                entries.put(es.getKey(), es.getValue());
+                size += es.getValue().size;
+            }
+            evicted = evictIfNeeded(null);
+        }
+        delete(evicted);
+    }
+
+    protected static boolean isKey(String name) {
+        return !name.startsWith(".") && !TMP_DIR.equals(name);
+    }
+
+    protected static boolean isValidKey(String key) {
+        return isKey(key) && key.indexOf('/') < 0
+                && key.indexOf(File.separatorChar) < 0;
+    }
+
+    /**
+     * Prevents a key from being evicted or cleared, even if it's not yet in
+     * the cache.
+     */
+    public synchronized void pin(String key) {
+        Integer count = pinned.get(key);
+        pinned.put(key, Integer.valueOf(count == null ? 1
+                : count.intValue() + 1));
+    }
+
+    /**
+     * Allows a key to be evicted again, evicting entries if the cache is too
+     * big.
+     */
+    public void unpin(String key) {
+        List<File> evicted;
+        synchronized (this) {
+            Integer count = pinned.get(key);
+            if (count == null) {
+                return;
+            }
+            if (count.intValue() > 1) {
+                pinned.put(key, Integer.valueOf(count.intValue() - 1));
+                return;
+            }
+            pinned.remove(key);
+            evicted = evictIfNeeded(null);
+        }
+        delete(evicted);
+    }
+
+    public synchronized boolean isPinned(String key) {
+        return pinned.containsKey(key);
+    }
+
+    /**
+     * Size of the cached files currently pinned, which cannot be evicted.
+     */
+    public synchronized long getPinnedSize() {
+        long pinnedSize = 0;
+        for (String key : pinned.keySet()) {
+            CacheEntry entry = entries.get(key);
+            if (entry != null) {
+                pinnedSize += entry.size;
+            }
+        }
+        return pinnedSize;
+    }
+
+    /**
+     * Opens a stream on a cached file, pinned until the stream is closed so
+     * that it's not evicted while being read.
+     *
+     * @return the stream, or {@code null} if the key is not cached
+     */
+    public InputStream getStream(String key) throws IOException {
+        File file = getFile(key);
+        if (file == null) {
+            return null;
+        }
+        pin(key);
+        try {
+            return new PinnedInputStream(file, key);
+        } catch (FileNotFoundException e) {
+            // evicted meanwhile
+            unpin(key);
+            return null;
+        }
+    }
+
+    /**
+     * Opens a stream on a range of a cached file, pinned until the stream is
+     * closed.
+     *
+     * @param offset the first byte
+     * @param length the number of bytes, truncated at the end of the file
+     * @return the stream, or {@code null} if the key is not cached
+     * @see FileRangeInputStream
+     */
+    public InputStream getStream(String key, long offset, long length)
+            throws IOException {
+        File file = getFile(key);
+        if (file == null) {
+            return null;
+        }
+        pin(key);
+        try {
+            return new PinnedRangeInputStream(file, key, offset, length);
+        } catch (FileNotFoundException e) {
+            // evicted meanwhile
+            unpin(key);
+            return null;
+        }
+    }
+
+    /**
+     * Opens a stream on a cached file of any file cache, pinned if the cache
+     * supports it.
+     */
+    public static InputStream getStream(FileCache fileCache, String key,
+            File file) throws IOException {
+        if (fileCache instanceof CloudFileCache) {
+            InputStream in = ((CloudFileCache) fileCache).getStream(key);
+            if (in != null) {
+                return in;
+            }
+        }
+        return new FileInputStream(file);
+    }
+
+    /**
+     * Opens a stream on a range of a cached file of any file cache, pinned if
+     * the cache supports it.
+     */
+    public static InputStream getStream(FileCache fileCache, String key,
+            File file, long offset, long length) throws IOException {
+        if (fileCache instanceof CloudFileCache) {
+            InputStream in = ((CloudFileCache) fileCache).getStream(key,
+                    offset, length);
+            if (in != null) {
+                return in;
+            }
+        }
+        return new FileRangeInputStream(file, offset, length);
+    }
+
+    /**
+     * A stream that unpins its key when closed, or finalized if not closed.
+     */
+    protected class PinnedInputStream extends FileInputStream {
+
+        protected final String key;
+
+        protected boolean unpinned;
+
+        protected PinnedInputStream(File file, String key)
+                throws FileNotFoundException {
+            super(file);
+            this.key = key;
+        }
+
+        @Override
+        public void close() throws IOException {
+            boolean unpin;
+            synchronized (this) {
+                unpin = !unpinned;
+                unpinned = true;
+            }
+            try {
+                super.close();
+            } finally {
+                if (unpin) {
+                    unpin(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * A range stream that unpins its key when closed, or finalized if not
+     * closed.
+     */
+    protected class PinnedRangeInputStream extends FileRangeInputStream {
+
+        protected final String key;
+
+        protected boolean unpinned;
+
+        protected PinnedRangeInputStream(File file, String key, long offset,
+                long length) throws FileNotFoundException {
+            super(file, offset, length);
+            this.key = key;
+        }
+
+        @Override
+        public void close() throws IOException {
+            boolean unpin;
+            synchronized (this) {
+                unpin = !unpinned;
+                unpinned = true;
+            }
+            try {
+                super.close();
+            } finally {
+                if (unpin) {
+                    unpin(key);
+                }
+            }
+        }
+
+        @Override
+        protected void finalize() throws Throwable {
+            try {
+                close();
+            } finally {
+                super.finalize();
+            }
+        }
+    }
+
+    @Override
+    public synchronized long getSize() {
+        return size;
+    }
+
+    @Override
+    public synchronized int getNumberOfItems() {
+        return entries.size();
+    }
+
+    @Override
+    public File getTempFile() throws IOException {
+        throttle();
+        return File.createTempFile("nxbin_", ".tmp", tmpDir);
+    }
+
+    /**
+     * Gets a temporary file for the content of a known key, to be put with
+     * {@link #putFile(String, File)}.
+     */
+    public File getTempFile(String key) throws IOException {
+        return getTempFile();
+    }
+
+    /**
+     * Gets a temporary file for the content of a known key from any file
+     * cache.
+     */
+    public static File getTempFile(FileCache fileCache, String key)
+            throws IOException {
+        if (fileCache instanceof CloudFileCache) {
+            return ((CloudFileCache) fileCache).getTempFile(key);
+        }
+        return fileCache.getTempFile();
+    }
+
+    /**
+     * Starts evicting entries in the background, when the size reaches the
+     * high watermark, down to the low watermark.
+     */
+    public synchronized void startJanitor(long highWatermark,
+            long lowWatermark) {
+        if (janitor != null) {
+            return;
+        }
+        this.highWatermark = Math.min(highWatermark, maxSize);
+        this.lowWatermark = Math.min(lowWatermark, this.highWatermark);
+        janitor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runJanitor();
+            }
+        }, "Nuxeo-FileCache-Janitor");
+        janitor.setDaemon(true);
+        janitor.start();
+    }
+
+    protected void runJanitor() {
+        Thread thread = Thread.currentThread();
+        try {
+            for (;;) {
+                List<File> evicted;
+                synchronized (this) {
+                    while (janitor == thread && size <= highWatermark) {
+                        wait();
+                    }
+                    if (janitor != thread) {
+                        return;
+                    }
+                    evicted = trash(evict(null, lowWatermark));
+                }
+                delete(evicted);
+                synchronized (this) {
+                    // wake up the throttled writers
+                    notifyAll();
+                    if (evicted.isEmpty() && janitor == thread) {
+                        // only pinned entries left
+                        wait(JANITOR_RETRY_DELAY);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Number of writers that had to wait for the janitor.
+     */
+    public synchronized long getThrottledCount() {
+        return throttled;
+    }
+
+    /**
+     * Makes a writer wait while the cache is above its maximum size, giving
+     * the janitor some time to evict entries.
+     */
+    protected synchronized void throttle() throws IOException {
+        if (janitor == null || size <= maxSize) {
+            return;
+        }
+        throttled++;
+        long deadline = System.currentTimeMillis() + THROTTLE_TIMEOUT;
+        try {
+            while (janitor != null && size > maxSize) {
+                long delay = deadline - System.currentTimeMillis();
+                if (delay <= 0) {
+                    break;
+                }
+                notifyAll();
+                wait(delay);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    public File putFile(String key, InputStream in) throws IOException {
+        File tmp = getTempFile();
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+        } catch (IOException e) {
+            out.close();
+            tmp.delete();
+            throw e;
+        } finally {
+            in.close();
+        }
+        out.close();
+        return putFile(key, tmp);
+    }
+
+    /**
+     * Puts a file in the cache by renaming it, it must have been created by
+     * {@link #getTempFile}. If the key is already cached, the file is deleted
+     * and the cached one returned, as keys are digests of the content.
+     */
+    @Override
+    public File putFile(String key, File tmp) throws IOException {
+        if (!isValidKey(key)) {
+            throw new IllegalArgumentException("Invalid key: " + key);
+        }
+        File file = file(key);
+        synchronized (this) {
+            if (contains(key)) {
+                tmp.delete();
+                return file;
+            }
+        }
+        if (fanOut) {
+            file.getParentFile().mkdirs();
+        }
+        if (!tmp.renameTo(file)) {
+            if (!file.exists()) {
+                throw new IOException("Cannot rename " + tmp + " to " + file);
+            }
+            // concurrently put
+            tmp.delete();
+        }
+        add(key, file);
+        return file;
+    }
+
+    /**
+     * Removes a key from the cache even if it's pinned, for instance because
+     * its file is corrupted. The pins are kept.
+     */
+    public synchronized void remove(String key) {
+        if (unindex(key)) {
+            file(key).delete();
+        }
+    }
+
+    /**
+     * Removes a key from the index. Called while synchronized.
+     *
+     * @return {@code false} if the key was not indexed
+     */
+    protected boolean unindex(String key) {
+        CacheEntry entry = entries.remove(key);
+        if (entry == null) {
+            return false;
+        }
+        size -= entry.size;
+        removed(key, entry);
+        return true;
+    }
+
+    /**
+     * Checks if a key is indexed. Called while synchronized.
+     */
+    protected boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Indexes a file present in the cache directory, if not already.
+     */
+    protected void add(String key, File file) {
+        List<File> evicted;
+        synchronized (this) {
+            if (entries.containsKey(key)) {
+                return;
+            }
+            long length = file.length();
+            CacheEntry entry = new CacheEntry(length, file.lastModified());
+            entries.put(key, entry);
+            size += length;
+            added(key, entry);
+            evicted = evictIfNeeded(key);
+        }
+        delete(evicted);
+    }
+
+    @Override
+    public File getFile(String key) {
+        File file = file(key);
+        boolean touch = false;
+        long now = System.currentTimeMillis();
+        CacheEntry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            accessed(key, entry);
+            if (entry == null && !rebuilding) {
+                return null;
+            }
+            if (entry != null && now - entry.lastModified > TOUCH_INTERVAL) {
+                entry.lastModified = now;
+                touch = true;
+            }
+        }
+        if (entry != null) {
+            if (touch) {
+                file.setLastModified(now);
+            }
+            return file;
+        }
+        // rebuilding and not yet indexed, look on disk
+        if (!isValidKey(key) || !file.isFile()) {
+            return null;
+        }
+        add(key, file);
+        return file;
+    }
+
+    /**
+     * Evicts entries if the size is above the maximum, or wakes up the
+     * janitor if it's above the high watermark. Called while synchronized.
+     *
+     * @return the files to delete
+     */
+    protected List<File> evictIfNeeded(String keep) {
+        if (janitor != null && size > highWatermark) {
+            notifyAll();
+        }
+        return trash(evict(keep, maxSize));
+    }
+
+    /**
+     * Moves the files of evicted entries to the temporary directory, so that
+     * deleting them without holding the lock cannot delete a file put again
+     * meanwhile under the same key. Called while synchronized.
+     *
+     * @return the files to delete
+     */
+    protected List<File> trash(List<File> evicted) {
+        if (evicted.isEmpty()) {
+            return evicted;
+        }
+        List<File> files = new ArrayList<File>(evicted.size());
+        for (File file : evicted) {
+            File trash = new File(tmpDir, TRASH_PREFIX + trashed++);
+            if (file.renameTo(trash)) {
+                files.add(trash);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Removes the eldest entries until the size fits in the limit, never
+     * removing the given key. Called while synchronized.
+     *
+     * @return the files to delete
+     */
+    protected List<File> evict(String keep, long limit) {
+        if (size <= limit) {
+            return Collections.emptyList();
+        }
+        List<File> evicted = new ArrayList<File>();
+        Iterator<Entry<String, CacheEntry>> it = entries.entrySet().iterator();
+        while (size > limit && it.hasNext()) {
+            Entry<String, CacheEntry> es = it.next();
+            String key = es.getKey();
+            if (key.equals(keep) || pinned.containsKey(key)) {
+                continue;
+            }
+            it.remove();
+            size -= es.getValue().size;
+            removed(key, es.getValue());
+            evicted.add(file(key));
+        }
+        return evicted;
+    }
+
+    /**
+     * Called while synchronized when an entry is added to the index.
+     */
+    protected void added(String key, CacheEntry entry) {
+    }
+
+    /**
+     * Called while synchronized when a key is looked up.
+     *
+     * @param entry the entry, or {@code null} if not indexed
+     */
+    protected void accessed(String key, CacheEntry entry) {
+    }
+
+    /**
+     * Called while synchronized when an entry is removed from the index.
+     */
+    protected void removed(String key, CacheEntry entry) {
+    }
+
+    protected static void delete(List<File> files) {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    @Override
+    public void clear() {
+        Set<String> keep;
+        synchronized (this) {
+            Iterator<Entry<String, CacheEntry>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Entry<String, CacheEntry> es = it.next();
+                if (!pinned.containsKey(es.getKey())) {
+                    it.remove();
+                    size -= es.getValue().size;
+                    removed(es.getKey(), es.getValue());
+                }
+            }
+            keep = new HashSet<String>(pinned.keySet());
+        }
+        for (String key : listKeys()) {
+            if (!keep.contains(key)) {
+                file(key).delete();
+            }
+        }
+    }
+
+    /**
+     * Stops the janitor and releases the directory lock. The files are kept
+     * for the next run.
+     */
+    public void close() {
+        synchronized (this) {
+            if (janitor != null) {
+                janitor.interrupt();
+                janitor = null;
+                notifyAll();
+            }
+        }
+        try {
+            if (lock.isValid()) {
+                lock.release();
+            }
+            lockFile.close();
+        } catch (IOException e) {
+            log.error("Cannot release lock of " + dir, e);
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * (C) Copyright 2010 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *    Wojciech Sulejman
+ */
+package org.nuxeo.ecm.core.storage.sql.cloud;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.nuxeo.common.utils.Base64;
+
+/**
+ * Calculates file digests
+ */
+public class DigestGenerator {
+
+    public static final String MD5 = "MD5";
+
+    private static final String CHECKSUM_ALGORITHM = MD5;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public static byte[] generateChecksum(InputStream inputStream, String digestAlgorithm) throws Exception {
+        byte[] buffer = new byte[1024];
+        MessageDigest md5Instance = MessageDigest.getInstance(digestAlgorithm);
+        int readBytes;
+        do {
+            readBytes = inputStream.read(buffer);
+            if (readBytes > 0) {
+                md5Instance.update(buffer, 0, readBytes);
+            }
+        } while (readBytes != -1);
+        inputStream.close();
+        return md5Instance.digest();
+    }
+
+    public static String getMD5Checksum(File file) {
+        return toHexString(getMD5(file));
+    }
+
+    public static byte[] getMD5(File file) {
+        try {
+            InputStream fis = new FileInputStream(file);
+            return generateChecksum(fis, CHECKSUM_ALGORITHM);
+        } catch (FileNotFoundException e) {
+             throw new RuntimeException(e);
+        } catch (Exception e) {
+             throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Copies a stream to an output stream while computing several digests of
+     * the content, so that it is read only once. The streams are not closed.
+     *
+     * @param algorithms the digest algorithms
+     * @return the digests, in the same order as the algorithms
+     */
+    public static byte[][] storeAndDigest(InputStream in, OutputStream out,
+            String... algorithms) throws IOException {
+        MessageDigest[] mds = new MessageDigest[algorithms.length];
+        for (int i = 0; i < algorithms.length; i++) {
+            try {
+                mds[i] = MessageDigest.getInstance(algorithms[i]);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            for (MessageDigest md : mds) {
+                md.update(buffer, 0, n);
+            }
+            out.write(buffer, 0, n);
+        }
+        out.flush();
+        byte[][] digests = new byte[mds.length][];
+        for (int i = 0; i < mds.length; i++) {
+            digests[i] = mds[i].digest();
+        }
+        return digests;
+    }
+
+    public static String toHexString(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (int i = 0; i < digest.length; i++) {
+            sb.append(Integer.toString((digest[i] & 0xff) + 0x100, 16).substring(1));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Encodes a digest in base64, as expected by the Content-MD5 header.
+     */
+    public static String toBase64(byte[] digest) {
+        return Base64.encodeBytes(digest);
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql.cloud;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A stream on a range of a file, read with positional reads of its channel,
+ * so that the start of the file is never read and the channel position is
+ * never changed.
+ * <p>
+ * The range is truncated at the end of the file.
+ */
+public class FileRangeInputStream extends InputStream {
+
+    protected final RandomAccessFile raf;
+
+    protected final FileChannel channel;
+
+    protected long pos;
+
+    /** End of the range, exclusive. */
+    protected final long end;
+
+    /**
+     * @param offset the first byte
+     * @param length the number of bytes
+     */
+    public FileRangeInputStream(File file, long offset, long length)
+            throws FileNotFoundException {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid range: " + offset
+                    + ", " + length);
+        }
+        raf = new RandomAccessFile(file, "r");
+        channel = raf.getChannel();
+        pos = offset;
+        end = getEnd(offset, length);
+    }
+
+    /**
+     * Gets the end of a range, exclusive, saturated at
+     * {@link Long#MAX_VALUE} so that a length of {@link Long#MAX_VALUE} means
+     * up to the end.
+     *
+     * @param offset the first byte, not negative
+     * @param length the number of bytes, not negative
+     */
+    public static long getEnd(long offset, long length) {
+        long end = offset + length;
+        return end < 0 ? Long.MAX_VALUE : end;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos >= end) {
+            return -1;
+        }
+        int n = channel.read(
+                ByteBuffer.wrap(b, off, (int) Math.min(len, end - pos)), pos);
+        if (n > 0) {
+            pos += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        long skipped = Math.min(n, Math.min(end, channel.size()) - pos);
+        if (skipped <= 0) {
+            return 0;
+        }
+        pos += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        long available = Math.min(end, channel.size()) - pos;
+        return (int) Math.max(0, Math.min(available, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+
+}
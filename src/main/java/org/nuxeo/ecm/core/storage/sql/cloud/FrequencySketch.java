@@ -0,0 +1,119 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql.cloud;
+
+/**
+ * An approximate count of the recent accesses to each key, in a count-min
+ * sketch of 4-bit counters.
+ * <p>
+ * Each key increments one counter in each of four rows, and its frequency is
+ * the smallest of them, so it can only be overestimated by collisions. All
+ * the counters are halved once the number of increments reaches ten times
+ * the capacity, so that the frequencies reflect recent accesses. A counter
+ * saturates at 15.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class FrequencySketch {
+
+    public static final int MAX_FREQUENCY = 15;
+
+    protected static final long[] SEEDS = { 0xc3a5c85c97cb3127L,
+            0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+    protected static final long RESET_MASK = 0x7777777777777777L;
+
+    /** 16 counters per long. */
+    protected final long[] table;
+
+    protected final int counterMask;
+
+    protected final int sampleSize;
+
+    protected int additions;
+
+    /**
+     * @param capacity the expected number of distinct keys
+     */
+    public FrequencySketch(int capacity) {
+        int n = 16;
+        while (n < capacity && n < (1 << 24)) {
+            n <<= 1;
+        }
+        table = new long[n];
+        counterMask = n * 16 - 1;
+        sampleSize = 10 * n;
+    }
+
+    protected static int spread(int h) {
+        h ^= (h >>> 17);
+        h *= 0xed5ad4bb;
+        h ^= (h >>> 11);
+        h *= 0xac4c1b51;
+        h ^= (h >>> 15);
+        return h;
+    }
+
+    protected int index(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h & counterMask;
+    }
+
+    protected int get(int index) {
+        return (int) (table[index >>> 4] >>> ((index & 15) << 2)) & 0xf;
+    }
+
+    /**
+     * Gets the estimated number of recent accesses to a key.
+     */
+    public int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_FREQUENCY;
+        for (int row = 0; row < SEEDS.length; row++) {
+            frequency = Math.min(frequency, get(index(hash, row)));
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an access to a key.
+     */
+    public void increment(String key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int row = 0; row < SEEDS.length; row++) {
+            int index = index(hash, row);
+            if (get(index) < MAX_FREQUENCY) {
+                table[index >>> 4] += 1L << ((index & 15) << 2);
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Halves all the counters.
+     */
+    protected void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+}
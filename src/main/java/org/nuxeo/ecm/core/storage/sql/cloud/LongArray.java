@@ -0,0 +1,207 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql.cloud;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A fixed-size array of longs, initially filled with zeros, addressed with a
+ * long index so that it can hold more than 2^31 values.
+ * <p>
+ * This is the storage for the primitive hash tables, which may be too big to
+ * be kept on the Java heap, or even in memory: a memory-mapped array lets the
+ * operating system page it out to a temporary file.
+ */
+public abstract class LongArray {
+
+    /** Each off-heap segment holds 2^27 longs (1GB). */
+    protected static final int SEGMENT_SHIFT = 27;
+
+    protected static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    protected final long size;
+
+    protected LongArray(long size) {
+        this.size = size;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public abstract long get(long index);
+
+    public abstract void set(long index, long value);
+
+    /**
+     * Releases the storage. The array must not be used afterwards.
+     */
+    public void free() {
+    }
+
+    /**
+     * Allocates an array on the heap if possible, or off-heap.
+     */
+    public static LongArray allocate(long size, boolean offHeap) {
+        if (!offHeap && size <= Integer.MAX_VALUE - 8) {
+            return new HeapLongArray(size);
+        }
+        return new DirectLongArray(size);
+    }
+
+    /**
+     * Allocates an array memory-mapped to a new temporary file in the given
+     * directory (or the default temporary directory if {@code null}).
+     */
+    public static LongArray allocateMapped(long size, File dir)
+            throws IOException {
+        return new MappedLongArray(size, dir);
+    }
+
+    /**
+     * Array stored in a regular long[].
+     */
+    public static class HeapLongArray extends LongArray {
+
+        protected long[] array;
+
+        public HeapLongArray(long size) {
+            super(size);
+            array = new long[(int) size];
+        }
+
+        @Override
+        public long get(long index) {
+            return array[(int) index];
+        }
+
+        @Override
+        public void set(long index, long value) {
+            array[(int) index] = value;
+        }
+
+        @Override
+        public void free() {
+            array = null;
+        }
+    }
+
+    /**
+     * Array stored outside of the Java heap, in direct buffers.
+     */
+    public static class DirectLongArray extends LongArray {
+
+        protected LongBuffer[] segments;
+
+        public DirectLongArray(long size) {
+            super(size);
+            int n = (int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+            segments = new LongBuffer[n];
+            for (int i = 0; i < n; i++) {
+                long segmentSize = Math.min(size - ((long) i << SEGMENT_SHIFT),
+                        1L << SEGMENT_SHIFT);
+                // direct buffers are zeroed on allocation
+                segments[i] = ByteBuffer.allocateDirect(
+                        (int) (segmentSize << 3)).order(ByteOrder.nativeOrder()).asLongBuffer();
+            }
+        }
+
+        @Override
+        public long get(long index) {
+            return segments[(int) (index >>> SEGMENT_SHIFT)].get((int) (index & SEGMENT_MASK));
+        }
+
+        @Override
+        public void set(long index, long value) {
+            segments[(int) (index >>> SEGMENT_SHIFT)].put(
+                    (int) (index & SEGMENT_MASK), value);
+        }
+
+        @Override
+        public void free() {
+            // memory is reclaimed when the buffers are garbage collected
+            segments = null;
+        }
+    }
+
+    /**
+     * Array stored in a temporary file mapped in memory. The file is deleted
+     * when the array is freed.
+     */
+    public static class MappedLongArray extends LongArray {
+
+        protected final File file;
+
+        protected LongBuffer[] segments;
+
+        public MappedLongArray(long size, File dir) throws IOException {
+            super(size);
+            file = File.createTempFile("nxlongarray-", ".tmp", dir);
+            file.deleteOnExit();
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                // sparse file, reads as zeros
+                raf.setLength(size << 3);
+                FileChannel channel = raf.getChannel();
+                int n = (int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+                segments = new LongBuffer[n];
+                for (int i = 0; i < n; i++) {
+                    long start = (long) i << SEGMENT_SHIFT;
+                    long segmentSize = Math.min(size - start,
+                            1L << SEGMENT_SHIFT);
+                    // the mapping stays valid after the channel is closed
+                    segments[i] = channel.map(MapMode.READ_WRITE, start << 3,
+                            segmentSize << 3).order(ByteOrder.nativeOrder()).asLongBuffer();
+                }
+            } catch (IOException e) {
+                raf.close();
+                file.delete();
+                throw e;
+            }
+            raf.close();
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        @Override
+        public long get(long index) {
+            return segments[(int) (index >>> SEGMENT_SHIFT)].get((int) (index & SEGMENT_MASK));
+        }
+
+        @Override
+        public void set(long index, long value) {
+            segments[(int) (index >>> SEGMENT_SHIFT)].put(
+                    (int) (index & SEGMENT_MASK), value);
+        }
+
+        @Override
+        public void free() {
+            // the mapping is released when the buffers are garbage collected,
+            // deleting the file only unlinks it on Unix
+            segments = null;
+            file.delete();
+        }
+    }
+
+}
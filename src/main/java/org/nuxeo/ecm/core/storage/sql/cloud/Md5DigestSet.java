@@ -0,0 +1,279 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql.cloud;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A set of MD5 digests, used to record the marked binaries during a garbage
+ * collection.
+ * <p>
+ * Each 128-bit digest is stored as two longs in an open-addressed table with
+ * linear probing, which takes 16 bytes per slot instead of the 150+ bytes of
+ * a hex String in a HashSet. The table grows by a factor of 1.5, and is
+ * allocated off-heap once it is bigger than a threshold, so that tens of
+ * millions of digests don't have to live on the Java heap. Large tables can
+ * also be memory-mapped to a temporary file, so that they don't have to fit in
+ * memory at all.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class Md5DigestSet {
+
+    /** Tables bigger than this (in bytes) are allocated off-heap. */
+    public static final long DEFAULT_OFF_HEAP_THRESHOLD = 64 * 1024 * 1024;
+
+    protected static final int INITIAL_CAPACITY = 1024;
+
+    protected static final double MAX_LOAD_FACTOR = 0.8;
+
+    protected final long offHeapThreshold;
+
+    protected final boolean mapped;
+
+    protected final File mappedDir;
+
+    /** Number of slots. */
+    protected long capacity;
+
+    protected long maxSize;
+
+    protected long size;
+
+    /** Two longs per slot, (0, 0) meaning empty. */
+    protected LongArray table;
+
+    /** The all-zero digest cannot be stored in the table. */
+    protected boolean hasZero;
+
+    public Md5DigestSet() {
+        this(DEFAULT_OFF_HEAP_THRESHOLD);
+    }
+
+    public Md5DigestSet(long offHeapThreshold) {
+        this(offHeapThreshold, false, null);
+    }
+
+    /**
+     * @param offHeapThreshold the size in bytes above which the table is not
+     *            stored on the heap
+     * @param mapped {@code true} to store large tables in memory-mapped
+     *            temporary files, {@code false} for direct buffers
+     * @param mappedDir the directory of the temporary files, or {@code null}
+     *            for the default temporary directory
+     */
+    public Md5DigestSet(long offHeapThreshold, boolean mapped, File mappedDir) {
+        this(offHeapThreshold, mapped, mappedDir, 0);
+    }
+
+    /**
+     * @param offHeapThreshold the size in bytes above which the table is not
+     *            stored on the heap
+     * @param mapped {@code true} to store large tables in memory-mapped
+     *            temporary files, {@code false} for direct buffers
+     * @param mappedDir the directory of the temporary files, or {@code null}
+     *            for the default temporary directory
+     * @param expectedSize the number of digests expected, for which the table
+     *            is allocated at once instead of grown, or 0 if unknown
+     */
+    public Md5DigestSet(long offHeapThreshold, boolean mapped,
+            File mappedDir, long expectedSize) {
+        this.offHeapThreshold = offHeapThreshold;
+        this.mapped = mapped;
+        this.mappedDir = mappedDir;
+        allocate(getCapacity(expectedSize));
+    }
+
+    /**
+     * Gets the number of slots needed to hold a number of digests without
+     * growing.
+     */
+    public static long getCapacity(long expectedSize) {
+        return Math.max(INITIAL_CAPACITY,
+                (long) (expectedSize / MAX_LOAD_FACTOR) + 1);
+    }
+
+    protected void allocate(long capacity) {
+        this.capacity = capacity;
+        maxSize = (long) (capacity * MAX_LOAD_FACTOR);
+        table = allocateTable(capacity * 2);
+    }
+
+    protected LongArray allocateTable(long longs) {
+        boolean offHeap = longs * 8 > offHeapThreshold;
+        if (offHeap && mapped) {
+            try {
+                return LongArray.allocateMapped(longs, mappedDir);
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot map digest table", e);
+            }
+        }
+        return LongArray.allocate(longs, offHeap);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Gets the size of the table, in bytes.
+     */
+    public long getMemorySize() {
+        return capacity * 16;
+    }
+
+    /**
+     * Adds a digest.
+     *
+     * @param digest a 32-character hexadecimal MD5 digest
+     * @return {@code true} if the digest was not already present
+     */
+    public boolean add(String digest) {
+        return add(parseHigh(digest), parseLow(digest));
+    }
+
+    public boolean add(long high, long low) {
+        if (high == 0 && low == 0) {
+            if (hasZero) {
+                return false;
+            }
+            hasZero = true;
+            size++;
+            return true;
+        }
+        if (size >= maxSize) {
+            grow();
+        }
+        if (!insert(table, capacity, high, low)) {
+            return false;
+        }
+        size++;
+        return true;
+    }
+
+    public boolean contains(String digest) {
+        return contains(parseHigh(digest), parseLow(digest));
+    }
+
+    public boolean contains(long high, long low) {
+        if (high == 0 && low == 0) {
+            return hasZero;
+        }
+        long slot = slot(high, low, capacity);
+        for (;;) {
+            long h = table.get(slot * 2);
+            long l = table.get(slot * 2 + 1);
+            if (h == 0 && l == 0) {
+                return false;
+            }
+            if (h == high && l == low) {
+                return true;
+            }
+            if (++slot == capacity) {
+                slot = 0;
+            }
+        }
+    }
+
+    /**
+     * Releases the memory held by the set. The set must not be used
+     * afterwards.
+     */
+    public void free() {
+        if (table != null) {
+            table.free();
+            table = null;
+        }
+        size = 0;
+    }
+
+    protected void grow() {
+        long newCapacity = capacity + (capacity >> 1);
+        LongArray newTable = allocateTable(newCapacity * 2);
+        for (long slot = 0; slot < capacity; slot++) {
+            long h = table.get(slot * 2);
+            long l = table.get(slot * 2 + 1);
+            if (h != 0 || l != 0) {
+                insert(newTable, newCapacity, h, l);
+            }
+        }
+        table.free();
+        table = newTable;
+        capacity = newCapacity;
+        maxSize = (long) (newCapacity * MAX_LOAD_FACTOR);
+    }
+
+    protected static boolean insert(LongArray table, long capacity,
+            long high, long low) {
+        long slot = slot(high, low, capacity);
+        for (;;) {
+            long h = table.get(slot * 2);
+            long l = table.get(slot * 2 + 1);
+            if (h == 0 && l == 0) {
+                table.set(slot * 2, high);
+                table.set(slot * 2 + 1, low);
+                return true;
+            }
+            if (h == high && l == low) {
+                return false;
+            }
+            if (++slot == capacity) {
+                slot = 0;
+            }
+        }
+    }
+
+    /**
+     * Maps a digest to a slot in [0, capacity). The capacity is not a power
+     * of two, so the top 32 bits of the mixed digest are scaled to it
+     * instead of masked.
+     */
+    protected static long slot(long high, long low, long capacity) {
+        long hash = high ^ (low * 0x9E3779B97F4A7C15L);
+        hash ^= hash >>> 29;
+        return ((hash >>> 32) * capacity) >>> 32;
+    }
+
+    public static long parseHigh(String digest) {
+        checkDigest(digest);
+        return parseHex(digest, 0);
+    }
+
+    public static long parseLow(String digest) {
+        checkDigest(digest);
+        return parseHex(digest, 16);
+    }
+
+    protected static void checkDigest(String digest) {
+        if (digest.length() != 32) {
+            throw new IllegalArgumentException("Not an MD5 digest: " + digest);
+        }
+    }
+
+    protected static long parseHex(String digest, int start) {
+        long value = 0;
+        for (int i = start; i < start + 16; i++) {
+            int d = Character.digit(digest.charAt(i), 16);
+            if (d == -1) {
+                throw new IllegalArgumentException("Not an MD5 digest: "
+                        + digest);
+            }
+            value = (value << 4) | d;
+        }
+        return value;
+    }
+
+}
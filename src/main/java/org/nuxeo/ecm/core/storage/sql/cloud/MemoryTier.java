@@ -0,0 +1,255 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql.cloud;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A LRU cache in memory of the content of small files, in front of the file
+ * cache, so that the most read small binaries are served without opening a
+ * file.
+ * <p>
+ * The content is held in direct buffers, outside of the Java heap, within a
+ * total size; files bigger than a maximum entry size are always read from
+ * disk. The memory of an evicted entry is released when its buffer is
+ * garbage collected, so the maximum direct memory of the JVM
+ * ({@code -XX:MaxDirectMemorySize}) must allow some margin above the size.
+ * <p>
+ * This class is thread-safe.
+ */
+public class MemoryTier {
+
+    protected final long maxSize;
+
+    protected final long maxEntrySize;
+
+    /** Access-ordered, eldest first. Guarded by this. */
+    protected final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<String, ByteBuffer>(
+            16, 0.75f, true);
+
+    /** Guarded by this. */
+    protected long size;
+
+    /** Guarded by this. */
+    protected long hits;
+
+    /** Guarded by this. */
+    protected long misses;
+
+    /**
+     * @param maxSize the total size of the cached content
+     * @param maxEntrySize the size above which files are not cached
+     */
+    public MemoryTier(long maxSize, long maxEntrySize) {
+        this.maxSize = maxSize;
+        this.maxEntrySize = Math.min(Math.min(maxEntrySize, maxSize),
+                Integer.MAX_VALUE);
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public long getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    /**
+     * Gets a stream on the content of a cached file, from memory if present,
+     * otherwise from the file, keeping its content in memory if small enough.
+     *
+     * @param key the key of the file in the file cache
+     * @param file the cached file
+     */
+    public InputStream getStream(String key, File file) throws IOException {
+        InputStream in = getMemoryStream(key);
+        if (in != null) {
+            return in;
+        }
+        long length = file.length();
+        if (length > maxEntrySize) {
+            return new FileInputStream(file);
+        }
+        return load(key, length, new FileInputStream(file));
+    }
+
+    /**
+     * Gets a stream on the content kept in memory, without any file access,
+     * so that it's served even if the file was evicted since.
+     *
+     * @param key the key of the file in the file cache
+     * @return the stream, or {@code null} if the content isn't in memory
+     */
+    public InputStream getMemoryStream(String key) {
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = entries.get(key);
+            if (buffer == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+        return new ByteBufferInputStream(buffer.duplicate());
+    }
+
+    /**
+     * Keeps in memory the content read from a stream, which is closed.
+     *
+     * @param key the key of the file in the file cache
+     * @param length the length of the content, at most the maximum entry size
+     * @param in the content
+     * @return a stream on the content in memory
+     */
+    public InputStream load(String key, long length, InputStream in)
+            throws IOException {
+        if (length > maxEntrySize) {
+            in.close();
+            throw new IllegalArgumentException("Too big for memory: " + key);
+        }
+        ByteBuffer buffer;
+        try {
+            buffer = load(in, (int) length);
+        } finally {
+            in.close();
+        }
+        put(key, buffer);
+        return new ByteBufferInputStream(buffer.duplicate());
+    }
+
+    /**
+     * Reads a stream into a new direct buffer.
+     */
+    protected static ByteBuffer load(InputStream in, int length)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+        ReadableByteChannel channel;
+        if (in instanceof FileInputStream) {
+            channel = ((FileInputStream) in).getChannel();
+        } else {
+            channel = Channels.newChannel(in);
+        }
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                throw new IOException("Unexpected end of content: "
+                        + buffer.position() + " < " + length);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    protected synchronized void put(String key, ByteBuffer buffer) {
+        if (entries.containsKey(key)) {
+            // loaded concurrently
+            return;
+        }
+        entries.put(key, buffer);
+        size += buffer.limit();
+        Iterator<ByteBuffer> it = entries.values().iterator();
+        while (size > maxSize && it.hasNext()) {
+            size -= it.next().limit();
+            it.remove();
+        }
+    }
+
+    /**
+     * Removes a key, for instance when the binary is deleted.
+     */
+    public synchronized void remove(String key) {
+        ByteBuffer buffer = entries.remove(key);
+        if (buffer != null) {
+            size -= buffer.limit();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getNumberOfItems() {
+        return entries.size();
+    }
+
+    /**
+     * Number of streams served from memory.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Number of streams served from a file.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Reads a buffer from its position to its limit.
+     */
+    protected static class ByteBufferInputStream extends InputStream {
+
+        protected final ByteBuffer buffer;
+
+        protected ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int s = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + s);
+            return s;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+}
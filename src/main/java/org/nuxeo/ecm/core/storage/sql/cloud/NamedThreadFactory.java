@@ -0,0 +1,52 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql.cloud;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads named after a prefix and a counter, so that they
+ * never prevent the JVM from exiting.
+ */
+public class NamedThreadFactory implements ThreadFactory {
+
+    protected final String prefix;
+
+    protected final int priority;
+
+    protected final AtomicInteger count = new AtomicInteger();
+
+    public NamedThreadFactory(String prefix) {
+        this(prefix, Thread.NORM_PRIORITY);
+    }
+
+    /**
+     * @param priority the priority of the threads
+     */
+    public NamedThreadFactory(String prefix, int priority) {
+        this.prefix = prefix;
+        this.priority = priority;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        thread.setPriority(priority);
+        return thread;
+    }
+
+}
@@ -0,0 +1,328 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql.cloud;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Downloads binaries into the cache in the background, before they're read.
+ * <p>
+ * The downloads are done by a bounded pool of low priority threads, shared by
+ * all the prefetches. They also give way to the interactive reads: the
+ * fetches in progress not started by the prefetcher take up its slots, and a
+ * download only starts when one is free, waiting to be woken up by
+ * {@link #wakeUp} when an interactive fetch finishes. A prefetch returns a
+ * {@link Prefetch} handle to follow its progress, wait for it or cancel it.
+ * <p>
+ * Implementations check and download a single binary. This class is
+ * thread-safe.
+ */
+public abstract class Prefetcher {
+
+    private static final Log log = LogFactory.getLog(Prefetcher.class);
+
+    protected final int threads;
+
+    protected final ThreadPoolExecutor executor;
+
+    /** Number of downloads in progress. Guarded by this. */
+    protected int active;
+
+    /**
+     * @param name the name used for the threads
+     * @param threads the number of concurrent downloads
+     */
+    public Prefetcher(String name, int threads) {
+        this.threads = Math.max(threads, 1);
+        executor = new ThreadPoolExecutor(this.threads, this.threads, 0,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory(name, Thread.MIN_PRIORITY));
+    }
+
+    /**
+     * Checks if a binary is already in the cache.
+     */
+    protected abstract boolean isCached(String key);
+
+    /**
+     * Downloads a binary into the cache.
+     *
+     * @return {@code false} if the binary doesn't exist
+     */
+    protected abstract boolean fetch(String key) throws Exception;
+
+    /**
+     * Gets the number of fetches in progress, including the ones of the
+     * prefetcher. When it decreases {@link #wakeUp} must be called.
+     */
+    protected int getInFlightCount() {
+        return 0;
+    }
+
+    /**
+     * Wakes up the downloads waiting for a slot, to be called when an
+     * interactive fetch finishes.
+     */
+    public synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    /**
+     * Number of downloads waiting for a thread.
+     */
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Starts downloading the binaries missing from the cache.
+     *
+     * @param keys the binaries to download, duplicates are ignored
+     * @return a handle on the progress of the downloads
+     */
+    public Prefetch prefetch(Collection<String> keys) {
+        Set<String> unique = new LinkedHashSet<String>(keys);
+        Prefetch prefetch = new Prefetch(this, unique.size());
+        for (String key : unique) {
+            if (isCached(key)) {
+                prefetch.cached.incrementAndGet();
+                prefetch.completed();
+                continue;
+            }
+            executor.execute(new Task(prefetch, key));
+        }
+        return prefetch;
+    }
+
+    protected class Task implements Runnable {
+
+        protected final Prefetch prefetch;
+
+        protected final String key;
+
+        protected Task(Prefetch prefetch, String key) {
+            this.prefetch = prefetch;
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            download(prefetch, key);
+        }
+    }
+
+    protected void download(Prefetch prefetch, String key) {
+        try {
+            if (prefetch.isCancelled() || !acquire(prefetch)) {
+                return;
+            }
+            try {
+                if (fetch(key)) {
+                    prefetch.fetched.incrementAndGet();
+                } else {
+                    prefetch.missing.incrementAndGet();
+                }
+            } finally {
+                release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            prefetch.failed.incrementAndGet();
+            log.warn("Cannot prefetch binary: " + key + ": " + e);
+        } finally {
+            prefetch.completed();
+        }
+    }
+
+    /**
+     * Waits for a slot not used by the interactive fetches or the other
+     * downloads, and takes it.
+     *
+     * @return {@code false} if the prefetch was cancelled meanwhile
+     */
+    protected synchronized boolean acquire(Prefetch prefetch)
+            throws InterruptedException {
+        while (!prefetch.isCancelled()) {
+            int interactive = Math.max(getInFlightCount() - active, 0);
+            if (interactive + active < threads) {
+                active++;
+                return true;
+            }
+            wait();
+        }
+        return false;
+    }
+
+    protected synchronized void release() {
+        active--;
+        notifyAll();
+    }
+
+    /**
+     * Stops the downloads, cancelling the prefetches not complete.
+     */
+    public void shutdown() {
+        for (Runnable runnable : executor.shutdownNow()) {
+            if (runnable instanceof Task) {
+                ((Task) runnable).prefetch.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * The progress of a prefetch. Cancelling it completes it at once and skips
+     * the downloads not yet started, the ones in progress still complete.
+     */
+    public static class Prefetch implements Future<Void> {
+
+        protected final Prefetcher prefetcher;
+
+        protected final int total;
+
+        /** Number of binaries done or skipped. */
+        protected final AtomicInteger completed = new AtomicInteger();
+
+        /** Released when all the binaries are done, or when cancelled. */
+        protected final CountDownLatch done = new CountDownLatch(1);
+
+        protected final AtomicInteger cached = new AtomicInteger();
+
+        protected final AtomicInteger fetched = new AtomicInteger();
+
+        protected final AtomicInteger missing = new AtomicInteger();
+
+        protected final AtomicInteger failed = new AtomicInteger();
+
+        protected volatile boolean cancelled;
+
+        protected Prefetch(Prefetcher prefetcher, int total) {
+            this.prefetcher = prefetcher;
+            this.total = total;
+            if (total == 0) {
+                done.countDown();
+            }
+        }
+
+        protected void completed() {
+            if (completed.incrementAndGet() == total) {
+                done.countDown();
+            }
+        }
+
+        /**
+         * Number of distinct binaries to prefetch.
+         */
+        public int getTotal() {
+            return total;
+        }
+
+        /**
+         * Number of binaries done, whatever the outcome, or skipped.
+         */
+        public int getCompletedCount() {
+            return completed.get();
+        }
+
+        /**
+         * Number of binaries already in the cache.
+         */
+        public int getCachedCount() {
+            return cached.get();
+        }
+
+        /**
+         * Number of binaries downloaded.
+         */
+        public int getFetchedCount() {
+            return fetched.get();
+        }
+
+        /**
+         * Number of binaries that don't exist.
+         */
+        public int getMissingCount() {
+            return missing.get();
+        }
+
+        /**
+         * Number of binaries whose download failed.
+         */
+        public int getFailedCount() {
+            return failed.get();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (isDone()) {
+                    return false;
+                }
+                cancelled = true;
+                done.countDown();
+            }
+            // the downloads waiting for a slot give up
+            prefetcher.wakeUp();
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public Void get() throws InterruptedException {
+            done.await();
+            checkCancelled();
+            return null;
+        }
+
+        @Override
+        public Void get(long timeout, TimeUnit unit)
+                throws InterruptedException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            checkCancelled();
+            return null;
+        }
+
+        protected void checkCancelled() {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,310 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql.cloud;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Downloads an object as several byte ranges fetched concurrently, each one
+ * written at its position in the destination file.
+ * <p>
+ * The part size and the number of concurrent ranges adapt to the measured
+ * throughput, and what is learned is kept for the next downloads:
+ * <ul>
+ * <li>the part size is chosen so that fetching a range takes about
+ * {@link #TARGET_RANGE_TIME} at the throughput measured for a single range,
+ * so that slow connections don't leave a few huge ranges at the end, and fast
+ * ones don't pay a request latency every few megabytes,</li>
+ * <li>the concurrency is adjusted by hill climbing on the aggregate
+ * throughput: after each window of ranges it keeps moving in the same
+ * direction if the throughput improved, and turns back otherwise.</li>
+ * </ul>
+ * <p>
+ * The ranges of all the downloads are fetched by a fixed pool of
+ * {@code maxConcurrency} threads, so the downloads of a binary manager share
+ * them. If a range fails, the download waits for its ranges still being
+ * fetched before returning.
+ * <p>
+ * Implementations fetch a single range in {@link #fetchRange}. This class is
+ * thread-safe.
+ */
+public abstract class RangedDownloader {
+
+    private static final Log log = LogFactory.getLog(RangedDownloader.class);
+
+    public static final long DEFAULT_MIN_PART_SIZE = 4 * 1024 * 1024;
+
+    public static final long DEFAULT_MAX_PART_SIZE = 128 * 1024 * 1024;
+
+    /** Targeted duration of the fetch of one range, in nanoseconds. */
+    public static final long TARGET_RANGE_TIME = 2000L * 1000 * 1000;
+
+    /** Number of attempts for each range. */
+    protected static final int RETRIES = 3;
+
+    /** Minimum relative change considered as a throughput improvement. */
+    protected static final double IMPROVEMENT = 1.05;
+
+    protected final StreamingDownloader downloader;
+
+    protected final ExecutorService executor;
+
+    protected final int maxConcurrency;
+
+    protected final long minPartSize;
+
+    protected final long maxPartSize;
+
+    // adaptive state, guarded by this
+
+    protected long partSize;
+
+    protected int concurrency;
+
+    protected int direction = 1;
+
+    protected double lastThroughput;
+
+    /**
+     * @param name the name used for the download threads
+     * @param downloader the downloader used to write the ranges
+     * @param maxConcurrency the maximum number of ranges fetched at the same
+     *            time, for a download and for all of them
+     */
+    public RangedDownloader(String name, StreamingDownloader downloader,
+            int maxConcurrency) {
+        this(name, downloader, maxConcurrency, DEFAULT_MIN_PART_SIZE,
+                DEFAULT_MAX_PART_SIZE);
+    }
+
+    public RangedDownloader(String name, StreamingDownloader downloader,
+            int maxConcurrency, long minPartSize, long maxPartSize) {
+        this.downloader = downloader;
+        this.maxConcurrency = Math.max(maxConcurrency, 1);
+        this.minPartSize = minPartSize;
+        this.maxPartSize = Math.max(maxPartSize, minPartSize);
+        partSize = Math.min(4 * minPartSize, this.maxPartSize);
+        concurrency = Math.min(4, this.maxConcurrency);
+        executor = Executors.newFixedThreadPool(this.maxConcurrency,
+                new NamedThreadFactory(name));
+    }
+
+    /**
+     * Fetches the range [start, end] (inclusive) of an object, writing it at
+     * the same position in the channel, see
+     * {@link StreamingDownloader#transfer}.
+     *
+     * @return the number of bytes written
+     */
+    protected abstract long fetchRange(String key, long start, long end,
+            FileChannel channel) throws IOException;
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public synchronized long getPartSize() {
+        return partSize;
+    }
+
+    public synchronized int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Downloads an object into a file, replacing its content.
+     *
+     * @param length the length of the object
+     */
+    public void download(final String key, long length, File file)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+            final FileChannel channel = raf.getChannel();
+            CompletionService<long[]> completionService = new ExecutorCompletionService<long[]>(
+                    executor);
+            TaskGroup ranges = new TaskGroup();
+            boolean ok = false;
+            try {
+                long next = 0;
+                int inFlight = 0;
+                long windowStart = System.nanoTime();
+                long windowBytes = 0;
+                int windowRanges = 0;
+                while (next < length || inFlight > 0) {
+                    int maxInFlight = getConcurrency();
+                    long size = getPartSize();
+                    while (next < length && inFlight < maxInFlight) {
+                        final long start = next;
+                        final long end = Math.min(start + size, length) - 1;
+                        ranges.submit(completionService, new Callable<long[]>() {
+                            @Override
+                            public long[] call() throws Exception {
+                                return fetchRangeWithRetry(key, start, end,
+                                        channel);
+                            }
+                        });
+                        next = end + 1;
+                        inFlight++;
+                    }
+                    long[] result = get(completionService);
+                    inFlight--;
+                    rangeDone(result[0], result[1]);
+                    windowBytes += result[0];
+                    if (++windowRanges >= maxInFlight) {
+                        long now = System.nanoTime();
+                        windowDone(windowBytes, now - windowStart);
+                        windowStart = now;
+                        windowBytes = 0;
+                        windowRanges = 0;
+                    }
+                }
+                ok = true;
+            } finally {
+                if (!ok) {
+                    // don't close the file under the running ranges
+                    ranges.cancelAndAwait();
+                }
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the number of bytes and the duration in nanoseconds
+     */
+    protected long[] fetchRangeWithRetry(String key, long start, long end,
+            FileChannel channel) throws IOException, InterruptedException {
+        for (int attempt = 1;; attempt++) {
+            long t0 = System.nanoTime();
+            try {
+                long n = fetchRange(key, start, end, channel);
+                if (n != end - start + 1) {
+                    throw new IOException("Incomplete range " + start + "-"
+                            + end + " of " + key + ": " + n + " bytes");
+                }
+                return new long[] { n, System.nanoTime() - t0 };
+            } catch (IOException e) {
+                if (attempt >= RETRIES || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                log.warn("Retrying range " + start + "-" + end + " of " + key
+                        + ": " + e);
+                Thread.sleep(100L << attempt);
+            }
+        }
+    }
+
+    protected static long[] get(CompletionService<long[]> completionService)
+            throws IOException {
+        try {
+            return completionService.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            IOException ioe = new IOException(cause.toString());
+            ioe.initCause(cause);
+            throw ioe;
+        }
+    }
+
+    /**
+     * Adapts the part size to the throughput of a single range.
+     */
+    protected synchronized void rangeDone(long bytes, long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        double rangeThroughput = (double) bytes / nanos;
+        long size = (long) (rangeThroughput * TARGET_RANGE_TIME);
+        // smooth the changes
+        size = (partSize + size) / 2;
+        partSize = Math.max(minPartSize, Math.min(maxPartSize, size));
+    }
+
+    /**
+     * Adapts the concurrency to the aggregate throughput of a window.
+     */
+    protected synchronized void windowDone(long bytes, long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        double throughput = (double) bytes / nanos;
+        if (lastThroughput > 0 && throughput < lastThroughput * IMPROVEMENT) {
+            // no improvement, turn back
+            direction = -direction;
+        }
+        lastThroughput = throughput;
+        concurrency = Math.max(1, Math.min(maxConcurrency, concurrency
+                + direction));
+        if (log.isDebugEnabled()) {
+            log.debug(String.format(
+                    "Ranged download at %.1f MB/s, concurrency: %d, part size: %d",
+                    Double.valueOf(throughput * 1000), Integer.valueOf(concurrency),
+                    Long.valueOf(partSize)));
+        }
+    }
+
+    /**
+     * Checks that the digest of a file is the expected one.
+     */
+    public static boolean checkDigest(File file, String algorithm,
+            String expected) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        byte[] buf = new byte[64 * 1024];
+        InputStream in = new FileInputStream(file);
+        try {
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                digest.update(buf, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return DigestGenerator.toHexString(digest.digest()).equals(expected);
+    }
+
+}
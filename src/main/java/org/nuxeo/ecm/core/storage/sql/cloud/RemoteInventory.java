@@ -0,0 +1,343 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql.cloud;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A local index of the objects known to be stored remotely, with their
+ * length, so that existence and length queries don't need a request.
+ * <p>
+ * The index is kept in memory and persisted in an append-only file of fixed
+ * size records, written through a memory-mapped window that moves forward as
+ * the file grows. Each record holds a key and its length, or a removal, and a
+ * checksum, so that a record torn by a crash ends the file when it's read
+ * back. The file is compacted when opened if it has too many dead records.
+ * <p>
+ * An object must be removed from the index <em>before</em> it's deleted
+ * remotely: a removal is synced to disk immediately, while additions are not,
+ * as losing one only costs a request.
+ * <p>
+ * Keys longer than {@link #MAX_KEY_LENGTH} are never indexed. This class is
+ * thread-safe.
+ */
+public class RemoteInventory {
+
+    private static final Log log = LogFactory.getLog(RemoteInventory.class);
+
+    public static final int RECORD_SIZE = 80;
+
+    /** Key length, key, length, checksum. */
+    public static final int MAX_KEY_LENGTH = RECORD_SIZE - 1 - 8 - 4;
+
+    protected static final int LENGTH_OFFSET = 1 + MAX_KEY_LENGTH;
+
+    protected static final int CHECKSUM_OFFSET = LENGTH_OFFSET + 8;
+
+    /** Length recorded for a removal. */
+    protected static final long REMOVED = -1;
+
+    /** Size of the mapped window, a multiple of the record size. */
+    protected static final int WINDOW_SIZE = RECORD_SIZE * 64 * 1024;
+
+    /** Minimum number of dead records before a compaction. */
+    protected static final int COMPACT_THRESHOLD = 100000;
+
+    protected final File file;
+
+    protected final Map<String, Long> lengths = new ConcurrentHashMap<String, Long>();
+
+    // guarded by this
+
+    protected RandomAccessFile raf;
+
+    protected FileChannel channel;
+
+    protected MappedByteBuffer window;
+
+    /** Position of the window in the file. */
+    protected long windowStart;
+
+    /** Number of records in the file. */
+    protected long records;
+
+    protected final byte[] record = new byte[RECORD_SIZE];
+
+    protected final CRC32 crc = new CRC32();
+
+    /**
+     * Opens an inventory file, creating it if needed.
+     */
+    public RemoteInventory(File file) throws IOException {
+        this.file = file;
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        read();
+        if (records - lengths.size() > COMPACT_THRESHOLD
+                && records > 2 * lengths.size()) {
+            compact();
+        }
+        map(records * RECORD_SIZE);
+        log.info("Opened remote inventory " + file + ": " + lengths.size()
+                + " objects");
+    }
+
+    /**
+     * Reads the records until the end of the file or the first invalid one,
+     * truncating the file after the valid ones.
+     */
+    protected void read() throws IOException {
+        long size = channel.size();
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE * 1024);
+        long pos = 0;
+        channel.position(0);
+        reading: while (pos + RECORD_SIZE <= size) {
+            buf.clear();
+            while (buf.hasRemaining() && channel.read(buf) != -1) {
+                // fill
+            }
+            buf.flip();
+            while (buf.remaining() >= RECORD_SIZE) {
+                buf.get(record);
+                if (!apply()) {
+                    break reading;
+                }
+                pos += RECORD_SIZE;
+                records++;
+            }
+        }
+        if (pos < size) {
+            if (record[0] != 0) {
+                log.warn("Ignoring invalid end of remote inventory " + file
+                        + " at " + pos);
+            }
+            channel.truncate(pos);
+        }
+    }
+
+    /**
+     * Applies the record read in the buffer.
+     *
+     * @return {@code false} if the record is invalid
+     */
+    protected boolean apply() throws IOException {
+        int keyLength = record[0] & 0xff;
+        if (keyLength == 0 || keyLength > MAX_KEY_LENGTH) {
+            return false;
+        }
+        crc.reset();
+        crc.update(record, 0, CHECKSUM_OFFSET);
+        if ((int) crc.getValue() != ByteBuffer.wrap(record).getInt(
+                CHECKSUM_OFFSET)) {
+            return false;
+        }
+        String key = new String(record, 1, keyLength, "ISO-8859-1");
+        long length = ByteBuffer.wrap(record).getLong(LENGTH_OFFSET);
+        if (length == REMOVED) {
+            lengths.remove(key);
+        } else {
+            lengths.put(key, Long.valueOf(length));
+        }
+        return true;
+    }
+
+    /**
+     * Rewrites the file with only the live records, atomically.
+     */
+    protected void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile tmpRaf = new RandomAccessFile(tmp, "rw");
+        try {
+            tmpRaf.setLength(0);
+            FileChannel tmpChannel = tmpRaf.getChannel();
+            ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE * 1024);
+            for (Entry<String, Long> es : lengths.entrySet()) {
+                encode(es.getKey(), es.getValue().longValue());
+                if (buf.remaining() < RECORD_SIZE) {
+                    buf.flip();
+                    while (buf.hasRemaining()) {
+                        tmpChannel.write(buf);
+                    }
+                    buf.clear();
+                }
+                buf.put(record);
+            }
+            buf.flip();
+            while (buf.hasRemaining()) {
+                tmpChannel.write(buf);
+            }
+            tmpChannel.force(false);
+        } finally {
+            tmpRaf.close();
+        }
+        raf.close();
+        if (!tmp.renameTo(file)) {
+            // not atomic on all platforms
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmp + " to " + file);
+            }
+        }
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        log.info("Compacted remote inventory " + file + " from " + records
+                + " to " + lengths.size() + " records");
+        records = lengths.size();
+    }
+
+    /**
+     * Maps the window starting at the given position.
+     */
+    protected void map(long start) throws IOException {
+        windowStart = start;
+        window = channel.map(MapMode.READ_WRITE, start, WINDOW_SIZE);
+    }
+
+    /**
+     * Encodes a record into the record buffer.
+     */
+    protected void encode(String key, long length) {
+        int keyLength = key.length();
+        record[0] = (byte) keyLength;
+        for (int i = 0; i < MAX_KEY_LENGTH; i++) {
+            record[1 + i] = i < keyLength ? (byte) key.charAt(i) : 0;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(record);
+        buf.putLong(LENGTH_OFFSET, length);
+        crc.reset();
+        crc.update(record, 0, CHECKSUM_OFFSET);
+        buf.putInt(CHECKSUM_OFFSET, (int) crc.getValue());
+    }
+
+    protected static boolean isIndexable(String key) {
+        int len = key.length();
+        if (len == 0 || len > MAX_KEY_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (key.charAt(i) > 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected void append(String key, long length, boolean sync)
+            throws IOException {
+        if (window == null) {
+            throw new IOException("Remote inventory closed: " + file);
+        }
+        encode(key, length);
+        if (!window.hasRemaining()) {
+            window.force();
+            map(windowStart + WINDOW_SIZE);
+        }
+        window.put(record);
+        records++;
+        if (sync) {
+            window.force();
+        }
+    }
+
+    /**
+     * Gets the length of an object known to be stored.
+     *
+     * @return the length, or {@code null} if unknown
+     */
+    public Long getLength(String key) {
+        return lengths.get(key);
+    }
+
+    /**
+     * Checks if an object is known to be stored.
+     */
+    public boolean contains(String key) {
+        return lengths.containsKey(key);
+    }
+
+    public int size() {
+        return lengths.size();
+    }
+
+    /**
+     * Records an object known to be stored.
+     */
+    public synchronized void put(String key, long length) {
+        if (!isIndexable(key) || length < 0) {
+            return;
+        }
+        Long old = lengths.put(key, Long.valueOf(length));
+        if (old != null && old.longValue() == length) {
+            return;
+        }
+        try {
+            append(key, length, false);
+        } catch (IOException e) {
+            log.error("Cannot write remote inventory " + file, e);
+        }
+    }
+
+    /**
+     * Forgets an object, before it's deleted. The removal is on disk when
+     * this returns.
+     *
+     * @throws IOException if the removal cannot be written, in which case
+     *             the object must not be deleted
+     */
+    public synchronized void remove(String key) throws IOException {
+        if (lengths.remove(key) == null) {
+            return;
+        }
+        append(key, REMOVED, true);
+    }
+
+    /**
+     * Closes the file, truncating the unused end of the mapped window.
+     */
+    public synchronized void close() {
+        if (window == null) {
+            return;
+        }
+        try {
+            window.force();
+            window = null;
+            // the mapping is released by the GC, truncate may fail on some
+            // platforms while it's mapped, which is harmless as zeros end
+            // the file when read
+            try {
+                channel.truncate(records * RECORD_SIZE);
+            } catch (IOException e) {
+                log.debug("Cannot truncate remote inventory " + file, e);
+            }
+            raf.close();
+        } catch (IOException e) {
+            log.error("Cannot close remote inventory " + file, e);
+        }
+    }
+
+}
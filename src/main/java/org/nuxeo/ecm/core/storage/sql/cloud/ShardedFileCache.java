@@ -0,0 +1,298 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql.cloud;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A file cache spread over several directories, typically on different
+ * disks, each one a {@link CloudFileCache} with its own size, index and lock,
+ * so that the disks and the locks are used in parallel.
+ * <p>
+ * A key always goes to the same shard, chosen from its first eight
+ * characters when they're hexadecimal, as for digests, otherwise from its
+ * hash code. The cache directory itself only holds the lock and the files of
+ * the binary manager, like the journal of the write-behind uploads.
+ * <p>
+ * A temporary file must be in the shard of its key to be put by a rename:
+ * {@link #getTempFile(String)} creates it there, whereas {@link #getTempFile()}
+ * picks the shards in turn and the file is copied to the right one if needed.
+ */
+public class ShardedFileCache extends CloudFileCache {
+
+    /** Number of leading characters of a key used to choose its shard. */
+    protected static final int PREFIX_LENGTH = 8;
+
+    protected final CloudFileCache[] shards;
+
+    protected final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param dir the directory for the lock and the binary manager files
+     * @param shards the caches holding the files, in distinct directories
+     *            from {@code dir}, closed by {@link #close}
+     */
+    public ShardedFileCache(File dir, List<CloudFileCache> shards)
+            throws IOException {
+        super(dir, getTotalSize(shards));
+        this.shards = shards.toArray(new CloudFileCache[shards.size()]);
+    }
+
+    protected static long getTotalSize(List<CloudFileCache> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("No cache shards");
+        }
+        long total = 0;
+        for (CloudFileCache shard : shards) {
+            total += shard.getMaxSize();
+        }
+        return total;
+    }
+
+    public List<CloudFileCache> getShards() {
+        return Arrays.asList(shards);
+    }
+
+    /**
+     * Gets the shard holding a key.
+     */
+    public CloudFileCache getShard(String key) {
+        int n = shards.length;
+        if (key.length() >= PREFIX_LENGTH) {
+            long prefix = 0;
+            int i = 0;
+            for (; i < PREFIX_LENGTH; i++) {
+                int digit = Character.digit(key.charAt(i), 16);
+                if (digit < 0) {
+                    break;
+                }
+                prefix = (prefix << 4) | digit;
+            }
+            if (i == PREFIX_LENGTH) {
+                return shards[(int) (prefix % n)];
+            }
+        }
+        return shards[(key.hashCode() & Integer.MAX_VALUE) % n];
+    }
+
+    /**
+     * Rebuilds the indexes of all the shards at the same time.
+     */
+    @Override
+    public void rebuild(final int threads, final long timeout) {
+        Thread[] rebuilders = new Thread[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            final CloudFileCache shard = shards[i];
+            rebuilders[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    shard.rebuild(threads, timeout);
+                }
+            }, "Nuxeo-FileCache-Rebuild-Shard-" + i);
+            rebuilders[i].setDaemon(true);
+            rebuilders[i].start();
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            for (Thread rebuilder : rebuilders) {
+                long delay = deadline - System.currentTimeMillis();
+                if (delay <= 0) {
+                    break;
+                }
+                rebuilder.join(delay);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRebuilding() {
+        for (CloudFileCache shard : shards) {
+            if (shard.isRebuilding()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void pin(String key) {
+        getShard(key).pin(key);
+    }
+
+    @Override
+    public void unpin(String key) {
+        getShard(key).unpin(key);
+    }
+
+    @Override
+    public boolean isPinned(String key) {
+        return getShard(key).isPinned(key);
+    }
+
+    @Override
+    public long getSize() {
+        long total = 0;
+        for (CloudFileCache shard : shards) {
+            total += shard.getSize();
+        }
+        return total;
+    }
+
+    @Override
+    public int getNumberOfItems() {
+        int total = 0;
+        for (CloudFileCache shard : shards) {
+            total += shard.getNumberOfItems();
+        }
+        return total;
+    }
+
+    @Override
+    public long getPinnedSize() {
+        long total = 0;
+        for (CloudFileCache shard : shards) {
+            total += shard.getPinnedSize();
+        }
+        return total;
+    }
+
+    @Override
+    public InputStream getStream(String key) throws IOException {
+        return getShard(key).getStream(key);
+    }
+
+    @Override
+    public InputStream getStream(String key, long offset, long length)
+            throws IOException {
+        return getShard(key).getStream(key, offset, length);
+    }
+
+    @Override
+    public long getThrottledCount() {
+        long total = 0;
+        for (CloudFileCache shard : shards) {
+            total += shard.getThrottledCount();
+        }
+        return total;
+    }
+
+    /**
+     * Starts the janitor of each shard, with watermarks in proportion to its
+     * size.
+     */
+    @Override
+    public void startJanitor(long highWatermark, long lowWatermark) {
+        for (CloudFileCache shard : shards) {
+            double ratio = (double) shard.getMaxSize() / maxSize;
+            shard.startJanitor((long) (highWatermark * ratio),
+                    (long) (lowWatermark * ratio));
+        }
+    }
+
+    @Override
+    public File getTempFile() throws IOException {
+        int i = (next.getAndIncrement() & Integer.MAX_VALUE) % shards.length;
+        return shards[i].getTempFile();
+    }
+
+    @Override
+    public File getTempFile(String key) throws IOException {
+        return getShard(key).getTempFile();
+    }
+
+    @Override
+    public File putFile(String key, InputStream in) throws IOException {
+        return getShard(key).putFile(key, in);
+    }
+
+    @Override
+    public File putFile(String key, File tmp) throws IOException {
+        CloudFileCache shard = getShard(key);
+        if (!shard.tmpDir.equals(tmp.getParentFile())) {
+            tmp = move(tmp, shard);
+        }
+        return shard.putFile(key, tmp);
+    }
+
+    /**
+     * Moves a temporary file to the temporary directory of a shard, copying
+     * it if it's on another file system.
+     */
+    protected static File move(File tmp, CloudFileCache shard)
+            throws IOException {
+        File file = shard.getTempFile();
+        if (tmp.renameTo(file)) {
+            return file;
+        }
+        FileInputStream in = new FileInputStream(tmp);
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                FileChannel src = in.getChannel();
+                FileChannel dst = out.getChannel();
+                long length = src.size();
+                long pos = 0;
+                while (pos < length) {
+                    pos += src.transferTo(pos, length - pos, dst);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        } finally {
+            in.close();
+        }
+        tmp.delete();
+        return file;
+    }
+
+    @Override
+    public File getFile(String key) {
+        return getShard(key).getFile(key);
+    }
+
+    @Override
+    public void remove(String key) {
+        getShard(key).remove(key);
+    }
+
+    @Override
+    public void clear() {
+        for (CloudFileCache shard : shards) {
+            shard.clear();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (CloudFileCache shard : shards) {
+            shard.close();
+        }
+        super.close();
+    }
+
+}
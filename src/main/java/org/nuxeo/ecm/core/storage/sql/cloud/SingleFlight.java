@@ -0,0 +1,143 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql.cloud;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent computations for the same key: the first caller runs
+ * the computation in its own thread, and the callers arriving while it is in
+ * flight wait for it and get the same result (or exception).
+ * <p>
+ * Once the computation is done the key is forgotten, so the computation
+ * should itself check whether its result is already available (in a cache)
+ * before doing the real work.
+ */
+public class SingleFlight<V> {
+
+    protected final ConcurrentMap<String, FutureTask<V>> inFlight = new ConcurrentHashMap<String, FutureTask<V>>();
+
+    protected final AtomicLong executed = new AtomicLong();
+
+    protected final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Runs the computation for the key, or waits for the one already in
+     * flight.
+     */
+    public V execute(String key, Callable<V> callable) throws IOException {
+        FutureTask<V> task = new FutureTask<V>(callable);
+        FutureTask<V> existing = inFlight.putIfAbsent(key, task);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return get(existing);
+        }
+        executed.incrementAndGet();
+        try {
+            task.run();
+        } finally {
+            inFlight.remove(key, task);
+            finished(key);
+        }
+        return get(task);
+    }
+
+    /**
+     * Registers a computation running in the background, so that the callers
+     * of {@link #execute} for the key wait for it. Once the computation is
+     * done, the task must be unregistered with {@link #done}, then run.
+     *
+     * @return the computation already in flight for the key, in which case
+     *         the task is not registered, or {@code null}
+     */
+    public FutureTask<V> register(String key, FutureTask<V> task) {
+        FutureTask<V> existing = inFlight.putIfAbsent(key, task);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+        } else {
+            executed.incrementAndGet();
+        }
+        return existing;
+    }
+
+    /**
+     * Unregisters a computation registered with {@link #register}.
+     */
+    public void done(String key, FutureTask<V> task) {
+        if (inFlight.remove(key, task)) {
+            finished(key);
+        }
+    }
+
+    /**
+     * Called when a computation is no longer in flight, for instance to wake
+     * up the threads waiting for fewer computations in flight.
+     */
+    protected void finished(String key) {
+    }
+
+    protected V get(FutureTask<V> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            IOException ioe = new IOException(cause.toString());
+            ioe.initCause(cause);
+            throw ioe;
+        }
+    }
+
+    /**
+     * Number of computations currently in flight.
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Number of computations actually run.
+     */
+    public long getExecutedCount() {
+        return executed.get();
+    }
+
+    /**
+     * Number of calls that waited for a computation already in flight instead
+     * of running their own.
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+}
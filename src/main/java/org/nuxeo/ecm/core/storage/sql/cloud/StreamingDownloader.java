@@ -0,0 +1,115 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql.cloud;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Copies a response body straight to a local file through a
+ * {@link FileChannel}.
+ * <p>
+ * The body is never held in memory as a whole: it goes through a large buffer
+ * that is allocated once per thread and reused for all the following
+ * downloads done by that thread. The stream is read directly into the backing
+ * array of the buffer, and the buffer is only flushed to the channel once
+ * full, which keeps the number of system calls low for big binaries.
+ */
+public class StreamingDownloader {
+
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    protected final int bufferSize;
+
+    protected final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(bufferSize);
+        }
+    };
+
+    public StreamingDownloader() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    public StreamingDownloader(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Writes the whole stream to the given file, replacing its content. The
+     * stream is not closed.
+     *
+     * @return the number of bytes written
+     */
+    public long download(InputStream in, File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            long length = transfer(in, channel, 0);
+            channel.truncate(length);
+            return length;
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the whole stream to the channel, starting at the given position.
+     * The channel position itself is not used or updated, so several
+     * transfers may target disjoint regions of the same channel concurrently.
+     * The stream is not closed.
+     *
+     * @return the number of bytes written
+     */
+    public long transfer(InputStream in, FileChannel channel, long position)
+            throws IOException {
+        ByteBuffer buffer = buffers.get();
+        byte[] array = buffer.array();
+        long total = 0;
+        int filled = 0;
+        for (;;) {
+            int n = in.read(array, filled, array.length - filled);
+            if (n == -1) {
+                break;
+            }
+            filled += n;
+            if (filled == array.length) {
+                total += flush(buffer, filled, channel, position + total);
+                filled = 0;
+            }
+        }
+        if (filled > 0) {
+            total += flush(buffer, filled, channel, position + total);
+        }
+        return total;
+    }
+
+    protected static int flush(ByteBuffer buffer, int length,
+            FileChannel channel, long position) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        long pos = position;
+        while (buffer.hasRemaining()) {
+            pos += channel.write(buffer, pos);
+        }
+        return length;
+    }
+
+}
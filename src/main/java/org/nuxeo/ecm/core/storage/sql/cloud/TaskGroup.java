@@ -0,0 +1,109 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql.cloud;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * The tasks of one operation, for instance the parts of a download, submitted
+ * to an executor shared with other operations.
+ * <p>
+ * When the operation fails, {@link #cancelAndAwait} cancels the tasks and
+ * waits for the ones already running, as cancelling a future doesn't stop
+ * its task, so that the resources they use can then be released. The tasks
+ * are submitted by a single thread, the other methods are thread-safe.
+ */
+public class TaskGroup {
+
+    protected final List<Future<?>> futures = new ArrayList<Future<?>>();
+
+    /** Guarded by this. */
+    protected int running;
+
+    /** Guarded by this. */
+    protected boolean cancelled;
+
+    public <T> Future<T> submit(ExecutorService executor, Callable<T> task) {
+        Future<T> future = executor.submit(wrap(task));
+        futures.add(future);
+        return future;
+    }
+
+    public <T> Future<T> submit(CompletionService<T> completionService,
+            Callable<T> task) {
+        Future<T> future = completionService.submit(wrap(task));
+        futures.add(future);
+        return future;
+    }
+
+    /**
+     * Wraps a task so that it's counted while running, and not started once
+     * cancelled.
+     */
+    protected <T> Callable<T> wrap(final Callable<T> task) {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                synchronized (TaskGroup.this) {
+                    if (cancelled) {
+                        throw new CancellationException();
+                    }
+                    running++;
+                }
+                try {
+                    return task.call();
+                } finally {
+                    synchronized (TaskGroup.this) {
+                        running--;
+                        TaskGroup.this.notifyAll();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Cancels the tasks, interrupting the running ones, and waits until none
+     * is running.
+     */
+    public void cancelAndAwait() {
+        synchronized (this) {
+            cancelled = true;
+        }
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+        boolean interrupted = false;
+        synchronized (this) {
+            while (running > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
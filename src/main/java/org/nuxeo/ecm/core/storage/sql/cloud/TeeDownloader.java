@@ -0,0 +1,512 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql.cloud;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.common.file.FileCache;
+
+/**
+ * Serves the content of a binary while it is being downloaded to the cache.
+ * <p>
+ * The first reader of a missing binary opens the remote stream, which is then
+ * copied by a background thread into a temporary file of the cache. The
+ * readers (the first one and those arriving during the download) follow the
+ * temporary file as it grows, so that the first bytes are available as soon
+ * as they are received. When the download is complete, the digest of the
+ * content is checked and only then is the file put in the cache; if it
+ * doesn't match, the readers get an error instead of the end of the stream.
+ * <p>
+ * With the {@link SingleFlight} of the fetches of the binary manager, a
+ * download is registered as a fetch in progress: a complete fetch of the
+ * same binary waits for it, and a download isn't started while the binary is
+ * being fetched completely, the reader waiting for the fetch instead.
+ * <p>
+ * The downloads are copied by a bounded pool of threads. When they're all
+ * busy, the first reader downloads the binary completely itself before
+ * reading it, as without streaming.
+ * <p>
+ * This class is thread-safe.
+ */
+public class TeeDownloader {
+
+    private static final Log log = LogFactory.getLog(TeeDownloader.class);
+
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Maximum number of concurrent streamed downloads. */
+    public static final int DEFAULT_MAX_THREADS = 16;
+
+    /** Time after which an idle download thread stops, in seconds. */
+    protected static final long KEEP_ALIVE = 60;
+
+    /**
+     * The source of the content of a binary.
+     */
+    public interface Source {
+
+        /**
+         * Opens the remote content.
+         *
+         * @return the stream, or {@code null} if the binary doesn't exist
+         */
+        InputStream open() throws IOException;
+    }
+
+    protected final FileCache fileCache;
+
+    protected final SingleFlight<File> fetches;
+
+    protected final ExecutorService executor;
+
+    protected final ConcurrentMap<String, Download> downloads = new ConcurrentHashMap<String, Download>();
+
+    protected final AtomicLong started = new AtomicLong();
+
+    protected final AtomicLong followed = new AtomicLong();
+
+    protected final AtomicLong saturated = new AtomicLong();
+
+    public TeeDownloader(String name, FileCache fileCache) {
+        this(name, fileCache, DEFAULT_MAX_THREADS);
+    }
+
+    /**
+     * @param maxThreads the maximum number of downloads streamed at the same
+     *            time
+     */
+    public TeeDownloader(String name, FileCache fileCache, int maxThreads) {
+        this(name, fileCache, maxThreads, null);
+    }
+
+    /**
+     * @param fetches the complete fetches in progress, shared with the
+     *            binaries of the manager, or {@code null}
+     * @see #TeeDownloader(String, FileCache, int)
+     */
+    public TeeDownloader(String name, FileCache fileCache, int maxThreads,
+            SingleFlight<File> fetches) {
+        this.fileCache = fileCache;
+        this.fetches = fetches;
+        executor = new ThreadPoolExecutor(0, Math.max(maxThreads, 1),
+                KEEP_ALIVE, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new NamedThreadFactory(name));
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Number of downloads started.
+     */
+    public long getStartedCount() {
+        return started.get();
+    }
+
+    /**
+     * Number of readers that followed a download started by another one.
+     */
+    public long getFollowedCount() {
+        return followed.get();
+    }
+
+    /**
+     * Number of downloads done by their first reader before reading, as all
+     * the threads were busy.
+     */
+    public long getSaturatedCount() {
+        return saturated.get();
+    }
+
+    /**
+     * Gets a stream on the content of a binary, from the cache if present,
+     * otherwise from a download in progress, starting it if needed.
+     *
+     * @param digest the digest of the binary, also its key in the cache
+     * @param algorithm the digest algorithm
+     * @param source the remote content
+     * @return the stream, or {@code null} if the binary doesn't exist
+     */
+    public InputStream getStream(String digest, String algorithm,
+            Source source) throws IOException {
+        File file = fileCache.getFile(digest);
+        if (file != null) {
+            return CloudFileCache.getStream(fileCache, digest, file);
+        }
+        Download download = new Download(digest, fileCache);
+        Download existing = downloads.putIfAbsent(digest, download);
+        if (existing != null) {
+            followed.incrementAndGet();
+            return existing.newStream();
+        }
+        try {
+            // may have been put by a download that just finished
+            file = fileCache.getFile(digest);
+            if (file != null) {
+                download.finish(file, null);
+                return CloudFileCache.getStream(fileCache, digest, file);
+            }
+            if (fetches != null) {
+                FutureTask<File> fetch = fetches.register(digest,
+                        download.task);
+                if (fetch != null) {
+                    // being fetched completely, wait for it
+                    followed.incrementAndGet();
+                    file = fetches.get(fetch);
+                    download.finish(file, null);
+                    return file == null ? null : CloudFileCache.getStream(
+                            fileCache, digest, file);
+                }
+                download.registered = true;
+            }
+            started.incrementAndGet();
+            start(download, algorithm, source);
+        } catch (IOException e) {
+            download.finish(null, e);
+            throw e;
+        } catch (RuntimeException e) {
+            download.finish(null, new IOException(e.toString()));
+            throw e;
+        } finally {
+            if (download.isDone()) {
+                finished(download);
+            }
+        }
+        return download.newStream();
+    }
+
+    /**
+     * Forgets a download once done, releasing the fetches waiting for it.
+     */
+    protected void finished(Download download) {
+        downloads.remove(download.digest, download);
+        if (download.registered) {
+            // no longer in flight once the waiting fetches are released
+            fetches.done(download.digest, download.task);
+            download.task.run();
+        }
+    }
+
+    protected void start(final Download download, String algorithm,
+            Source source) throws IOException {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        final InputStream in = source.open();
+        if (in == null) {
+            download.finish(null, null);
+            return;
+        }
+        OutputStream out = null;
+        boolean ok = false;
+        try {
+            download.tmp = CloudFileCache.getTempFile(fileCache,
+                    download.digest);
+            out = new FileOutputStream(download.tmp);
+            final OutputStream fout = out;
+            Runnable copier = new Runnable() {
+                @Override
+                public void run() {
+                    copy(download, in, fout, md);
+                }
+            };
+            download.started();
+            ok = true;
+            try {
+                executor.execute(copier);
+            } catch (RejectedExecutionException e) {
+                // all the threads busy, download before reading
+                saturated.incrementAndGet();
+                copier.run();
+            }
+        } finally {
+            if (!ok) {
+                in.close();
+                if (out != null) {
+                    out.close();
+                }
+                if (download.tmp != null) {
+                    download.tmp.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the remote content to the temporary file, then puts it in the
+     * cache if its digest is correct.
+     */
+    protected void copy(Download download, InputStream in, OutputStream out,
+            MessageDigest md) {
+        File file = null;
+        IOException error = null;
+        try {
+            try {
+                byte[] buf = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    out.write(buf, 0, n);
+                    md.update(buf, 0, n);
+                    download.written(n);
+                }
+            } finally {
+                try {
+                    in.close();
+                } finally {
+                    out.close();
+                }
+            }
+            String actual = DigestGenerator.toHexString(md.digest());
+            if (!actual.equals(download.digest)) {
+                throw new IOException("Invalid digest for downloaded binary: "
+                        + download.digest + ", got: " + actual);
+            }
+            file = fileCache.putFile(download.digest, download.tmp);
+        } catch (IOException e) {
+            log.error("Cannot download binary: " + download.digest, e);
+            download.tmp.delete();
+            error = e;
+        } catch (RuntimeException e) {
+            log.error("Cannot download binary: " + download.digest, e);
+            download.tmp.delete();
+            error = new IOException(e.toString());
+            error.initCause(e);
+        } finally {
+            download.finish(file, error);
+            finished(download);
+        }
+    }
+
+    /**
+     * The state of a download, shared by its readers. Guarded by this.
+     */
+    protected static class Download {
+
+        protected final String digest;
+
+        protected final FileCache fileCache;
+
+        protected File tmp;
+
+        /** Whether the remote stream is open and the temporary file exists. */
+        protected boolean started;
+
+        protected long written;
+
+        protected boolean done;
+
+        /** The cached file once done, {@code null} if missing or failed. */
+        protected File file;
+
+        protected IOException error;
+
+        /** Gives the result to the complete fetches waiting for it. */
+        protected final FutureTask<File> task;
+
+        /** Whether the task is registered in the fetches in progress. */
+        protected boolean registered;
+
+        protected Download(String digest, FileCache fileCache) {
+            this.digest = digest;
+            this.fileCache = fileCache;
+            task = new FutureTask<File>(new Callable<File>() {
+                @Override
+                public File call() throws IOException {
+                    return getFile();
+                }
+            });
+        }
+
+        /**
+         * Gets the cached file once done.
+         *
+         * @return the file, or {@code null} if the binary doesn't exist
+         */
+        protected synchronized File getFile() throws IOException {
+            checkError();
+            return file;
+        }
+
+        protected synchronized void started() {
+            started = true;
+            notifyAll();
+        }
+
+        protected synchronized void written(long n) {
+            written += n;
+            notifyAll();
+        }
+
+        protected synchronized void finish(File file, IOException error) {
+            this.file = file;
+            this.error = error;
+            done = true;
+            notifyAll();
+        }
+
+        protected synchronized boolean isDone() {
+            return done;
+        }
+
+        /**
+         * @return a new stream, or {@code null} if the binary doesn't exist
+         */
+        protected synchronized InputStream newStream() throws IOException {
+            while (!started && !done) {
+                await();
+            }
+            if (!done) {
+                try {
+                    // once open, the file may be renamed or deleted
+                    return new FollowerInputStream(this, new RandomAccessFile(
+                            tmp, "r"));
+                } catch (FileNotFoundException e) {
+                    // just put in the cache, or deleted on failure
+                    while (!done) {
+                        await();
+                    }
+                }
+            }
+            checkError();
+            return file == null ? null : CloudFileCache.getStream(fileCache,
+                    digest, file);
+        }
+
+        /**
+         * Waits until there are bytes available after the position.
+         *
+         * @return the number of bytes available, or -1 at the end
+         */
+        protected synchronized long available(long pos) throws IOException {
+            while (written <= pos && !done) {
+                await();
+            }
+            if (written > pos) {
+                return written - pos;
+            }
+            checkError();
+            return -1;
+        }
+
+        /**
+         * Throws the error of the download, wrapped as it's shared by all the
+         * readers.
+         */
+        protected void checkError() throws IOException {
+            if (error != null) {
+                IOException e = new IOException(error.getMessage());
+                e.initCause(error);
+                throw e;
+            }
+        }
+
+        protected void await() throws IOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Reads the temporary file of a download as it grows. The end of the
+     * stream is only reached once the download is complete and checked.
+     */
+    protected static class FollowerInputStream extends InputStream {
+
+        protected final Download download;
+
+        protected final RandomAccessFile raf;
+
+        protected long pos;
+
+        protected FollowerInputStream(Download download, RandomAccessFile raf) {
+            this.download = download;
+            this.raf = raf;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            long available = download.available(pos);
+            if (available < 0) {
+                return -1;
+            }
+            int n = raf.read(b, off, (int) Math.min(len, available));
+            if (n > 0) {
+                pos += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n) {
+                long available = download.available(pos);
+                if (available < 0) {
+                    break;
+                }
+                long s = Math.min(n - skipped, available);
+                pos += s;
+                skipped += s;
+                raf.seek(pos);
+            }
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            raf.close();
+        }
+    }
+
+}
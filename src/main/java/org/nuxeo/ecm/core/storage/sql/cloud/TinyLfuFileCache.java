@@ -0,0 +1,255 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql.cloud;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+/**
+ * A file cache that only keeps the files accessed more often than the ones
+ * they would evict (W-TinyLFU admission), so that a scan of files read once
+ * doesn't flush the files read often.
+ * <p>
+ * A new file first goes into a small LRU window. When it leaves the window,
+ * it's admitted into the main LRU area only if its recent access frequency,
+ * estimated by a {@link FrequencySketch}, is greater than the total
+ * frequency of the eldest files it would evict to fit; otherwise it's
+ * evicted itself. As the comparison is against all the victims, a big file
+ * cannot evict many small files accessed more often.
+ * <p>
+ * The files found on disk by {@link #rebuild} go into the main area. The
+ * window is at least {@link #MIN_WINDOW_SIZE}, up to a quarter of the cache,
+ * so that a typical binary or chunk fits in it.
+ * <p>
+ * A new file is kept in the window until its first access, as it's usually
+ * put to be read right away, up to half the size of the main area: the main
+ * area is then shrunk to make room for it. Its first access is not counted
+ * in its frequency, as the lookup that missed it already was. A new file
+ * bigger than the window and than this limit is kept until the next put, so
+ * the cache may exceed its size by that file.
+ */
+public class TinyLfuFileCache extends CloudFileCache {
+
+    public static final int DEFAULT_WINDOW_PERCENT = 1;
+
+    /** Minimum size of the window, if the cache is big enough. */
+    public static final long MIN_WINDOW_SIZE = 8 * 1024 * 1024;
+
+    /** Average file size used to size the frequency sketch. */
+    protected static final long ESTIMATED_FILE_SIZE = 64 * 1024;
+
+    protected final long windowMaxSize;
+
+    protected final long mainMaxSize;
+
+    /** Maximum size of the new files not yet accessed kept in the window. */
+    protected final long freshMaxSize;
+
+    protected final FrequencySketch sketch;
+
+    /** Entries of the window, access-ordered, eldest first. Guarded by this. */
+    protected final LinkedHashMap<String, CacheEntry> window = new LinkedHashMap<String, CacheEntry>(
+            16, 0.75f, true);
+
+    /** Guarded by this. */
+    protected long windowSize;
+
+    /**
+     * Entries of the window not yet accessed since they were put, eldest
+     * first. Guarded by this.
+     */
+    protected final LinkedHashMap<String, CacheEntry> fresh = new LinkedHashMap<String, CacheEntry>();
+
+    /** Guarded by this. */
+    protected long freshSize;
+
+    /** Guarded by this. */
+    protected long admitted;
+
+    /** Guarded by this. */
+    protected long rejected;
+
+    public TinyLfuFileCache(File dir, long maxSize) throws IOException {
+        this(dir, maxSize, DEFAULT_WINDOW_PERCENT);
+    }
+
+    /**
+     * @param windowPercent the size of the window, in percent of the cache
+     *            size
+     */
+    public TinyLfuFileCache(File dir, long maxSize, int windowPercent)
+            throws IOException {
+        this(dir, maxSize, windowPercent, false);
+    }
+
+    /**
+     * @param fanOut whether the files are stored in nested directories
+     * @see #TinyLfuFileCache(File, long, int)
+     */
+    public TinyLfuFileCache(File dir, long maxSize, int windowPercent,
+            boolean fanOut) throws IOException {
+        super(dir, maxSize, fanOut);
+        windowMaxSize = Math.max(maxSize / 100 * windowPercent, Math.min(
+                MIN_WINDOW_SIZE, maxSize / 4));
+        mainMaxSize = maxSize - windowMaxSize;
+        freshMaxSize = mainMaxSize / 2;
+        sketch = new FrequencySketch((int) Math.min(Math.max(maxSize
+                / ESTIMATED_FILE_SIZE, 1024), Integer.MAX_VALUE));
+    }
+
+    /**
+     * Number of files admitted into the main area when leaving the window.
+     */
+    public synchronized long getAdmittedCount() {
+        return admitted;
+    }
+
+    /**
+     * Number of files evicted when leaving the window.
+     */
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+
+    @Override
+    protected void added(String key, CacheEntry entry) {
+        window.put(key, entry);
+        windowSize += entry.size;
+        fresh.put(key, entry);
+        freshSize += entry.size;
+    }
+
+    @Override
+    protected void accessed(String key, CacheEntry entry) {
+        if (entry != null && fresh.remove(key) != null) {
+            // first read of a new file, counted when it was missed
+            freshSize -= entry.size;
+        } else {
+            sketch.increment(key);
+        }
+        if (entry != null) {
+            // update access order
+            window.get(key);
+        }
+    }
+
+    @Override
+    protected void removed(String key, CacheEntry entry) {
+        if (window.remove(key) != null) {
+            windowSize -= entry.size;
+        }
+        if (fresh.remove(key) != null) {
+            freshSize -= entry.size;
+        }
+    }
+
+    @Override
+    protected List<File> evict(String keep, long limit) {
+        // the eldest new files lose their protection if there are too many
+        Iterator<Entry<String, CacheEntry>> fit = fresh.entrySet().iterator();
+        while (freshSize > freshMaxSize && fit.hasNext()) {
+            freshSize -= fit.next().getValue().size;
+            fit.remove();
+        }
+        long mainLimit = Math.max(limit - windowMaxSize, 0);
+        List<File> evicted = new ArrayList<File>();
+        Iterator<Entry<String, CacheEntry>> it = window.entrySet().iterator();
+        while (windowSize > windowMaxSize && it.hasNext()) {
+            Entry<String, CacheEntry> es = it.next();
+            String key = es.getKey();
+            if (key.equals(keep) || pinned.containsKey(key)
+                    || fresh.containsKey(key)) {
+                continue;
+            }
+            CacheEntry candidate = es.getValue();
+            it.remove();
+            windowSize -= candidate.size;
+            if (admit(key, candidate, mainLimit, evicted)) {
+                admitted++;
+            } else {
+                rejected++;
+                remove(key, candidate, evicted);
+            }
+        }
+        // main area still too big, for instance after a rebuild or an unpin,
+        // or to make room for the new files kept in the window
+        long overflow = Math.min(Math.max(windowSize - windowMaxSize, 0),
+                freshSize);
+        mainLimit = Math.max(limit - windowMaxSize - overflow, 0);
+        Iterator<Entry<String, CacheEntry>> mit = entries.entrySet().iterator();
+        while (size - windowSize > mainLimit && mit.hasNext()) {
+            Entry<String, CacheEntry> es = mit.next();
+            String key = es.getKey();
+            if (window.containsKey(key) || pinned.containsKey(key)) {
+                continue;
+            }
+            mit.remove();
+            size -= es.getValue().size;
+            evicted.add(file(key));
+        }
+        return evicted;
+    }
+
+    /**
+     * Decides if a candidate leaving the window enters the main area, and if
+     * so evicts the victims needed to make room for it.
+     */
+    protected boolean admit(String candidateKey, CacheEntry candidate,
+            long mainLimit, List<File> evicted) {
+        long excess = size - windowSize - mainLimit;
+        if (excess <= 0) {
+            return true;
+        }
+        if (candidate.size > mainMaxSize) {
+            return false;
+        }
+        int candidateFrequency = sketch.frequency(candidateKey);
+        List<String> victims = new ArrayList<String>();
+        long victimsFrequency = 0;
+        long freed = 0;
+        for (Entry<String, CacheEntry> es : entries.entrySet()) {
+            if (freed >= excess || victimsFrequency >= candidateFrequency) {
+                break;
+            }
+            String key = es.getKey();
+            if (key.equals(candidateKey) || window.containsKey(key)
+                    || pinned.containsKey(key)) {
+                continue;
+            }
+            victims.add(key);
+            victimsFrequency += sketch.frequency(key);
+            freed += es.getValue().size;
+        }
+        if (freed < excess || victimsFrequency >= candidateFrequency) {
+            return false;
+        }
+        for (String key : victims) {
+            remove(key, entries.get(key), evicted);
+        }
+        return true;
+    }
+
+    protected void remove(String key, CacheEntry entry, List<File> evicted) {
+        entries.remove(key);
+        size -= entry.size;
+        evicted.add(file(key));
+    }
+
+}
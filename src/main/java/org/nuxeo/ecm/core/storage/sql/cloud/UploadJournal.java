@@ -0,0 +1,181 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql.cloud;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An append-only journal of the binaries waiting to be uploaded.
+ * <p>
+ * Each line records a key added ({@code +key}), synced to disk before
+ * returning, or a key done ({@code -key}), not synced as uploading a binary
+ * twice is harmless. A last line without end of line, written by a crash, is
+ * ignored. The journal is compacted to the pending keys when opened and when
+ * it has grown too much.
+ * <p>
+ * This class is thread-safe.
+ */
+public class UploadJournal {
+
+    /** Minimum number of records before a compaction. */
+    protected static final int COMPACT_THRESHOLD = 10000;
+
+    protected final File file;
+
+    /** Guarded by this. */
+    protected final Set<String> pending = new LinkedHashSet<String>();
+
+    /** Guarded by this. */
+    protected FileOutputStream out;
+
+    /** Number of records in the file. Guarded by this. */
+    protected int records;
+
+    /**
+     * Opens a journal, creating it if needed.
+     */
+    public UploadJournal(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            read();
+        }
+        compact();
+    }
+
+    protected void read() throws IOException {
+        byte[] bytes;
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                baos.write(buf, 0, n);
+            }
+            bytes = baos.toByteArray();
+        } finally {
+            in.close();
+        }
+        int start = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != '\n') {
+                continue;
+            }
+            if (i - start >= 2) {
+                String key = new String(bytes, start + 1, i - start - 1,
+                        "UTF-8");
+                if (bytes[start] == '+') {
+                    pending.add(key);
+                } else if (bytes[start] == '-') {
+                    pending.remove(key);
+                }
+            }
+            start = i + 1;
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the pending keys, atomically.
+     */
+    protected synchronized void compact() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream tmpOut = new FileOutputStream(tmp);
+        try {
+            for (String key : pending) {
+                tmpOut.write(record('+', key));
+            }
+            tmpOut.getChannel().force(false);
+        } finally {
+            tmpOut.close();
+        }
+        if (!tmp.renameTo(file)) {
+            // not atomic on all platforms
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmp + " to " + file);
+            }
+        }
+        records = pending.size();
+        out = new FileOutputStream(file, true);
+    }
+
+    protected static byte[] record(char op, String key) throws IOException {
+        return (op + key + '\n').getBytes("UTF-8");
+    }
+
+    /**
+     * Gets the keys pending when the journal was opened or since added.
+     */
+    public synchronized List<String> getPending() {
+        return new ArrayList<String>(pending);
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Records a pending key, synced to disk on return.
+     */
+    public synchronized void added(String key) throws IOException {
+        checkOpen();
+        out.write(record('+', key));
+        out.getChannel().force(false);
+        pending.add(key);
+        records++;
+    }
+
+    /**
+     * Records a key done.
+     */
+    public synchronized void done(String key) throws IOException {
+        checkOpen();
+        if (!pending.remove(key)) {
+            return;
+        }
+        out.write(record('-', key));
+        records++;
+        if (records > COMPACT_THRESHOLD && records > 2 * pending.size()) {
+            compact();
+        }
+    }
+
+    protected void checkOpen() throws IOException {
+        if (out == null) {
+            throw new IOException("Journal closed: " + file);
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+}
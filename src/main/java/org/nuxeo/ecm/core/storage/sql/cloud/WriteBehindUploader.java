@@ -0,0 +1,354 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql.cloud;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Uploads binaries in the background, after they have been put in the cache.
+ * <p>
+ * A binary is pinned in the cache so that it's never evicted, synced to disk
+ * and recorded in an {@link UploadJournal} before {@link #put} returns; it's
+ * then uploaded by a bounded pool of threads, retrying with an increasing
+ * delay, and only then unpinned and marked done in the journal. The binaries
+ * pending at the end of a previous run, or whose uploads failed too many
+ * times, are uploaded again by {@link #replay}.
+ * <p>
+ * If a digest algorithm is given, the content of a file is checked against
+ * its key before its upload, and a corrupted file is removed from the cache
+ * instead of being uploaded.
+ * <p>
+ * Implementations upload a single binary in {@link #upload}, which must
+ * succeed if it's already stored. This class is thread-safe.
+ */
+public abstract class WriteBehindUploader {
+
+    private static final Log log = LogFactory.getLog(WriteBehindUploader.class);
+
+    public static final String JOURNAL_FILE = ".uploads";
+
+    /** Delay before the first retry, in milliseconds. */
+    protected static final long MIN_RETRY_DELAY = 1000;
+
+    /** Maximum delay between retries, in milliseconds. */
+    protected static final long MAX_RETRY_DELAY = 5 * 60 * 1000;
+
+    /**
+     * Number of upload attempts after which a binary is left in the journal
+     * until the next startup, about an hour.
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 20;
+
+    protected final CloudFileCache fileCache;
+
+    protected final UploadJournal journal;
+
+    protected final ScheduledExecutorService executor;
+
+    protected final String digestAlgorithm;
+
+    protected volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    /** Guarded by itself. */
+    protected final Set<String> pending = new HashSet<String>();
+
+    /**
+     * Binaries whose uploads were abandoned, still pinned and journaled.
+     * Guarded by {@link #pending}.
+     */
+    protected final Set<String> abandoned = new HashSet<String>();
+
+    protected final AtomicLong uploaded = new AtomicLong();
+
+    protected final AtomicLong failures = new AtomicLong();
+
+    protected final AtomicLong corrupted = new AtomicLong();
+
+    /**
+     * @param name the name used for the upload threads
+     * @param fileCache the persistent cache holding the binaries
+     * @param threads the number of concurrent uploads
+     */
+    public WriteBehindUploader(String name, CloudFileCache fileCache,
+            int threads) throws IOException {
+        this(name, fileCache, threads, null);
+    }
+
+    /**
+     * @param digestAlgorithm the algorithm of the digests used as keys, to
+     *            check the files before their upload, or {@code null}
+     * @see #WriteBehindUploader(String, CloudFileCache, int)
+     */
+    public WriteBehindUploader(String name, CloudFileCache fileCache,
+            int threads, String digestAlgorithm) throws IOException {
+        this.fileCache = fileCache;
+        this.digestAlgorithm = digestAlgorithm;
+        journal = new UploadJournal(new File(fileCache.getDir(), JOURNAL_FILE));
+        ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(
+                Math.max(threads, 1), new NamedThreadFactory(name));
+        stpe.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        executor = stpe;
+    }
+
+    /**
+     * Uploads a binary, if not already stored.
+     */
+    protected abstract void upload(String key, File file) throws IOException;
+
+    /**
+     * Sets the number of upload attempts of a binary before giving up until
+     * the next startup.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = Math.max(maxAttempts, 1);
+    }
+
+    /**
+     * Schedules the upload of the binaries pending at the end of the previous
+     * run.
+     */
+    public void replay() {
+        int n = 0;
+        for (String key : journal.getPending()) {
+            File file = fileCache.getFile(key);
+            if (file == null) {
+                log.error("Binary pending upload missing from the cache, "
+                        + "it is lost: " + key);
+                done(key);
+                continue;
+            }
+            synchronized (pending) {
+                if (!pending.add(key)) {
+                    continue;
+                }
+                fileCache.pin(key);
+            }
+            schedule(key, 0);
+            n++;
+        }
+        if (n > 0) {
+            log.info("Uploading " + n + " binaries pending from previous run");
+        }
+    }
+
+    /**
+     * Puts a binary in the cache and schedules its upload.
+     *
+     * @param tmp a temporary file of the cache
+     * @return the cached file
+     */
+    public File put(String key, File tmp) throws IOException {
+        boolean added;
+        boolean retry = false;
+        synchronized (pending) {
+            added = pending.add(key);
+            if (added) {
+                if (abandoned.remove(key)) {
+                    // still pinned and journaled
+                    retry = true;
+                } else {
+                    fileCache.pin(key);
+                }
+            }
+        }
+        if (!added) {
+            // already pending, so pinned and journaled
+            return fileCache.putFile(key, tmp);
+        }
+        if (retry) {
+            File file = fileCache.putFile(key, tmp);
+            schedule(key, 0);
+            return file;
+        }
+        boolean ok = false;
+        try {
+            File file = fileCache.putFile(key, tmp);
+            sync(file);
+            journal.added(key);
+            ok = true;
+            schedule(key, 0);
+            return file;
+        } finally {
+            if (!ok) {
+                synchronized (pending) {
+                    pending.remove(key);
+                    fileCache.unpin(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces the content of a file to disk, so that a journaled binary
+     * survives a crash.
+     */
+    protected static void sync(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.getChannel().force(true);
+        } finally {
+            raf.close();
+        }
+    }
+
+    protected void schedule(final String key, final int attempt) {
+        long delay = attempt == 0 ? 0 : Math.min(MIN_RETRY_DELAY << Math.min(
+                attempt - 1, 16), MAX_RETRY_DELAY);
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                uploadOrRetry(key, attempt);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    protected void uploadOrRetry(String key, int attempt) {
+        try {
+            File file = fileCache.getFile(key);
+            if (file == null) {
+                // cannot happen while pinned, except if deleted by hand
+                log.error("Binary pending upload missing from the cache, "
+                        + "it is lost: " + key);
+            } else if (digestAlgorithm != null
+                    && !RangedDownloader.checkDigest(file, digestAlgorithm, key)) {
+                corrupted.incrementAndGet();
+                log.error("Binary pending upload is corrupted in the cache, "
+                        + "it is lost: " + key);
+                done(key);
+                fileCache.remove(key);
+                return;
+            } else {
+                upload(key, file);
+                uploaded.incrementAndGet();
+            }
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            if (attempt + 1 >= maxAttempts) {
+                log.error("Cannot upload binary: " + key + ", giving up after "
+                        + (attempt + 1) + " attempts until next startup", e);
+                abandon(key);
+                return;
+            }
+            log.warn("Cannot upload binary: " + key + ", will retry: " + e);
+            schedule(key, attempt + 1);
+            return;
+        }
+        done(key);
+    }
+
+    /**
+     * Stops retrying the upload of a binary, keeping it pinned and journaled
+     * so that it's uploaded again on next startup, or if it's put again.
+     */
+    protected void abandon(String key) {
+        synchronized (pending) {
+            pending.remove(key);
+            abandoned.add(key);
+        }
+    }
+
+    protected void done(String key) {
+        try {
+            journal.done(key);
+        } catch (IOException e) {
+            // will be uploaded again on next startup
+            log.error("Cannot update upload journal", e);
+        }
+        synchronized (pending) {
+            pending.remove(key);
+            fileCache.unpin(key);
+        }
+    }
+
+    /**
+     * Number of binaries waiting for their upload.
+     */
+    public int getPendingCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Number of binaries uploaded.
+     */
+    public long getUploadedCount() {
+        return uploaded.get();
+    }
+
+    /**
+     * Number of failed upload attempts.
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Number of binaries whose uploads were abandoned until next startup.
+     */
+    public int getAbandonedCount() {
+        synchronized (pending) {
+            return abandoned.size();
+        }
+    }
+
+    /**
+     * Number of binaries found corrupted in the cache before their upload.
+     */
+    public long getCorruptedCount() {
+        return corrupted.get();
+    }
+
+    /**
+     * Waits until no binary is pending.
+     *
+     * @return {@code true} if none is pending
+     */
+    public boolean awaitPending(long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        while (getPendingCount() > 0) {
+            if (System.currentTimeMillis() >= end) {
+                return false;
+            }
+            Thread.sleep(50);
+        }
+        return true;
+    }
+
+    /**
+     * Stops the uploads. The binaries still pending are kept in the journal,
+     * to be uploaded on next startup.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        try {
+            journal.close();
+        } catch (IOException e) {
+            log.error("Cannot close upload journal", e);
+        }
+    }
+
+}
@@ -0,0 +1,4 @@
+/**
+ * Transfer and caching helpers shared by the cloud binary managers
+ */
+package org.nuxeo.ecm.core.storage.sql.cloud;
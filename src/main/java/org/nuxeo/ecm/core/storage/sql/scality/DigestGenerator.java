@@ -16,44 +16,13 @@
  */
 package org.nuxeo.ecm.core.storage.sql.scality;
 
-import java.io.*;
-import java.security.MessageDigest;
-
 /**
  * Calculates file digests
+ *
+ * @deprecated shared by the cloud binary managers, use
+ *             {@link org.nuxeo.ecm.core.storage.sql.cloud.DigestGenerator}
  */
-public class DigestGenerator {
-
-    private static final String CHECKSUM_ALGORITHM="MD5";
-
-    public static byte[] generateChecksum(InputStream inputStream, String digestAlgorithm) throws Exception {
-        byte[] buffer = new byte[1024];
-        MessageDigest md5Instance = MessageDigest.getInstance(digestAlgorithm);
-        int readBytes;
-        do {
-            readBytes = inputStream.read(buffer);
-            if (readBytes > 0) {
-                md5Instance.update(buffer, 0, readBytes);
-            }
-        } while (readBytes != -1);
-        inputStream.close();
-        return md5Instance.digest();
-    }
-
-    public static String getMD5Checksum(File file) {
-        StringBuffer sb= new StringBuffer();
-        try {
-            InputStream fis = new FileInputStream(file);
-            byte[] b = generateChecksum(fis,CHECKSUM_ALGORITHM);
-            for (int i = 0; i < b.length; i++) {
-                sb.append(Integer.toString((b[i] & 0xff) + 0x100, 16).substring(1));
-            }
-        } catch (FileNotFoundException e) {
-             throw new RuntimeException(e);
-        } catch (Exception e) {
-             throw new RuntimeException(e);
-        }
-        return sb.toString();
-    }
-
+@Deprecated
+public class DigestGenerator extends
+        org.nuxeo.ecm.core.storage.sql.cloud.DigestGenerator {
 }
@@ -0,0 +1,262 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql.scality;
+
+import java.security.GeneralSecurityException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Computes the Authorization header of Scality requests for a given key.
+ * <p>
+ * This produces the same strings to sign and signatures as
+ * {@link StringGenerator}, but is meant to be created once and reused for all
+ * the requests: each thread keeps its own already keyed {@link Mac}, its own
+ * buffers for the string to sign and its UTF-8 encoding, and the formatted
+ * date of the current second. Signing a request therefore only allocates the
+ * resulting header value.
+ * <p>
+ * This class is thread-safe.
+ */
+public class RequestSigner {
+
+    private static final String HMAC_ALGORITHM = "HmacSHA1";
+
+    private static final String DATE_PATTERN = "EEE, dd MMM yyyy HH:mm:ss";
+
+    private static final String DATE_SUFFIX = " +0000";
+
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    protected final String keyID;
+
+    protected final SecretKeySpec secretKey;
+
+    protected final ThreadLocal<SignerState> states = new ThreadLocal<SignerState>() {
+        @Override
+        protected SignerState initialValue() {
+            return new SignerState(newMac());
+        }
+    };
+
+    /**
+     * Per-thread state, never shared.
+     */
+    protected static class SignerState {
+
+        protected final Mac mac;
+
+        protected final StringBuilder buf = new StringBuilder(256);
+
+        protected byte[] bytes = new byte[256];
+
+        protected final byte[] hmac;
+
+        protected final SimpleDateFormat dateFormat;
+
+        protected long dateSecond = Long.MIN_VALUE;
+
+        protected String dateString;
+
+        protected SignerState(Mac mac) {
+            this.mac = mac;
+            hmac = new byte[mac.getMacLength()];
+            dateFormat = new SimpleDateFormat(DATE_PATTERN, Locale.US);
+            dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        }
+    }
+
+    public RequestSigner(String keyID, String key) {
+        this.keyID = keyID;
+        secretKey = new SecretKeySpec(key.getBytes(), HMAC_ALGORITHM);
+        // fail early on a bad key
+        newMac();
+    }
+
+    protected Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(secretKey);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Cannot initialize " + HMAC_ALGORITHM,
+                    e);
+        }
+    }
+
+    /**
+     * Formats a date as expected in the x-amz-date header. The formatted
+     * value is reused for all the calls done by a thread in the same second.
+     */
+    public String getDateString(long time) {
+        SignerState state = states.get();
+        long second = time / 1000;
+        if (second != state.dateSecond) {
+            state.dateString = state.dateFormat.format(new Date(second * 1000))
+                    + DATE_SUFFIX;
+            state.dateSecond = second;
+        }
+        return state.dateString;
+    }
+
+    /**
+     * Computes the string to sign, see
+     * {@link StringGenerator#getStringToSign}.
+     */
+    public String getStringToSign(HTTPMethod httpMethod, String contentMD5,
+            String contentType, String bucketName, String fileName,
+            String date) {
+        StringBuilder buf = states.get().buf;
+        buf.setLength(0);
+        appendStringToSign(buf, httpMethod, contentMD5, contentType,
+                bucketName, fileName, date);
+        return buf.toString();
+    }
+
+    /**
+     * Computes the Authorization header value of a request.
+     *
+     * @param date the value of the x-amz-date header, see
+     *            {@link #getDateString}
+     */
+    public String getAuthorizationString(HTTPMethod httpMethod,
+            String contentMD5, String contentType, String bucketName,
+            String fileName, String date) {
+        SignerState state = states.get();
+        StringBuilder buf = state.buf;
+        buf.setLength(0);
+        appendStringToSign(buf, httpMethod, contentMD5, contentType,
+                bucketName, fileName, date);
+        return sign(state);
+    }
+
+    /**
+     * Computes the Authorization header value for an already computed string
+     * to sign, see {@link StringGenerator#getAuthorizationString}.
+     */
+    public String getAuthorizationString(CharSequence stringToSign) {
+        SignerState state = states.get();
+        StringBuilder buf = state.buf;
+        buf.setLength(0);
+        buf.append(stringToSign);
+        return sign(state);
+    }
+
+    protected static void appendStringToSign(StringBuilder buf,
+            HTTPMethod httpMethod, String contentMD5, String contentType,
+            String bucketName, String fileName, String date) {
+        buf.append(httpMethod.name()).append('\n');
+        buf.append(contentMD5).append('\n');
+        buf.append(contentType).append('\n');
+        buf.append('\n');
+        buf.append("x-amz-date:").append(date).append('\n');
+        if (bucketName.length() > 0) {
+            buf.append('/').append(bucketName);
+        }
+        buf.append('/').append(fileName);
+    }
+
+    /**
+     * Signs the content of the state buffer, and replaces it with the
+     * Authorization header value.
+     */
+    protected String sign(SignerState state) {
+        StringBuilder buf = state.buf;
+        int length = encodeUTF8(state, buf);
+        Mac mac = state.mac;
+        mac.update(state.bytes, 0, length);
+        try {
+            mac.doFinal(state.hmac, 0);
+        } catch (GeneralSecurityException e) {
+            // cannot happen, the buffer has the MAC length
+            throw new RuntimeException(e);
+        }
+        buf.setLength(0);
+        buf.append("AWS ").append(keyID).append(':');
+        appendBase64(buf, state.hmac);
+        return buf.toString();
+    }
+
+    /**
+     * Encodes the buffer in UTF-8 into the state bytes, growing them if
+     * needed.
+     *
+     * @return the number of bytes
+     */
+    protected static int encodeUTF8(SignerState state, CharSequence chars) {
+        int len = chars.length();
+        if (state.bytes.length < len * 3) {
+            state.bytes = new byte[len * 3];
+        }
+        byte[] bytes = state.bytes;
+        int n = 0;
+        for (int i = 0; i < len; i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                bytes[n++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[n++] = (byte) (0xc0 | (c >> 6));
+                bytes[n++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len
+                    && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, chars.charAt(++i));
+                bytes[n++] = (byte) (0xf0 | (cp >> 18));
+                bytes[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                bytes[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                bytes[n++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (c >= Character.MIN_SURROGATE
+                    && c <= Character.MAX_SURROGATE) {
+                // unpaired surrogate, replaced like String.getBytes does
+                bytes[n++] = '?';
+            } else {
+                bytes[n++] = (byte) (0xe0 | (c >> 12));
+                bytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[n++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return n;
+    }
+
+    protected static void appendBase64(StringBuilder buf, byte[] bytes) {
+        int i = 0;
+        for (; i + 2 < bytes.length; i += 3) {
+            int v = ((bytes[i] & 0xff) << 16) | ((bytes[i + 1] & 0xff) << 8)
+                    | (bytes[i + 2] & 0xff);
+            buf.append(BASE64[v >>> 18]);
+            buf.append(BASE64[(v >>> 12) & 0x3f]);
+            buf.append(BASE64[(v >>> 6) & 0x3f]);
+            buf.append(BASE64[v & 0x3f]);
+        }
+        int rest = bytes.length - i;
+        if (rest == 1) {
+            int v = (bytes[i] & 0xff) << 16;
+            buf.append(BASE64[v >>> 18]);
+            buf.append(BASE64[(v >>> 12) & 0x3f]);
+            buf.append("==");
+        } else if (rest == 2) {
+            int v = ((bytes[i] & 0xff) << 16) | ((bytes[i + 1] & 0xff) << 8);
+            buf.append(BASE64[v >>> 18]);
+            buf.append(BASE64[(v >>> 12) & 0x3f]);
+            buf.append(BASE64[(v >>> 6) & 0x3f]);
+            buf.append('=');
+        }
+    }
+
+}
@@ -26,7 +26,29 @@ public class ScalityConfigurationBean {
     private String awsID;
     private String awsSecret;
     private String cacheSizeStr;
+    private String cacheDir;
+    private String cacheShards;
+    private String cacheAdmission;
+    private String cacheIndex;
+    private String cacheMemorySizeStr;
+    private String cacheMemoryMaxEntrySizeStr;
+    private String cacheChunkThresholdStr;
+    private String cacheChunkSizeStr;
+    private boolean cacheEvictBackground;
+    private int cacheEvictHighWatermark;
+    private int cacheEvictLowWatermark;
     private String hostBase;
+    private int maxConnectionsPerHost;
+    private int maxTotalConnections;
+    private long idleConnectionTimeout;
+    private String rangedDownloadThresholdStr;
+    private int rangedDownloadThreads;
+    private boolean streamingDownload;
+    private boolean writeBehind;
+    private int writeBehindThreads;
+    private int prefetchThreads;
+    private boolean inventory;
+    private boolean gcMapped;
 
     public String getBucketName() {
         return bucketName;
@@ -52,10 +74,142 @@ public class ScalityConfigurationBean {
     public void setCacheSizeStr(String cacheSizeStr) {
         this.cacheSizeStr = cacheSizeStr;
     }
+    public String getCacheDir() {
+        return cacheDir;
+    }
+    public void setCacheDir(String cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+    public String getCacheShards() {
+        return cacheShards;
+    }
+    public void setCacheShards(String cacheShards) {
+        this.cacheShards = cacheShards;
+    }
+    public String getCacheAdmission() {
+        return cacheAdmission;
+    }
+    public void setCacheAdmission(String cacheAdmission) {
+        this.cacheAdmission = cacheAdmission;
+    }
+    public String getCacheIndex() {
+        return cacheIndex;
+    }
+    public void setCacheIndex(String cacheIndex) {
+        this.cacheIndex = cacheIndex;
+    }
+    public String getCacheMemorySizeStr() {
+        return cacheMemorySizeStr;
+    }
+    public void setCacheMemorySizeStr(String cacheMemorySizeStr) {
+        this.cacheMemorySizeStr = cacheMemorySizeStr;
+    }
+    public String getCacheMemoryMaxEntrySizeStr() {
+        return cacheMemoryMaxEntrySizeStr;
+    }
+    public void setCacheMemoryMaxEntrySizeStr(String cacheMemoryMaxEntrySizeStr) {
+        this.cacheMemoryMaxEntrySizeStr = cacheMemoryMaxEntrySizeStr;
+    }
+    public String getCacheChunkThresholdStr() {
+        return cacheChunkThresholdStr;
+    }
+    public void setCacheChunkThresholdStr(String cacheChunkThresholdStr) {
+        this.cacheChunkThresholdStr = cacheChunkThresholdStr;
+    }
+    public String getCacheChunkSizeStr() {
+        return cacheChunkSizeStr;
+    }
+    public void setCacheChunkSizeStr(String cacheChunkSizeStr) {
+        this.cacheChunkSizeStr = cacheChunkSizeStr;
+    }
+    public boolean isCacheEvictBackground() {
+        return cacheEvictBackground;
+    }
+    public void setCacheEvictBackground(boolean cacheEvictBackground) {
+        this.cacheEvictBackground = cacheEvictBackground;
+    }
+    public int getCacheEvictHighWatermark() {
+        return cacheEvictHighWatermark;
+    }
+    public void setCacheEvictHighWatermark(int cacheEvictHighWatermark) {
+        this.cacheEvictHighWatermark = cacheEvictHighWatermark;
+    }
+    public int getCacheEvictLowWatermark() {
+        return cacheEvictLowWatermark;
+    }
+    public void setCacheEvictLowWatermark(int cacheEvictLowWatermark) {
+        this.cacheEvictLowWatermark = cacheEvictLowWatermark;
+    }
     public String getHostBase() {
         return hostBase;
     }
     public void setHostBase(String hostBase) {
         this.hostBase = hostBase;
     }
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+    public int getMaxTotalConnections() {
+        return maxTotalConnections;
+    }
+    public void setMaxTotalConnections(int maxTotalConnections) {
+        this.maxTotalConnections = maxTotalConnections;
+    }
+    public long getIdleConnectionTimeout() {
+        return idleConnectionTimeout;
+    }
+    public void setIdleConnectionTimeout(long idleConnectionTimeout) {
+        this.idleConnectionTimeout = idleConnectionTimeout;
+    }
+    public String getRangedDownloadThresholdStr() {
+        return rangedDownloadThresholdStr;
+    }
+    public void setRangedDownloadThresholdStr(String rangedDownloadThresholdStr) {
+        this.rangedDownloadThresholdStr = rangedDownloadThresholdStr;
+    }
+    public int getRangedDownloadThreads() {
+        return rangedDownloadThreads;
+    }
+    public void setRangedDownloadThreads(int rangedDownloadThreads) {
+        this.rangedDownloadThreads = rangedDownloadThreads;
+    }
+    public boolean isStreamingDownload() {
+        return streamingDownload;
+    }
+    public void setStreamingDownload(boolean streamingDownload) {
+        this.streamingDownload = streamingDownload;
+    }
+    public boolean isWriteBehind() {
+        return writeBehind;
+    }
+    public void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+    public int getWriteBehindThreads() {
+        return writeBehindThreads;
+    }
+    public void setWriteBehindThreads(int writeBehindThreads) {
+        this.writeBehindThreads = writeBehindThreads;
+    }
+    public int getPrefetchThreads() {
+        return prefetchThreads;
+    }
+    public void setPrefetchThreads(int prefetchThreads) {
+        this.prefetchThreads = prefetchThreads;
+    }
+    public boolean isInventory() {
+        return inventory;
+    }
+    public void setInventory(boolean inventory) {
+        this.inventory = inventory;
+    }
+    public boolean isGcMapped() {
+        return gcMapped;
+    }
+    public void setGcMapped(boolean gcMapped) {
+        this.gcMapped = gcMapped;
+    }
 }
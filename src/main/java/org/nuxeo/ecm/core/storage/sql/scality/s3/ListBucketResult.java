@@ -37,6 +37,9 @@ public class ListBucketResult {
     @XStreamAlias("Marker")
     public String marker;
 
+    @XStreamAlias("NextMarker")
+    public String nextMarker;
+
     @XStreamAlias("MaxKeys")
     public int maxKeys;
 
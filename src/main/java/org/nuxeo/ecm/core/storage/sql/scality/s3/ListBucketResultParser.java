@@ -0,0 +1,140 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql.scality.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Parses an Amazon S3 bucket listing page with a StAX pull parser, directly
+ * from the response stream.
+ */
+public class ListBucketResultParser {
+
+    protected static final XMLInputFactory factory;
+
+    static {
+        factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    }
+
+    private ListBucketResultParser() {
+    }
+
+    /**
+     * Parses a listing page. The stream is not closed.
+     */
+    public static ListBucketResult parse(InputStream in) throws IOException {
+        try {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            try {
+                return parse(reader);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            IOException ioe = new IOException("Invalid bucket listing: "
+                    + e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    protected static ListBucketResult parse(XMLStreamReader reader)
+            throws XMLStreamException {
+        ListBucketResult result = new ListBucketResult();
+        while (reader.hasNext()) {
+            if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            String name = reader.getLocalName();
+            if ("Contents".equals(name)) {
+                result.add(parseContents(reader));
+            } else if ("Name".equals(name)) {
+                result.name = reader.getElementText();
+            } else if ("Prefix".equals(name)) {
+                result.prefix = reader.getElementText();
+            } else if ("Marker".equals(name)) {
+                result.marker = reader.getElementText();
+            } else if ("NextMarker".equals(name)) {
+                result.nextMarker = reader.getElementText();
+            } else if ("MaxKeys".equals(name)) {
+                result.maxKeys = Integer.parseInt(reader.getElementText().trim());
+            } else if ("IsTruncated".equals(name)) {
+                result.isTruncated = Boolean.parseBoolean(reader.getElementText().trim());
+            }
+        }
+        return result;
+    }
+
+    protected static Contents parseContents(XMLStreamReader reader)
+            throws XMLStreamException {
+        Contents contents = new Contents();
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT
+                    && "Contents".equals(reader.getLocalName())) {
+                break;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            String name = reader.getLocalName();
+            if ("Key".equals(name)) {
+                contents.key = reader.getElementText();
+            } else if ("LastModified".equals(name)) {
+                contents.lastModified = reader.getElementText();
+            } else if ("ETag".equals(name)) {
+                contents.eTag = reader.getElementText();
+            } else if ("Size".equals(name)) {
+                contents.size = Long.parseLong(reader.getElementText().trim());
+            } else if ("StorageClass".equals(name)) {
+                contents.storageClass = reader.getElementText();
+            } else if ("Owner".equals(name)) {
+                contents.owner = parseOwner(reader);
+            }
+        }
+        return contents;
+    }
+
+    protected static Owner parseOwner(XMLStreamReader reader)
+            throws XMLStreamException {
+        Owner owner = new Owner();
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT
+                    && "Owner".equals(reader.getLocalName())) {
+                break;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            String name = reader.getLocalName();
+            if ("ID".equals(name)) {
+                owner.id = reader.getElementText();
+            } else if ("DisplayName".equals(name)) {
+                owner.displayName = reader.getElementText();
+            }
+        }
+        return owner;
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.nuxeo.ecm.core.storage.sql.cloud.CloudFileCache;
+
+/**
+ * Base class of the file cache tests, providing a temporary cache directory
+ * and helpers to fill the caches.
+ */
+public abstract class CloudFileCacheTestCase {
+
+    /** The cache directory, not created yet, deleted after each test. */
+    protected File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("nxtestcache.", "");
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    /**
+     * Puts a file of zeros in a cache.
+     */
+    protected static void put(CloudFileCache cache, String key, int size)
+            throws IOException {
+        cache.putFile(key, new ByteArrayInputStream(new byte[size]));
+    }
+
+    /**
+     * Writes zeros to a file, replacing its content.
+     */
+    protected static void write(File file, int size) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Creates a temporary file of zeros in a cache, to be put in it.
+     */
+    protected static File tmpFile(CloudFileCache cache, int size)
+            throws IOException {
+        File tmp = cache.getTempFile();
+        write(tmp, size);
+        return tmp;
+    }
+
+}
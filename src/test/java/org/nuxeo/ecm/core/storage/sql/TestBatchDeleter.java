@@ -0,0 +1,114 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.nuxeo.ecm.core.storage.sql.cloud.BatchDeleter;
+
+public class TestBatchDeleter {
+
+    /**
+     * Records the deleted keys, fails keys starting with "bad", and the whole
+     * batch if it contains "crash".
+     */
+    protected static class FakeDeleter extends BatchDeleter {
+
+        protected final Set<String> deleted = Collections.synchronizedSet(new HashSet<String>());
+
+        protected final AtomicInteger running = new AtomicInteger();
+
+        protected final AtomicInteger maxRunning = new AtomicInteger();
+
+        protected final AtomicInteger maxBatchSize = new AtomicInteger();
+
+        public FakeDeleter(int batchSize, int maxConcurrentBatches) {
+            super("Test-Delete", batchSize, maxConcurrentBatches);
+        }
+
+        @Override
+        protected Map<String, String> deleteBatch(List<String> keys) {
+            int n = running.incrementAndGet();
+            try {
+                synchronized (this) {
+                    maxRunning.set(Math.max(maxRunning.get(), n));
+                    maxBatchSize.set(Math.max(maxBatchSize.get(), keys.size()));
+                }
+                if (keys.contains("crash")) {
+                    throw new RuntimeException("crash");
+                }
+                Thread.sleep(5);
+                Map<String, String> errors = new HashMap<String, String>();
+                for (String key : keys) {
+                    if (key.startsWith("bad")) {
+                        errors.put(key, "AccessDenied");
+                    } else {
+                        deleted.add(key);
+                    }
+                }
+                return errors;
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    @Test
+    public void testBatches() {
+        FakeDeleter deleter = new FakeDeleter(10, 3);
+        for (int i = 0; i < 1005; i++) {
+            deleter.delete("key" + i);
+        }
+        deleter.finish();
+        assertEquals(1005, deleter.deleted.size());
+        assertEquals(1005, deleter.getNumDeleted());
+        assertEquals(0, deleter.getNumFailed());
+        assertEquals(10, deleter.maxBatchSize.get());
+        assertTrue(deleter.maxRunning.get() <= 3);
+    }
+
+    @Test
+    public void testFailures() {
+        FakeDeleter deleter = new FakeDeleter(10, 2);
+        for (int i = 0; i < 100; i++) {
+            deleter.delete((i % 10 == 0 ? "bad" : "key") + i);
+        }
+        // fails a whole batch of 10
+        deleter.delete("crash");
+        for (int i = 0; i < 9; i++) {
+            deleter.delete("lost" + i);
+        }
+        deleter.finish();
+        assertEquals(90, deleter.getNumDeleted());
+        assertEquals(20, deleter.getNumFailed());
+        List<String> failures = deleter.getFailures();
+        assertEquals(20, failures.size());
+        assertTrue(failures.contains("bad0: AccessDenied"));
+        assertTrue(failures.contains("crash: java.lang.RuntimeException: crash"));
+    }
+
+}
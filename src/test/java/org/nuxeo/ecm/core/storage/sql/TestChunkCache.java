@@ -0,0 +1,256 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.nuxeo.ecm.core.storage.sql.cloud.ChunkCache;
+import org.nuxeo.ecm.core.storage.sql.cloud.ClockFileCache;
+import org.nuxeo.ecm.core.storage.sql.cloud.CloudFileCache;
+
+public class TestChunkCache extends CloudFileCacheTestCase {
+
+    protected static final String KEY = "d41d8cd98f00b204e9800998ecf8427e";
+
+    /**
+     * A remote object whose content is the position of each byte, counting
+     * the ranges opened.
+     */
+    protected static class CountingSource implements ChunkCache.Source {
+
+        protected final AtomicInteger opened = new AtomicInteger();
+
+        protected volatile CountDownLatch gate;
+
+        @Override
+        public InputStream open(long start, long end) throws IOException {
+            opened.incrementAndGet();
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+            }
+            byte[] bytes = new byte[(int) (end - start + 1)];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) (start + i);
+            }
+            return new ByteArrayInputStream(bytes);
+        }
+    }
+
+    @Test
+    public void testSeek() throws Exception {
+        CloudFileCache cache = new CloudFileCache(dir, 1000);
+        try {
+            ChunkCache chunkCache = new ChunkCache(cache, 100, 500);
+            assertFalse(chunkCache.isChunked(499));
+            assertTrue(chunkCache.isChunked(500));
+            CountingSource source = new CountingSource();
+            InputStream in = chunkCache.getStream(KEY, 950, source);
+            try {
+                // skipping doesn't fetch
+                assertEquals(520, in.skip(520));
+                assertEquals(0, source.opened.get());
+                byte[] buf = new byte[50];
+                assertEquals(50, in.read(buf));
+                for (int i = 0; i < buf.length; i++) {
+                    assertEquals((byte) (520 + i), buf[i]);
+                }
+                // one chunk fetched, pinned while read
+                assertEquals(1, source.opened.get());
+                assertEquals(100, chunkCache.getFetchedBytes());
+                String chunkKey = ChunkCache.getChunkKey(KEY, 5);
+                assertEquals(KEY + "00000005", chunkKey);
+                assertNotNull(cache.getFile(chunkKey));
+                assertTrue(cache.isPinned(chunkKey));
+                // across a chunk boundary and up to the short last chunk
+                assertEquals(330, in.skip(330));
+                assertEquals(50, in.read(buf));
+                for (int i = 0; i < buf.length; i++) {
+                    assertEquals((byte) (900 + i), buf[i]);
+                }
+                assertFalse(cache.isPinned(chunkKey));
+                assertEquals(-1, in.read());
+                assertEquals(2, source.opened.get());
+                assertEquals(150, chunkCache.getFetchedBytes());
+            } finally {
+                in.close();
+            }
+            // a read again is served from the cache
+            in = chunkCache.getStream(KEY, 950, source);
+            try {
+                in.skip(510);
+                assertEquals((byte) 510, (byte) in.read());
+            } finally {
+                in.close();
+            }
+            assertEquals(2, source.opened.get());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testReadAll() throws Exception {
+        ClockFileCache cache = new ClockFileCache(dir, 10000);
+        try {
+            ChunkCache chunkCache = new ChunkCache(cache, 64, 0);
+            CountingSource source = new CountingSource();
+            InputStream in = chunkCache.getStream(KEY, 1000, source);
+            byte[] bytes;
+            try {
+                bytes = readAll(in);
+            } finally {
+                in.close();
+            }
+            assertEquals(1000, bytes.length);
+            for (int i = 0; i < bytes.length; i++) {
+                assertEquals((byte) i, bytes[i]);
+            }
+            assertEquals(16, source.opened.get());
+            assertEquals(16, cache.getNumberOfItems());
+            assertEquals(0, cache.getPinnedSize());
+        } finally {
+            cache.close();
+        }
+    }
+
+    protected static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[30];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testRange() throws Exception {
+        CloudFileCache cache = new CloudFileCache(dir, 1000);
+        try {
+            ChunkCache chunkCache = new ChunkCache(cache, 100, 0);
+            CountingSource source = new CountingSource();
+            InputStream in = chunkCache.getStream(KEY, 950, source, 250, 100);
+            byte[] bytes;
+            try {
+                bytes = readAll(in);
+            } finally {
+                in.close();
+            }
+            assertEquals(100, bytes.length);
+            for (int i = 0; i < bytes.length; i++) {
+                assertEquals((byte) (250 + i), bytes[i]);
+            }
+            // chunks 2 and 3 only
+            assertEquals(2, source.opened.get());
+            assertFalse(cache.isPinned(ChunkCache.getChunkKey(KEY, 3)));
+            // truncated at the end of the object
+            in = chunkCache.getStream(KEY, 950, source, 940, 100);
+            try {
+                assertEquals(10, readAll(in).length);
+            } finally {
+                in.close();
+            }
+            // up to the end, without overflowing
+            in = chunkCache.getStream(KEY, 950, source, 940, Long.MAX_VALUE);
+            try {
+                assertEquals(10, readAll(in).length);
+            } finally {
+                in.close();
+            }
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testEvictChunks() throws Exception {
+        CloudFileCache cache = new CloudFileCache(dir, 250);
+        try {
+            ChunkCache chunkCache = new ChunkCache(cache, 100, 0);
+            CountingSource source = new CountingSource();
+            for (int index = 0; index < 10; index++) {
+                assertNotNull(chunkCache.getChunk(KEY, 1000, index, source));
+            }
+            // only the last chunks fit
+            assertEquals(200, cache.getSize());
+            assertNull(cache.getFile(ChunkCache.getChunkKey(KEY, 0)));
+            assertNotNull(cache.getFile(ChunkCache.getChunkKey(KEY, 9)));
+            chunkCache.getChunk(KEY, 1000, 0, source);
+            assertEquals(11, source.opened.get());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentFetches() throws Exception {
+        final CloudFileCache cache = new CloudFileCache(dir, 1000);
+        try {
+            final ChunkCache chunkCache = new ChunkCache(cache, 100, 0);
+            final CountingSource source = new CountingSource();
+            source.gate = new CountDownLatch(1);
+            final List<File> files = new ArrayList<File>();
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < 5; i++) {
+                Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            File file = chunkCache.getChunk(KEY, 500, 2,
+                                    source);
+                            synchronized (files) {
+                                files.add(file);
+                            }
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                };
+                threads.add(thread);
+                thread.start();
+            }
+            Thread.sleep(200);
+            source.gate.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(5, files.size());
+            assertEquals(1, source.opened.get());
+            assertEquals(1, chunkCache.getFetchCount());
+        } finally {
+            cache.close();
+        }
+    }
+
+}
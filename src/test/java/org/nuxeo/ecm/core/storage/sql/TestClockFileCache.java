@@ -0,0 +1,172 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+
+import org.junit.Test;
+import org.nuxeo.ecm.core.storage.sql.cloud.ClockFileCache;
+import org.nuxeo.ecm.core.storage.sql.cloud.ClockIndex;
+
+public class TestClockFileCache extends CloudFileCacheTestCase {
+
+    @Test
+    public void testIndex() throws Exception {
+        ClockIndex index = new ClockIndex();
+        String digest = "d41d8cd98f00b204e9800998ecf8427e";
+        int slot = index.insert(digest);
+        assertEquals(-1, index.getSize(slot));
+        index.setSize(slot, 123);
+        index.setPinCount(slot, 2);
+        index.setReferenced(slot, true);
+        assertEquals(slot, index.find(digest));
+        assertEquals(digest, index.getKey(slot));
+        assertEquals(123, index.getSize(slot));
+        assertEquals(2, index.getPinCount(slot));
+        assertTrue(index.isReferenced(slot));
+        assertEquals("Foo.bar", index.getKey(index.insert("Foo.bar")));
+        assertEquals(-1, index.find("D41D8CD98F00B204E9800998ECF8427E"));
+        assertFalse(ClockIndex.isStorable("a very long name that is not a digest"));
+        try {
+            index.insert("a very long name that is not a digest");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // ok
+        }
+        // grows, and keeps the entries
+        int n = 100000;
+        for (int i = 0; i < n; i++) {
+            index.setSize(index.insert(String.format("%032x",
+                    Integer.valueOf(i))), i);
+        }
+        assertEquals(n + 2, index.getCount());
+        assertTrue(index.getCapacity() > n);
+        for (int i = 0; i < n; i += 7) {
+            slot = index.find(String.format("%032x", Integer.valueOf(i)));
+            assertEquals(i, index.getSize(slot));
+        }
+        assertEquals(123, index.getSize(index.find(digest)));
+        // deleted slots are reused
+        int capacity = index.getCapacity();
+        for (int k = 0; k < 10; k++) {
+            for (int i = 0; i < n; i++) {
+                String key = String.format("%032x", Integer.valueOf(i));
+                index.remove(index.find(key));
+                index.insert(key);
+            }
+        }
+        assertEquals(n + 2, index.getCount());
+        assertEquals(capacity, index.getCapacity());
+    }
+
+    @Test
+    public void testSecondChance() throws Exception {
+        ClockFileCache cache = new ClockFileCache(dir, 100);
+        try {
+            put(cache, "a", 30);
+            put(cache, "b", 30);
+            put(cache, "c", 30);
+            assertEquals(90, cache.getSize());
+            // bits cleared by a first pass
+            put(cache, "d", 30);
+            assertEquals(3, cache.getNumberOfItems());
+            assertTrue(cache.getSize() <= 100);
+            int present = 0;
+            for (String key : new String[] { "a", "b", "c" }) {
+                if (cache.getFile(key) != null) {
+                    present++;
+                }
+            }
+            assertEquals(2, present);
+            assertNotNull(cache.getFile("d"));
+            try {
+                put(cache, "../x", 1);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // ok
+            }
+            cache.clear();
+            assertEquals(0, cache.getSize());
+            assertEquals(0, cache.getNumberOfItems());
+            assertNull(cache.getFile("d"));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testPinCount() throws Exception {
+        ClockFileCache cache = new ClockFileCache(dir, 100);
+        try {
+            cache.pin("p");
+            cache.pin("p");
+            assertTrue(cache.isPinned("p"));
+            assertEquals(0, cache.getNumberOfItems());
+            assertNull(cache.getFile("p"));
+            assertEquals(0, cache.getPinnedSize());
+            put(cache, "p", 80);
+            assertEquals(80, cache.getPinnedSize());
+            put(cache, "a", 50);
+            put(cache, "b", 50);
+            assertNotNull(cache.getFile("p"));
+            cache.clear();
+            assertEquals(80, cache.getSize());
+            cache.unpin("p");
+            assertTrue(cache.isPinned("p"));
+            cache.unpin("p");
+            assertFalse(cache.isPinned("p"));
+            assertEquals(0, cache.getPinnedSize());
+            put(cache, "a", 50);
+            put(cache, "b", 50);
+            assertNull(cache.getFile("p"));
+            // a key only pinned is dropped when unpinned
+            cache.pin("q");
+            cache.unpin("q");
+            assertFalse(cache.isPinned("q"));
+            assertNull(cache.getFile("q"));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testRebuild() throws Exception {
+        ClockFileCache cache = new ClockFileCache(dir, 1000, true);
+        String digest = "d41d8cd98f00b204e9800998ecf8427e";
+        put(cache, digest, 10);
+        put(cache, "b", 20);
+        cache.close();
+
+        cache = new ClockFileCache(dir, 1000, true);
+        try {
+            cache.rebuild(2, 10000);
+            assertEquals(2, cache.getNumberOfItems());
+            assertEquals(30, cache.getSize());
+            assertEquals(new File(dir, "d4/1d/" + digest),
+                    cache.getFile(digest));
+            assertTrue(cache.getIndexMemorySize() > 0);
+        } finally {
+            cache.close();
+        }
+    }
+
+}
@@ -0,0 +1,372 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import org.nuxeo.ecm.core.storage.sql.cloud.CloudFileCache;
+
+public class TestCloudFileCache extends CloudFileCacheTestCase {
+
+    @Test
+    public void testPutGetEvict() throws Exception {
+        CloudFileCache cache = new CloudFileCache(dir, 100);
+        try {
+            assertNull(cache.getFile("a"));
+            put(cache, "a", 40);
+            put(cache, "b", 40);
+            File file = cache.getFile("a");
+            assertNotNull(file);
+            assertEquals(40, file.length());
+            assertEquals(80, cache.getSize());
+            // already present, temp file dropped
+            put(cache, "a", 40);
+            assertEquals(2, cache.getNumberOfItems());
+            // b is the eldest
+            put(cache, "c", 40);
+            assertNull(cache.getFile("b"));
+            assertFalse(new File(dir, "b").exists());
+            // moved to the trash, then deleted
+            assertEquals(0, new File(dir, CloudFileCache.TMP_DIR).list().length);
+            assertNotNull(cache.getFile("a"));
+            assertNotNull(cache.getFile("c"));
+            assertEquals(80, cache.getSize());
+            // a file bigger than the cache is kept until the next put
+            put(cache, "d", 200);
+            assertNotNull(cache.getFile("d"));
+            assertEquals(1, cache.getNumberOfItems());
+            try {
+                put(cache, "../x", 1);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // ok
+            }
+            cache.clear();
+            assertEquals(0, cache.getSize());
+            assertNull(cache.getFile("d"));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testSurvivesRestart() throws Exception {
+        CloudFileCache cache = new CloudFileCache(dir, 1000);
+        put(cache, "a", 10);
+        put(cache, "b", 20);
+        put(cache, "c", 30);
+        new File(dir, "c").setLastModified(System.currentTimeMillis() - 2000);
+        new File(dir, "b").setLastModified(System.currentTimeMillis() - 1000);
+        // a partial download
+        File tmp = tmpFile(cache, 5);
+        cache.close();
+
+        cache = new CloudFileCache(dir, 55);
+        try {
+            assertFalse(tmp.exists());
+            cache.rebuild(2, 10000);
+            assertFalse(cache.isRebuilding());
+            // c was the eldest and didn't fit
+            assertEquals(2, cache.getNumberOfItems());
+            assertEquals(30, cache.getSize());
+            assertNull(cache.getFile("c"));
+            assertEquals(10, cache.getFile("a").length());
+            assertEquals(20, cache.getFile("b").length());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testLookupWhileRebuilding() throws Exception {
+        CloudFileCache cache = new CloudFileCache(dir, 1000000);
+        for (int i = 0; i < 1000; i++) {
+            put(cache, "key" + i, 10);
+        }
+        cache.close();
+        // hold the rebuild until the lookups are done
+        final CountDownLatch latch = new CountDownLatch(1);
+        cache = new CloudFileCache(dir, 1000000) {
+            @Override
+            protected List<FileInfo> stat(List<String> keys) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.stat(keys);
+            }
+        };
+        try {
+            // don't wait
+            cache.rebuild(1, 0);
+            assertTrue(cache.isRebuilding());
+            assertNotNull(cache.getFile("key999"));
+            assertNull(cache.getFile("nosuchkey"));
+            // found on disk
+            assertEquals(1, cache.getNumberOfItems());
+            latch.countDown();
+            while (cache.isRebuilding()) {
+                Thread.sleep(10);
+            }
+            assertEquals(1000, cache.getNumberOfItems());
+            assertEquals(10000, cache.getSize());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testLocked() throws Exception {
+        dir.mkdirs();
+        // locked by another user of the directory
+        RandomAccessFile raf = new RandomAccessFile(new File(dir,
+                CloudFileCache.LOCK_FILE), "rw");
+        FileLock lock = raf.getChannel().lock();
+        try {
+            new CloudFileCache(dir, 1000);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("in use"));
+        } finally {
+            lock.release();
+            raf.close();
+        }
+        new CloudFileCache(dir, 1000).close();
+    }
+
+    @Test
+    public void testUnclosedCache() throws Exception {
+        // left open by a previous deployment
+        CloudFileCache previous = new CloudFileCache(dir, 1000);
+        put(previous, "a", 10);
+        try {
+            new CloudFileCache(dir, 1000);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("in use"));
+        }
+        // still usable
+        put(previous, "b", 10);
+        assertEquals(2, previous.getNumberOfItems());
+        previous.close();
+        CloudFileCache cache = new CloudFileCache(dir, 1000);
+        try {
+            cache.rebuild(1, 10000);
+            assertNotNull(cache.getFile("a"));
+            assertNotNull(cache.getFile("b"));
+            // closing the previous one again doesn't release the new lock
+            previous.close();
+            RandomAccessFile raf = new RandomAccessFile(new File(dir,
+                    CloudFileCache.LOCK_FILE), "rw");
+            try {
+                try {
+                    raf.getChannel().tryLock();
+                    fail();
+                } catch (OverlappingFileLockException e) {
+                    // still held by the new cache
+                }
+            } finally {
+                raf.close();
+            }
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testPinned() throws Exception {
+        CloudFileCache cache = new CloudFileCache(dir, 100);
+        try {
+            cache.pin("a");
+            put(cache, "a", 40);
+            put(cache, "b", 40);
+            cache.getFile("b");
+            // a is the eldest but pinned
+            put(cache, "c", 40);
+            assertNotNull(cache.getFile("a"));
+            assertNull(cache.getFile("b"));
+            // pinned entries survive a clear
+            cache.clear();
+            assertNotNull(cache.getFile("a"));
+            assertTrue(new File(dir, "a").exists());
+            assertEquals(40, cache.getSize());
+            // unpinning evicts if needed
+            cache.pin("d");
+            put(cache, "d", 40);
+            put(cache, "e", 40);
+            assertEquals(120, cache.getSize());
+            cache.unpin("a");
+            assertFalse(cache.isPinned("a"));
+            assertNull(cache.getFile("a"));
+            assertEquals(80, cache.getSize());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testStreamPinsFile() throws Exception {
+        CloudFileCache cache = new CloudFileCache(dir, 100);
+        try {
+            assertNull(cache.getStream("a"));
+            put(cache, "a", 40);
+            put(cache, "b", 40);
+            InputStream in1 = cache.getStream("a");
+            InputStream in2 = cache.getStream("a");
+            assertTrue(cache.isPinned("a"));
+            assertEquals(40, cache.getPinnedSize());
+            cache.getFile("b");
+            // a is the eldest but being read
+            put(cache, "c", 40);
+            assertNotNull(cache.getFile("a"));
+            assertNull(cache.getFile("b"));
+            in1.close();
+            // closing twice only unpins once
+            in1.close();
+            assertTrue(cache.isPinned("a"));
+            assertEquals(40, in2.read(new byte[100]));
+            in2.close();
+            assertFalse(cache.isPinned("a"));
+            assertEquals(0, cache.getPinnedSize());
+            // pins are counted
+            cache.pin("c");
+            InputStream in3 = cache.getStream("c");
+            in3.close();
+            assertTrue(cache.isPinned("c"));
+            cache.unpin("c");
+            assertFalse(cache.isPinned("c"));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testRangeStream() throws Exception {
+        CloudFileCache cache = new CloudFileCache(dir, 100);
+        try {
+            assertNull(cache.getStream("a", 0, 10));
+            byte[] bytes = new byte[50];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) i;
+            }
+            cache.putFile("a", new ByteArrayInputStream(bytes));
+            InputStream in = cache.getStream("a", 10, 20);
+            assertTrue(cache.isPinned("a"));
+            assertEquals(10, in.read());
+            assertEquals(5, in.skip(5));
+            byte[] buf = new byte[100];
+            assertEquals(14, in.read(buf));
+            assertEquals(16, buf[0]);
+            assertEquals(29, buf[13]);
+            assertEquals(-1, in.read());
+            in.close();
+            assertFalse(cache.isPinned("a"));
+            // truncated at the end of the file
+            in = cache.getStream("a", 45, 20);
+            assertEquals(5, in.read(buf));
+            assertEquals(49, buf[4]);
+            assertEquals(-1, in.read(buf));
+            in.close();
+            in = cache.getStream("a", 60, 20);
+            assertEquals(0, in.skip(10));
+            assertEquals(-1, in.read());
+            in.close();
+            // up to the end, without overflowing
+            in = cache.getStream("a", 45, Long.MAX_VALUE);
+            assertEquals(5, in.read(buf));
+            assertEquals(-1, in.read());
+            in.close();
+            assertFalse(cache.isPinned("a"));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testJanitor() throws Exception {
+        CloudFileCache cache = new CloudFileCache(dir, 1000);
+        try {
+            cache.startJanitor(900, 600);
+            for (int i = 0; i < 9; i++) {
+                put(cache, "k" + i, 100);
+            }
+            // below the high watermark, nothing evicted
+            Thread.sleep(100);
+            assertEquals(900, cache.getSize());
+            put(cache, "k9", 100);
+            long end = System.currentTimeMillis() + 10000;
+            while (cache.getSize() > 600 && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            // trimmed down to the low watermark, eldest first
+            assertEquals(600, cache.getSize());
+            assertNull(cache.getFile("k3"));
+            assertNotNull(cache.getFile("k4"));
+            for (int n = 0; n < 100; n++) {
+                if (!new File(dir, "k3").exists()) {
+                    break;
+                }
+                Thread.sleep(10);
+            }
+            assertFalse(new File(dir, "k3").exists());
+            assertEquals(0, cache.getThrottledCount());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testJanitorThrottlesAboveMaxSize() throws Exception {
+        CloudFileCache cache = new CloudFileCache(dir, 100);
+        try {
+            cache.startJanitor(90, 80);
+            // pinned, so the janitor cannot evict them
+            cache.pin("a");
+            cache.pin("b");
+            put(cache, "a", 60);
+            put(cache, "b", 60);
+            assertEquals(0, cache.getThrottledCount());
+            long t0 = System.currentTimeMillis();
+            put(cache, "c", 10);
+            assertTrue(System.currentTimeMillis() - t0 >= CloudFileCache.THROTTLE_TIMEOUT - 100);
+            assertEquals(1, cache.getThrottledCount());
+            // only the new file can be evicted, the rest is pinned
+            for (int n = 0; n < 100 && cache.getSize() > 120; n++) {
+                Thread.sleep(10);
+            }
+            assertEquals(120, cache.getSize());
+        } finally {
+            cache.close();
+        }
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+import org.nuxeo.ecm.core.storage.sql.cloud.LongArray;
+import org.nuxeo.ecm.core.storage.sql.cloud.Md5DigestSet;
+
+public class TestMd5DigestSet {
+
+    private static final Log log = LogFactory.getLog(TestMd5DigestSet.class);
+
+    protected static String randomDigest(Random random) {
+        return String.format("%016x%016x", Long.valueOf(random.nextLong()),
+                Long.valueOf(random.nextLong()));
+    }
+
+    @Test
+    public void testAddContains() {
+        Md5DigestSet set = new Md5DigestSet();
+        assertTrue(set.add("0bee89b07a248e27c83fc3d5951213c1"));
+        assertFalse(set.add("0bee89b07a248e27c83fc3d5951213c1"));
+        // case doesn't matter
+        assertFalse(set.add("0BEE89B07A248E27C83FC3D5951213C1"));
+        assertTrue(set.contains("0bee89b07a248e27c83fc3d5951213c1"));
+        assertFalse(set.contains("0bee89b07a248e27c83fc3d5951213c2"));
+        // all-zero digest is not stored in the table
+        assertFalse(set.contains("00000000000000000000000000000000"));
+        assertTrue(set.add("00000000000000000000000000000000"));
+        assertTrue(set.contains("00000000000000000000000000000000"));
+        assertEquals(2, set.size());
+        try {
+            set.add("notadigest");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // ok
+        }
+        set.free();
+    }
+
+    protected void checkGrowth(Md5DigestSet set, int n) {
+        Random random = new Random(1234);
+        for (int i = 0; i < n; i++) {
+            assertTrue(set.add(randomDigest(random)));
+        }
+        assertEquals(n, set.size());
+        random = new Random(1234);
+        for (int i = 0; i < n; i++) {
+            assertTrue(set.contains(randomDigest(random)));
+        }
+        // different seed, other digests
+        random = new Random(5678);
+        for (int i = 0; i < n; i++) {
+            assertFalse(set.contains(randomDigest(random)));
+        }
+        set.free();
+    }
+
+    @Test
+    public void testGrowthOnHeap() {
+        checkGrowth(new Md5DigestSet(), 100000);
+    }
+
+    @Test
+    public void testGrowthOffHeap() {
+        // off-heap as soon as the table grows beyond 32KB
+        checkGrowth(new Md5DigestSet(32 * 1024), 100000);
+    }
+
+    @Test
+    public void testGrowthMapped() {
+        checkGrowth(new Md5DigestSet(32 * 1024, true, null), 100000);
+    }
+
+    @Test
+    public void testExpectedSize() {
+        int n = 100000;
+        Md5DigestSet set = new Md5DigestSet(32 * 1024, false, null, n);
+        long memorySize = set.getMemorySize();
+        assertEquals(Md5DigestSet.getCapacity(n) * 16, memorySize);
+        Random random = new Random(1234);
+        for (int i = 0; i < n; i++) {
+            set.add(randomDigest(random));
+        }
+        // not grown
+        assertEquals(memorySize, set.getMemorySize());
+        set.add(randomDigest(random));
+        assertTrue(set.getMemorySize() > memorySize);
+        random = new Random(1234);
+        for (int i = 0; i <= n; i++) {
+            assertTrue(set.contains(randomDigest(random)));
+        }
+        set.free();
+    }
+
+    @Test
+    public void testMappedLongArray() throws Exception {
+        LongArray array = LongArray.allocateMapped(1000, null);
+        assertEquals(0, array.get(999));
+        array.set(999, Long.MIN_VALUE);
+        assertEquals(Long.MIN_VALUE, array.get(999));
+        File file = ((LongArray.MappedLongArray) array).getFile();
+        assertTrue(file.exists());
+        array.free();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testDirectLongArray() {
+        LongArray array = new LongArray.DirectLongArray(1000);
+        assertEquals(0, array.get(999));
+        array.set(999, Long.MIN_VALUE);
+        array.set(0, -1);
+        assertEquals(Long.MIN_VALUE, array.get(999));
+        assertEquals(-1, array.get(0));
+        array.free();
+    }
+
+    @Test
+    public void testMemory() {
+        int n = 1000000;
+        Md5DigestSet set = new Md5DigestSet();
+        Random random = new Random();
+        long t0 = System.currentTimeMillis();
+        for (int i = 0; i < n; i++) {
+            set.add(random.nextLong(), random.nextLong());
+        }
+        long t1 = System.currentTimeMillis();
+        log.info(String.format("%d digests marked in %dms using %dMB", n,
+                t1 - t0, set.getMemorySize() / (1024 * 1024)));
+        // at worst 16 bytes per slot at a load factor of 0.8 / 1.5
+        assertTrue(set.getMemorySize() < n * 16 * 1.5 / 0.8);
+        set.free();
+    }
+
+    protected static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Compares the heap used by the marks of the previous HashSet-based
+     * garbage collectors with the digest set. Use -Dnuxeo.test.gc.marks=N to
+     * run it with 10M or 50M marks (and a large enough -Xmx for the
+     * HashSet), the HashSet side then reporting where it ran out of memory.
+     */
+    @Test
+    public void testHeapUsageComparedToHashSet() {
+        int n = Integer.getInteger("nuxeo.test.gc.marks", 200000).intValue();
+        Random random = new Random(1234);
+        long before = usedHeap();
+        Set<String> hashSet = new HashSet<String>();
+        try {
+            for (int i = 0; i < n; i++) {
+                hashSet.add(randomDigest(random));
+            }
+            long used = usedHeap() - before;
+            log.info(String.format(
+                    "HashSet: %d marks use %dMB of heap, %d bytes per mark",
+                    n, used / (1024 * 1024), used / n));
+        } catch (OutOfMemoryError e) {
+            // release the heap before doing anything else
+            int size = hashSet.size();
+            hashSet = null;
+            log.info(String.format("HashSet: out of memory after %d marks",
+                    size));
+        }
+        hashSet = null;
+
+        random = new Random(1234);
+        before = usedHeap();
+        Md5DigestSet set = new Md5DigestSet();
+        for (int i = 0; i < n; i++) {
+            set.add(random.nextLong(), random.nextLong());
+        }
+        long memorySize = set.getMemorySize();
+        log.info(String.format(
+                "Md5DigestSet: %d marks use %dMB of heap, %dMB table, %d bytes per mark",
+                n, (usedHeap() - before) / (1024 * 1024),
+                memorySize / (1024 * 1024), memorySize / n));
+        assertEquals(n, set.size());
+        set.free();
+    }
+
+}
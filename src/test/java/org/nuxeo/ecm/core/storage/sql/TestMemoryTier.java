@@ -0,0 +1,129 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.core.storage.sql.cloud.CloudFileCache;
+import org.nuxeo.ecm.core.storage.sql.cloud.MemoryTier;
+
+public class TestMemoryTier {
+
+    protected File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("nxtestmemory.", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    protected File file(String name, int size) throws IOException {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (i + name.hashCode());
+        }
+        File file = new File(dir, name);
+        FileUtils.writeByteArrayToFile(file, bytes);
+        return file;
+    }
+
+    protected static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[100];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testHitsAndEviction() throws Exception {
+        MemoryTier tier = new MemoryTier(1000, 400);
+        File a = file("a", 300);
+        byte[] content = FileUtils.readFileToByteArray(a);
+        assertTrue(Arrays.equals(content, read(tier.getStream("a", a))));
+        assertEquals(0, tier.getHitCount());
+        assertEquals(1, tier.getMissCount());
+        // served from memory, even without the file
+        a.delete();
+        InputStream in1 = tier.getStream("a", a);
+        InputStream in2 = tier.getStream("a", a);
+        assertEquals(content[0], (byte) in1.read());
+        assertTrue(Arrays.equals(content, read(in2)));
+        assertEquals(content.length - 1, read(in1).length);
+        assertEquals(2, tier.getHitCount());
+
+        // too big, read from the file each time
+        File big = file("big", 500);
+        assertTrue(tier.getStream("big", big) instanceof FileInputStream);
+        assertEquals(300, tier.getSize());
+
+        // eldest evicted
+        read(tier.getStream("b", file("b", 400)));
+        read(tier.getStream("c", file("c", 400)));
+        assertEquals(800, tier.getSize());
+        assertEquals(2, tier.getNumberOfItems());
+        tier.remove("b");
+        assertEquals(400, tier.getSize());
+        assertFalse(tier.getStream("a", file("a", 300)) instanceof FileInputStream);
+    }
+
+    @Test
+    public void testBinaryServedAfterEviction() throws Exception {
+        CloudFileCache cache = new CloudFileCache(new File(dir, "cache"),
+                10000);
+        try {
+            MemoryTier tier = new MemoryTier(1000, 400);
+            byte[] content = FileUtils.readFileToByteArray(file("a", 300));
+            File file = cache.putFile("a", new File(dir, "a"));
+            Binary binary = new MemoryTierBinary(file, "a", "test", cache,
+                    tier);
+            // loaded from the pinned file
+            assertTrue(Arrays.equals(content, read(binary.getStream())));
+            assertFalse(cache.isPinned("a"));
+            assertEquals(1, tier.getMissCount());
+            // then served from memory without the file
+            cache.remove("a");
+            assertFalse(file.exists());
+            assertEquals(300, binary.getLength());
+            assertTrue(Arrays.equals(content, read(binary.getStream())));
+            assertEquals(1, tier.getHitCount());
+        } finally {
+            cache.close();
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.nuxeo.ecm.core.storage.sql.cloud.Prefetcher;
+import org.nuxeo.ecm.core.storage.sql.cloud.Prefetcher.Prefetch;
+
+public class TestPrefetcher {
+
+    protected static class CountingPrefetcher extends Prefetcher {
+
+        protected final Set<String> cache = Collections.synchronizedSet(new HashSet<String>());
+
+        protected final AtomicInteger running = new AtomicInteger();
+
+        protected final AtomicInteger maxRunning = new AtomicInteger();
+
+        protected volatile int interactive;
+
+        protected volatile CountDownLatch release = new CountDownLatch(0);
+
+        /** Makes concurrent downloads overlap, if allowed. */
+        protected final CountDownLatch twoStarted = new CountDownLatch(2);
+
+        protected CountingPrefetcher(int threads) {
+            super("test-prefetch", threads);
+        }
+
+        @Override
+        protected boolean isCached(String key) {
+            return cache.contains(key);
+        }
+
+        @Override
+        protected boolean fetch(String key) throws Exception {
+            int n = running.incrementAndGet();
+            synchronized (maxRunning) {
+                maxRunning.set(Math.max(maxRunning.get(), n));
+            }
+            twoStarted.countDown();
+            try {
+                twoStarted.await(200, TimeUnit.MILLISECONDS);
+                release.await();
+                if (key.startsWith("missing")) {
+                    return false;
+                }
+                if (key.startsWith("error")) {
+                    throw new IOException("boom");
+                }
+                cache.add(key);
+                return true;
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+
+        @Override
+        protected int getInFlightCount() {
+            return interactive + running.get();
+        }
+
+        protected void setInteractive(int interactive) {
+            this.interactive = interactive;
+            wakeUp();
+        }
+    }
+
+    protected CountingPrefetcher prefetcher;
+
+    @After
+    public void tearDown() {
+        if (prefetcher != null) {
+            prefetcher.shutdown();
+        }
+    }
+
+    protected static List<String> keys(String prefix, int n) {
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < n; i++) {
+            keys.add(prefix + i);
+        }
+        return keys;
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        prefetcher = new CountingPrefetcher(3);
+        prefetcher.cache.add("a0");
+        List<String> keys = keys("a", 20);
+        keys.add("a1"); // duplicate
+        keys.add("missing");
+        keys.add("error");
+        Prefetch prefetch = prefetcher.prefetch(keys);
+        prefetch.get(10, TimeUnit.SECONDS);
+        assertTrue(prefetch.isDone());
+        assertEquals(22, prefetch.getTotal());
+        assertEquals(22, prefetch.getCompletedCount());
+        assertEquals(1, prefetch.getCachedCount());
+        assertEquals(19, prefetch.getFetchedCount());
+        assertEquals(1, prefetch.getMissingCount());
+        assertEquals(1, prefetch.getFailedCount());
+        assertTrue(prefetcher.maxRunning.get() <= 3);
+        assertEquals(20, prefetcher.cache.size());
+    }
+
+    @Test
+    public void testYieldsToInteractiveFetches() throws Exception {
+        prefetcher = new CountingPrefetcher(2);
+        prefetcher.setInteractive(2);
+        Prefetch prefetch = prefetcher.prefetch(Arrays.asList("a", "b"));
+        Thread.sleep(200);
+        assertEquals(0, prefetch.getCompletedCount());
+        prefetcher.setInteractive(1);
+        prefetch.get(10, TimeUnit.SECONDS);
+        assertEquals(2, prefetch.getFetchedCount());
+        // only one download while one interactive fetch is in progress
+        assertEquals(1, prefetcher.maxRunning.get());
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        prefetcher = new CountingPrefetcher(1);
+        prefetcher.release = new CountDownLatch(1);
+        Prefetch prefetch = prefetcher.prefetch(keys("a", 10));
+        assertFalse(prefetch.isDone());
+        assertTrue(prefetch.cancel(false));
+        // done at once, without waiting for the download in progress
+        assertTrue(prefetch.isDone());
+        try {
+            prefetch.get(0, TimeUnit.SECONDS);
+            fail();
+        } catch (CancellationException e) {
+            // ok
+        }
+        prefetcher.release.countDown();
+        waitForCompleted(prefetch, 10);
+        // the download in progress completed, the others were skipped
+        assertTrue(prefetch.getFetchedCount() <= 1);
+    }
+
+    @Test
+    public void testCancelWhileWaitingForSlot() throws Exception {
+        prefetcher = new CountingPrefetcher(1);
+        prefetcher.setInteractive(1);
+        Prefetch prefetch = prefetcher.prefetch(Arrays.asList("a"));
+        Thread.sleep(100);
+        assertTrue(prefetch.cancel(false));
+        try {
+            prefetch.get();
+            fail();
+        } catch (CancellationException e) {
+            // ok
+        }
+        // the waiting download gave up
+        waitForCompleted(prefetch, 1);
+        assertEquals(0, prefetch.getFetchedCount());
+    }
+
+    protected static void waitForCompleted(Prefetch prefetch, int count)
+            throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while (prefetch.getCompletedCount() < count
+                && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, prefetch.getCompletedCount());
+    }
+
+}
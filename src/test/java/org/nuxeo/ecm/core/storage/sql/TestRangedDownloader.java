@@ -0,0 +1,180 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.nuxeo.ecm.core.storage.sql.cloud.DigestGenerator;
+import org.nuxeo.ecm.core.storage.sql.cloud.RangedDownloader;
+import org.nuxeo.ecm.core.storage.sql.cloud.StreamingDownloader;
+
+public class TestRangedDownloader {
+
+    private static final int MB = 1024 * 1024;
+
+    /**
+     * Serves ranges of an array, failing the first fetch of every range
+     * starting with a multiple of failEvery.
+     */
+    protected static class ArrayRangedDownloader extends RangedDownloader {
+
+        protected final byte[] content;
+
+        protected final AtomicInteger requests = new AtomicInteger();
+
+        protected final AtomicInteger running = new AtomicInteger();
+
+        protected final AtomicInteger maxRunning = new AtomicInteger();
+
+        protected boolean failed;
+
+        public ArrayRangedDownloader(byte[] content, int maxConcurrency) {
+            super("Test-Download", new StreamingDownloader(64 * 1024),
+                    maxConcurrency, MB, 4 * MB);
+            this.content = content;
+        }
+
+        @Override
+        protected long fetchRange(String key, long start, long end,
+                FileChannel channel) throws IOException {
+            requests.incrementAndGet();
+            int n = running.incrementAndGet();
+            try {
+                synchronized (this) {
+                    maxRunning.set(Math.max(n, maxRunning.get()));
+                    if (start > 0 && !failed) {
+                        failed = true;
+                        throw new IOException("connection reset");
+                    }
+                }
+                return downloader.transfer(new ByteArrayInputStream(content,
+                        (int) start, (int) (end - start + 1)), channel, start);
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    @Test
+    public void testDownload() throws Exception {
+        byte[] content = new byte[20 * MB + 123];
+        new Random(1234).nextBytes(content);
+        String md5 = DigestGenerator.toHexString(MessageDigest.getInstance(
+                "MD5").digest(content));
+        ArrayRangedDownloader downloader = new ArrayRangedDownloader(content,
+                3);
+        File file = File.createTempFile("nxtest-", ".tmp");
+        try {
+            downloader.download("key", content.length, file);
+            assertTrue(Arrays.equals(content,
+                    FileUtils.readFileToByteArray(file)));
+            assertTrue(RangedDownloader.checkDigest(file, "MD5", md5));
+            assertFalse(RangedDownloader.checkDigest(file, "MD5",
+                    "900150983cd24fb0d6963f7d28e17f72"));
+            // more than one range, one of them retried
+            assertTrue(downloader.requests.get() > 2);
+            assertTrue(downloader.maxRunning.get() <= 3);
+            // adapted values stay within the bounds
+            assertTrue(downloader.getPartSize() >= MB);
+            assertTrue(downloader.getPartSize() <= 4 * MB);
+            assertTrue(downloader.getConcurrency() >= 1);
+            assertTrue(downloader.getConcurrency() <= 3);
+        } finally {
+            downloader.shutdown();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testIncompleteRange() throws Exception {
+        byte[] content = new byte[10 * MB];
+        RangedDownloader downloader = new ArrayRangedDownloader(content, 2) {
+            @Override
+            protected long fetchRange(String key, long start, long end,
+                    FileChannel channel) throws IOException {
+                // always one byte short
+                return super.fetchRange(key, start, end - 1, channel);
+            }
+        };
+        File file = File.createTempFile("nxtest-", ".tmp");
+        try {
+            downloader.download("key", content.length, file);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Incomplete"));
+        } finally {
+            downloader.shutdown();
+            file.delete();
+        }
+        assertEquals(0, content[0]);
+    }
+
+    @Test
+    public void testFailureWaitsForRunningRanges() throws Exception {
+        byte[] content = new byte[10 * MB];
+        final AtomicInteger running = new AtomicInteger();
+        RangedDownloader downloader = new ArrayRangedDownloader(content, 3) {
+            @Override
+            protected long fetchRange(String key, long start, long end,
+                    FileChannel channel) throws IOException {
+                if (start == 0) {
+                    throw new IOException("boom");
+                }
+                running.incrementAndGet();
+                try {
+                    // slow, and deaf to interrupts
+                    long deadline = System.currentTimeMillis() + 1500;
+                    while (System.currentTimeMillis() < deadline) {
+                        try {
+                            Thread.sleep(50);
+                        } catch (InterruptedException e) {
+                            // ignored
+                        }
+                    }
+                    return end - start + 1;
+                } finally {
+                    running.decrementAndGet();
+                }
+            }
+        };
+        File file = File.createTempFile("nxtest-", ".tmp");
+        try {
+            downloader.download("key", content.length, file);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("boom"));
+            // the file wasn't closed under the running ranges
+            assertEquals(0, running.get());
+        } finally {
+            downloader.shutdown();
+            file.delete();
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.core.storage.sql.cloud.RemoteInventory;
+
+public class TestRemoteInventory {
+
+    protected File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("nxtestinventory.", "");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    protected static String key(int i) {
+        return String.format("%032x", Integer.valueOf(i));
+    }
+
+    @Test
+    public void testPutRemoveReopen() throws Exception {
+        RemoteInventory inventory = new RemoteInventory(file);
+        assertNull(inventory.getLength(key(1)));
+        for (int i = 0; i < 1000; i++) {
+            inventory.put(key(i), i);
+        }
+        inventory.remove(key(5));
+        // unchanged, not written again
+        inventory.put(key(6), 6);
+        // too long to be indexed
+        StringBuilder longKey = new StringBuilder();
+        for (int i = 0; i < RemoteInventory.MAX_KEY_LENGTH + 1; i++) {
+            longKey.append('a');
+        }
+        inventory.put(longKey.toString(), 1);
+        assertFalse(inventory.contains(longKey.toString()));
+        assertEquals(999, inventory.size());
+        inventory.close();
+        assertEquals(1001 * RemoteInventory.RECORD_SIZE, file.length());
+
+        inventory = new RemoteInventory(file);
+        try {
+            assertEquals(999, inventory.size());
+            assertFalse(inventory.contains(key(5)));
+            assertTrue(inventory.contains(key(6)));
+            assertEquals(Long.valueOf(999), inventory.getLength(key(999)));
+            // appending after reopening
+            inventory.put(key(5), 55);
+        } finally {
+            inventory.close();
+        }
+        inventory = new RemoteInventory(file);
+        try {
+            assertEquals(Long.valueOf(55), inventory.getLength(key(5)));
+        } finally {
+            inventory.close();
+        }
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+        RemoteInventory inventory = new RemoteInventory(file);
+        inventory.put(key(1), 1);
+        inventory.put(key(2), 2);
+        inventory.close();
+        // corrupt the last record, as if its write was interrupted
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(RemoteInventory.RECORD_SIZE + 10);
+            raf.write('z');
+        } finally {
+            raf.close();
+        }
+        inventory = new RemoteInventory(file);
+        try {
+            assertTrue(inventory.contains(key(1)));
+            assertFalse(inventory.contains(key(2)));
+            inventory.put(key(3), 3);
+        } finally {
+            inventory.close();
+        }
+        assertEquals(2 * RemoteInventory.RECORD_SIZE, file.length());
+    }
+
+}
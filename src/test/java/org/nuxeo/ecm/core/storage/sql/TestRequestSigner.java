@@ -0,0 +1,181 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Date;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+import org.nuxeo.common.utils.Base64;
+import org.nuxeo.ecm.core.storage.sql.scality.HTTPMethod;
+import org.nuxeo.ecm.core.storage.sql.scality.RequestSigner;
+import org.nuxeo.ecm.core.storage.sql.scality.StringGenerator;
+
+/**
+ * Checks that the reusable signer produces exactly the same strings as
+ * {@link StringGenerator}, using the same vectors as
+ * {@link TestStringGenerator}.
+ */
+public class TestRequestSigner {
+
+    private static final Log log = LogFactory.getLog(TestRequestSigner.class);
+
+    private static final String datePattern = "dd MMM yyyy HH:mm:ss";
+
+    String amazonWebpageSampleKeyID = "0PN5J17HBGZHT7JJ3X82";
+
+    String amazonWebpageSampleKey = "uV3F3YluFJax1cknvbcGwgjvx4QpvB+leU8dUj2o";
+
+    String[] stringsToSign = {
+            "GET\n\n\nTue, 27 Mar 2007 19:36:42 +0000\n/johnsmith/photos/puppy.jpg",
+            "GET\n\n\nTue, 27 Mar 2007 19:42:41 +0000\n/johnsmith/",
+            "GET\n\n\nTue, 27 Mar 2007 19:44:46 +0000\n/johnsmith/?acl",
+            "GET\n\n\nWed, 28 Mar 2007 01:29:59 +0000\n/",
+            "GET\n\n\nWed, 28 Mar 2007 01:49:49 +0000\n/dictionary/fran%C3%A7ais/pr%c3%a9f%c3%a8re" };
+
+    String[] expectedSignatures = { "xXjDGYUmKxnwqr5KXNPGldn5LbA=",
+            "jsRt/rhG+Vtp88HrYL706QhE4w4=", "thdUi9VAkzhkniLj96JIrOPGi0g=",
+            "Db+gepJSUbZKwpx1FR0DLtEYoZA=", "dxhSBHoI6eVSPcXJqEghlUzZMnY=" };
+
+    @Test
+    public void testAuthorizationStrings() throws Exception {
+        RequestSigner signer = new RequestSigner(amazonWebpageSampleKeyID,
+                amazonWebpageSampleKey);
+        for (int i = 0; i < stringsToSign.length; i++) {
+            String expected = StringGenerator.getAuthorizationString(
+                    stringsToSign[i], amazonWebpageSampleKeyID,
+                    amazonWebpageSampleKey);
+            assertEquals("AWS " + amazonWebpageSampleKeyID + ":"
+                    + expectedSignatures[i], expected);
+            assertEquals(expected,
+                    signer.getAuthorizationString(stringsToSign[i]));
+        }
+    }
+
+    @Test
+    public void testNonAsciiStringToSign() throws Exception {
+        String stringToSign = "GET\n\n\n\nx-amz-date:caf\u00e9 \u20ac \ud83d\ude00\n/";
+        Mac mac = Mac.getInstance("HmacSHA1");
+        mac.init(new SecretKeySpec(amazonWebpageSampleKey.getBytes(),
+                "HmacSHA1"));
+        String expected = "AWS " + amazonWebpageSampleKeyID + ":"
+                + Base64.encodeBytes(mac.doFinal(stringToSign.getBytes("UTF-8")));
+        RequestSigner signer = new RequestSigner(amazonWebpageSampleKeyID,
+                amazonWebpageSampleKey);
+        assertEquals(expected, signer.getAuthorizationString(stringToSign));
+    }
+
+    @Test
+    public void testPUTFromTutorialExamples() throws Exception {
+        String stringToSign = "PUT\nc8fdb181845a4ca6b8fec737b3581d76\ntext/html\nThu, 17 Nov 2005 18:49:58 GMT\nx-amz-magic:abracadabra\nx-amz-meta-author:foo@bar.com\n/quotes/nelson";
+        RequestSigner signer = new RequestSigner("44CF9590006BF252F707",
+                "OtxrzxIsfpFjA7SwPzILwy8Bw21TLhquhboDYROV");
+        assertEquals("AWS 44CF9590006BF252F707:jZNOcbfWmD/A/f3hSvVzXZjM2HU=",
+                signer.getAuthorizationString(stringToSign));
+    }
+
+    @Test
+    public void testStringsToSign() throws Exception {
+        RequestSigner signer = new RequestSigner(amazonWebpageSampleKeyID,
+                amazonWebpageSampleKey);
+        checkStringToSign(signer, "08 Sep 2011 16:15:00", HTTPMethod.PUT, "",
+                "text/plain", "nuxeo.demo.scality.com", "testfile3.txt");
+        checkStringToSign(signer, "07 Sep 2011 13:58:45", HTTPMethod.PUT, "",
+                "", "test1.demo.scality.com", "");
+        checkStringToSign(signer, "23 Sep 2011 16:10:36", HTTPMethod.DELETE,
+                "", "", "test5.demo.scality.com",
+                "5368976310281a3a81ae650108498726");
+        checkStringToSign(signer, "03 Oct 2011 17:22:43", HTTPMethod.GET, "",
+                "", "test5.demo.scality.com", "");
+        checkStringToSign(signer, "03 Oct 2011 17:22:43", HTTPMethod.HEAD,
+                "C+6JsHokjifIP8PVlRITwQ==", "", "", "");
+        assertEquals(
+                "DELETE\n\n\n\nx-amz-date:Fri, 23 Sep 2011 16:10:36 +0000\n/test5.demo.scality.com/5368976310281a3a81ae650108498726",
+                signer.getStringToSign(HTTPMethod.DELETE, "", "",
+                        "test5.demo.scality.com",
+                        "5368976310281a3a81ae650108498726",
+                        signer.getDateString(parse("23 Sep 2011 16:10:36").getTime())));
+    }
+
+    protected void checkStringToSign(RequestSigner signer, String dateString,
+            HTTPMethod method, String contentMD5, String contentType,
+            String bucketName, String fileName) throws Exception {
+        Date date = parse(dateString);
+        String formattedDate = signer.getDateString(date.getTime());
+        assertEquals(StringGenerator.getCloudFormattedDateString(date),
+                formattedDate);
+        String expected = StringGenerator.getStringToSign(method, contentMD5,
+                contentType, bucketName, fileName, date);
+        assertEquals(expected, signer.getStringToSign(method, contentMD5,
+                contentType, bucketName, fileName, formattedDate));
+        assertEquals(StringGenerator.getAuthorizationString(expected,
+                amazonWebpageSampleKeyID, amazonWebpageSampleKey),
+                signer.getAuthorizationString(method, contentMD5, contentType,
+                        bucketName, fileName, formattedDate));
+    }
+
+    @Test
+    public void testDateStringReusedWithinSecond() throws Exception {
+        RequestSigner signer = new RequestSigner(amazonWebpageSampleKeyID,
+                amazonWebpageSampleKey);
+        long time = parse("23 Sep 2011 16:10:36").getTime();
+        String date = signer.getDateString(time);
+        assertSame(date, signer.getDateString(time + 999));
+        assertEquals("Fri, 23 Sep 2011 16:10:37 +0000",
+                signer.getDateString(time + 1000));
+    }
+
+    @Test
+    public void testThroughput() throws Exception {
+        RequestSigner signer = new RequestSigner(amazonWebpageSampleKeyID,
+                amazonWebpageSampleKey);
+        String digest = "5368976310281a3a81ae650108498726";
+        int n = 100000;
+        for (int i = 0; i < n; i++) { // warm up
+            signer.getAuthorizationString(HTTPMethod.GET, "", "",
+                    "test5.demo.scality.com", digest,
+                    signer.getDateString(System.currentTimeMillis()));
+        }
+        long t0 = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            signer.getAuthorizationString(HTTPMethod.GET, "", "",
+                    "test5.demo.scality.com", digest,
+                    signer.getDateString(System.currentTimeMillis()));
+        }
+        long t1 = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            StringGenerator.getAuthorizationString(
+                    StringGenerator.getStringToSign(HTTPMethod.GET, "", "",
+                            "test5.demo.scality.com", digest, new Date()),
+                    amazonWebpageSampleKeyID, amazonWebpageSampleKey);
+        }
+        long t2 = System.nanoTime();
+        log.info("RequestSigner: " + (n * 1000000000L / (t1 - t0))
+                + " signatures/s, StringGenerator: "
+                + (n * 1000000000L / (t2 - t1)) + " signatures/s");
+    }
+
+    protected static Date parse(String date) {
+        return StringGenerator.parseGMTDate(date, datePattern);
+    }
+
+}
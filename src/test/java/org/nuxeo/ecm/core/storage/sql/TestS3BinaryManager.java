@@ -21,6 +21,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Properties;
+import java.util.Random;
 import java.util.Set;
 
 import org.apache.commons.io.IOUtils;
@@ -41,6 +42,10 @@ import com.amazonaws.services.s3.model.S3ObjectSummary;
  * <li>nuxeo.s3storage.awssecret</li>
  * </ul>
  * <p>
+ * To run against a local S3-compatible server instead of Amazon S3, also set
+ * the nuxeo.s3storage.endpoint system property, for instance to
+ * http://127.0.0.1:8000 (an IP address, so that path-style access is used).
+ * <p>
  * ***** NOTE THAT THE TESTS WILL REMOVE ALL FILES IN THE BUCKET!!! *****
  */
 public class TestS3BinaryManager extends NXRuntimeTestCase {
@@ -71,6 +76,10 @@ public class TestS3BinaryManager extends NXRuntimeTestCase {
         properties.setProperty(S3BinaryManager.AWS_ID_KEY, "CHANGETHIS");
         properties.setProperty(S3BinaryManager.AWS_SECRET_KEY, "CHANGETHIS");
         // ********** NEVER COMMIT THE SECRET KEYS !!! **********
+        String endpoint = System.getProperty(S3BinaryManager.ENDPOINT_KEY);
+        if (endpoint != null) {
+            properties.setProperty(S3BinaryManager.ENDPOINT_KEY, endpoint);
+        }
 
         DISABLED = "CHANGETHIS".equals(Framework.getProperty(S3BinaryManager.BUCKET_NAME_KEY));
         if (!DISABLED) {
@@ -84,6 +93,7 @@ public class TestS3BinaryManager extends NXRuntimeTestCase {
     public void tearDown() throws Exception {
         if (!DISABLED) {
             removeObjects();
+            binaryManager.close();
         }
         super.tearDown();
     }
@@ -113,6 +123,17 @@ public class TestS3BinaryManager extends NXRuntimeTestCase {
         assertEquals(bytes.length, binary.getLength());
         assertEquals(CONTENT, IOUtils.toString(binary.getStream(), "UTF-8"));
 
+        // range (from cache)
+        assertEquals("a file", IOUtils.toString(
+                ((RangedBinary) binary).getStream(8, 6), "UTF-8"));
+
+        // range (ranged GET)
+        binaryManager.fileCache.clear();
+        binary = binaryManager.getBinary(CONTENT_MD5);
+        assertEquals("a file", IOUtils.toString(
+                ((RangedBinary) binary).getStream(8, 6), "UTF-8"));
+        assertNull(binaryManager.fileCache.getFile(CONTENT_MD5));
+
         // get binary (clean cache)
         binaryManager.fileCache.clear();
         binary = binaryManager.getBinary(CONTENT_MD5);
@@ -121,6 +142,37 @@ public class TestS3BinaryManager extends NXRuntimeTestCase {
         assertEquals(CONTENT, IOUtils.toString(binary.getStream(), "UTF-8"));
     }
 
+    public void testS3BinaryManagerMultipart() throws Exception {
+        if (DISABLED) {
+            return; // test disabled
+        }
+        Properties properties = Framework.getProperties();
+        properties.setProperty(S3BinaryManager.MULTIPART_THRESHOLD_KEY, "6 MB");
+        properties.setProperty(S3BinaryManager.MULTIPART_PART_SIZE_KEY, "5 MB");
+        binaryManager.close();
+        binaryManager = new S3BinaryManager();
+        binaryManager.initialize(new RepositoryDescriptor());
+
+        // 3 parts
+        byte[] bytes = new byte[12 * 1024 * 1024];
+        new Random(1234).nextBytes(bytes);
+        Binary binary = binaryManager.getBinary(new ByteArrayInputStream(bytes));
+        String digest = binary.getDigest();
+        String etag = binaryManager.amazonS3.getObjectMetadata(
+                binaryManager.bucketName, digest).getETag();
+        assertTrue(etag, S3BinaryManager.isMultipartETag(etag));
+        assertTrue(etag, etag.endsWith("-3"));
+
+        // stored again without upload
+        binaryManager.getBinary(new ByteArrayInputStream(bytes));
+
+        // get binary (clean cache), content checked against the digest
+        binaryManager.fileCache.clear();
+        binary = binaryManager.getBinary(digest);
+        assertEquals(bytes.length, binary.getLength());
+        assertTrue(Arrays.equals(bytes, IOUtils.toByteArray(binary.getStream())));
+    }
+
     /**
      * NOTE THAT THIS TEST WILL REMOVE ALL FILES IN THE BUCKET!!!
      */
@@ -186,6 +238,8 @@ public class TestS3BinaryManager extends NXRuntimeTestCase {
         assertEquals(bytes.length + 4, status.sizeBinaries);
         assertEquals(1, status.numBinariesGC);
         assertEquals(3, status.sizeBinariesGC);
+        assertEquals(0,
+                ((CloudBinaryManagerStatus) status).numBinariesGCFailed);
         assertEquals(
                 new HashSet<String>(Arrays.asList(CONTENT_MD5, CONTENT3_MD5)),
                 listObjects());
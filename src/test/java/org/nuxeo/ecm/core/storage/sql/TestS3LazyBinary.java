@@ -0,0 +1,207 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.core.storage.sql.S3BinaryManager.S3LazyBinary;
+import org.nuxeo.ecm.core.storage.sql.cloud.ChunkCache;
+import org.nuxeo.ecm.core.storage.sql.cloud.CloudFileCache;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * Reads S3 binaries by ranges and by chunks, against a stubbed client
+ * answering like S3.
+ */
+public class TestS3LazyBinary extends CloudFileCacheTestCase {
+
+    protected static final String DIGEST = "e80b5017098950fc58aad83c8c14978e";
+
+    protected static final String CONTENT = "abcdef";
+
+    protected CloudFileCache cache;
+
+    /** The ranges requested, as "start-end". */
+    protected final List<String> ranges = new ArrayList<String>();
+
+    /** The number of HEAD requests. */
+    protected int heads;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        cache = new CloudFileCache(dir, 1000);
+    }
+
+    @Override
+    @After
+    public void tearDown() throws Exception {
+        cache.close();
+        super.tearDown();
+    }
+
+    protected AmazonS3 getClient() {
+        return (AmazonS3) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { AmazonS3.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        String name = method.getName();
+                        if (name.equals("getObject") && args.length == 1) {
+                            return getObject((GetObjectRequest) args[0]);
+                        } else if (name.equals("getObject")) {
+                            FileUtils.writeByteArrayToFile((File) args[1],
+                                    CONTENT.getBytes());
+                            return getObjectMetadata();
+                        } else if (name.equals("getObjectMetadata")) {
+                            heads++;
+                            return getObjectMetadata();
+                        }
+                        throw new UnsupportedOperationException(
+                                method.getName());
+                    }
+                });
+    }
+
+    protected S3Object getObject(GetObjectRequest request) {
+        if (!request.getKey().equals(DIGEST)) {
+            AmazonS3Exception e = new AmazonS3Exception("Not Found");
+            e.setStatusCode(404);
+            e.setErrorCode("NoSuchKey");
+            throw e;
+        }
+        long[] range = request.getRange();
+        long start = range[0];
+        long end = range[1];
+        synchronized (ranges) {
+            ranges.add(start + "-" + end);
+        }
+        if (start > end) {
+            // ignored by S3, which sends the whole object
+            start = 0;
+            end = CONTENT.length() - 1;
+        }
+        if (start >= CONTENT.length()) {
+            AmazonS3Exception e = new AmazonS3Exception(
+                    "The requested range is not satisfiable");
+            e.setStatusCode(416);
+            e.setErrorCode("InvalidRange");
+            throw e;
+        }
+        end = Math.min(end, CONTENT.length() - 1);
+        S3Object object = new S3Object();
+        object.setObjectContent(new ByteArrayInputStream(CONTENT.substring(
+                (int) start, (int) end + 1).getBytes()));
+        return object;
+    }
+
+    protected ObjectMetadata getObjectMetadata() {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(CONTENT.length());
+        metadata.setHeader("ETag", DIGEST);
+        return metadata;
+    }
+
+    protected S3LazyBinary newBinary(String digest) {
+        return new S3LazyBinary(digest, cache, null, null, null, getClient(),
+                "bucket", null, -1);
+    }
+
+    protected static String read(InputStream in) throws IOException {
+        try {
+            StringBuilder buf = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                buf.append((char) c);
+            }
+            return buf.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testRemoteRange() throws Exception {
+        S3LazyBinary binary = newBinary(DIGEST);
+        assertEquals("bcd", read(binary.getStream(1, 3)));
+        assertEquals("1-3", ranges.get(0));
+        // up to the end, without overflowing
+        assertEquals("cdef", read(binary.getStream(2, Long.MAX_VALUE)));
+        assertEquals("2-" + (Long.MAX_VALUE - 1), ranges.get(1));
+        // truncated at the end
+        assertEquals("ef", read(binary.getStream(4, 10)));
+        // empty after the end, like from a cached file
+        assertEquals("", read(binary.getStream(6, 10)));
+        assertEquals("", read(binary.getStream(100, Long.MAX_VALUE)));
+        assertEquals("", read(binary.getStream(2, 0)));
+        assertEquals(5, ranges.size());
+        // not downloaded
+        assertNull(cache.getFile(DIGEST));
+    }
+
+    @Test
+    public void testRemoteRangeMissing() throws Exception {
+        S3LazyBinary binary = newBinary("d41d8cd98f00b204e9800998ecf8427e");
+        assertNull(binary.getStream(0, 10));
+        assertTrue(ranges.isEmpty());
+    }
+
+    @Test
+    public void testChunks() throws Exception {
+        ChunkCache chunkCache = new ChunkCache(cache, 4, 0);
+        S3LazyBinary binary = new S3LazyBinary(DIGEST, cache, null, null,
+                null, getClient(), "bucket", null, -1, chunkCache);
+        assertEquals(CONTENT, read(binary.getStream()));
+        assertEquals(2, chunkCache.getMissCount());
+        // the length is asked once
+        assertEquals(CONTENT, read(binary.getStream()));
+        assertEquals("cd", read(binary.getStream(2, 2)));
+        assertEquals(1, heads);
+        assertEquals(3, chunkCache.getHitCount());
+        assertEquals(2, chunkCache.getMissCount());
+        assertNotNull(cache.getFile(ChunkCache.getChunkKey(DIGEST, 1)));
+        // the chunks are dropped once the whole file is cached
+        assertNotNull(binary.fetch());
+        assertNull(cache.getFile(ChunkCache.getChunkKey(DIGEST, 0)));
+        assertNull(cache.getFile(ChunkCache.getChunkKey(DIGEST, 1)));
+        assertEquals(1, cache.getNumberOfItems());
+        assertEquals(CONTENT, read(binary.getStream()));
+        assertEquals(3, chunkCache.getHitCount());
+    }
+
+}
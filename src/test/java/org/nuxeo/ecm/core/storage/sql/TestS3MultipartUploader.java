@@ -0,0 +1,327 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.nuxeo.ecm.core.storage.sql.S3BinaryManager.S3MultipartUploader;
+import org.nuxeo.ecm.core.storage.sql.cloud.DigestGenerator;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+/**
+ * Checks the local computations of multipart uploads, and the uploads against
+ * a stubbed client. The uploads to S3 are tested by
+ * {@link TestS3BinaryManager}.
+ */
+public class TestS3MultipartUploader {
+
+    private static final String ABC_MD5 = "900150983cd24fb0d6963f7d28e17f72";
+
+    private static final String DEFG_MD5 = "025e4da7edac35ede583f5e8d51aa7ec";
+
+    @Test
+    public void testDigestPart() throws Exception {
+        File file = File.createTempFile("nxtest-", ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(file);
+            out.write("abcdefg".getBytes("UTF-8"));
+            out.close();
+            assertEquals(ABC_MD5, DigestGenerator.toHexString(S3MultipartUploader.digestPart(
+                    file, 0, 3)));
+            assertEquals(DEFG_MD5, DigestGenerator.toHexString(S3MultipartUploader.digestPart(
+                    file, 3, 4)));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testMultipartETag() throws Exception {
+        byte[][] md5s = { DigestGenerator.getMD5(writeTemp("abc")),
+                DigestGenerator.getMD5(writeTemp("defg")) };
+        String etag = S3MultipartUploader.getMultipartETag(md5s);
+        assertEquals("2c965f10c4ffa837ae1b9f66d61f950e-2", etag);
+        assertTrue(S3BinaryManager.isMultipartETag(etag));
+        assertFalse(S3BinaryManager.isMultipartETag(ABC_MD5));
+    }
+
+    /**
+     * A stubbed S3 client handling the multipart upload calls, the parts being
+     * handled by {@link #uploadPart}.
+     */
+    protected static class StubS3 implements InvocationHandler {
+
+        protected final Map<Integer, byte[]> md5s = new ConcurrentHashMap<Integer, byte[]>();
+
+        protected volatile long maxPartSize;
+
+        protected volatile boolean aborted;
+
+        protected AmazonS3 getClient() {
+            return (AmazonS3) Proxy.newProxyInstance(
+                    getClass().getClassLoader(),
+                    new Class<?>[] { AmazonS3.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            String name = method.getName();
+            if (name.equals("initiateMultipartUpload")) {
+                InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+                result.setUploadId("upload");
+                return result;
+            } else if (name.equals("uploadPart")) {
+                UploadPartRequest request = (UploadPartRequest) args[0];
+                synchronized (this) {
+                    maxPartSize = Math.max(maxPartSize,
+                            request.getPartSize());
+                }
+                return uploadPart(request);
+            } else if (name.equals("completeMultipartUpload")) {
+                List<PartETag> partETags = ((CompleteMultipartUploadRequest) args[0]).getPartETags();
+                byte[][] parts = new byte[partETags.size()][];
+                for (int i = 0; i < parts.length; i++) {
+                    parts[i] = md5s.get(Integer.valueOf(i + 1));
+                }
+                CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+                result.setETag(S3MultipartUploader.getMultipartETag(parts));
+                return result;
+            } else if (name.equals("abortMultipartUpload")) {
+                aborted = true;
+                return null;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+
+        protected UploadPartResult uploadPart(UploadPartRequest request)
+                throws IOException {
+            byte[] md5 = S3MultipartUploader.digestPart(request.getFile(),
+                    request.getFileOffset(), request.getPartSize());
+            md5s.put(Integer.valueOf(request.getPartNumber()), md5);
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag(DigestGenerator.toHexString(md5));
+            return result;
+        }
+    }
+
+    @Test
+    public void testPartSize() throws Exception {
+        S3MultipartUploader uploader = new S3MultipartUploader(null, "bucket",
+                5, 1, 1);
+        try {
+            assertEquals(5, uploader.getPartSize(1000));
+            assertEquals(5, uploader.getPartSize(50000));
+            assertEquals(6, uploader.getPartSize(50001));
+        } finally {
+            uploader.shutdown();
+        }
+        // a file too big for the configured part size
+        StubS3 s3 = new StubS3();
+        uploader = new S3MultipartUploader(s3.getClient(), "bucket", 1, 4, 1);
+        File file = File.createTempFile("nxtest-", ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(file);
+            out.write(new byte[S3MultipartUploader.MAX_PARTS + 1]);
+            out.close();
+            String etag = uploader.upload("key", file);
+            assertEquals("-5001", etag.substring(etag.indexOf('-')));
+            assertEquals(5001, s3.md5s.size());
+            assertEquals(2, s3.maxPartSize);
+            assertFalse(s3.aborted);
+        } finally {
+            uploader.shutdown();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testAbortWaitsForRunningParts() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final boolean[] finishedBeforeAbort = new boolean[1];
+        StubS3 s3 = new StubS3() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Throwable {
+                if (method.getName().equals("abortMultipartUpload")) {
+                    finishedBeforeAbort[0] = finished.getCount() == 0;
+                }
+                return super.invoke(proxy, method, args);
+            }
+
+            @Override
+            protected UploadPartResult uploadPart(UploadPartRequest request)
+                    throws IOException {
+                if (request.getPartNumber() == 2) {
+                    // fails while the first part is uploading
+                    try {
+                        started.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException("Interrupted");
+                    }
+                    throw new AmazonClientException("failed");
+                }
+                started.countDown();
+                // a slow part, ignoring the interruption like a blocked write
+                long end = System.currentTimeMillis() + 300;
+                while (System.currentTimeMillis() < end) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        // continue
+                    }
+                }
+                finished.countDown();
+                return super.uploadPart(request);
+            }
+        };
+        S3MultipartUploader uploader = new S3MultipartUploader(
+                s3.getClient(), "bucket", 5, 2, 1);
+        try {
+            try {
+                uploader.upload("key", writeTemp("abcdefg"));
+                fail();
+            } catch (IOException e) {
+                // expected
+            }
+            assertTrue(s3.aborted);
+            assertTrue(finished.await(0, TimeUnit.MILLISECONDS));
+            assertTrue(finishedBeforeAbort[0]);
+        } finally {
+            uploader.shutdown();
+        }
+    }
+
+    /**
+     * An existing object with a multipart ETag is only kept if it matches the
+     * parts of the local file.
+     */
+    @Test
+    public void testUploadOverMultipartObject() throws Exception {
+        final String[] existing = new String[1];
+        // multipart and single part uploads
+        final int[] uploads = new int[2];
+        StubS3 s3 = new StubS3() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Throwable {
+                String name = method.getName();
+                if (name.equals("getObjectMetadata")) {
+                    ObjectMetadata metadata = new ObjectMetadata();
+                    metadata.setHeader("ETag", existing[0]);
+                    return metadata;
+                } else if (name.equals("putObject")) {
+                    uploads[1]++;
+                    PutObjectResult result = new PutObjectResult();
+                    result.setETag(DigestGenerator.getMD5Checksum((File) args[2]));
+                    return result;
+                } else if (name.equals("initiateMultipartUpload")) {
+                    uploads[0]++;
+                }
+                return super.invoke(proxy, method, args);
+            }
+        };
+        File file = writeTemp("abcdefg");
+        String digest = DigestGenerator.getMD5Checksum(file);
+        S3BinaryManager binaryManager = new S3BinaryManager();
+        binaryManager.amazonS3 = s3.getClient();
+        binaryManager.bucketName = "bucket";
+        binaryManager.multipartThreshold = 3;
+        binaryManager.multipartUploader = new S3MultipartUploader(
+                s3.getClient(), "bucket", 3, 1, 1);
+        try {
+            // uploaded in the same parts, checked
+            byte[][] md5s = { DigestGenerator.getMD5(writeTemp("abc")),
+                    DigestGenerator.getMD5(writeTemp("def")),
+                    DigestGenerator.getMD5(writeTemp("g")) };
+            existing[0] = S3MultipartUploader.getMultipartETag(md5s);
+            assertEquals(existing[0],
+                    binaryManager.multipartUploader.getMultipartETag(file));
+            binaryManager.upload(digest, file);
+            assertEquals(0, uploads[0]);
+            // uploaded in other parts, or corrupted, stored again
+            existing[0] = ABC_MD5 + "-3";
+            binaryManager.upload(digest, file);
+            assertEquals(1, uploads[0]);
+            existing[0] = S3MultipartUploader.getMultipartETag(new byte[][] {
+                    DigestGenerator.getMD5(writeTemp("abcd")),
+                    DigestGenerator.getMD5(writeTemp("efg")) });
+            binaryManager.upload(digest, file);
+            assertEquals(2, uploads[0]);
+            // a single part object is checked against its digest
+            existing[0] = digest;
+            binaryManager.upload(digest, file);
+            assertEquals(2, uploads[0]);
+            existing[0] = ABC_MD5;
+            try {
+                binaryManager.upload(digest, file);
+                fail();
+            } catch (IOException e) {
+                // expected
+            }
+            // without multipart uploads, stored again in a single part
+            binaryManager.multipartUploader.shutdown();
+            binaryManager.multipartUploader = null;
+            binaryManager.multipartThreshold = -1;
+            existing[0] = ABC_MD5 + "-3";
+            binaryManager.upload(digest, file);
+            assertEquals(2, uploads[0]);
+            assertEquals(1, uploads[1]);
+        } finally {
+            if (binaryManager.multipartUploader != null) {
+                binaryManager.multipartUploader.shutdown();
+            }
+        }
+    }
+
+    protected static File writeTemp(String content) throws Exception {
+        File file = File.createTempFile("nxtest-", ".tmp");
+        file.deleteOnExit();
+        OutputStream out = new FileOutputStream(file);
+        out.write(content.getBytes("UTF-8"));
+        out.close();
+        return file;
+    }
+
+}
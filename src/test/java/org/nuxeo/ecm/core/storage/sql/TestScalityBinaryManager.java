@@ -18,6 +18,8 @@ package org.nuxeo.ecm.core.storage.sql;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
@@ -34,7 +36,8 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.nuxeo.common.utils.FileUtils;
-import org.nuxeo.ecm.core.storage.sql.scality.DigestGenerator;
+import org.nuxeo.ecm.core.storage.sql.ScalityBinaryManager.ScalityLazyBinary;
+import org.nuxeo.ecm.core.storage.sql.cloud.DigestGenerator;
 import org.nuxeo.ecm.core.storage.sql.scality.ScalityConfigurationBean;
 import org.nuxeo.ecm.core.storage.sql.scality.s3.Contents;
 
@@ -165,6 +168,27 @@ public class TestScalityBinaryManager {
     }
 
 
+    @Test
+    public void testGetBinaryLazy() throws Exception {
+        ScalityBinaryManager sbm = getInitializedBinaryManager();
+        sbm.fileCache.clear();
+
+        String knownRemoteDigest = "5368976310281a3a81ae650108498726";
+        Binary remoteBinary = sbm.getBinary(knownRemoteDigest);
+        assertTrue(remoteBinary instanceof ScalityLazyBinary);
+        // the length doesn't download the object
+        assertTrue(remoteBinary.getLength() > 0);
+        assertNull(sbm.fileCache.getFile(knownRemoteDigest));
+        String fileContents = FileUtils.read(remoteBinary.getStream());
+        assertTrue(fileContents.contains("abcdef"));
+        assertNotNull(sbm.fileCache.getFile(knownRemoteDigest));
+
+        String fakeRemoteDigest = "00000000000000000000000123456789";
+        remoteBinary = sbm.getBinary(fakeRemoteDigest);
+        assertNull(remoteBinary.getStream());
+    }
+
+
     @Test
     public void testObjectExists() throws Exception {
         ScalityBinaryManager sbm = getInitializedBinaryManager();
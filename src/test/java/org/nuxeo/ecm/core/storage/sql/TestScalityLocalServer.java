@@ -0,0 +1,584 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.core.storage.sql.ScalityBinaryManager.ScalityLazyBinary;
+import org.nuxeo.ecm.core.storage.sql.cloud.DigestGenerator;
+import org.nuxeo.ecm.core.storage.sql.cloud.Prefetcher.Prefetch;
+import org.nuxeo.ecm.core.storage.sql.scality.ScalityConfigurationBean;
+import org.nuxeo.ecm.core.storage.sql.scality.s3.Contents;
+import org.nuxeo.runtime.RuntimeServiceEvent;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the Scality binary manager against a local stand-in HTTP server,
+ * reached as a proxy so that the bucket host names don't need to resolve.
+ */
+public class TestScalityLocalServer {
+
+    protected static final String BUCKET = "bucket";
+
+    protected static final long IDLE_TIMEOUT = 1000;
+
+    /** The objects of the bucket, by key. */
+    protected final Map<String, byte[]> objects = new ConcurrentHashMap<String, byte[]>();
+
+    /** The number of object requests received. */
+    protected final AtomicInteger objectRequests = new AtomicInteger();
+
+    /** The status returned to the object requests if not 0, e.g. 500. */
+    protected volatile int failure;
+
+    /** The digest of the binary manager. */
+    protected String digestAlgorithm = "MD5";
+
+    /** The maximum number of objects of a listing page. */
+    protected volatile int pageSize = ScalityBinaryManager.LIST_MAX_KEYS;
+
+    /** If false, truncated listing pages have no NextMarker, like S3. */
+    protected volatile boolean nextMarkers = true;
+
+    /** The markers of the listing pages requested, "" for the first one. */
+    protected final List<String> markers = new CopyOnWriteArrayList<String>();
+
+    protected HttpServer server;
+
+    protected ScalityBinaryManager sbm;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    TestScalityLocalServer.this.handle(exchange);
+                } finally {
+                    // keeps the connection alive, unlike exchange.close()
+                    exchange.getResponseBody().close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (sbm != null) {
+            sbm.close();
+        }
+        server.stop(0);
+    }
+
+    /**
+     * Serves the bucket and its objects.
+     */
+    protected void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if (path.equals("/")) {
+            list(exchange);
+            return;
+        }
+        objectRequests.incrementAndGet();
+        if (failure != 0) {
+            exchange.sendResponseHeaders(failure, -1);
+            return;
+        }
+        if (exchange.getRequestMethod().equals("PUT")) {
+            put(exchange, path.substring(1));
+            return;
+        }
+        if (exchange.getRequestMethod().equals("DELETE")) {
+            boolean deleted = objects.remove(path.substring(1)) != null;
+            exchange.sendResponseHeaders(deleted ? 204 : 404, -1);
+            return;
+        }
+        byte[] content = objects.get(path.substring(1));
+        if (content == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.getResponseHeaders().set("Content-Length",
+                    String.valueOf(content.length));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        int start = 0;
+        int end = content.length - 1;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null) {
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            long first = Long.parseLong(bounds[0]);
+            if (first >= content.length) {
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            start = (int) first;
+            end = (int) Math.min(Long.parseLong(bounds[1]), end);
+        }
+        exchange.sendResponseHeaders(range == null ? 200 : 206, end - start
+                + 1);
+        OutputStream out = exchange.getResponseBody();
+        out.write(content, start, end - start + 1);
+        out.close();
+    }
+
+    /**
+     * Stores an object, checking its Content-MD5.
+     */
+    protected void put(HttpExchange exchange, String key) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = exchange.getRequestBody();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        byte[] content = out.toByteArray();
+        String contentMD5 = exchange.getRequestHeaders().getFirst(
+                "Content-MD5");
+        if (!DigestGenerator.toBase64(md5(content)).equals(contentMD5)) {
+            exchange.sendResponseHeaders(400, -1);
+            return;
+        }
+        objects.put(key, content);
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    /**
+     * Lists the bucket by pages of max-keys objects after the marker.
+     */
+    protected void list(HttpExchange exchange) throws IOException {
+        String marker = null;
+        int maxKeys = pageSize;
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                String[] nameValue = param.split("=", 2);
+                if (nameValue[0].equals("marker")) {
+                    marker = nameValue[1];
+                } else if (nameValue[0].equals("max-keys")) {
+                    maxKeys = Math.min(maxKeys,
+                            Integer.parseInt(nameValue[1]));
+                }
+            }
+        }
+        markers.add(marker == null ? "" : marker);
+        SortedMap<String, byte[]> sorted = new TreeMap<String, byte[]>(objects);
+        if (marker != null) {
+            sorted = sorted.tailMap(marker + '\0');
+        }
+        StringBuilder xml = new StringBuilder(
+                "<ListBucketResult><Name>" + BUCKET + "</Name>");
+        int count = 0;
+        String last = null;
+        for (Map.Entry<String, byte[]> entry : sorted.entrySet()) {
+            if (count == maxKeys) {
+                break;
+            }
+            last = entry.getKey();
+            xml.append("<Contents><Key>" + last + "</Key><Size>"
+                    + entry.getValue().length + "</Size></Contents>");
+            count++;
+        }
+        boolean truncated = sorted.size() > count;
+        xml.append("<IsTruncated>" + truncated + "</IsTruncated>");
+        if (truncated && nextMarkers) {
+            xml.append("<NextMarker>" + last + "</NextMarker>");
+        }
+        xml.append("</ListBucketResult>");
+        byte[] bytes = xml.toString().getBytes("UTF-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    protected ScalityBinaryManager newBinaryManager() throws Exception {
+        ScalityConfigurationBean conf = new ScalityConfigurationBean();
+        conf.setHostBase("scality.test");
+        conf.setBucketName(BUCKET);
+        conf.setAwsID("id");
+        conf.setAwsSecret("secret");
+        conf.setCacheSizeStr("10M");
+        conf.setMaxConnectionsPerHost(2);
+        conf.setIdleConnectionTimeout(IDLE_TIMEOUT);
+        ScalityBinaryManager binaryManager = new ScalityBinaryManager(conf) {
+            @Override
+            protected String getDigest() {
+                return digestAlgorithm;
+            }
+
+            @Override
+            protected void initializeConnectionPool() {
+                super.initializeConnectionPool();
+                httpClient.getHostConfiguration().setProxy("localhost",
+                        server.getAddress().getPort());
+            }
+        };
+        RepositoryDescriptor repositoryDescriptor = new RepositoryDescriptor();
+        repositoryDescriptor.name = "test";
+        binaryManager.initialize(repositoryDescriptor);
+        return binaryManager;
+    }
+
+    @Test
+    public void testConnectionPool() throws Exception {
+        objects.put("abc", "abc".getBytes("UTF-8"));
+        sbm = newBinaryManager();
+        // sequential requests reuse the same connection
+        for (int i = 0; i < 5; i++) {
+            InputStream in = sbm.openStream("abc");
+            assertEquals('a', in.read());
+            in.close();
+        }
+        assertNull(sbm.openStream("nosuchobject"));
+        assertEquals(1, sbm.getConnectionsInPool());
+        // concurrent streams use their own connection
+        InputStream in1 = sbm.openStream("abc");
+        InputStream in2 = sbm.openStream("abc");
+        assertEquals(2, sbm.getConnectionsInPool());
+        assertEquals('a', in1.read());
+        assertEquals('a', in2.read());
+        in1.close();
+        in2.close();
+        assertEquals(2, sbm.getConnectionsInPool());
+        // the idle connections are closed in the background
+        long end = System.currentTimeMillis() + 10 * IDLE_TIMEOUT;
+        while (sbm.getConnectionsInPool() > 0
+                && System.currentTimeMillis() < end) {
+            Thread.sleep(100);
+        }
+        assertEquals(0, sbm.getConnectionsInPool());
+    }
+
+    protected String putObject(String content) throws Exception {
+        byte[] bytes = content.getBytes("UTF-8");
+        String digest = DigestGenerator.toHexString(md5(bytes));
+        objects.put(digest, bytes);
+        return digest;
+    }
+
+    protected static byte[] md5(byte[] bytes) {
+        return digest("MD5", bytes);
+    }
+
+    protected static byte[] digest(String algorithm, byte[] bytes) {
+        try {
+            return MessageDigest.getInstance(algorithm).digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    protected static String read(InputStream in) throws IOException {
+        try {
+            StringBuilder buf = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                buf.append((char) c);
+            }
+            return buf.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testLazyBinary() throws Exception {
+        String digest = putObject("abcdef");
+        sbm = newBinaryManager();
+        Binary binary = sbm.getBinary(digest);
+        assertTrue(binary instanceof ScalityLazyBinary);
+        // the length doesn't download the binary
+        assertEquals(6, binary.getLength());
+        assertEquals(1, objectRequests.get());
+        assertNull(sbm.getFileCache().getFile(digest));
+        // and is remembered for the next binaries
+        assertEquals(6, sbm.getBinary(digest).getLength());
+        assertEquals(1, objectRequests.get());
+        assertEquals("abcdef", read(binary.getStream()));
+        assertEquals(2, objectRequests.get());
+        // then read from the cache
+        assertEquals("abcdef", read(sbm.getBinary(digest).getStream()));
+        assertEquals(2, objectRequests.get());
+    }
+
+    @Test
+    public void testLazyBinaryMissing() throws Exception {
+        sbm = newBinaryManager();
+        String digest = "d41d8cd98f00b204e9800998ecf8427e";
+        assertEquals(0, sbm.getBinary(digest).getLength());
+        assertNull(sbm.getBinary(digest).getStream());
+    }
+
+    @Test
+    public void testLazyBinaryServerError() throws Exception {
+        String digest = putObject("abcdef");
+        sbm = newBinaryManager();
+        failure = 500;
+        Binary binary = sbm.getBinary(digest);
+        // not taken for a missing binary
+        try {
+            binary.getLength();
+            fail();
+        } catch (RuntimeException e) {
+            // expected
+        }
+        try {
+            binary.getStream();
+            fail();
+        } catch (RuntimeException e) {
+            // expected
+        }
+        assertEquals(0, sbm.getFileCache().getNumberOfItems());
+        // available again once the server recovers
+        failure = 0;
+        assertEquals(6, binary.getLength());
+        assertEquals("abcdef", read(binary.getStream()));
+    }
+
+    @Test
+    public void testLazyBinaryRange() throws Exception {
+        String digest = putObject("abcdef");
+        sbm = newBinaryManager();
+        RangedBinary rangedBinary = (RangedBinary) sbm.getBinary(digest);
+        assertEquals("bcd", read(rangedBinary.getStream(1, 3)));
+        // up to the end, without overflowing
+        assertEquals("cdef", read(rangedBinary.getStream(2, Long.MAX_VALUE)));
+        // empty after the end, like from a cached file
+        assertEquals("", read(rangedBinary.getStream(6, 10)));
+        assertEquals("", read(rangedBinary.getStream(100, Long.MAX_VALUE)));
+        assertEquals(4, objectRequests.get());
+        // not downloaded
+        assertNull(sbm.getFileCache().getFile(digest));
+    }
+
+    @Test
+    public void testMigrateMD5Keys() throws Exception {
+        String md5 = putObject("abc");
+        putObject("defg");
+        objects.put("other", new byte[1]);
+        digestAlgorithm = "SHA-256";
+        sbm = newBinaryManager();
+        String digest = DigestGenerator.toHexString(digest("SHA-256",
+                "abc".getBytes("UTF-8")));
+        // not readable under its digest
+        assertNull(sbm.getBinary(digest).getStream());
+        assertEquals(2, sbm.migrateMD5Keys());
+        assertEquals(5, objects.size());
+        assertTrue(objects.containsKey(md5));
+        assertEquals("abc", read(sbm.getBinary(digest).getStream()));
+        // only copied once
+        assertEquals(0, sbm.migrateMD5Keys());
+        // new binaries are stored under their digest
+        Binary binary = sbm.getBinary(new ByteArrayInputStream(
+                "xyz".getBytes("UTF-8")));
+        assertEquals(DigestGenerator.toHexString(digest("SHA-256",
+                "xyz".getBytes("UTF-8"))), binary.getDigest());
+        assertTrue(objects.containsKey(binary.getDigest()));
+    }
+
+    protected List<String> listKeys() {
+        List<String> keys = new ArrayList<String>();
+        Iterator<Contents> it = sbm.iterateObjects(BUCKET);
+        while (it.hasNext()) {
+            keys.add(it.next().key);
+        }
+        return keys;
+    }
+
+    protected void collectGarbage(String... used) {
+        BinaryGarbageCollector gc = new ScalityBinaryManager.ScalityBinaryGarbageCollector(
+                sbm);
+        gc.start();
+        for (String digest : used) {
+            gc.mark(digest);
+        }
+        gc.stop(true);
+    }
+
+    @Test
+    public void testGarbageCollector() throws Exception {
+        String used = putObject("abc");
+        String unused = putObject("defg");
+        objects.put("other", new byte[1]);
+        sbm = newBinaryManager();
+        collectGarbage(used);
+        assertTrue(objects.containsKey(used));
+        assertFalse(objects.containsKey(unused));
+        assertTrue(objects.containsKey("other"));
+    }
+
+    @Test
+    public void testGarbageCollectorExpectedMarks() throws Exception {
+        String used = putObject("abc");
+        putObject("defg");
+        sbm = newBinaryManager();
+        ScalityBinaryManager.ScalityBinaryGarbageCollector gc = new ScalityBinaryManager.ScalityBinaryGarbageCollector(
+                sbm);
+        assertEquals(0, gc.getExpectedMarks());
+        gc.start();
+        gc.mark(used);
+        gc.stop(true);
+        // sized from the binaries kept by the last collection
+        assertEquals(1, gc.getExpectedMarks());
+    }
+
+    @Test
+    public void testGarbageCollectorWithDigest() throws Exception {
+        String legacy = putObject("abc");
+        digestAlgorithm = "SHA-256";
+        sbm = newBinaryManager();
+        String used = sbm.getBinary(
+                new ByteArrayInputStream("defg".getBytes("UTF-8"))).getDigest();
+        String unused = sbm.getBinary(
+                new ByteArrayInputStream("hij".getBytes("UTF-8"))).getDigest();
+        assertEquals(64, used.length());
+        assertEquals(3, objects.size());
+        collectGarbage(used, legacy);
+        // the objects of the digest are collected, not the ones under an MD5
+        assertTrue(objects.containsKey(used));
+        assertFalse(objects.containsKey(unused));
+        assertTrue(objects.containsKey(legacy));
+        collectGarbage();
+        assertFalse(objects.containsKey(used));
+        assertTrue(objects.containsKey(legacy));
+    }
+
+    @Test
+    public void testBucketIterator() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            objects.put("key" + i, new byte[i]);
+        }
+        sbm = newBinaryManager();
+        pageSize = 2;
+        markers.clear();
+        List<String> keys = listKeys();
+        assertEquals(Arrays.asList("key0", "key1", "key2", "key3", "key4"),
+                keys);
+        assertEquals(Arrays.asList("", "key1", "key3"), markers);
+        // ends with a full page
+        objects.remove("key4");
+        markers.clear();
+        assertEquals(4, listKeys().size());
+        assertEquals(Arrays.asList("", "key1"), markers);
+        // empty bucket
+        objects.clear();
+        markers.clear();
+        assertTrue(listKeys().isEmpty());
+        assertEquals(Arrays.asList(""), markers);
+    }
+
+    @Test
+    public void testBucketIteratorWithoutNextMarker() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            objects.put("key" + i, new byte[i]);
+        }
+        sbm = newBinaryManager();
+        pageSize = 2;
+        nextMarkers = false;
+        markers.clear();
+        // continues after the last key of the truncated pages
+        assertEquals(Arrays.asList("key0", "key1", "key2", "key3", "key4"),
+                listKeys());
+        assertEquals(Arrays.asList("", "key1", "key3"), markers);
+        Iterator<Contents> it = sbm.iterateObjects(BUCKET);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, it.next().size);
+        }
+        assertFalse(it.hasNext());
+        try {
+            it.next();
+            fail();
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        String digest1 = putObject("abc");
+        String digest2 = putObject("defg");
+        sbm = newBinaryManager();
+        Prefetch prefetch = sbm.prefetch(Arrays.asList(digest1, digest2,
+                "d41d8cd98f00b204e9800998ecf8427e"));
+        prefetch.get(10, TimeUnit.SECONDS);
+        assertEquals(2, prefetch.getFetchedCount());
+        assertEquals(1, prefetch.getMissingCount());
+        // the prefetches are not counted as reads
+        assertEquals(0, sbm.getFileCacheMissCount());
+        assertEquals(0, sbm.getFileCacheHitCount());
+        assertEquals("abc", read(sbm.getBinary(digest1).getStream()));
+        assertEquals(1, sbm.getFileCacheHitCount());
+    }
+
+    @Test
+    public void testClosedWhenRuntimeStops() throws Exception {
+        objects.put("abc", "abc".getBytes("UTF-8"));
+        sbm = newBinaryManager();
+        assertTrue(sbm.objectExists("abc"));
+        Thread idleConnectionTimeoutThread = sbm.idleConnectionTimeoutThread;
+        assertTrue(idleConnectionTimeoutThread.isAlive());
+        assertTrue(idleConnectionTimeoutThread.isDaemon());
+        sbm.shutdownListener.handleEvent(new RuntimeServiceEvent(
+                RuntimeServiceEvent.RUNTIME_ABOUT_TO_STOP, null));
+        assertNull(sbm.shutdownListener);
+        assertEquals(0, sbm.getConnectionsInPool());
+        idleConnectionTimeoutThread.join(10 * IDLE_TIMEOUT);
+        assertFalse(idleConnectionTimeoutThread.isAlive());
+        try {
+            sbm.objectExists("abc");
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.nuxeo.ecm.core.storage.sql.cloud.CloudFileCache;
+import org.nuxeo.ecm.core.storage.sql.cloud.ShardedFileCache;
+
+public class TestShardedFileCache extends CloudFileCacheTestCase {
+
+    // shard 0 of 2
+    protected static final String KEY0 = "abcdef0000000000000000000000000a";
+
+    // shard 1 of 2
+    protected static final String KEY1 = "abcdef0100000000000000000000000b";
+
+    protected ShardedFileCache open(long shardSize) throws IOException {
+        List<CloudFileCache> shards = new ArrayList<CloudFileCache>();
+        shards.add(new CloudFileCache(new File(dir, "disk0"), shardSize, true));
+        shards.add(new CloudFileCache(new File(dir, "disk1"), shardSize, true));
+        return new ShardedFileCache(new File(dir, "main"), shards);
+    }
+
+    @Test
+    public void testShardsAndFanOut() throws Exception {
+        ShardedFileCache cache = open(100);
+        try {
+            assertEquals(200, cache.getMaxSize());
+            CloudFileCache shard0 = cache.getShards().get(0);
+            CloudFileCache shard1 = cache.getShards().get(1);
+            assertSame(shard0, cache.getShard(KEY0));
+            assertSame(shard1, cache.getShard(KEY1));
+            put(cache, KEY0, 60);
+            put(cache, KEY1, 60);
+            File file = cache.getFile(KEY0);
+            assertEquals(new File(dir, "disk0/ab/cd/" + KEY0), file);
+            assertTrue(file.isFile());
+            assertEquals(new File(dir, "disk1/ab/cd/" + KEY1),
+                    cache.getFile(KEY1));
+            assertEquals(120, cache.getSize());
+            assertEquals(2, cache.getNumberOfItems());
+            // each shard has its own budget
+            String other0 = "00000000000000000000000000000000";
+            assertSame(shard0, cache.getShard(other0));
+            put(cache, other0, 60);
+            assertNull(cache.getFile(KEY0));
+            assertFalse(file.exists());
+            assertNotNull(cache.getFile(KEY1));
+            // short keys are stored flat
+            put(cache, "x", 1);
+            assertEquals(new File(cache.getShard("x").getDir(), "x"),
+                    cache.getFile("x"));
+            cache.clear();
+            assertEquals(0, cache.getSize());
+            assertNull(cache.getFile(KEY1));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testTempFiles() throws Exception {
+        ShardedFileCache cache = open(100);
+        try {
+            File tmp = cache.getTempFile(KEY1);
+            assertEquals(new File(dir, "disk1/" + CloudFileCache.TMP_DIR),
+                    tmp.getParentFile());
+            write(tmp, 10);
+            assertEquals(new File(dir, "disk1/ab/cd/" + KEY1), cache.putFile(
+                    KEY1, tmp));
+            // created in any shard, moved to the right one
+            for (int i = 0; i < 2; i++) {
+                String key = "abcdef0" + i + "00000000000000000000000000";
+                tmp = cache.getTempFile();
+                write(tmp, 20);
+                File file = cache.putFile(key, tmp);
+                assertEquals(new File(cache.getShard(key).getDir(), "ab/cd/"
+                        + key), file);
+                assertEquals(20, file.length());
+                assertFalse(tmp.exists());
+            }
+            assertEquals(50, cache.getSize());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testPinAndRebuild() throws Exception {
+        ShardedFileCache cache = open(100);
+        cache.pin(KEY0);
+        assertTrue(cache.getShard(KEY0).isPinned(KEY0));
+        assertFalse(cache.getShard(KEY1).isPinned(KEY0));
+        put(cache, KEY0, 30);
+        put(cache, KEY1, 40);
+        cache.clear();
+        assertEquals(30, cache.getSize());
+        cache.unpin(KEY0);
+        put(cache, KEY1, 40);
+        cache.close();
+
+        cache = open(100);
+        try {
+            assertEquals(0, cache.getNumberOfItems());
+            cache.rebuild(2, 10000);
+            assertEquals(2, cache.getNumberOfItems());
+            assertEquals(70, cache.getSize());
+            assertNotNull(cache.getFile(KEY0));
+            assertNotNull(cache.getFile(KEY1));
+        } finally {
+            cache.close();
+        }
+    }
+
+}
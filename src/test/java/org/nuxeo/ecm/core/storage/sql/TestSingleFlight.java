@@ -0,0 +1,123 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.nuxeo.ecm.core.storage.sql.cloud.SingleFlight;
+
+public class TestSingleFlight {
+
+    private static final int THREADS = 8;
+
+    @Test
+    public void testCoalesced() throws Exception {
+        final SingleFlight<Object> flight = new SingleFlight<Object>();
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Object result = new Object();
+        final Callable<Object> slow = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                calls.incrementAndGet();
+                release.await();
+                return result;
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        return flight.execute("key", slow);
+                    }
+                }));
+            }
+            // wait for all the callers to be waiting
+            long deadline = System.currentTimeMillis() + 10000;
+            while (flight.getCoalescedCount() < THREADS - 1
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            for (Future<Object> future : futures) {
+                assertSame(result, future.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, calls.get());
+        assertEquals(1, flight.getExecutedCount());
+        assertEquals(THREADS - 1, flight.getCoalescedCount());
+        assertEquals(0, flight.getInFlightCount());
+    }
+
+    @Test
+    public void testNotCoalescedWhenDone() throws Exception {
+        SingleFlight<String> flight = new SingleFlight<String>();
+        Callable<String> callable = new Callable<String>() {
+            @Override
+            public String call() {
+                return "foo";
+            }
+        };
+        assertEquals("foo", flight.execute("key", callable));
+        assertEquals("foo", flight.execute("key", callable));
+        assertEquals("foo", flight.execute("other", callable));
+        assertEquals(3, flight.getExecutedCount());
+        assertEquals(0, flight.getCoalescedCount());
+    }
+
+    @Test
+    public void testException() throws Exception {
+        SingleFlight<String> flight = new SingleFlight<String>();
+        try {
+            flight.execute("key", new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    throw new IOException("boom");
+                }
+            });
+            fail();
+        } catch (IOException e) {
+            assertEquals("boom", e.getMessage());
+        }
+        // forgotten after the failure
+        assertEquals(0, flight.getInFlightCount());
+        assertEquals("bar", flight.execute("key", new Callable<String>() {
+            @Override
+            public String call() {
+                return "bar";
+            }
+        }));
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.core.storage.sql.cloud.StreamingDownloader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Downloads a binary from a local stand-in HTTP server, checks the content
+ * and logs the throughput of the streaming download compared to the previous
+ * byte array copy loop.
+ */
+public class TestStreamingDownloader {
+
+    private static final Log log = LogFactory.getLog(TestStreamingDownloader.class);
+
+    private static final int SIZE = 32 * 1024 * 1024;
+
+    protected byte[] content;
+
+    protected HttpServer server;
+
+    protected MultiThreadedHttpConnectionManager connectionManager;
+
+    protected HttpClient client;
+
+    protected String url;
+
+    @Before
+    public void setUp() throws Exception {
+        content = new byte[SIZE];
+        new Random(1234).nextBytes(content);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, content.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(content);
+                out.close();
+            }
+        });
+        server.start();
+        url = "http://localhost:" + server.getAddress().getPort() + "/blob";
+        connectionManager = new MultiThreadedHttpConnectionManager();
+        client = new HttpClient(connectionManager);
+    }
+
+    @After
+    public void tearDown() {
+        connectionManager.shutdown();
+        server.stop(0);
+    }
+
+    @Test
+    public void testDownload() throws Exception {
+        StreamingDownloader downloader = new StreamingDownloader();
+        File file = File.createTempFile("nxtest", null);
+        try {
+            // warm up
+            download(downloader, file);
+            long t0 = System.nanoTime();
+            long length = download(downloader, file);
+            long t1 = System.nanoTime();
+            assertEquals(SIZE, length);
+            assertEquals(SIZE, file.length());
+            assertEquals(md5(content), md5(file));
+            log.info("Streaming download: " + throughput(length, t1 - t0)
+                    + " MB/s");
+
+            t0 = System.nanoTime();
+            length = legacyDownload(file);
+            t1 = System.nanoTime();
+            assertEquals(SIZE, length);
+            log.info("Byte array loop download: "
+                    + throughput(length, t1 - t0) + " MB/s");
+        } finally {
+            file.delete();
+        }
+    }
+
+    protected long download(StreamingDownloader downloader, File file)
+            throws IOException {
+        GetMethod getMethod = new GetMethod(url);
+        try {
+            assertEquals(200, client.executeMethod(getMethod));
+            InputStream in = getMethod.getResponseBodyAsStream();
+            try {
+                return downloader.download(in, file);
+            } finally {
+                in.close();
+            }
+        } finally {
+            getMethod.releaseConnection();
+        }
+    }
+
+    /**
+     * The copy loop previously used by ScalityBinaryManager.downloadFile.
+     */
+    protected long legacyDownload(File file) throws IOException {
+        GetMethod getMethod = new GetMethod(url);
+        try {
+            assertEquals(200, client.executeMethod(getMethod));
+            BufferedInputStream bis = new BufferedInputStream(
+                    getMethod.getResponseBodyAsStream());
+            FileOutputStream fos = new FileOutputStream(file);
+            long length = 0;
+            byte[] bytes = new byte[4];
+            int count;
+            while ((count = bis.read(bytes)) != -1) {
+                fos.write(bytes, 0, count);
+                length += count;
+            }
+            fos.close();
+            bis.close();
+            return length;
+        } finally {
+            getMethod.releaseConnection();
+        }
+    }
+
+    protected static String throughput(long length, long nanos) {
+        double mb = length / (1024.0 * 1024.0);
+        return String.format("%.1f", Double.valueOf(mb * 1e9 / nanos));
+    }
+
+    protected static String md5(byte[] bytes) throws Exception {
+        return toHex(MessageDigest.getInstance("MD5").digest(bytes));
+    }
+
+    protected static String md5(File file) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                md.update(buf, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(md.digest());
+    }
+
+    protected static String toHex(byte[] bytes) {
+        StringBuilder buf = new StringBuilder();
+        for (byte b : bytes) {
+            buf.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
+        }
+        return buf.toString();
+    }
+
+}
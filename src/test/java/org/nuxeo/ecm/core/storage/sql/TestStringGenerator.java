@@ -17,7 +17,9 @@
 package org.nuxeo.ecm.core.storage.sql;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -33,11 +35,12 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.junit.Test;
 import org.nuxeo.common.utils.FileUtils;
-import org.nuxeo.ecm.core.storage.sql.scality.DigestGenerator;
+import org.nuxeo.ecm.core.storage.sql.cloud.DigestGenerator;
 import org.nuxeo.ecm.core.storage.sql.scality.HTTPMethod;
 import org.nuxeo.ecm.core.storage.sql.scality.StringGenerator;
 import org.nuxeo.ecm.core.storage.sql.scality.s3.Contents;
 import org.nuxeo.ecm.core.storage.sql.scality.s3.ListBucketResult;
+import org.nuxeo.ecm.core.storage.sql.scality.s3.ListBucketResultParser;
 
 import com.thoughtworks.xstream.XStream;
 import com.thoughtworks.xstream.io.xml.StaxDriver;
@@ -161,6 +164,29 @@ public class TestStringGenerator {
 
     }
 
+    @Test
+    public void testStoreAndDigest() throws Exception {
+        File testFile = FileUtils.getResourceFileFromContext("test-files/testfile2.txt");
+        InputStream in = new FileInputStream(testFile);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[][] digests;
+        try {
+            digests = DigestGenerator.storeAndDigest(in, out,
+                    DigestGenerator.MD5, "SHA-256");
+        } finally {
+            in.close();
+        }
+        assertEquals("abc\n", out.toString("UTF-8"));
+        assertEquals(2, digests.length);
+        assertEquals("0bee89b07a248e27c83fc3d5951213c1",
+                DigestGenerator.toHexString(digests[0]));
+        assertEquals(DigestGenerator.getMD5Checksum(testFile),
+                DigestGenerator.toHexString(digests[0]));
+        assertEquals("C+6JsHokjifIP8PVlRITwQ==",
+                DigestGenerator.toBase64(digests[0]));
+        assertEquals(32, digests[1].length);
+    }
+
     /**
      * Test string to sign and the authorization string in conjunction with the
      * HTTP method: PUT
@@ -340,4 +366,27 @@ public class TestStringGenerator {
             throw new RuntimeException(e);
         }
     }
+
+    @Test
+    public void parseS3ResponseStreaming() throws Exception {
+        String responseFilePath = "test-files/s3Response.xml";
+        File responseFile = FileUtils.getResourceFileFromContext(responseFilePath);
+        InputStream in = new FileInputStream(responseFile);
+        ListBucketResult lbResult;
+        try {
+            lbResult = ListBucketResultParser.parse(in);
+        } finally {
+            in.close();
+        }
+        assertEquals("test5.demo.scality.com", lbResult.name);
+        assertEquals(1000, lbResult.maxKeys);
+        assertFalse(lbResult.isTruncated);
+        assertEquals(3, lbResult.contents.size());
+        Contents contents = lbResult.contents.get(2);
+        assertEquals("d917e1fdd8e26a63d005aca4c2c1b618", contents.key);
+        assertEquals("\"d917e1fdd8e26a63d005aca4c2c1b618\"", contents.eTag);
+        assertEquals(868947, contents.size);
+        assertEquals("Nuxeo", contents.owner.displayName);
+        assertEquals("STANDARD", contents.storageClass);
+    }
 }
@@ -0,0 +1,292 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.core.storage.sql.cloud.CloudFileCache;
+import org.nuxeo.ecm.core.storage.sql.cloud.SingleFlight;
+import org.nuxeo.ecm.core.storage.sql.cloud.TeeDownloader;
+
+public class TestTeeDownloader extends CloudFileCacheTestCase {
+
+    protected CloudFileCache cache;
+
+    protected TeeDownloader teeDownloader;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        cache = new CloudFileCache(dir, 10 * 1024 * 1024);
+        teeDownloader = new TeeDownloader("test-tee", cache);
+    }
+
+    @Override
+    @After
+    public void tearDown() throws Exception {
+        teeDownloader.shutdown();
+        cache.close();
+        super.tearDown();
+    }
+
+    /**
+     * A remote stream whose chunks are released by the test, an empty chunk
+     * ending it.
+     */
+    protected static class ChunkedInputStream extends InputStream {
+
+        protected final BlockingQueue<byte[]> chunks = new LinkedBlockingQueue<byte[]>();
+
+        protected byte[] chunk = new byte[0];
+
+        protected int pos;
+
+        protected boolean eof;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (eof) {
+                return -1;
+            }
+            if (pos == chunk.length) {
+                try {
+                    chunk = chunks.take();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+                pos = 0;
+                if (chunk.length == 0) {
+                    eof = true;
+                    return -1;
+                }
+            }
+            int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+
+    protected static TeeDownloader.Source source(final InputStream in) {
+        return new TeeDownloader.Source() {
+            @Override
+            public InputStream open() {
+                return in;
+            }
+        };
+    }
+
+    protected static String md5(byte[] bytes) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("MD5").digest(bytes)) {
+            sb.append(String.format("%02x", Integer.valueOf(b & 0xff)));
+        }
+        return sb.toString();
+    }
+
+    protected static byte[] readFully(InputStream in, int len)
+            throws IOException {
+        byte[] bytes = new byte[len];
+        int pos = 0;
+        while (pos < len) {
+            int n = in.read(bytes, pos, len - pos);
+            if (n == -1) {
+                throw new IOException("Unexpected end at " + pos);
+            }
+            pos += n;
+        }
+        return bytes;
+    }
+
+    protected static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testStreamWhileDownloading() throws Exception {
+        byte[] first = new byte[1000];
+        byte[] second = new byte[3000];
+        Arrays.fill(first, (byte) 1);
+        Arrays.fill(second, (byte) 2);
+        byte[] content = new byte[4000];
+        System.arraycopy(first, 0, content, 0, 1000);
+        System.arraycopy(second, 0, content, 1000, 3000);
+        String digest = md5(content);
+
+        ChunkedInputStream remote = new ChunkedInputStream();
+        InputStream in = teeDownloader.getStream(digest, "MD5",
+                source(remote));
+        assertNotNull(in);
+        remote.chunks.add(first);
+        // the first bytes are read before the rest is downloaded
+        assertTrue(Arrays.equals(first, readFully(in, 1000)));
+        assertNull(cache.getFile(digest));
+
+        // a second reader follows the same download
+        InputStream in2 = teeDownloader.getStream(digest, "MD5",
+                source(null));
+        assertEquals(1, teeDownloader.getStartedCount());
+        assertEquals(1, teeDownloader.getFollowedCount());
+
+        remote.chunks.add(second);
+        remote.chunks.add(new byte[0]);
+        assertTrue(Arrays.equals(second, readAll(in)));
+        assertTrue(Arrays.equals(content, readAll(in2)));
+        // the end of the stream is reached once the file is cached
+        File file = cache.getFile(digest);
+        assertNotNull(file);
+        assertEquals(4000, file.length());
+
+        // later readers use the cache
+        InputStream in3 = teeDownloader.getStream(digest, "MD5",
+                source(null));
+        assertTrue(Arrays.equals(content, readAll(in3)));
+        assertEquals(1, teeDownloader.getStartedCount());
+    }
+
+    @Test
+    public void testInvalidDigest() throws Exception {
+        String digest = md5(new byte[] { 1, 2, 3 });
+        ChunkedInputStream remote = new ChunkedInputStream();
+        remote.chunks.add(new byte[] { 4, 5, 6 });
+        remote.chunks.add(new byte[0]);
+        InputStream in = teeDownloader.getStream(digest, "MD5",
+                source(remote));
+        try {
+            readAll(in);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(),
+                    e.getMessage().contains("Invalid digest"));
+        } finally {
+            in.close();
+        }
+        assertNull(cache.getFile(digest));
+    }
+
+    @Test
+    public void testSaturated() throws Exception {
+        TeeDownloader bounded = new TeeDownloader("test-tee-bounded", cache, 1);
+        try {
+            byte[] content = new byte[] { 1, 2, 3 };
+            ChunkedInputStream remote = new ChunkedInputStream();
+            InputStream in = bounded.getStream(md5(content), "MD5",
+                    source(remote));
+            // the only thread is busy, downloaded before reading
+            byte[] other = new byte[] { 4, 5 };
+            ChunkedInputStream remote2 = new ChunkedInputStream();
+            remote2.chunks.add(other);
+            remote2.chunks.add(new byte[0]);
+            InputStream in2 = bounded.getStream(md5(other), "MD5",
+                    source(remote2));
+            assertEquals(1, bounded.getSaturatedCount());
+            assertNotNull(cache.getFile(md5(other)));
+            assertTrue(Arrays.equals(other, readAll(in2)));
+
+            remote.chunks.add(content);
+            remote.chunks.add(new byte[0]);
+            assertTrue(Arrays.equals(content, readAll(in)));
+            assertEquals(2, bounded.getStartedCount());
+        } finally {
+            bounded.shutdown();
+        }
+    }
+
+    @Test
+    public void testCoalescedWithFetches() throws Exception {
+        final SingleFlight<File> fetches = new SingleFlight<File>();
+        TeeDownloader coalescing = new TeeDownloader("test-tee-fetches",
+                cache, 2, fetches);
+        try {
+            final byte[] content = new byte[] { 1, 2, 3 };
+            final String digest = md5(content);
+            ChunkedInputStream remote = new ChunkedInputStream();
+            InputStream in = coalescing.getStream(digest, "MD5",
+                    source(remote));
+            assertEquals(1, fetches.getInFlightCount());
+            // a complete fetch waits for the download
+            final File[] fetched = new File[1];
+            Thread fetcher = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        fetched[0] = fetches.execute(digest,
+                                new Callable<File>() {
+                                    @Override
+                                    public File call() {
+                                        throw new AssertionError(
+                                                "fetched twice");
+                                    }
+                                });
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            fetcher.start();
+            while (fetches.getCoalescedCount() == 0) {
+                Thread.sleep(10);
+            }
+            remote.chunks.add(content);
+            remote.chunks.add(new byte[0]);
+            assertTrue(Arrays.equals(content, readAll(in)));
+            fetcher.join(10000);
+            assertEquals(cache.getFile(digest), fetched[0]);
+            assertEquals(1, fetches.getExecutedCount());
+            assertEquals(0, fetches.getInFlightCount());
+        } finally {
+            coalescing.shutdown();
+        }
+    }
+
+    @Test
+    public void testMissing() throws Exception {
+        assertNull(teeDownloader.getStream(md5(new byte[0]), "MD5",
+                source(null)));
+        assertEquals(0, cache.getNumberOfItems());
+    }
+
+}
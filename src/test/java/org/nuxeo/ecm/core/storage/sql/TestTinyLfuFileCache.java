@@ -0,0 +1,299 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+import org.nuxeo.ecm.core.storage.sql.cloud.CloudFileCache;
+import org.nuxeo.ecm.core.storage.sql.cloud.FrequencySketch;
+import org.nuxeo.ecm.core.storage.sql.cloud.TinyLfuFileCache;
+
+public class TestTinyLfuFileCache extends CloudFileCacheTestCase {
+
+    private static final Log log = LogFactory.getLog(TestTinyLfuFileCache.class);
+
+    /**
+     * A file of "key size" lines, one per access, replayed by
+     * {@link #testHitRatioRecordedTrace} if set.
+     */
+    public static final String TRACE_PROPERTY = "nuxeo.test.cache.trace";
+
+    protected static class Access {
+
+        protected final String key;
+
+        protected final long size;
+
+        protected Access(String key, long size) {
+            this.key = key;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Gets a file, putting it in the cache if missing and reading it then, as
+     * a binary manager does.
+     *
+     * @return {@code true} for a hit
+     */
+    protected static boolean access(CloudFileCache cache, String key,
+            long size) throws IOException {
+        if (cache.getFile(key) != null) {
+            return true;
+        }
+        File tmp = cache.getTempFile();
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(size);
+        } finally {
+            raf.close();
+        }
+        cache.putFile(key, tmp);
+        assertNotNull(cache.getFile(key));
+        return false;
+    }
+
+    /**
+     * Replays a trace, returning the hit ratio.
+     */
+    protected static double replay(CloudFileCache cache, List<Access> trace)
+            throws IOException {
+        try {
+            long hits = 0;
+            for (Access access : trace) {
+                if (access(cache, access.key, access.size)) {
+                    hits++;
+                }
+            }
+            return (double) hits / trace.size();
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testFrequencySketch() throws Exception {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        assertEquals(0, sketch.frequency("a"));
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("a");
+        }
+        sketch.increment("b");
+        assertTrue(sketch.frequency("a") >= 5);
+        assertTrue(sketch.frequency("b") >= 1);
+        for (int i = 0; i < 100; i++) {
+            sketch.increment("a");
+        }
+        assertEquals(FrequencySketch.MAX_FREQUENCY, sketch.frequency("a"));
+        // enough other increments halve the counters
+        for (int i = 0; i < 10 * 1024; i++) {
+            sketch.increment("k" + i);
+        }
+        assertTrue(sketch.frequency("a") < FrequencySketch.MAX_FREQUENCY);
+    }
+
+    @Test
+    public void testBigFileDoesNotEvictFrequentFiles() throws Exception {
+        TinyLfuFileCache cache = new TinyLfuFileCache(dir, 100000);
+        try {
+            for (int i = 0; i < 50; i++) {
+                access(cache, "hot" + i, 1000);
+            }
+            for (int n = 0; n < 3; n++) {
+                for (int i = 0; i < 50; i++) {
+                    assertTrue(access(cache, "hot" + i, 1000));
+                }
+            }
+            // read once, kept until it leaves the window
+            access(cache, "big", 90000);
+            assertNotNull(cache.getFile("big"));
+            access(cache, "other", 1000);
+            assertNull(cache.getFile("big"));
+            assertTrue(cache.getRejectedCount() > 0);
+            for (int i = 0; i < 50; i++) {
+                assertNotNull(cache.getFile("hot" + i));
+            }
+            assertTrue(cache.getSize() <= 100000);
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testNewFileKeptUntilRead() throws Exception {
+        TinyLfuFileCache cache = new TinyLfuFileCache(dir, 100000);
+        try {
+            for (int i = 0; i < 70; i++) {
+                access(cache, "hot" + i, 1000);
+                access(cache, "hot" + i, 1000);
+            }
+            // stored, bigger than the window, not yet read
+            File tmp = cache.getTempFile();
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.setLength(30000);
+            } finally {
+                raf.close();
+            }
+            File file = cache.putFile("new", tmp);
+            access(cache, "other", 1000);
+            access(cache, "other2", 1000);
+            assertTrue(file.exists());
+            assertNotNull(cache.getFile("new"));
+            assertTrue(cache.getSize() <= 100000);
+            // once read it's no longer protected
+            access(cache, "other3", 1000);
+            assertNull(cache.getFile("new"));
+            assertTrue(cache.getRejectedCount() > 0);
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testFrequentFileIsAdmitted() throws Exception {
+        TinyLfuFileCache cache = new TinyLfuFileCache(dir, 10000, 10);
+        try {
+            for (int i = 0; i < 20; i++) {
+                access(cache, "once" + i, 1000);
+            }
+            // accessed while missing, for instance after an eviction
+            for (int n = 0; n < 3; n++) {
+                cache.getFile("hot");
+            }
+            access(cache, "hot", 1000);
+            access(cache, "other", 1000);
+            assertNotNull(cache.getFile("hot"));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testClearAndPinned() throws Exception {
+        TinyLfuFileCache cache = new TinyLfuFileCache(dir, 10000, 10);
+        try {
+            cache.pin("p");
+            access(cache, "p", 5000);
+            for (int i = 0; i < 20; i++) {
+                access(cache, "k" + i, 1000);
+            }
+            assertNotNull(cache.getFile("p"));
+            cache.clear();
+            assertEquals(1, cache.getNumberOfItems());
+            assertEquals(5000, cache.getSize());
+            cache.unpin("p");
+            for (int i = 0; i < 20; i++) {
+                access(cache, "k" + i, 1000);
+            }
+            assertTrue(cache.getSize() <= 10000);
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * Frequently read small files mixed with a scan of files read once, some
+     * of them big.
+     */
+    protected static List<Access> syntheticTrace() {
+        Random random = new Random(1234);
+        int hotCount = 200;
+        double[] cumulative = new double[hotCount];
+        double total = 0;
+        for (int i = 0; i < hotCount; i++) {
+            total += 1 / Math.pow(i + 1, 0.8);
+            cumulative[i] = total;
+        }
+        List<Access> trace = new ArrayList<Access>();
+        int scan = 0;
+        for (int n = 0; n < 20000; n++) {
+            if (random.nextInt(10) < 7) {
+                double r = random.nextDouble() * total;
+                int i = 0;
+                while (cumulative[i] < r) {
+                    i++;
+                }
+                trace.add(new Access("hot" + i, 2000));
+            } else {
+                long size = random.nextInt(50) == 0 ? 200000 : 2000;
+                trace.add(new Access("scan" + scan++, size));
+            }
+        }
+        return trace;
+    }
+
+    @Test
+    public void testHitRatioSyntheticTrace() throws Exception {
+        List<Access> trace = syntheticTrace();
+        long maxSize = 300000;
+        double lru = replay(new CloudFileCache(new File(dir, "lru"), maxSize),
+                trace);
+        double tinyLfu = replay(new TinyLfuFileCache(new File(dir,
+                "tinylfu"), maxSize), trace);
+        log.info(String.format("Synthetic trace hit ratio: LRU %.3f, "
+                + "TinyLFU %.3f", Double.valueOf(lru), Double.valueOf(tinyLfu)));
+        assertTrue(lru + " " + tinyLfu, tinyLfu > lru);
+    }
+
+    /**
+     * Compares the hit ratios on a recorded trace, if one is configured.
+     */
+    @Test
+    public void testHitRatioRecordedTrace() throws Exception {
+        String path = System.getProperty(TRACE_PROPERTY);
+        if (path == null) {
+            return;
+        }
+        List<Access> trace = new ArrayList<Access>();
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.trim().split("\\s+");
+                if (parts.length == 2) {
+                    trace.add(new Access(parts[0], Long.parseLong(parts[1])));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        long maxSize = Long.parseLong(System.getProperty(TRACE_PROPERTY
+                + ".size", String.valueOf(100 * 1024 * 1024)));
+        double lru = replay(new CloudFileCache(new File(dir, "lru"), maxSize),
+                trace);
+        double tinyLfu = replay(new TinyLfuFileCache(new File(dir,
+                "tinylfu"), maxSize), trace);
+        log.info(String.format("Trace %s (%d accesses) hit ratio: LRU %.3f, "
+                + "TinyLFU %.3f", path, Integer.valueOf(trace.size()),
+                Double.valueOf(lru), Double.valueOf(tinyLfu)));
+    }
+
+}
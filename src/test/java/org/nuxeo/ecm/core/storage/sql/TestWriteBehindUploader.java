@@ -0,0 +1,214 @@
+/*
+ * (C) Copyright 2011 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.nuxeo.ecm.core.storage.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.nuxeo.ecm.core.storage.sql.cloud.CloudFileCache;
+import org.nuxeo.ecm.core.storage.sql.cloud.UploadJournal;
+import org.nuxeo.ecm.core.storage.sql.cloud.WriteBehindUploader;
+
+public class TestWriteBehindUploader extends CloudFileCacheTestCase {
+
+    /**
+     * Records the uploaded keys, and waits for the latch before uploading.
+     */
+    protected static class FakeUploader extends WriteBehindUploader {
+
+        protected final Set<String> uploaded = Collections.synchronizedSet(new HashSet<String>());
+
+        protected final CountDownLatch latch;
+
+        protected final AtomicInteger failuresLeft;
+
+        public FakeUploader(CloudFileCache fileCache, CountDownLatch latch,
+                int failures) throws IOException {
+            this(fileCache, latch, failures, null);
+        }
+
+        public FakeUploader(CloudFileCache fileCache, CountDownLatch latch,
+                int failures, String digestAlgorithm) throws IOException {
+            super("test-writebehind", fileCache, 2, digestAlgorithm);
+            this.latch = latch;
+            failuresLeft = new AtomicInteger(failures);
+        }
+
+        @Override
+        protected void upload(String key, File file) throws IOException {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+            if (failuresLeft.getAndDecrement() > 0) {
+                throw new IOException("Simulated failure");
+            }
+            uploaded.add(key);
+        }
+    }
+
+    @Test
+    public void testPinnedUntilUploaded() throws Exception {
+        CloudFileCache cache = new CloudFileCache(dir, 100);
+        CountDownLatch latch = new CountDownLatch(1);
+        FakeUploader uploader = new FakeUploader(cache, latch, 1);
+        try {
+            File file = uploader.put("a", tmpFile(cache, 60));
+            assertTrue(file.exists());
+            assertEquals(1, uploader.getPendingCount());
+            // would evict a if it wasn't pinned
+            cache.putFile("b", tmpFile(cache, 60));
+            assertNotNull(cache.getFile("a"));
+            assertTrue(cache.isPinned("a"));
+
+            // let the upload fail once, then succeed
+            latch.countDown();
+            assertTrue(uploader.awaitPending(10000));
+            assertEquals(Collections.singleton("a"), uploader.uploaded);
+            assertEquals(1, uploader.getFailureCount());
+            assertEquals(1, uploader.getUploadedCount());
+            assertFalse(cache.isPinned("a"));
+        } finally {
+            uploader.shutdown();
+            cache.close();
+        }
+        // nothing left to replay
+        UploadJournal journal = new UploadJournal(new File(dir,
+                WriteBehindUploader.JOURNAL_FILE));
+        assertEquals(0, journal.getPendingCount());
+        journal.close();
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        CloudFileCache cache = new CloudFileCache(dir, 1000);
+        // uploads never start
+        FakeUploader uploader = new FakeUploader(cache,
+                new CountDownLatch(1), 0);
+        uploader.put("a", tmpFile(cache, 10));
+        uploader.put("b", tmpFile(cache, 10));
+        uploader.shutdown();
+        cache.close();
+
+        // simulate a crash while writing a record
+        FileOutputStream out = new FileOutputStream(new File(dir,
+                WriteBehindUploader.JOURNAL_FILE), true);
+        out.write("+partial".getBytes("UTF-8"));
+        out.close();
+
+        cache = new CloudFileCache(dir, 1000);
+        cache.rebuild(1, 10000);
+        CountDownLatch latch = new CountDownLatch(0);
+        uploader = new FakeUploader(cache, latch, 0);
+        try {
+            uploader.replay();
+            assertTrue(uploader.awaitPending(10000));
+            assertEquals(new HashSet<String>(Arrays.asList("a", "b")),
+                    uploader.uploaded);
+        } finally {
+            uploader.shutdown();
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testGiveUp() throws Exception {
+        CloudFileCache cache = new CloudFileCache(dir, 100);
+        FakeUploader uploader = new FakeUploader(cache,
+                new CountDownLatch(0), 1);
+        uploader.setMaxAttempts(1);
+        try {
+            uploader.put("a", tmpFile(cache, 60));
+            assertTrue(uploader.awaitPending(10000));
+            assertEquals(1, uploader.getAbandonedCount());
+            assertEquals(0, uploader.getUploadedCount());
+            // kept until the next startup
+            assertTrue(cache.isPinned("a"));
+            cache.putFile("b", tmpFile(cache, 60));
+            assertNotNull(cache.getFile("a"));
+
+            // put again, uploaded and unpinned
+            uploader.put("a", tmpFile(cache, 60));
+            assertTrue(uploader.awaitPending(10000));
+            assertEquals(0, uploader.getAbandonedCount());
+            assertEquals(Collections.singleton("a"), uploader.uploaded);
+            assertFalse(cache.isPinned("a"));
+        } finally {
+            uploader.shutdown();
+            cache.close();
+        }
+        UploadJournal journal = new UploadJournal(new File(dir,
+                WriteBehindUploader.JOURNAL_FILE));
+        assertEquals(0, journal.getPendingCount());
+        journal.close();
+    }
+
+    @Test
+    public void testCorrupted() throws Exception {
+        CloudFileCache cache = new CloudFileCache(dir, 1000);
+        FakeUploader uploader = new FakeUploader(cache,
+                new CountDownLatch(0), 0, "MD5");
+        try {
+            // digest of 10 zeros
+            String good = "a63c90cc3684ad8b0a2176a6a8fe9005";
+            String bad = "0123456789abcdef0123456789abcdef";
+            uploader.put(good, tmpFile(cache, 10));
+            uploader.put(bad, tmpFile(cache, 10));
+            assertTrue(uploader.awaitPending(10000));
+            assertEquals(Collections.singleton(good), uploader.uploaded);
+            assertEquals(1, uploader.getCorruptedCount());
+            assertNotNull(cache.getFile(good));
+            assertNull(cache.getFile(bad));
+            assertFalse(cache.isPinned(bad));
+            assertEquals(10, cache.getSize());
+        } finally {
+            uploader.shutdown();
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testJournalCompaction() throws Exception {
+        dir.mkdirs();
+        File file = new File(dir, "journal");
+        UploadJournal journal = new UploadJournal(file);
+        journal.added("a");
+        journal.added("b");
+        journal.done("a");
+        journal.close();
+        assertEquals(3 * 3, file.length());
+        journal = new UploadJournal(file);
+        assertEquals(Collections.singletonList("b"), journal.getPending());
+        // compacted on open
+        assertEquals(1 * 3, file.length());
+        journal.close();
+    }
+
+}